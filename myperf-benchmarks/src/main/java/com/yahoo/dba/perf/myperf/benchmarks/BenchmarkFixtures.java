@@ -0,0 +1,267 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yahoo.dba.perf.myperf.common.MetricsDefManager;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+import com.yahoo.dba.perf.myperf.common.ProcessListEntry;
+
+/**
+ * Load captured data under /fixtures, and the builtin metrics definitions.
+ * Embedded derby databases, used as stand-in for MySQL and as metrics store,
+ * are created under a temp directory.
+ * @author xrao
+ *
+ */
+public class BenchmarkFixtures
+{
+	private static File derbyHome;
+	//hold a reference, otherwise the level setting can be lost with the logger
+	private static final Logger appLogger = Logger.getLogger("com.yahoo.dba.perf.myperf");
+
+	/**
+	 * Read a captured name/value output, one tab separated pair per line,
+	 * for example, mysql -N -e "show global status".
+	 * @param name file name under /fixtures
+	 * @return
+	 */
+	public static Map<String, String> loadKeyValuePairs(String name) throws IOException
+	{
+		Map<String, String> kv = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(open(name), "UTF-8"));
+		try
+		{
+			String line = null;
+			while((line = reader.readLine()) != null)
+			{
+				if(line.isEmpty() || line.startsWith("#"))continue;
+				int idx = line.indexOf('\t');
+				if(idx < 0)kv.put(line, "");
+				else kv.put(line.substring(0, idx), line.substring(idx+1));
+			}
+		}finally
+		{
+			reader.close();
+		}
+		return kv;
+	}
+
+	/**
+	 * Same pairs with names in upper case, as returned by information_schema.global_status
+	 * @param kv
+	 * @return
+	 */
+	public static Map<String, String> toUpperCaseKeys(Map<String, String> kv)
+	{
+		Map<String, String> upper = new HashMap<String, String>(kv.size()*2);
+		for(Map.Entry<String, String> e: kv.entrySet())
+			upper.put(e.getKey().toUpperCase(), e.getValue());
+		return upper;
+	}
+
+	/**
+	 * Read a captured text output as a single string
+	 * @param name file name under /fixtures
+	 * @return
+	 */
+	public static String loadText(String name) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(open(name), "UTF-8"));
+		try
+		{
+			String line = null;
+			while((line = reader.readLine()) != null)
+				sb.append(line).append('\n');
+		}finally
+		{
+			reader.close();
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Keep the benchmark output readable, only errors from the application.
+	 * For example, InnoController logs a warning for each line it does not recognize.
+	 */
+	public static void quietLogging()
+	{
+		appLogger.setLevel(Level.SEVERE);
+	}
+
+	/**
+	 * Builtin metrics definitions from metrics.xml. UDM directories are created under a temp directory.
+	 * @return
+	 */
+	public static MetricsDefManager loadMetricsDef() throws IOException
+	{
+		File root = File.createTempFile("myperf_bench", "");
+		root.delete();
+		root.mkdirs();
+		root.deleteOnExit();
+		quietLogging();
+		MetricsDefManager def = new MetricsDefManager();
+		def.getUdmManager().setRootPath(root.getAbsolutePath());
+		def.init();
+		return def;
+	}
+
+	public static MetricsGroup loadMetricsGroup(String name) throws IOException
+	{
+		MetricsGroup mg = loadMetricsDef().getGroupByName(name);
+		if(mg == null)
+			throw new IllegalStateException("Cannot find metrics group "+name+" in metrics.xml");
+		return mg;
+	}
+
+	private static InputStream open(String name) throws IOException
+	{
+		InputStream in = BenchmarkFixtures.class.getResourceAsStream("/fixtures/"+name);
+		if(in == null)
+			throw new IOException("Cannot find fixture "+name);
+		return in;
+	}
+
+	/**
+	 * Read a captured table, tab separated with a header line, NULL for null values,
+	 * for example, mysql -B -e "show full processlist".
+	 * @param name file name under /fixtures
+	 * @return
+	 */
+	public static List<String[]> loadTable(String name) throws IOException
+	{
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(open(name), "UTF-8"));
+		try
+		{
+			String line = reader.readLine();//header
+			while((line = reader.readLine()) != null)
+			{
+				if(line.isEmpty())continue;
+				String[] cols = line.split("\t", -1);
+				for(int i=0;i<cols.length;i++)
+					if("NULL".equals(cols[i]))cols[i] = null;
+				rows.add(cols);
+			}
+		}finally
+		{
+			reader.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * processlist.txt as entries, columns Id, User, Host, db, Command, Time, State, Info
+	 * @return
+	 */
+	public static List<ProcessListEntry> loadProcessList() throws IOException
+	{
+		List<ProcessListEntry> list = new ArrayList<ProcessListEntry>();
+		for(String[] cols: loadTable("processlist.txt"))
+		{
+			ProcessListEntry e = new ProcessListEntry();
+			e.setId(cols[0]);
+			e.setUser(cols[1]);
+			e.setHost(cols[2]);
+			e.setDb(cols[3]);
+			e.setCommand(cols[4]);
+			e.setTime(Integer.parseInt(cols[5]));
+			e.setState(cols[6]);
+			e.setInfo(cols[7]);
+			list.add(e);
+		}
+		return list;
+	}
+
+	/**
+	 * Directory for all embedded derby databases of this run
+	 * @return
+	 */
+	public static synchronized File getDerbyHome() throws IOException
+	{
+		if(derbyHome == null)
+		{
+			derbyHome = File.createTempFile("myperf_bench_derby", "");
+			derbyHome.delete();
+			derbyHome.mkdirs();
+			System.setProperty("derby.stream.error.file", new File(derbyHome, "derby.log").getAbsolutePath());
+		}
+		return derbyHome;
+	}
+
+	/**
+	 * Create a new embedded derby database
+	 * @param dbName
+	 * @return
+	 */
+	public static Connection createDerbyDatabase(String dbName) throws IOException, SQLException
+	{
+		File dir = new File(getDerbyHome(), dbName+"_"+System.nanoTime());
+		return DriverManager.getConnection("jdbc:derby:"+dir.getAbsolutePath()+";create=true");
+	}
+
+	/**
+	 * Stand-in for information_schema.global_status
+	 * @param conn
+	 */
+	public static void createGlobalStatusTable(Connection conn) throws IOException, SQLException
+	{
+		Statement stmt = conn.createStatement();
+		stmt.execute("CREATE TABLE GLOBAL_STATUS (VARIABLE_NAME VARCHAR(64), VARIABLE_VALUE VARCHAR(1024))");
+		stmt.close();
+		PreparedStatement pstmt = conn.prepareStatement("INSERT INTO GLOBAL_STATUS VALUES(?,?)");
+		for(Map.Entry<String, String> e: loadKeyValuePairs("global_status.txt").entrySet())
+		{
+			pstmt.setString(1, e.getKey().toUpperCase());
+			pstmt.setString(2, e.getValue());
+			pstmt.addBatch();
+		}
+		pstmt.executeBatch();
+		pstmt.close();
+	}
+
+	/**
+	 * Stand-in for information_schema.processlist
+	 * @param conn
+	 */
+	public static void createProcessListTable(Connection conn) throws IOException, SQLException
+	{
+		Statement stmt = conn.createStatement();
+		stmt.execute("CREATE TABLE PROCESSLIST (ID BIGINT, \"USER\" VARCHAR(32), HOST VARCHAR(64), DB VARCHAR(64), "
+				+ "COMMAND VARCHAR(16), TIME INT, STATE VARCHAR(128), INFO VARCHAR(4000))");
+		stmt.close();
+		PreparedStatement pstmt = conn.prepareStatement("INSERT INTO PROCESSLIST VALUES(?,?,?,?,?,?,?,?)");
+		for(String[] cols: loadTable("processlist.txt"))
+		{
+			pstmt.setLong(1, Long.parseLong(cols[0]));
+			for(int i=1;i<=4;i++)
+				pstmt.setString(i+1, cols[i]);
+			pstmt.setInt(6, Integer.parseInt(cols[5]));
+			pstmt.setString(7, cols[6]);
+			pstmt.setString(8, cols[7]);
+			pstmt.addBatch();
+		}
+		pstmt.executeBatch();
+		pstmt.close();
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.dba.perf.myperf.common.ResultList;
+import com.yahoo.dba.perf.myperf.springmvc.InnoController;
+
+/**
+ * InnoController.parse on a SHOW ENGINE INNODB STATUS capture with semaphore waits,
+ * a deadlock and 40 transactions.
+ * @author xrao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InnoStatusParseBenchmark
+{
+	private String innodbStatus;
+	private InnoController controller;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		BenchmarkFixtures.quietLogging();
+		innodbStatus = BenchmarkFixtures.loadText("innodb_status.txt");
+		controller = new InnoController();
+		LinkedHashMap<String, ResultList> res = controller.parse(innodbStatus);
+		if(!res.containsKey("inno_status_txs") || !res.containsKey("inno_status_buffer_pool"))
+			throw new IllegalStateException("Fixture innodb_status.txt not fully parsed: "+res.keySet());
+	}
+
+	@Benchmark
+	public LinkedHashMap<String, ResultList> parse()
+	{
+		return controller.parse(innodbStatus);
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.yahoo.dba.perf.myperf.common.Metric;
+import com.yahoo.dba.perf.myperf.common.MetricDataType;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+
+/**
+ * The original MetricsBuffer.recordOneRowByMetricsMap, kept as the baseline for
+ * MetricsBufferBenchmark: copy the input map with upper case keys, then parse each value
+ * and use exception for missing or non numeric values.
+ * @author xrao
+ *
+ */
+public class LegacyMetricsEncoder
+{
+	private MetricsGroup metrics;
+	private int recordLength;
+
+	public LegacyMetricsEncoder(MetricsGroup mg)
+	{
+		this.metrics = mg;
+		mg.calculateLength();
+		this.recordLength = 20 + mg.getLength();
+	}
+
+	public ByteBuffer encode(Map<String, String> rs, int dbid, int snap_id, long timestamp, int sql_time)
+	{
+		if(rs.size()==0)return null;
+		HashMap<String, String> hs = new HashMap<String, String>();
+		for(Map.Entry<String, String> e: rs.entrySet())
+		{
+			//skip null
+			if(e.getKey()==null||e.getValue()==null)continue;
+			hs.put(e.getKey().toUpperCase(), e.getValue());
+		}
+
+		byte[] buf = new byte[this.recordLength];
+		ByteBuffer buf2 = ByteBuffer.wrap(buf);
+
+		int pos = 0;
+		buf2.putInt(pos, dbid); pos+=4;
+		buf2.putInt(pos, snap_id); pos+=4;
+		buf2.putLong(pos, timestamp); pos+=8;
+		buf2.putInt(pos, sql_time); pos+=4;
+		List<Metric> ms = metrics.getMetrics();
+		int len = ms.size();
+		for(int i=0;i<len;i++)
+		{
+			Metric m = ms.get(i);
+			String val = null;
+			if(hs.containsKey(m.getSourceName().toUpperCase()))
+			  val = hs.get(m.getSourceName().toUpperCase());
+			if(m.getDataType()==MetricDataType.BYTE)
+			{
+				try
+				{
+					buf2.put(pos, Byte.parseByte(val));
+				}catch(Exception ex)
+				{
+					buf2.put(pos, (byte)0);
+				}
+				pos+=1;
+			}
+			else if(m.getDataType()==MetricDataType.SHORT)
+			{
+				try
+				{
+					buf2.putShort(pos, Short.parseShort(val));
+				}catch(Exception ex)
+				{
+					buf2.putShort(pos, (short)0);
+				}
+				pos+=2;
+			}else if(m.getDataType()==MetricDataType.INT)
+			{
+				try
+				{
+					buf2.putInt(pos, Integer.parseInt(val));
+				}catch(Exception ex)
+				{
+					buf2.putInt(pos, 0);
+				}
+				pos+=4;
+			}else if(m.getDataType()==MetricDataType.LONG)
+			{
+				try
+				{
+					buf2.putLong(pos, Long.parseLong(val));
+				}catch(Exception ex)
+				{
+					buf2.putLong(pos, 0);
+				}
+				pos+=8;
+			}else if(m.getDataType()==MetricDataType.FLOAT)
+			{
+				try
+				{
+					buf2.putFloat(pos, Float.parseFloat(val));
+				}catch(Exception ex)
+				{
+					buf2.putFloat(pos, 0);
+				}
+				pos+=4;
+			}else if(m.getDataType()==MetricDataType.DOUBLE)
+			{
+				try
+				{
+					buf2.putDouble(pos, Double.parseDouble(val));
+				}catch(Exception ex)
+				{
+					buf2.putDouble(pos, 0);
+				}
+				pos+=8;
+			}
+		}
+		return buf2;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.yahoo.dba.perf.myperf.common.DBGroupInfo;
+import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
+import com.yahoo.dba.perf.myperf.common.InstanceStates;
+
+/**
+ * The original lookups of DBInfoManager and InstanceStatesManager, each synchronized on its manager,
+ * kept as the baseline for RegistryContentionBenchmark.
+ * @author xrao
+ *
+ */
+public class LegacyRegistry
+{
+	public static class DbInfo
+	{
+		private Map<String, DBGroupInfo> groups = new TreeMap<String, DBGroupInfo>();
+		private HashMap<String, java.util.Date> lastScanTime = new HashMap<String, java.util.Date>();
+
+		synchronized public Map<String,DBGroupInfo> getClusters()
+		{
+			return groups;
+		}
+
+		synchronized public DBGroupInfo findGroup(String groupName)
+		{
+			if(groups!=null && groups.containsKey(groupName))
+				return groups.get(groupName);
+			return null;
+		}
+
+		synchronized public void addOrUpdateInstance(DBInstanceInfo dbinfo)
+		{
+			DBGroupInfo cls = this.findGroup(dbinfo.getDbGroupName());
+			if(cls==null)
+			{
+				cls = new DBGroupInfo();
+				cls.setGroupName(dbinfo.getDbGroupName());
+				this.groups.put(cls.getGroupName(), cls);
+			}
+			cls.addOrUpdateInstance(dbinfo);
+		}
+
+		synchronized public DBInstanceInfo findDB(String groupName, String hostname)
+		{
+			DBGroupInfo cls = this.findGroup(groupName);
+			if(cls==null)return null;
+			for(DBInstanceInfo inst: cls.getInstances())
+			{
+				if(hostname.equalsIgnoreCase(inst.getHostName()))return inst;
+			}
+			return null;
+		}
+
+		public void updateLastScanTime(String dbgroup, String dbhost, java.util.Date dt)
+		{
+			synchronized (this.lastScanTime)
+			{
+				this.lastScanTime.put(dbgroup+":"+dbhost, dt);
+			}
+		}
+
+		public java.util.Date getLastAccessDate(String dbgroup, String dbhost)
+		{
+			synchronized (this.lastScanTime)
+			{
+				return this.lastScanTime.get(dbgroup+":"+dbhost);
+			}
+		}
+	}
+
+	public static class States
+	{
+		private Map<Integer, InstanceStates> statesMap = new HashMap<Integer, InstanceStates>();
+
+		synchronized public InstanceStates getStates(int dbid)
+		{
+			if(statesMap.containsKey(dbid))
+				return statesMap.get(dbid);
+			return null;
+		}
+
+		synchronized public void addInstanceStates(int dbid)
+		{
+			if(statesMap.containsKey(dbid))
+				return;
+			this.statesMap.put(dbid, new InstanceStates());
+		}
+	}
+}
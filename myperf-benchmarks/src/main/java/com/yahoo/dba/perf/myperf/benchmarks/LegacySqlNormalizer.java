@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The original ProcessListSummary.normalize, kept as the baseline for ProcessListSummaryBenchmark:
+ * one regular expression replacement over the whole text for each literal pattern.
+ * @author xrao
+ *
+ */
+public class LegacySqlNormalizer
+{
+	public String normalize(String str)
+	{
+		String rpt3 = "(?i)VALUES\\s*\\((.*?)\\)";
+		String rpt4 = "(?i)in\\s*\\([^\\(^\\)]+\\)";
+		String rpt5 = "(?i)limit\\s+\\d+\\s*$" ;
+		String rpt6 = "(?i)limit\\s+\\d+\\s*,\\s*\\d+\\s*$" ;
+		str =  str.replaceAll("=\\s*\\d+", "=?");
+		str =  str.replaceAll("=\\s*'[^']+'", "=?");
+
+		str = str.replaceAll("\\+\\s*'?\\d+'?", "+?");
+
+		str = str.replaceAll("\\-\\s*'?\\d+'?", "-?");
+
+		str = str.replaceAll(">\\s*\\d+", ">?");
+		str = str.replaceAll(">\\s*'[^']+'", ">?");
+
+		str = str.replaceAll(">=\\s*\\d+", ">=?");
+		str = str.replaceAll(">=\\s*'[^']+'", ">=?");
+
+		str = str.replaceAll("<\\s*\\d+", "<?");
+		str = str.replaceAll("<\\s*'[^']+'", "<?");
+
+		str = str.replaceAll("<=\\s*'?\\d+'?", "<=?");
+		str = str.replaceAll("<=\\s*'[^']+'", "<=?");
+
+		str = str.replaceAll("(?i)BETWEEN\\s+\\d+\\s+AND\\s+\\d+", "BETWEEN ? and ?");
+		str = str.replaceAll("(?i)BETWEEN\\s+'[^']+'\\s+AND\\s+'[^']+'", "BETWEEN ? and ?");
+
+		str = str.replaceAll(rpt4, "IN (?)");
+		str = str.replaceAll(rpt3, "VALUES (?)");
+		str = str.replaceAll(rpt5, "LIMIT ?");
+		str = str.replaceAll(rpt6, "LIMIT ?, ?");
+		str = replaceInlist(str);
+		return str;
+	}
+
+	private String replaceInlist(String str)
+	{
+		try
+		{
+			Pattern pt = Pattern.compile("(?i)\\s*IN\\s*\\('?\\d+'?,");
+			Matcher m = pt.matcher(str);
+			if(m.find())
+			{
+				int start = m.start();
+				int idx = str.indexOf(')', start);
+				if(idx<0 || idx==str.length()-1)
+					return str.substring(0, start)+" IN (......)";
+				else
+					return str.substring(0, start)+" IN (...) "+str.substring(idx+1);
+			}
+		}catch(Exception ex){}
+		return str;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.dba.perf.myperf.common.DBUtils;
+import com.yahoo.dba.perf.myperf.common.MetricSeries;
+import com.yahoo.dba.perf.myperf.common.QueryParameters;
+import com.yahoo.dba.perf.myperf.common.ResultList;
+import com.yahoo.dba.perf.myperf.common.ResultListUtil;
+
+/**
+ * Metrics retrieval from the query result to the JSON output: one day of one minute metrics
+ * for a single server (1440 rows, 12 BIGINT and 2 DECIMAL metrics) read from embedded derby,
+ * into ResultList (all values as String) or MetricSeries (primitive columns).
+ * @author xrao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricSeriesBenchmark
+{
+	private static final String[] METRICS = {"COM_SELECT", "COM_INSERT", "COM_UPDATE", "COM_DELETE",
+		"QUESTIONS", "THREADS_RUNNING", "THREADS_CONNECTED", "BYTES_RECEIVED", "BYTES_SENT",
+		"INNODB_ROWS_READ", "INNODB_BUFFER_POOL_READS", "SLOW_QUERIES"};
+	private static final String[] DECIMAL_METRICS = {"REPL_LAG", "CPU_UTIL"};
+
+	private Connection conn;
+	private PreparedStatement query;
+	private QueryParameters qps;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		qps = new QueryParameters();
+		qps.setGroup("shop");
+		qps.setHost("db01.example.com");
+		conn = BenchmarkFixtures.createDerbyDatabase("series");
+		StringBuilder ddl = new StringBuilder("CREATE TABLE MYSQL_STATUS (DBID INT, SNAP_ID INT, TS BIGINT");
+		StringBuilder cols = new StringBuilder("SNAP_ID, TS");
+		for(String m: METRICS)
+		{
+			ddl.append(", ").append(m).append(" BIGINT");
+			cols.append(", ").append(m);
+		}
+		for(String m: DECIMAL_METRICS)
+		{
+			ddl.append(", ").append(m).append(" DECIMAL(22,7)");
+			cols.append(", ").append(m);
+		}
+		ddl.append(", PRIMARY KEY(DBID, SNAP_ID))");
+		Statement stmt = conn.createStatement();
+		stmt.execute(ddl.toString());
+		stmt.close();
+
+		int n = 3 + METRICS.length + DECIMAL_METRICS.length;
+		StringBuilder ins = new StringBuilder("INSERT INTO MYSQL_STATUS VALUES(?");
+		for(int i=1;i<n;i++)ins.append(",?");
+		ins.append(")");
+		PreparedStatement pstmt = conn.prepareStatement(ins.toString());
+		Random rand = new Random(1);
+		long ts = 20150301000000L;
+		for(int i=0;i<1440;i++)
+		{
+			int idx = 1;
+			pstmt.setInt(idx++, 12);
+			pstmt.setInt(idx++, 100000+i);
+			pstmt.setLong(idx++, ts + (i/60)*10000 + (i%60)*100);
+			for(int j=0;j<METRICS.length;j++)
+				pstmt.setLong(idx++, rand.nextInt(1000000));
+			for(int j=0;j<DECIMAL_METRICS.length;j++)
+				pstmt.setBigDecimal(idx++, new java.math.BigDecimal(rand.nextInt(10000000)).movePointLeft(4));
+			pstmt.addBatch();
+		}
+		pstmt.executeBatch();
+		pstmt.close();
+		query = conn.prepareStatement("select "+cols+" from MYSQL_STATUS where dbid=? and snap_id between ? and ? order by snap_id");
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		DBUtils.close(query);
+		DBUtils.close(conn);
+	}
+
+	private ResultSet execute() throws SQLException
+	{
+		query.setInt(1, 12);
+		query.setInt(2, 100000);
+		query.setInt(3, 101439);
+		return query.executeQuery();
+	}
+
+	@Benchmark
+	public long resultList() throws IOException, SQLException
+	{
+		ResultSet rs = execute();
+		ResultList rList = ResultListUtil.fromSqlResultSet(rs, 5000);
+		rs.close();
+		ResultListJsonBenchmark.CountingWriter out = new ResultListJsonBenchmark.CountingWriter();
+		ResultListUtil.writeJSON(out, rList, qps, 0, "OK");
+		return out.count;
+	}
+
+	@Benchmark
+	public long metricSeries() throws IOException, SQLException
+	{
+		ResultSet rs = execute();
+		MetricSeries series = MetricSeries.fromResultSet(rs, 5000);
+		rs.close();
+		ResultListJsonBenchmark.CountingWriter out = new ResultListJsonBenchmark.CountingWriter();
+		ResultListUtil.writeJSON(out, series, qps, 0, "OK");
+		return out.count;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yahoo.dba.perf.myperf.common.MetricsBuffer;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+
+/**
+ * Encode one SHOW GLOBAL STATUS capture (400 variables) into the binary records of
+ * the builtin STATUS metrics group, one record per sub group, as done by a metrics scan.
+ * Compare MetricsBuffer.recordOneRowByMetricsMap with the original algorithm.
+ * @author xrao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBufferBenchmark
+{
+	/**
+	 * mixed: names as returned by SHOW GLOBAL STATUS.
+	 * upper: names as returned by information_schema.global_status.
+	 */
+	@Param({"mixed", "upper"})
+	public String nameCase;
+
+	private Map<String, String> status;
+	private MetricsBuffer[] buffers;
+	private LegacyMetricsEncoder[] legacy;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		status = BenchmarkFixtures.loadKeyValuePairs("global_status.txt");
+		if("upper".equals(nameCase))
+			status = BenchmarkFixtures.toUpperCaseKeys(status);
+		MetricsGroup mg = BenchmarkFixtures.loadMetricsGroup("STATUS");
+		List<MetricsGroup> subGroups = mg.getSubGroups();
+		buffers = new MetricsBuffer[subGroups.size()];
+		legacy = new LegacyMetricsEncoder[subGroups.size()];
+		for(int i=0;i<subGroups.size();i++)
+		{
+			buffers[i] = new MetricsBuffer(subGroups.get(i));
+			buffers[i].setDbid(1);
+			legacy[i] = new LegacyMetricsEncoder(subGroups.get(i));
+			ByteBuffer a = buffers[i].recordOneRowByMetricsMap(status, 1, 1L, 5);
+			ByteBuffer b = legacy[i].encode(status, 1, 1, 1L, 5);
+			if(!a.equals(b))
+				throw new IllegalStateException("Encoders disagree on "+subGroups.get(i).getGroupName());
+		}
+	}
+
+	@Benchmark
+	public void recordOneRowByMetricsMap(Blackhole bh) throws Exception
+	{
+		for(MetricsBuffer mbuf: buffers)
+			bh.consume(mbuf.recordOneRowByMetricsMap(status, 1, 1L, 5));
+	}
+
+	@Benchmark
+	public void legacyRecordOneRowByMetricsMap(Blackhole bh)
+	{
+		for(LegacyMetricsEncoder enc: legacy)
+			bh.consume(enc.encode(status, 1, 1, 1L, 5));
+	}
+}
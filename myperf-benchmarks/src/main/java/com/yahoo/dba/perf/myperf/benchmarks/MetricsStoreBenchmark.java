@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.dba.perf.myperf.common.MetricsBuffer;
+import com.yahoo.dba.perf.myperf.common.MetricsDefManager;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+import com.yahoo.dba.perf.myperf.metrics.DerbyMetricsDb;
+
+/**
+ * MetricsDbBase.store on an embedded derby metrics db: one scan cycle of the STATUS metrics
+ * (three sub groups) for a number of hosts is queued, then stored. Measured per cycle.
+ * @author xrao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsStoreBenchmark
+{
+	@Param({"100"})
+	public int hosts;
+
+	@Param({"1", "200"})
+	public int writeBatchSize;
+
+	private BenchmarkMetricsDb metricsDb;
+	private List<MetricsGroup> subGroups;
+	private ByteBuffer[][] records;//[host][sub group]
+	private int snapId = 0;
+
+	/**
+	 * Run store() from the benchmark thread instead of the background writer
+	 */
+	public static class BenchmarkMetricsDb extends DerbyMetricsDb
+	{
+		private static final long serialVersionUID = 1L;
+		private String connectionString;
+
+		public BenchmarkMetricsDb(File dir)
+		{
+			this.connectionString = "jdbc:derby:"+dir.getAbsolutePath();
+		}
+
+		@Override
+		public String getConnectionString()
+		{
+			return this.connectionString;
+		}
+
+		@Override
+		public void run()
+		{
+			//no background writer
+		}
+
+		public void storeNow()
+		{
+			store();
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception
+	{
+		MetricsDefManager def = BenchmarkFixtures.loadMetricsDef();
+		metricsDb = new BenchmarkMetricsDb(new File(BenchmarkFixtures.getDerbyHome(), "metricsdb_"+System.nanoTime()));
+		metricsDb.setMetricsGroups(def);
+		metricsDb.setWriteBatchSize(writeBatchSize);
+		metricsDb.init();
+
+		Map<String, String> status = BenchmarkFixtures.loadKeyValuePairs("global_status.txt");
+		subGroups = def.getGroupByName("STATUS").getSubGroups();
+		records = new ByteBuffer[hosts][subGroups.size()];
+		for(int h=0;h<hosts;h++)
+		{
+			for(int i=0;i<subGroups.size();i++)
+			{
+				MetricsBuffer mbuf = new MetricsBuffer(subGroups.get(i));
+				mbuf.setDbid(h+1);
+				records[h][i] = mbuf.recordOneRowByMetricsMap(status, 0, 20150301000000L, 5);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		metricsDb.destroy();
+	}
+
+	@Benchmark
+	public void store()
+	{
+		snapId++;
+		for(int h=0;h<hosts;h++)
+		{
+			for(int i=0;i<subGroups.size();i++)
+			{
+				//new snap_id for each cycle, to avoid duplicate key
+				ByteBuffer buf = records[h][i].duplicate();
+				buf.putInt(4, snapId);
+				metricsDb.putData(subGroups.get(i), String.valueOf(h+1), buf);
+			}
+		}
+		metricsDb.storeNow();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yahoo.dba.perf.myperf.common.ProcessListEntry;
+import com.yahoo.dba.perf.myperf.common.ProcessListSummary;
+import com.yahoo.dba.perf.myperf.common.SqlNormalizer;
+
+/**
+ * ProcessListSummary on a 600 session processlist capture: summarize the whole list,
+ * and normalize each active SQL text, with SqlNormalizer (and its cache) and with the
+ * original regular expressions (LegacySqlNormalizer).
+ * @author xrao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessListSummaryBenchmark
+{
+	private List<ProcessListEntry> processList;
+	private List<String> queries;
+	private ProcessListSummary normalizer;
+	private LegacySqlNormalizer legacyNormalizer;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		processList = BenchmarkFixtures.loadProcessList();
+		queries = new ArrayList<String>();
+		for(ProcessListEntry e: processList)
+		{
+			if(e.getInfo() != null && !"sleep".equalsIgnoreCase(e.getCommand()))
+				queries.add(e.getInfo());
+		}
+		normalizer = new ProcessListSummary();
+		legacyNormalizer = new LegacySqlNormalizer();
+	}
+
+	@Benchmark
+	public ProcessListSummary summarize()
+	{
+		ProcessListSummary summary = new ProcessListSummary();
+		summary.setProcessList(processList);
+		summary.summarize();
+		return summary;
+	}
+
+	@Benchmark
+	public void normalize(Blackhole bh)
+	{
+		for(String q: queries)
+			bh.consume(normalizer.normalize(q));
+	}
+
+	@Benchmark
+	public void normalizeUncached(Blackhole bh)
+	{
+		for(String q: queries)
+			bh.consume(SqlNormalizer.normalize(q));
+	}
+
+	@Benchmark
+	public void normalizeLegacy(Blackhole bh)
+	{
+		for(String q: queries)
+			bh.consume(legacyNormalizer.normalize(q));
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
+import com.yahoo.dba.perf.myperf.common.DBUtils;
+import com.yahoo.dba.perf.myperf.common.MyPerfContext;
+import com.yahoo.dba.perf.myperf.common.QueryParameters;
+import com.yahoo.dba.perf.myperf.common.SqlManager;
+import com.yahoo.dba.perf.myperf.db.DBConnectionWrapper;
+import com.yahoo.dba.perf.myperf.db.QueryExecutor;
+
+/**
+ * QueryExecutor.executeQueryWithKeyValuPairs on the 400 variable global status capture,
+ * loaded into an embedded derby table as stand-in for information_schema.global_status.
+ * Network time is not included, only JDBC fetch and map building.
+ * @author xrao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryExecutorBenchmark
+{
+	private Connection conn;
+	private DBConnectionWrapper connWrapper;
+	private QueryExecutor queryEngine;
+	private QueryParameters qps;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		conn = BenchmarkFixtures.createDerbyDatabase("status");
+		BenchmarkFixtures.createGlobalStatusTable(conn);
+		DBInstanceInfo dbinfo = new DBInstanceInfo();
+		dbinfo.setDbType("derby");//not to query version
+		connWrapper = new DBConnectionWrapper(dbinfo);
+		connWrapper.setConnection(conn);
+
+		queryEngine = new QueryExecutor();
+		queryEngine.setFrameworkContext(new MyPerfContext());
+		queryEngine.setSqlManager(new SqlManager());
+		qps = new QueryParameters();
+		qps.setSqlText("select VARIABLE_NAME, VARIABLE_VALUE from GLOBAL_STATUS");
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		DBUtils.close(conn);
+	}
+
+	@Benchmark
+	public void executeQueryWithKeyValuPairs(Blackhole bh) throws Exception
+	{
+		bh.consume(queryEngine.executeQueryWithKeyValuPairs(qps, connWrapper, "VARIABLE_NAME", "VARIABLE_VALUE"));
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yahoo.dba.perf.myperf.common.DBGroupInfo;
+import com.yahoo.dba.perf.myperf.common.DBInfoManager;
+import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
+import com.yahoo.dba.perf.myperf.common.InstanceStatesManager;
+
+/**
+ * DBInfoManager and InstanceStatesManager lookups under contention: 32 scanner threads do the
+ * per host lookups of a scan (findDB, findGroup, getStates, updateLastScanTime) while 4 status page
+ * threads walk all groups and their states. registry uses the managers, legacyRegistry the original
+ * synchronized versions (LegacyRegistry). 50 groups of 4 hosts.
+ * @author xrao
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryContentionBenchmark
+{
+	private static final int GROUPS = 50;
+	private static final int HOSTS_PER_GROUP = 4;
+
+	private DBInfoManager dbInfoManager;
+	private InstanceStatesManager statesManager;
+	private LegacyRegistry.DbInfo legacyDbInfo;
+	private LegacyRegistry.States legacyStates;
+	private String[] groupNames;
+	private String[] hostNames;
+	private Date now = new Date();
+
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		int next;
+	}
+
+	@Setup
+	public void setup()
+	{
+		dbInfoManager = new DBInfoManager();
+		statesManager = new InstanceStatesManager();
+		legacyDbInfo = new LegacyRegistry.DbInfo();
+		legacyStates = new LegacyRegistry.States();
+		groupNames = new String[GROUPS * HOSTS_PER_GROUP];
+		hostNames = new String[GROUPS * HOSTS_PER_GROUP];
+		int dbid = 0;
+		for(int g = 0; g < GROUPS; g++)
+		{
+			for(int h = 0; h < HOSTS_PER_GROUP; h++)
+			{
+				DBInstanceInfo db = new DBInstanceInfo();
+				db.setDbGroupName("group" + g);
+				db.setHostName("db" + h + ".group" + g + ".example.com");
+				db.setDbid(++dbid);
+				dbInfoManager.addOrUpdateInstance(db);
+				statesManager.addInstanceStates(db.getDbid());
+				legacyDbInfo.addOrUpdateInstance(db);
+				legacyStates.addInstanceStates(db.getDbid());
+				groupNames[dbid - 1] = db.getDbGroupName();
+				hostNames[dbid - 1] = db.getHostName();
+			}
+		}
+	}
+
+	@Benchmark
+	@Group("registry")
+	@GroupThreads(32)
+	public Object scanner(Cursor c)
+	{
+		int i = c.next++ % hostNames.length;
+		DBInstanceInfo db = dbInfoManager.findDB(groupNames[i], hostNames[i]);
+		dbInfoManager.updateLastScanTime(groupNames[i], hostNames[i], now);
+		dbInfoManager.findGroup(groupNames[i]);
+		return statesManager.getStates(db.getDbid());
+	}
+
+	@Benchmark
+	@Group("registry")
+	@GroupThreads(4)
+	public void statusPage(Blackhole bh)
+	{
+		for(Map.Entry<String, DBGroupInfo> e: dbInfoManager.getClusters().entrySet())
+		{
+			for(DBInstanceInfo db: e.getValue().getInstances())
+			{
+				bh.consume(statesManager.getStates(db.getDbid()));
+				bh.consume(dbInfoManager.getLastAccessDate(db.getDbGroupName(), db.getHostName()));
+			}
+		}
+	}
+
+	@Benchmark
+	@Group("legacyRegistry")
+	@GroupThreads(32)
+	public Object legacyScanner(Cursor c)
+	{
+		int i = c.next++ % hostNames.length;
+		DBInstanceInfo db = legacyDbInfo.findDB(groupNames[i], hostNames[i]);
+		legacyDbInfo.updateLastScanTime(groupNames[i], hostNames[i], now);
+		legacyDbInfo.findGroup(groupNames[i]);
+		return legacyStates.getStates(db.getDbid());
+	}
+
+	@Benchmark
+	@Group("legacyRegistry")
+	@GroupThreads(4)
+	public void legacyStatusPage(Blackhole bh)
+	{
+		for(Map.Entry<String, DBGroupInfo> e: legacyDbInfo.getClusters().entrySet())
+		{
+			for(DBInstanceInfo db: e.getValue().getInstances())
+			{
+				bh.consume(legacyStates.getStates(db.getDbid()));
+				bh.consume(legacyDbInfo.getLastAccessDate(db.getDbGroupName(), db.getHostName()));
+			}
+		}
+	}
+}
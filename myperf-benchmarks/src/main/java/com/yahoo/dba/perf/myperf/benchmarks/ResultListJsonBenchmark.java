@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.dba.perf.myperf.common.ColumnDescriptor;
+import com.yahoo.dba.perf.myperf.common.DBUtils;
+import com.yahoo.dba.perf.myperf.common.QueryParameters;
+import com.yahoo.dba.perf.myperf.common.ResultList;
+import com.yahoo.dba.perf.myperf.common.ResultListUtil;
+import com.yahoo.dba.perf.myperf.common.ResultRow;
+
+/**
+ * ResultListUtil.toJSONString on two typical responses:
+ * processlist, the 600 session capture with free text SQL to escape, and
+ * metrics, one day of one minute STATUS metrics for a single server (1440 rows of numbers).
+ * writeJSON is the streaming path used by JsonResultView, written to a Writer which only counts the chars.
+ * @author xrao
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultListJsonBenchmark
+{
+	private static final String[] METRICS = {"COM_SELECT", "COM_INSERT", "COM_UPDATE", "COM_DELETE",
+		"QUESTIONS", "THREADS_RUNNING", "THREADS_CONNECTED", "BYTES_RECEIVED", "BYTES_SENT",
+		"INNODB_ROWS_READ", "INNODB_BUFFER_POOL_READS", "SLOW_QUERIES"};
+
+	@Param({"processlist", "metrics"})
+	public String shape;
+
+	private ResultList rList;
+	private QueryParameters qps;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		qps = new QueryParameters();
+		qps.setGroup("shop");
+		qps.setHost("db01.example.com");
+		if("processlist".equals(shape))
+		{
+			qps.setSql("mysql_processlist");
+			rList = loadProcessList();
+		}else
+		{
+			qps.setSql("mysql_status_metrics");
+			rList = buildMetrics();
+		}
+	}
+
+	private static ResultList loadProcessList() throws Exception
+	{
+		Connection conn = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try
+		{
+			conn = BenchmarkFixtures.createDerbyDatabase("processlist");
+			BenchmarkFixtures.createProcessListTable(conn);
+			stmt = conn.createStatement();
+			rs = stmt.executeQuery("select * from PROCESSLIST");
+			return ResultListUtil.fromSqlResultSet(rs, 0);
+		}finally
+		{
+			DBUtils.close(rs);
+			DBUtils.close(stmt);
+			DBUtils.close(conn);
+		}
+	}
+
+	private static ResultList buildMetrics()
+	{
+		Random rand = new Random(1);
+		ResultList rList = new ResultList();
+		ColumnDescriptor desc = new ColumnDescriptor();
+		int idx = 1;
+		desc.addColumn("DBID", true, idx++);
+		desc.addColumn("SNAP_ID", true, idx++);
+		desc.addColumn("TS", true, idx++);
+		for(String m: METRICS)
+			desc.addColumn(m, true, idx++);
+		rList.setColumnDescriptor(desc);
+		long ts = 20150301000000L;
+		for(int i=0;i<1440;i++)
+		{
+			ResultRow row = new ResultRow();
+			row.setColumnDescriptor(desc);
+			List<String> cols = new ArrayList<String>(idx);
+			cols.add("12");
+			cols.add(String.valueOf(100000+i));
+			cols.add(String.valueOf(ts + (i/60)*10000 + (i%60)*100));
+			for(int j=0;j<METRICS.length;j++)
+				cols.add(String.valueOf(rand.nextInt(1000000)));
+			row.setColumns(cols);
+			rList.addRow(row);
+		}
+		return rList;
+	}
+
+	@Benchmark
+	public String toJSONString()
+	{
+		return ResultListUtil.toJSONString(rList, qps, 0, "OK");
+	}
+
+	@Benchmark
+	public long writeJSON() throws IOException
+	{
+		CountingWriter out = new CountingWriter();
+		ResultListUtil.writeJSON(out, rList, qps, 0, "OK");
+		return out.count;
+	}
+
+	/**
+	 * Discard the output, as if it were sent to the client
+	 */
+	static class CountingWriter extends Writer
+	{
+		long count = 0;
+
+		@Override
+		public void write(char[] cbuf, int off, int len)
+		{
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len)
+		{
+			count += len;
+		}
+
+		@Override
+		public void write(int c)
+		{
+			count++;
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
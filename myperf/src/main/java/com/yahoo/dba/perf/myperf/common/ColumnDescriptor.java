@@ -15,6 +15,10 @@ public class ColumnDescriptor implements java.io.Serializable{
 	private static final long serialVersionUID = 6923318258330634209L;
 
 	private java.util.List<ColumnInfo> columns ;
+	//column names escaped for JSON output, built once and reused while the names are not changed
+	private transient String[] jsonNameSource;
+	private transient String[] jsonNames;
+	private transient String[] jsonUpperNames;
 	
 	public ColumnDescriptor()
 	{
@@ -46,6 +50,38 @@ public class ColumnDescriptor implements java.io.Serializable{
 		return -1;
 	}
 	
+	/**
+	 * Column names escaped for JSON output. They are computed once and reused until a column is added or renamed.
+	 * @param upper if true, names in upper case
+	 * @return
+	 */
+	public synchronized String[] getJsonNames(boolean upper)
+	{
+		int n = this.columns!=null?this.columns.size():0;
+		boolean valid = this.jsonNameSource!=null && this.jsonNameSource.length==n;
+		for(int i=0;valid && i<n;i++)
+			valid = this.jsonNameSource[i] == this.columns.get(i).getName();
+		if(!valid)
+		{
+			this.jsonNameSource = new String[n];
+			this.jsonNames = new String[n];
+			this.jsonUpperNames = null;
+			for(int i=0;i<n;i++)
+			{
+				this.jsonNameSource[i] = this.columns.get(i).getName();
+				this.jsonNames[i] = ResultListUtil.escapeJson(this.jsonNameSource[i]);
+			}
+		}
+		if(!upper)return this.jsonNames;
+		if(this.jsonUpperNames == null)
+		{
+			this.jsonUpperNames = new String[n];
+			for(int i=0;i<n;i++)
+				this.jsonUpperNames[i] = this.jsonNameSource[i]!=null?ResultListUtil.escapeJson(this.jsonNameSource[i].toUpperCase()):"";
+		}
+		return this.jsonUpperNames;
+	}
+
 	public void addColumn(String colName, boolean isNumber, int pos)
 	{
 		if(this.columns==null)this.columns = new  java.util.ArrayList<ColumnInfo>();
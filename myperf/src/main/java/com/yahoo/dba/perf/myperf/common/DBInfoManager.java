@@ -6,10 +6,12 @@
 package com.yahoo.dba.perf.myperf.common;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import com.yahoo.dba.perf.myperf.meta.MetaDB;
@@ -17,7 +19,9 @@ import com.yahoo.dba.perf.myperf.metrics.MetricsDbBase;
 
 
 /**
- * Manage database information
+ * Manage database information.
+ * The group to instances topology is an immutable snapshot, replaced as a whole on every change,
+ * so lookups from scanners and web requests never wait for a lock. Changes are serialized on this object.
  * @author xrao
  *
  */
@@ -28,108 +32,137 @@ public class DBInfoManager implements java.io.Serializable
   private MetaDB projectDb;//note we store user cred here
   private MetricsDbBase metricsDb;//db def
 	
-  private Map<String, DBGroupInfo> groups = new java.util.TreeMap<String, DBGroupInfo>();
+  //immutable snapshot, never modified after published
+  private volatile Map<String, DBGroupInfo> groups = Collections.unmodifiableMap(new TreeMap<String, DBGroupInfo>());
   private Map<String, MyDatabases> mydbs = new java.util.HashMap<String, MyDatabases>();
-  private HashMap<String, java.util.Date> lastScanTime = new HashMap<String, java.util.Date>();
+  private Map<String, java.util.Date> lastScanTime = new ConcurrentHashMap<String, java.util.Date>();
   public DBInfoManager()
   {
   }
 
-  synchronized public Map<String,DBGroupInfo> getClusters() 
+  /**
+   * @return current snapshot of all groups, read only
+   */
+  public Map<String,DBGroupInfo> getClusters() 
   {
     return groups;
   }
 	
-  synchronized public DBGroupInfo findGroup(String groupName)
+  public DBGroupInfo findGroup(String groupName)
   {
-    if(groups!=null && groups.containsKey(groupName))
-	  return groups.get(groupName);
-	return null;
+    if(groupName == null)return null;
+	return groups.get(groupName);
   }
   
   synchronized public void addOrUpdateInstance(DBInstanceInfo dbinfo)
   {
     DBGroupInfo cls = this.findGroup(dbinfo.getDbGroupName());
-	if(cls==null)
+	DBInstanceInfo db = cls != null? cls.findInstanceByHost(dbinfo.getHostName()) : null;
+	if(db != null)
 	{
-	  cls = new DBGroupInfo();
-	  cls.setGroupName(dbinfo.getDbGroupName());
-	  this.groups.put(cls.getGroupName(), cls);
+	  cls.addOrUpdateInstance(dbinfo);//existing host, only its attributes change
+	  return;
 	}
+	Map<String, DBGroupInfo> newGroups = new TreeMap<String, DBGroupInfo>(this.groups);
+	cls = copyGroup(cls, dbinfo.getDbGroupName());
 	cls.addOrUpdateInstance(dbinfo);
+	newGroups.put(cls.getGroupName(), cls);
+	this.groups = Collections.unmodifiableMap(newGroups);
   }
   
-  synchronized public DBInstanceInfo findDB(String groupName, String hostname)
+  public DBInstanceInfo findDB(String groupName, String hostname)
   {
     DBGroupInfo cls = this.findGroup(groupName);
 	if(cls==null)return null;
-	for(DBInstanceInfo inst: cls.getInstances())
-	{
-	  if(hostname.equalsIgnoreCase(inst.getHostName()))return inst;
-    }
-	return null;
+	return cls.findInstanceByHost(hostname);
   }
 	
   synchronized public boolean removeDBHost(String groupName, String hostname)
   {
     DBGroupInfo cls = this.findGroup(groupName);
-	if(cls==null)return false;
-	for(int i=cls.getInstances().size()-1;i>=0;i--)
+	if(cls==null || cls.findInstanceByHost(hostname) == null)return false;
+	DBGroupInfo newCls = copyGroup(cls, groupName);
+	for(int i=newCls.getInstances().size()-1;i>=0;i--)
 	{
-	  DBInstanceInfo inst = cls.getInstances().get(i);
+	  DBInstanceInfo inst = newCls.getInstances().get(i);
 	  if(hostname.equalsIgnoreCase(inst.getHostName()))
 	  {
-		cls.getInstances().remove(i);
-		return true;
+		newCls.getInstances().remove(i);
+		break;
 	  }
 	}
-	return false;
+	Map<String, DBGroupInfo> newGroups = new TreeMap<String, DBGroupInfo>(this.groups);
+	newGroups.put(groupName, newCls);
+	this.groups = Collections.unmodifiableMap(newGroups);
+	return true;
   }
 	
   synchronized public void removeGroup(String groupName)
   {
     DBGroupInfo cls = this.findGroup(groupName);
 	if(cls==null)return;
-	this.groups.remove(groupName);
+	Map<String, DBGroupInfo> newGroups = new TreeMap<String, DBGroupInfo>(this.groups);
+	newGroups.remove(groupName);
+	this.groups = Collections.unmodifiableMap(newGroups);
   }
 
-  synchronized public java.util.List<String> listGroupNames()
+  public java.util.List<String> listGroupNames()
   {
-    java.util.ArrayList<String> clist = new java.util.ArrayList<String>(this.groups.size());
-	for(DBGroupInfo c: this.groups.values())
+    Map<String, DBGroupInfo> snapshot = this.groups;
+    java.util.ArrayList<String> clist = new java.util.ArrayList<String>(snapshot.size());
+	for(DBGroupInfo c: snapshot.values())
 	{
 	  clist.add(c.getGroupName());
 	}
 	return clist;
   }
 
+  /**
+   * A new group with the instances of the given one, so the published group is never changed
+   */
+  private static DBGroupInfo copyGroup(DBGroupInfo cls, String groupName)
+  {
+    DBGroupInfo newCls = new DBGroupInfo();
+	newCls.setGroupName(groupName);
+	if(cls != null)newCls.getInstances().addAll(cls.getInstances());
+	return newCls;
+  }
+
   synchronized public boolean init(MetricsDbBase metricsDb)
   {
-	  this.groups.clear();
-	  this.mydbs.clear();
+	  this.groups = Collections.unmodifiableMap(new TreeMap<String, DBGroupInfo>());
+	  synchronized (this.mydbs)
+	  {
+	    this.mydbs.clear();
+	  }
 	  this.metricsDb = metricsDb;
 	  return init();
   }
   synchronized public boolean init()
   {
     logger.info("Loading stored db info");
-    mydbs.clear();//refill
+	synchronized (this.mydbs)
+	{
+      mydbs.clear();//refill
+	}
 	java.util.List<DBInstanceInfo> dbList = null;
 	if(this.metricsDb!=null)
 	{
 		dbList = this.metricsDb.SearchDbInfo(null);
 		logger.info("Find "+dbList.size()+" db info");
+		Map<String, DBGroupInfo> newGroups = new TreeMap<String, DBGroupInfo>();
 		for(DBInstanceInfo db: dbList)
 		{
-			DBGroupInfo cls = findGroup(db.getDbGroupName());
+			DBGroupInfo cls = newGroups.get(db.getDbGroupName());
 			if(cls==null)
 			{
 				cls = new DBGroupInfo();
 				cls.setGroupName(db.getDbGroupName());
-				this.groups.put(db.getDbGroupName(), cls);
+				newGroups.put(db.getDbGroupName(), cls);
 			}
 			cls.getInstances().add(db);
 		}
+		this.groups = Collections.unmodifiableMap(newGroups);
 		return true;
 	}else
 	{
@@ -181,37 +214,29 @@ public class DBInfoManager implements java.io.Serializable
   public List<String> listDbsByUserInfo(String user)
   {
     Set<String> mydb = this.getMyDatabases(user).getMyDbList();
-	List<String> alldb = new ArrayList<String>(this.groups.size());
+    Map<String, DBGroupInfo> snapshot = this.groups;
+	List<String> alldb = new ArrayList<String>(snapshot.size());
 		
-	synchronized(this)
+	for(String db:mydb)
 	{
-	  for(String db:mydb)
-	  {
-	    if(this.groups.containsKey(db))
-		  alldb.add(db);
-	  }
-	  for(String key: this.groups.keySet())
-	  {
-	    if(!mydb.contains(key))alldb.add(key);
-	  }
+	  if(snapshot.containsKey(db))
+		alldb.add(db);
+	}
+	for(String key: snapshot.keySet())
+	{
+	  if(!mydb.contains(key))alldb.add(key);
 	}
 	return alldb;
   }  
 	public void updateLastScanTime(String dbgroup, String dbhost, java.util.Date dt)
 	{
-	  synchronized (this.lastScanTime)
-	  {
-	    this.lastScanTime.put(dbgroup+":"+dbhost, dt);	  
-	  }
+	  if(dt == null)return;//not allowed by ConcurrentHashMap
+	  this.lastScanTime.put(dbgroup+":"+dbhost, dt);	  
 	}
 	
 	public java.util.Date getLastAccessDate(String dbgroup, String dbhost)
 	{
-    synchronized (this.lastScanTime)
-	  {       
-		 return this.lastScanTime.get(dbgroup+":"+dbhost);
-	  }
-	  	
+	  return this.lastScanTime.get(dbgroup+":"+dbhost);
 	}
 
 	public DBInstanceInfo retrieveDBInfo(String dbGroupName, String hostName)
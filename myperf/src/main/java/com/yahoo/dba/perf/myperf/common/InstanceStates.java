@@ -5,6 +5,9 @@
  */
 package com.yahoo.dba.perf.myperf.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -445,6 +448,77 @@ public class InstanceStates implements java.io.Serializable{
 	public void setLastWebAlertReason(String lastWebAlertReason) {
 		this.lastWebAlertReason = lastWebAlertReason;
 	}
+	/**
+	 * Compact binary form, used by InstanceStatesManager to persist states
+	 * @param out
+	 * @throws IOException
+	 */
+	synchronized public void writeTo(DataOutput out) throws IOException
+	{
+		writeDate(out, lastAccessTime);
+		(prevSnapshot != null? prevSnapshot : new StateSnapshot()).writeTo(out);
+		(currSnapshot != null? currSnapshot : new StateSnapshot()).writeTo(out);
+		writeString(out, lastAlertType);
+		writeDate(out, lastAlertTime);
+		writeString(out, lastAlertValue);
+		writeDate(out, lastAlertEndTime);
+		out.writeLong(lastUpdateTime);
+		out.writeLong(lastReportTime);
+		out.writeLong(lastScanTime);
+		out.writeLong(lastEmailAlertTime);
+		writeString(out, lastEmailAlertReason);
+		out.writeLong(lastWebAlertTime);
+		writeString(out, lastWebAlertReason);
+	}
+
+	/**
+	 * Read the form written by writeTo
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static InstanceStates readFrom(DataInput in) throws IOException
+	{
+		InstanceStates st = new InstanceStates();
+		st.lastAccessTime = readDate(in);
+		st.prevSnapshot = StateSnapshot.readFrom(in);
+		st.currSnapshot = StateSnapshot.readFrom(in);
+		st.lastAlertType = readString(in);
+		st.lastAlertTime = readDate(in);
+		st.lastAlertValue = readString(in);
+		st.lastAlertEndTime = readDate(in);
+		st.lastUpdateTime = in.readLong();
+		st.lastReportTime = in.readLong();
+		st.lastScanTime = in.readLong();
+		st.lastEmailAlertTime = in.readLong();
+		st.lastEmailAlertReason = readString(in);
+		st.lastWebAlertTime = in.readLong();
+		st.lastWebAlertReason = readString(in);
+		return st;
+	}
+
+	private static void writeDate(DataOutput out, Date dt) throws IOException
+	{
+		out.writeLong(dt != null? dt.getTime() : Long.MIN_VALUE);
+	}
+
+	private static Date readDate(DataInput in) throws IOException
+	{
+		long t = in.readLong();
+		return t != Long.MIN_VALUE? new Date(t) : null;
+	}
+
+	private static void writeString(DataOutput out, String str) throws IOException
+	{
+		out.writeBoolean(str != null);
+		if(str != null)out.writeUTF(str);
+	}
+
+	private static String readString(DataInput in) throws IOException
+	{
+		return in.readBoolean()? in.readUTF() : null;
+	}
+
 	public boolean canSendWebNotification(long ts, String reason, int webAlertIntervalMinutes)
 	{
 		boolean toSend = false;
@@ -5,20 +5,48 @@
  */
 package com.yahoo.dba.perf.myperf.common;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 
 /**
- * store realtime status
+ * store realtime status. Lookups do not lock, the states are kept in a ConcurrentHashMap keyed by dbid.
+ * The states are persisted in an append only log, instance_status.log: a header, then one record
+ * per changed host, length, dbid, type, InstanceStates.writeTo and a CRC32. saveStatus only queues the write,
+ * a background thread appends the hosts changed since the last write. When the log has grown to several
+ * times the number of hosts, it is rewritten to a temporary file and renamed over the log. On startup the
+ * last record of each host wins, and a torn record at the end, from a crash during append, is ignored.
+ * instance_status.ser from older versions is read if there is no log yet.
  * @author xrao
  *
  */
@@ -26,26 +54,343 @@ public class InstanceStatesManager implements java.io.Serializable{
 	private static final long serialVersionUID = 1L;
 	private static Logger logger = Logger.getLogger(InstanceStatesManager.class.getName());
 	public static String OBJ_FILE_NAME="instance_status.ser";
+	public static final String LOG_FILE_NAME = "instance_status.log";
 	public static final String STORAGE_DIR = "autoscan";
+	private static final int LOG_MAGIC = 0x4d504953;//MPIS
+	private static final int LOG_VERSION = 1;
+	private static final byte RECORD_STATES = 1;
+	private static final byte RECORD_REMOVED = 2;
+	private static final int MAX_RECORD_LENGTH = 16*1024*1024;
+	private static final int COMPACT_FACTOR = 4;//rewrite when the log has this many records per host
+	private static final int COMPACT_MIN_RECORDS = 1024;
 	private String rootPath = "myperf_reports";//data will be stored under $rootPath/autoscan
 	
-	private Map<Integer, InstanceStates> statesMap = new HashMap<Integer, InstanceStates>();
+	private Map<Integer, InstanceStates> statesMap = new ConcurrentHashMap<Integer, InstanceStates>();
 	
+	//writer state, only accessed under writeLock
+	private transient Object writeLock = new Object();
+	private transient Map<Integer, byte[]> written = new HashMap<Integer, byte[]>();//what the log has for each host
+	private transient long logRecords = 0;//records in the log, to decide when to compact
+	private transient boolean compactNext = true;//log is missing, torn or from an old version
+	private transient volatile ExecutorService writer;
+	private transient AtomicBoolean savePending = new AtomicBoolean();
+
+	//statistics
+	private transient AtomicLong saves = new AtomicLong();
+	private transient AtomicLong recordsWritten = new AtomicLong();
+	private transient AtomicLong compactions = new AtomicLong();
+	private transient AtomicLong saveFailures = new AtomicLong();
+	private transient AtomicLong lastSaveTime = new AtomicLong();//milliseconds
+
 	public InstanceStatesManager()
 	{
 		
 	}
 	
 	/**
-	 * Make the data persistent
+	 * Make the data persistent. Only queue the write, hosts changed since the last write are
+	 * appended to the state log by a background thread.
 	 */
 	public void saveStatus()
 	{
-		logger.info("Store instance status snapshots");
-		File root = new File(new File(this.rootPath), STORAGE_DIR);		
-		File objFile = new File(root, OBJ_FILE_NAME);
-		storeObject(objFile);
+		if(!this.savePending.compareAndSet(false, true))
+			return;//the queued one will pick up the latest states
+		try
+		{
+			getWriter().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					savePending.set(false);
+					writeChanges();
+				}
+			});
+		}catch(Exception ex)
+		{
+			this.savePending.set(false);
+			logger.log(Level.WARNING, "Failed to queue instance status write", ex);
+		}
+	}
+
+	/**
+	 * Stop the background writer and write what has changed since the last write
+	 */
+	public void stop()
+	{
+		ExecutorService w = this.writer;
+		this.writer = null;
+		if(w != null)
+		{
+			w.shutdown();
+			try
+			{
+				w.awaitTermination(30, TimeUnit.SECONDS);
+			}catch(InterruptedException iex){}
+		}
+		writeChanges();
+	}
+
+	private ExecutorService getWriter()
+	{
+		ExecutorService w = this.writer;
+		if(w != null)return w;
+		synchronized(this.writeLock)
+		{
+			if(this.writer == null)
+			{
+				this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "InstanceStatesWriter");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			return this.writer;
+		}
+	}
+
+	private File getStorageDir()
+	{
+		return new File(new File(this.rootPath), STORAGE_DIR);
+	}
+
+	/**
+	 * Append the hosts changed since last write, or rewrite the log when it is time to compact
+	 */
+	private void writeChanges()
+	{
+		synchronized(this.writeLock)
+		{
+			long ts = System.currentTimeMillis();
+			File root = getStorageDir();
+			if(!root.exists())root.mkdirs();
+			File logFile = new File(root, LOG_FILE_NAME);
+			try
+			{
+				Map<Integer, byte[]> current = new LinkedHashMap<Integer, byte[]>(this.statesMap.size()*2);
+				for(Map.Entry<Integer, InstanceStates> e: this.statesMap.entrySet())
+					current.put(e.getKey(), encode(e.getValue()));
+
+				List<Integer> changed = new ArrayList<Integer>();
+				for(Map.Entry<Integer, byte[]> e: current.entrySet())
+				{
+					if(!Arrays.equals(e.getValue(), this.written.get(e.getKey())))
+						changed.add(e.getKey());
+				}
+				List<Integer> removed = new ArrayList<Integer>();
+				for(Integer dbid: this.written.keySet())
+				{
+					if(!current.containsKey(dbid))removed.add(dbid);
+				}
+
+				long records = this.logRecords + changed.size() + removed.size();
+				if(this.compactNext || !logFile.exists()
+						|| records > Math.max(COMPACT_MIN_RECORDS, (long)current.size()*COMPACT_FACTOR))
+				{
+					compact(logFile, current);
+				}else if(changed.size() > 0 || removed.size() > 0)
+				{
+					append(logFile, current, changed, removed);
+				}
+				this.saves.incrementAndGet();
+			}catch(Exception ex)
+			{
+				this.saveFailures.incrementAndGet();
+				this.compactNext = true;//the tail could be torn, rewrite next time
+				logger.log(Level.SEVERE,"Exception when store instance status", ex);
+			}
+			this.lastSaveTime.set(System.currentTimeMillis() - ts);
+		}
+	}
+
+	private void append(File logFile, Map<Integer, byte[]> current, List<Integer> changed, List<Integer> removed)
+		throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(logFile, true);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			for(Integer dbid: changed)
+				writeRecord(out, dbid, RECORD_STATES, current.get(dbid));
+			for(Integer dbid: removed)
+				writeRecord(out, dbid, RECORD_REMOVED, new byte[0]);
+			out.flush();
+			fos.getChannel().force(false);
+		}finally
+		{
+			fos.close();
+		}
+		for(Integer dbid: changed)
+			this.written.put(dbid, current.get(dbid));
+		for(Integer dbid: removed)
+			this.written.remove(dbid);
+		this.logRecords += changed.size() + removed.size();
+		this.recordsWritten.addAndGet(changed.size() + removed.size());
+	}
+
+	/**
+	 * Write all hosts to a temporary file and rename it over the log
+	 */
+	private void compact(File logFile, Map<Integer, byte[]> current) throws IOException
+	{
+		File tmpFile = new File(logFile.getParentFile(), LOG_FILE_NAME + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			out.writeInt(LOG_MAGIC);
+			out.writeInt(LOG_VERSION);
+			for(Map.Entry<Integer, byte[]> e: current.entrySet())
+				writeRecord(out, e.getKey(), RECORD_STATES, e.getValue());
+			out.flush();
+			fos.getChannel().force(true);
+		}finally
+		{
+			fos.close();
+		}
+		try
+		{
+			Files.move(tmpFile.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}catch(AtomicMoveNotSupportedException ex)
+		{
+			Files.move(tmpFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.written = new HashMap<Integer, byte[]>(current);
+		this.logRecords = current.size();
+		this.compactNext = false;
+		this.recordsWritten.addAndGet(current.size());
+		this.compactions.incrementAndGet();
+	}
+
+	private static void writeRecord(DataOutputStream out, int dbid, byte type, byte[] data) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(dbid >>> 24);
+		crc.update(dbid >>> 16);
+		crc.update(dbid >>> 8);
+		crc.update(dbid);
+		crc.update(type);
+		crc.update(data, 0, data.length);
+		out.writeInt(data.length);
+		out.writeInt(dbid);
+		out.writeByte(type);
+		out.write(data);
+		out.writeInt((int)crc.getValue());
+	}
+
+	private static byte[] encode(InstanceStates states) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bos);
+		states.writeTo(out);
+		out.flush();
+		return bos.toByteArray();
 	}
+
+	/**
+	 * Read the state log
+	 * @param logFile
+	 * @return null if the file cannot be used
+	 */
+	public Map<Integer, InstanceStates> readLog(File logFile)
+	{
+		Map<Integer, byte[]> data = new HashMap<Integer, byte[]>();
+		long records = 0;
+		boolean torn = false;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 65536));
+			if(in.readInt() != LOG_MAGIC || in.readInt() != LOG_VERSION)
+			{
+				logger.warning("Unknown format of "+logFile+", ignore it");
+				return null;
+			}
+			byte[] prefix = new byte[4];
+			while(true)
+			{
+				//a crash could leave part of the length, only no byte at all is a clean end
+				int n = 0;
+				while(n < prefix.length)
+				{
+					int r = in.read(prefix, n, prefix.length - n);
+					if(r < 0)break;
+					n += r;
+				}
+				if(n == 0)break;
+				if(n < prefix.length)
+				{
+					logger.warning("Ignore partial record length at the end of "+logFile+" after "+records+" records");
+					torn = true;
+					break;
+				}
+				int len = ((prefix[0] & 0xff) << 24) | ((prefix[1] & 0xff) << 16) | ((prefix[2] & 0xff) << 8) | (prefix[3] & 0xff);
+				try
+				{
+					if(len < 0 || len > MAX_RECORD_LENGTH)
+						throw new IOException("Invalid record length "+len);
+					int dbid = in.readInt();
+					byte type = in.readByte();
+					byte[] bytes = new byte[len];
+					in.readFully(bytes);
+					int crcValue = in.readInt();
+					CRC32 crc = new CRC32();
+					crc.update(dbid >>> 24);
+					crc.update(dbid >>> 16);
+					crc.update(dbid >>> 8);
+					crc.update(dbid);
+					crc.update(type);
+					crc.update(bytes, 0, bytes.length);
+					if(crcValue != (int)crc.getValue())
+						throw new IOException("Checksum mismatch for record "+(records+1));
+					if(type == RECORD_STATES)
+						data.put(dbid, bytes);
+					else if(type == RECORD_REMOVED)
+						data.remove(dbid);
+					records++;
+				}catch(IOException ex)
+				{
+					logger.warning("Ignore the rest of "+logFile+" after "+records+" records: "+ex);
+					torn = true;
+					break;
+				}
+			}
+		}catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Exception when read instance status log", ex);
+			return null;
+		}finally
+		{
+			if(in!=null)try{in.close();}catch(Exception iex){}
+		}
+
+		Map<Integer, InstanceStates> res = new HashMap<Integer, InstanceStates>(data.size()*2);
+		for(Map.Entry<Integer, byte[]> e: data.entrySet())
+		{
+			try
+			{
+				res.put(e.getKey(), InstanceStates.readFrom(new DataInputStream(new ByteArrayInputStream(e.getValue()))));
+			}catch(IOException ex)
+			{
+				logger.warning("Ignore saved status of dbid "+e.getKey()+": "+ex.getMessage());
+				torn = true;
+			}
+		}
+		synchronized(this.writeLock)
+		{
+			this.written = data;
+			this.logRecords = records;
+			this.compactNext = torn;
+		}
+		return res;
+	}
+
 	public void storeObject(File objf)
 	{
 		ObjectOutputStream outputStream = null;
@@ -54,7 +399,7 @@ public class InstanceStatesManager implements java.io.Serializable{
             
             //Construct the LineNumberReader object
             outputStream = new ObjectOutputStream(new FileOutputStream(objf));
-            outputStream.writeObject(this.statesMap);            
+            outputStream.writeObject(new HashMap<Integer, InstanceStates>(this.statesMap));//same format as before
             
         } catch (Exception ex) {
             logger.log(Level.SEVERE,"Exception when store instance status object", ex);
@@ -91,29 +436,22 @@ public class InstanceStatesManager implements java.io.Serializable{
 		return null;
 	}
 
-	synchronized public InstanceStates getStates(int dbid)
+	public InstanceStates getStates(int dbid)
 	{
-		if(statesMap.containsKey(dbid))
-			return statesMap.get(dbid);
-		return null;
+		return statesMap.get(dbid);
 	}
 	
 	
-	synchronized public void addInstanceStates(int dbid)
+	public void addInstanceStates(int dbid)
 	{
 		if(statesMap.containsKey(dbid))
 			return;
-		this.statesMap.put(dbid, new InstanceStates());
+		this.statesMap.putIfAbsent(dbid, new InstanceStates());
 	}
 	
-	synchronized public boolean removeInstanceStates(int dbid)
+	public boolean removeInstanceStates(int dbid)
 	{
-		if(statesMap.containsKey(dbid))
-		{
-			statesMap.remove(dbid);
-			return true;
-		}
-		return false;
+		return statesMap.remove(dbid) != null;
 	}
 	
 	/**
@@ -123,19 +461,26 @@ public class InstanceStatesManager implements java.io.Serializable{
 	public void init(MyPerfContext context)
 	{
 		logger.info("Initialize InstanceStatesManager");
-		File root = new File(new File(this.rootPath), STORAGE_DIR);
+		File root = getStorageDir();
 		if(!root.exists())root.mkdirs();
 		
+		File logFile = new File(root, LOG_FILE_NAME);
 		File objFile = new File(root, OBJ_FILE_NAME);
-		if(objFile.exists())
+		Map<Integer, InstanceStates> savedState = null;
+		if(logFile.exists())
+		{
+			logger.info("Load saved status log");
+			savedState = readLog(logFile);
+		}
+		if(savedState == null && objFile.exists())
 		{
 			logger.info("Load saved status");
-			Map<Integer, InstanceStates> savedState = readObject(objFile);
-			if(savedState!=null)
-			{
-				for(Map.Entry<Integer, InstanceStates> e: savedState.entrySet())
-					this.statesMap.put(e.getKey(), e.getValue());
-			}
+			savedState = readObject(objFile);
+		}
+		if(savedState!=null)
+		{
+			for(Map.Entry<Integer, InstanceStates> e: savedState.entrySet())
+				if(e.getKey() != null && e.getValue() != null)this.statesMap.put(e.getKey(), e.getValue());
 		}
 		
 		for(Map.Entry<String, DBGroupInfo> e: context.getDbInfoManager().getClusters().entrySet())
@@ -143,12 +488,24 @@ public class InstanceStatesManager implements java.io.Serializable{
           for (DBInstanceInfo dbinfo: e.getValue().getInstances())
           {
         	  if(!this.statesMap.containsKey(dbinfo.getDbid()))
-        		  this.statesMap.put(dbinfo.getDbid(), new InstanceStates());
+        		  this.statesMap.putIfAbsent(dbinfo.getDbid(), new InstanceStates());
           }
         }
 		logger.info("Initialized InstanceStatesManager");		
 	}
 
+	public Map<String, String> getStats()
+	{
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		stats.put("instanceStates.hosts", String.valueOf(this.statesMap.size()));
+		stats.put("instanceStates.saves", String.valueOf(this.saves.get()));
+		stats.put("instanceStates.recordsWritten", String.valueOf(this.recordsWritten.get()));
+		stats.put("instanceStates.compactions", String.valueOf(this.compactions.get()));
+		stats.put("instanceStates.saveFailures", String.valueOf(this.saveFailures.get()));
+		stats.put("instanceStates.lastSaveTimeMs", String.valueOf(this.lastSaveTime.get()));
+		return stats;
+	}
+
 	public String getRootPath() {
 		return rootPath;
 	}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A JSON response which is written to the output when the view is rendered,
+ * instead of being built as a String inside the controller.
+ * toString() still returns the full text, for callers expecting a String.
+ * @author xrao
+ *
+ */
+public abstract class JsonResult
+{
+	/**
+	 * Write the JSON text
+	 * @param out
+	 * @throws IOException
+	 */
+	public abstract void write(Writer out) throws IOException;
+
+	@Override
+	public String toString()
+	{
+		StringBuilderWriter sw = new StringBuilderWriter();
+		try
+		{
+			write(sw);
+		}catch(IOException ex)
+		{
+			//not expected from StringBuilder
+		}
+		return sw.sb.toString();
+	}
+
+	/**
+	 * Unlike StringWriter, not synchronized on each write
+	 */
+	private static class StringBuilderWriter extends Writer
+	{
+		private StringBuilder sb = new StringBuilder(4096);
+
+		@Override
+		public void write(char[] cbuf, int off, int len)
+		{
+			sb.append(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str, int off, int len)
+		{
+			sb.append(str, off, off + len);
+		}
+
+		@Override
+		public void write(String str)
+		{
+			sb.append(str);
+		}
+
+		@Override
+		public void write(int c)
+		{
+			sb.append((char)c);
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
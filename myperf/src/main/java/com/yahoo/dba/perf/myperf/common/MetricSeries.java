@@ -0,0 +1,444 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metrics time series stored by column in primitive arrays, used for metrics retrieved from metricsDB
+ * instead of ResultList, which keeps every value as String with one ResultRow per row.
+ * Each row has SNAP_ID and TS, and optionally DBID when the series covers multiple hosts.
+ * Integer metrics are kept as long, others as double. SQL NULL is tracked separately.
+ * Rows are expected to be sorted by (DBID,) SNAP_ID.
+ * @author xrao
+ *
+ */
+public class MetricSeries implements java.io.Serializable
+{
+	private static final long serialVersionUID = 1L;
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final boolean hasDbid;
+	private int[] dbids;
+	private int[] snapIds;
+	private long[] timestamps;
+	private final String[] names;//metric column names
+	private final boolean[] integral;
+	private final long[][] longValues;//null for double columns
+	private final double[][] doubleValues;//null for integer columns
+	private final BitSet[] nulls;//created when the first null is found
+	private int size = 0;
+	private java.util.Map<String, CustomResultObject> customObjects;//The key is the json key name
+	private Map<Integer, String> dbidLabels;//if set, DBID is written as HOST with this name
+
+	/**
+	 * @param names metric column names
+	 * @param integral true if the column is an integer type
+	 * @param hasDbid true if DBID is recorded for each row
+	 * @param capacity initial number of rows
+	 */
+	public MetricSeries(String[] names, boolean[] integral, boolean hasDbid, int capacity)
+	{
+		int cap = Math.max(capacity, 16);
+		this.names = names.clone();
+		this.integral = integral.clone();
+		this.hasDbid = hasDbid;
+		this.dbids = hasDbid? new int[cap] : null;
+		this.snapIds = new int[cap];
+		this.timestamps = new long[cap];
+		this.longValues = new long[names.length][];
+		this.doubleValues = new double[names.length][];
+		this.nulls = new BitSet[names.length];
+		for(int i=0;i<names.length;i++)
+		{
+			if(integral[i])longValues[i] = new long[cap];
+			else doubleValues[i] = new double[cap];
+		}
+	}
+
+	/**
+	 * Construct from a query result with columns SNAP_ID, TS, optional DBID, and metrics.
+	 * Any other column is treated as a metric.
+	 * @param rs
+	 * @param maxCount If positive number, at most that number of records will be returned
+	 * @return
+	 * @throws SQLException
+	 */
+	public static MetricSeries fromResultSet(ResultSet rs, int maxCount) throws SQLException
+	{
+		ResultSetMetaData meta = rs.getMetaData();
+		int colCnt = meta.getColumnCount();
+		int dbidPos = 0, snapPos = 0, tsPos = 0;
+		List<String> names = new ArrayList<String>(colCnt);
+		List<Integer> positions = new ArrayList<Integer>(colCnt);
+		List<Boolean> types = new ArrayList<Boolean>(colCnt);
+		for(int i=1;i<=colCnt;i++)
+		{
+			String name = meta.getColumnName(i);
+			if("DBID".equalsIgnoreCase(name))dbidPos = i;
+			else if("SNAP_ID".equalsIgnoreCase(name))snapPos = i;
+			else if("TS".equalsIgnoreCase(name))tsPos = i;
+			else
+			{
+				names.add(name);
+				positions.add(i);
+				types.add(isIntegral(meta.getColumnType(i), meta.getScale(i)));
+			}
+		}
+		if(snapPos == 0 || tsPos == 0)
+			throw new SQLException("SNAP_ID and TS are required for metrics series");
+		int n = names.size();
+		boolean[] integral = new boolean[n];
+		int[] pos = new int[n];
+		for(int i=0;i<n;i++)
+		{
+			integral[i] = types.get(i);
+			pos[i] = positions.get(i);
+		}
+		MetricSeries series = new MetricSeries(names.toArray(new String[n]), integral, dbidPos > 0,
+				maxCount > 0? Math.min(maxCount, INITIAL_CAPACITY) : INITIAL_CAPACITY);
+		while((maxCount <= 0 || series.size < maxCount) && rs.next())
+		{
+			int row = series.addRow(dbidPos > 0? rs.getInt(dbidPos) : 0, rs.getInt(snapPos), rs.getLong(tsPos));
+			for(int i=0;i<n;i++)
+			{
+				if(integral[i])
+					series.longValues[i][row] = rs.getLong(pos[i]);
+				else
+					series.doubleValues[i][row] = rs.getDouble(pos[i]);
+				if(rs.wasNull())series.setNull(i, row);
+			}
+		}
+		return series;
+	}
+
+	private static boolean isIntegral(int sqlType, int scale)
+	{
+		if(sqlType==Types.BIGINT||sqlType==Types.INTEGER||sqlType==Types.SMALLINT||sqlType==Types.TINYINT)
+			return true;
+		if(sqlType==Types.DECIMAL||sqlType==Types.NUMERIC)
+			return scale == 0;
+		return false;
+	}
+
+	/**
+	 * Add a row, with all metrics 0. Use setLong, setDouble or setNull to set the values.
+	 * @param dbid ignored if the series has no DBID
+	 * @param snapId
+	 * @param ts
+	 * @return row index
+	 */
+	public int addRow(int dbid, int snapId, long ts)
+	{
+		if(size == snapIds.length)grow(size * 2);
+		if(hasDbid)dbids[size] = dbid;
+		snapIds[size] = snapId;
+		timestamps[size] = ts;
+		return size++;
+	}
+
+	private void grow(int cap)
+	{
+		if(hasDbid)dbids = java.util.Arrays.copyOf(dbids, cap);
+		snapIds = java.util.Arrays.copyOf(snapIds, cap);
+		timestamps = java.util.Arrays.copyOf(timestamps, cap);
+		for(int i=0;i<names.length;i++)
+		{
+			if(integral[i])longValues[i] = java.util.Arrays.copyOf(longValues[i], cap);
+			else doubleValues[i] = java.util.Arrays.copyOf(doubleValues[i], cap);
+		}
+	}
+
+	/**
+	 * Append all rows of another series with the same columns, for example, the result of the next query.
+	 * @param more
+	 */
+	public void append(MetricSeries more)
+	{
+		if(more == null || more.size == 0)return;
+		if(more.names.length != names.length || more.hasDbid != hasDbid)
+			throw new IllegalArgumentException("Metrics series with different columns");
+		if(size + more.size > snapIds.length)grow(Integer.highestOneBit(size + more.size) << 1);
+		if(hasDbid)System.arraycopy(more.dbids, 0, dbids, size, more.size);
+		System.arraycopy(more.snapIds, 0, snapIds, size, more.size);
+		System.arraycopy(more.timestamps, 0, timestamps, size, more.size);
+		for(int i=0;i<names.length;i++)
+		{
+			if(integral[i]!=more.integral[i])
+			{
+				for(int r=0;r<more.size;r++)setDouble(i, size + r, more.getDouble(i, r));
+			}
+			else if(integral[i])System.arraycopy(more.longValues[i], 0, longValues[i], size, more.size);
+			else System.arraycopy(more.doubleValues[i], 0, doubleValues[i], size, more.size);
+			if(more.nulls[i] != null)
+				for(int r=more.nulls[i].nextSetBit(0);r>=0 && r<more.size;r=more.nulls[i].nextSetBit(r+1))
+					setNull(i, size + r);
+		}
+		size += more.size;
+	}
+
+	/**
+	 * Join two series on (DBID,) SNAP_ID. Rows not found in both are dropped.
+	 * The result has the metrics of s1 followed by those of s2, with DBID, SNAP_ID and TS from s1.
+	 * Custom objects are not copied, the caller decides how to combine them.
+	 * @param s1
+	 * @param s2
+	 * @return
+	 */
+	public static MetricSeries merge(MetricSeries s1, MetricSeries s2)
+	{
+		if(s1 == null)return s2;
+		if(s2 == null)return s1;
+		int n1 = s1.names.length;
+		int n2 = s2.names.length;
+		String[] names = new String[n1 + n2];
+		boolean[] integral = new boolean[n1 + n2];
+		System.arraycopy(s1.names, 0, names, 0, n1);
+		System.arraycopy(s2.names, 0, names, n1, n2);
+		System.arraycopy(s1.integral, 0, integral, 0, n1);
+		System.arraycopy(s2.integral, 0, integral, n1, n2);
+		boolean byDbid = s1.hasDbid && s2.hasDbid;
+		MetricSeries series = new MetricSeries(names, integral, s1.hasDbid, Math.min(s1.size, s2.size));
+		int idx1 = 0;
+		int idx2 = 0;
+		while(idx1 < s1.size && idx2 < s2.size)
+		{
+			int cmp = byDbid? compare(s1.dbids[idx1], s2.dbids[idx2]) : 0;
+			if(cmp == 0)
+				cmp = compare(s1.snapIds[idx1], s2.snapIds[idx2]);
+			if(cmp == 0)
+			{
+				int row = series.addRow(s1.hasDbid? s1.dbids[idx1] : 0, s1.snapIds[idx1], s1.timestamps[idx1]);
+				series.copyValues(s1, idx1, 0, row);
+				series.copyValues(s2, idx2, n1, row);
+				idx1++;
+				idx2++;
+			}else if(cmp < 0)
+				idx1++;
+			else idx2++;
+		}
+		series.dbidLabels = s1.dbidLabels;
+		return series;
+	}
+
+	/**
+	 * All rows of two series with the same columns, ordered by (DBID,) SNAP_ID.
+	 * A row of s1 replaces the row of s2 with the same (DBID,) SNAP_ID.
+	 * The result has the column types, custom objects and host names of s1.
+	 * @param s1
+	 * @param s2
+	 * @return
+	 */
+	public static MetricSeries union(MetricSeries s1, MetricSeries s2)
+	{
+		if(s1 == null || s2 == null || s2.size == 0)return s1 != null? s1 : s2;
+		if(s1.size == 0)return s2;
+		if(s1.names.length != s2.names.length || s1.hasDbid != s2.hasDbid)
+			throw new IllegalArgumentException("Metrics series with different columns");
+		MetricSeries series = new MetricSeries(s1.names, s1.integral, s1.hasDbid, s1.size + s2.size);
+		int idx1 = 0;
+		int idx2 = 0;
+		while(idx1 < s1.size || idx2 < s2.size)
+		{
+			int cmp;
+			if(idx2 == s2.size)cmp = -1;
+			else if(idx1 == s1.size)cmp = 1;
+			else
+			{
+				cmp = s1.hasDbid? compare(s1.dbids[idx1], s2.dbids[idx2]) : 0;
+				if(cmp == 0)
+					cmp = compare(s1.snapIds[idx1], s2.snapIds[idx2]);
+			}
+			if(cmp <= 0)
+			{
+				int row = series.addRow(s1.getDbid(idx1), s1.snapIds[idx1], s1.timestamps[idx1]);
+				series.copyValues(s1, idx1, 0, row);
+				idx1++;
+				if(cmp == 0)idx2++;
+			}else
+			{
+				int row = series.addRow(s2.getDbid(idx2), s2.snapIds[idx2], s2.timestamps[idx2]);
+				for(int i=0;i<s2.names.length;i++)
+				{
+					if(s2.isNull(i, idx2))series.setNull(i, row);
+					else if(s2.integral[i])series.setLong(i, row, s2.longValues[i][idx2]);
+					else series.setDouble(i, row, s2.doubleValues[i][idx2]);
+				}
+				idx2++;
+			}
+		}
+		series.customObjects = s1.customObjects;
+		series.dbidLabels = s1.dbidLabels;
+		return series;
+	}
+
+	/**
+	 * Copy of the selected rows, with the custom objects and host names.
+	 * @param rows indexes of the rows to keep
+	 * @return
+	 */
+	public MetricSeries subset(BitSet rows)
+	{
+		MetricSeries series = new MetricSeries(names, integral, hasDbid, rows.cardinality());
+		for(int r=rows.nextSetBit(0);r>=0 && r<size;r=rows.nextSetBit(r+1))
+		{
+			int row = series.addRow(getDbid(r), snapIds[r], timestamps[r]);
+			series.copyValues(this, r, 0, row);
+		}
+		series.customObjects = customObjects;
+		series.dbidLabels = dbidLabels;
+		return series;
+	}
+
+	private static int compare(int a, int b)
+	{
+		return a < b? -1 : (a == b? 0 : 1);
+	}
+
+	private void copyValues(MetricSeries src, int srcRow, int offset, int row)
+	{
+		for(int i=0;i<src.names.length;i++)
+		{
+			if(src.integral[i])longValues[offset + i][row] = src.longValues[i][srcRow];
+			else doubleValues[offset + i][row] = src.doubleValues[i][srcRow];
+			if(src.isNull(i, srcRow))setNull(offset + i, row);
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean hasDbid()
+	{
+		return hasDbid;
+	}
+
+	public int getDbid(int row)
+	{
+		return hasDbid? dbids[row] : 0;
+	}
+
+	public int getSnapId(int row)
+	{
+		return snapIds[row];
+	}
+
+	public long getTimestamp(int row)
+	{
+		return timestamps[row];
+	}
+
+	/**
+	 * TS in yyyyMMddHHmmss, UTC, to epoch milliseconds. Plain arithmetic, no Calendar per call.
+	 * @param ts
+	 * @return
+	 */
+	public static long toMillis(long ts)
+	{
+		long year = ts / 10000000000L;
+		int month = (int)(ts / 100000000L % 100);
+		int day = (int)(ts / 1000000L % 100);
+		//days from civil, with the year starting on March 1st
+		long y = month <= 2? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (month > 2? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		long days = era * 146097 + doe - 719468;
+		return (days * 86400L + (ts / 10000L % 100) * 3600L + (ts / 100L % 100) * 60L + ts % 100) * 1000L;
+	}
+
+	/**
+	 * @return number of metric columns
+	 */
+	public int getMetricCount()
+	{
+		return names.length;
+	}
+
+	public String getName(int col)
+	{
+		return names[col];
+	}
+
+	public void setName(int col, String name)
+	{
+		names[col] = name;
+	}
+
+	public boolean isIntegral(int col)
+	{
+		return integral[col];
+	}
+
+	public boolean isNull(int col, int row)
+	{
+		return nulls[col] != null && nulls[col].get(row);
+	}
+
+	public void setNull(int col, int row)
+	{
+		if(nulls[col] == null)nulls[col] = new BitSet();
+		nulls[col].set(row);
+	}
+
+	public long getLong(int col, int row)
+	{
+		return integral[col]? longValues[col][row] : (long)doubleValues[col][row];
+	}
+
+	public double getDouble(int col, int row)
+	{
+		return integral[col]? longValues[col][row] : doubleValues[col][row];
+	}
+
+	public void setLong(int col, int row, long value)
+	{
+		if(integral[col])longValues[col][row] = value;
+		else doubleValues[col][row] = value;
+	}
+
+	public void setDouble(int col, int row, double value)
+	{
+		if(integral[col])longValues[col][row] = (long)value;
+		else doubleValues[col][row] = value;
+	}
+
+	public java.util.Map<String, CustomResultObject> getCustomObjects()
+	{
+		return customObjects;
+	}
+
+	public void addCustomObject(CustomResultObject obj)
+	{
+		if(obj==null)return;
+		if(this.customObjects==null)this.customObjects = new java.util.HashMap<String, CustomResultObject>();
+		this.customObjects.put(obj.getName(), obj);
+	}
+
+	public Map<Integer, String> getDbidLabels()
+	{
+		return dbidLabels;
+	}
+
+	/**
+	 * When set, DBID is written as HOST in JSON output, using the names from the map
+	 * @param dbidLabels
+	 */
+	public void setDbidLabels(Map<Integer, String> dbidLabels)
+	{
+		this.dbidLabels = dbidLabels;
+	}
+}
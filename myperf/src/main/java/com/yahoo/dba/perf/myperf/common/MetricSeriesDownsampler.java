@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.util.BitSet;
+
+/**
+ * Reduce a metrics series to at most maxPoints rows per host for charting, with Largest-Triangle-Three-Buckets.
+ * All metrics of a row are kept or dropped together, so a bucket keeps the row with the largest triangle area
+ * summed over the metrics, each metric scaled by its own range. Spikes of any metric are kept this way.
+ * For incremental metrics the area is taken on the rate between two rows, and the row before each kept row
+ * is kept as well, so the difference the chart computes is still the rate at the spike, not an average over the bucket.
+ * @author xrao
+ *
+ */
+public class MetricSeriesDownsampler
+{
+	//fewer points than this make no chart
+	public static final int MIN_POINTS = 10;
+
+	/**
+	 * @param series rows sorted by (DBID,) SNAP_ID
+	 * @param maxPoints maximum number of rows per host
+	 * @param incremental true for the metric columns storing counters
+	 * @return the series itself if no host has more than maxPoints rows
+	 */
+	public static MetricSeries downsample(MetricSeries series, int maxPoints, boolean[] incremental)
+	{
+		if(series == null || maxPoints <= 0)return series;
+		maxPoints = Math.max(maxPoints, MIN_POINTS);
+		boolean hasIncremental = false;
+		for(boolean inc: incremental)hasIncremental |= inc;
+		//a kept counter row takes its previous row along
+		int points = hasIncremental? maxPoints / 2 : maxPoints;
+
+		BitSet keep = null;
+		int size = series.size();
+		for(int start = 0; start < size;)
+		{
+			int end = start + 1;
+			while(end < size && series.getDbid(end) == series.getDbid(start))end++;
+			if(end - start > maxPoints)
+			{
+				if(keep == null)
+				{
+					keep = new BitSet(size);
+					keep.set(0, start);
+				}
+				selectRows(series, start, end, points, incremental, keep);
+			}else if(keep != null)
+				keep.set(start, end);
+			start = end;
+		}
+		if(keep == null)return series;
+		return series.subset(keep);
+	}
+
+	/**
+	 * LTTB over rows [start, end) of one host
+	 */
+	private static void selectRows(MetricSeries series, int start, int end, int points, boolean[] incremental, BitSet keep)
+	{
+		int n = end - start;
+		int cols = series.getMetricCount();
+		double[] x = new double[n];
+		for(int r = 0; r < n; r++)
+			x[r] = MetricSeries.toMillis(series.getTimestamp(start + r)) / 1000L;
+		double[][] y = new double[cols][];
+		for(int c = 0; c < cols; c++)
+			y[c] = signal(series, c, start, n, x, incremental[c]);
+
+		int a = 0;
+		mark(keep, start, a, incremental);
+		double every = (double)(n - 2) / (points - 2);
+		double[] avgY = new double[cols];
+		for(int i = 0; i < points - 2; i++)
+		{
+			//average of the next bucket
+			int avgStart = (int)Math.floor((i + 1) * every) + 1;
+			int avgEnd = Math.min((int)Math.floor((i + 2) * every) + 1, n);
+			double avgX = 0;
+			for(int r = avgStart; r < avgEnd; r++)avgX += x[r];
+			avgX /= avgEnd - avgStart;
+			for(int c = 0; c < cols; c++)
+			{
+				if(y[c] == null)continue;
+				double sum = 0;
+				int cnt = 0;
+				for(int r = avgStart; r < avgEnd; r++)
+				{
+					if(Double.isNaN(y[c][r]))continue;
+					sum += y[c][r];
+					cnt++;
+				}
+				avgY[c] = cnt > 0? sum / cnt : Double.NaN;
+			}
+
+			//the row of this bucket making the largest triangle with the last kept row and the next bucket
+			int from = (int)Math.floor(i * every) + 1;
+			int to = (int)Math.floor((i + 1) * every) + 1;
+			int next = from;
+			double maxArea = -1;
+			for(int r = from; r < to; r++)
+			{
+				double area = 0;
+				for(int c = 0; c < cols; c++)
+				{
+					if(y[c] == null || Double.isNaN(y[c][a]) || Double.isNaN(y[c][r]) || Double.isNaN(avgY[c]))continue;
+					area += Math.abs((x[a] - avgX) * (y[c][r] - y[c][a]) - (x[a] - x[r]) * (avgY[c] - y[c][a]));
+				}
+				if(area > maxArea)
+				{
+					maxArea = area;
+					next = r;
+				}
+			}
+			mark(keep, start, next, incremental);
+			a = next;
+		}
+		mark(keep, start, n - 1, incremental);
+	}
+
+	private static void mark(BitSet keep, int start, int row, boolean[] incremental)
+	{
+		keep.set(start + row);
+		if(row > 0)
+		{
+			for(boolean inc: incremental)
+			{
+				if(inc)
+				{
+					keep.set(start + row - 1);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Values of a column scaled to its range, or rates for counters, NaN for null.
+	 * @return null if the column has no value
+	 */
+	private static double[] signal(MetricSeries series, int col, int start, int n, double[] x, boolean incremental)
+	{
+		double[] y = new double[n];
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for(int r = 0; r < n; r++)
+		{
+			y[r] = Double.NaN;
+			if(series.isNull(col, start + r))continue;
+			double v = series.getDouble(col, start + r);
+			if(incremental)
+			{
+				if(r == 0 || series.isNull(col, start + r - 1) || x[r] <= x[r - 1])continue;
+				double prev = series.getDouble(col, start + r - 1);
+				v = (v >= prev? v - prev : v) / (x[r] - x[r - 1]);//restarted counter, as the chart does
+			}
+			y[r] = v;
+			if(v < min)min = v;
+			if(v > max)max = v;
+		}
+		if(min > max)return null;
+		double scale = max > min? 1.0 / (max - min) : 0;
+		for(int r = 0; r < n; r++)
+			if(!Double.isNaN(y[r]))y[r] = (y[r] - min) * scale;
+		return y;
+	}
+}
@@ -21,12 +21,17 @@ public class MetricsBuffer {
 
 	private int dbid;//database id, for data persistence purpose
 	
+	private MetricsRecordEncoder encoder;
+	private MetricsRecordEncoder.KeyResolver keyResolver;//metrics name lookup state for this db
+	
 	public MetricsBuffer(MetricsGroup mg)
 	{
 		//this.capacity = capacity;
 		this.metrics = mg;
 		metrics.calculateLength();
 		this.recordLength = 20 + metrics.getLength();
+		this.encoder = mg.getEncoder();
+		this.keyResolver = this.encoder.newKeyResolver();
 	}
 	
 	
@@ -119,98 +124,27 @@ public class MetricsBuffer {
 		return buf2;
 	}
 
+	/**
+	 * Encode one row of metrics from name/value pairs. Metrics names are case insensitive.
+	 * Missing or non numeric values are stored as 0.
+	 * @param rs
+	 * @param snap_id
+	 * @param timestamp
+	 * @param sql_time
+	 * @return
+	 * @throws java.sql.SQLException
+	 */
 	public java.nio.ByteBuffer recordOneRowByMetricsMap(java.util.Map<String, String> rs, int snap_id, long timestamp, int sql_time)
 	throws java.sql.SQLException
 	{
 		if(rs.size()==0)return null;//TODO log error
-		HashMap<String, String> hs = new HashMap<String, String>();
-		for(Map.Entry<String, String> e: rs.entrySet())
+		if(this.encoder != this.metrics.getEncoder())
 		{
-			//skip null
-			if(e.getKey()==null||e.getValue()==null)continue;
-			hs.put(e.getKey().toUpperCase(), e.getValue());
+			//metrics definition changed
+			this.encoder = this.metrics.getEncoder();
+			this.keyResolver = this.encoder.newKeyResolver();
 		}
-		
-		byte[] buf = new byte[this.recordLength];
-		java.nio.ByteBuffer buf2 = java.nio.ByteBuffer.wrap(buf);
-		
-		int pos = 0;
-		buf2.putInt(pos, dbid); pos+=4;
-		buf2.putInt(pos, snap_id); pos+=4;		
-		buf2.putLong(pos, timestamp); pos+=8;
-		buf2.putInt(pos, sql_time); pos+=4;
-		List<Metric> ms = metrics.getMetrics();
-		int len = ms.size();				
-		for(int i=0;i<len;i++)
-		{
-			Metric m = ms.get(i);
-			String val = null;
-			if(hs.containsKey(m.getSourceName().toUpperCase()))
-			  val = hs.get(m.getSourceName().toUpperCase());
-			if(m.getDataType()==MetricDataType.BYTE)
-			{
-				try
-				{
-					buf2.put(pos, Byte.parseByte(val));
-				}catch(Exception ex)
-				{
-					buf2.put(pos, (byte)0);
-				}
-				pos+=1;
-			}
-			else if(m.getDataType()==MetricDataType.SHORT)
-			{
-				try
-				{
-					buf2.putShort(pos, Short.parseShort(val));
-				}catch(Exception ex)
-				{
-					buf2.putShort(pos, (short)0);
-				}
-				pos+=2;
-			}else if(m.getDataType()==MetricDataType.INT)
-			{
-				try
-				{
-					buf2.putInt(pos, Integer.parseInt(val));
-				}catch(Exception ex)
-				{
-					buf2.putInt(pos, 0);
-				}
-				pos+=4;
-			}else if(m.getDataType()==MetricDataType.LONG)
-			{
-				try
-				{
-					buf2.putLong(pos, Long.parseLong(val));
-				}catch(Exception ex)
-				{
-					buf2.putLong(pos, 0);
-				}
-				pos+=8;
-			}else if(m.getDataType()==MetricDataType.FLOAT)
-			{
-				try
-				{
-					buf2.putFloat(pos, Float.parseFloat(val));
-				}catch(Exception ex)
-				{
-					buf2.putFloat(pos, 0);
-				}
-				pos+=4;
-			}else if(m.getDataType()==MetricDataType.DOUBLE)
-			{
-				try
-				{
-					buf2.putDouble(pos, Double.parseDouble(val));
-				}catch(Exception ex)
-				{
-					buf2.putDouble(pos, 0);
-				}
-				pos+=8;
-			}
-		}
-		return buf2;
+		return this.encoder.encode(rs, this.keyResolver, dbid, snap_id, timestamp, sql_time);
 	}
 
 	public static String escapeJson(String str)
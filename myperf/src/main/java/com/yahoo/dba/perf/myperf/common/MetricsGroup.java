@@ -71,6 +71,7 @@ public class MetricsGroup {
 	{
 		this.metrics.add(metric);
 		this.metricsNameMap.put(metric.getName(), metric);
+		this.encoder = null;
 	}
 	public String getGroupName() {
 		return groupName;
@@ -89,6 +90,7 @@ public class MetricsGroup {
 		return null;
 	}
 	private int length;
+	private volatile MetricsRecordEncoder encoder;//compiled from metrics
 	
 	public void calculateLength()
 	{
@@ -99,6 +101,21 @@ public class MetricsGroup {
 		}
 		this.length = l;
 	}
+	
+	/**
+	 * Encoder to convert metrics name/value pairs into binary record. Built once for the current metrics list.
+	 * @return
+	 */
+	public MetricsRecordEncoder getEncoder()
+	{
+		MetricsRecordEncoder enc = this.encoder;
+		if(enc == null)
+		{
+			enc = new MetricsRecordEncoder(this);
+			this.encoder = enc;
+		}
+		return enc;
+	}
 	/**
 	 * If the content ever changed, need re-calculate it first
 	 * @return
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encode one row of metrics name/value pairs into the binary record used by metrics db.
+ * The metrics names, types and offsets of a MetricsGroup are computed once, so the hot path
+ * only does map lookups and number parsing. Number parsing does not throw for missing or
+ * non numeric values, which are stored as 0, same as before.
+ *
+ * The encoder is immutable and can be shared by all hosts. Per host name resolution state
+ * is kept in KeyResolver.
+ * @author xrao
+ *
+ */
+public class MetricsRecordEncoder
+{
+	public static final int HEADER_LENGTH = 20;//dbid, snap_id, timestamp, sql time
+	private static final int ABSENT_RECHECK_ROWS = 50;//how often we look again for metrics not found
+
+	private final String[] sourceNames;
+	private final String[] upperNames;
+	private final String[] lowerNames;
+	private final MetricDataType[] types;
+	private final int[] offsets;
+	private final int recordLength;
+
+	/**
+	 * Remember which key of the input map matches each metric, for a single host.
+	 * Not thread safe, one per MetricsBuffer.
+	 */
+	public static class KeyResolver
+	{
+		private String[] resolvedKeys;
+		private long[] recheckAfter;
+		private long rows = 0;
+
+		public KeyResolver(int size)
+		{
+			this.resolvedKeys = new String[size];
+			this.recheckAfter = new long[size];
+		}
+	}
+
+	public MetricsRecordEncoder(MetricsGroup mg)
+	{
+		List<Metric> ms = mg.getMetrics();
+		int len = ms.size();
+		this.sourceNames = new String[len];
+		this.upperNames = new String[len];
+		this.lowerNames = new String[len];
+		this.types = new MetricDataType[len];
+		this.offsets = new int[len];
+		int pos = HEADER_LENGTH;
+		for(int i=0;i<len;i++)
+		{
+			Metric m = ms.get(i);
+			String src = m.getSourceName();
+			this.sourceNames[i] = src;
+			this.upperNames[i] = src!=null?src.toUpperCase():null;
+			this.lowerNames[i] = src!=null?src.toLowerCase():null;
+			this.types[i] = m.getDataType();
+			this.offsets[i] = pos;
+			pos += m.getDataType().getLength();
+		}
+		this.recordLength = pos;
+	}
+
+	public int getRecordLength()
+	{
+		return this.recordLength;
+	}
+
+	public KeyResolver newKeyResolver()
+	{
+		return new KeyResolver(this.types.length);
+	}
+
+	/**
+	 * Encode one row. Metric names are matched case insensitively.
+	 * @param rs metrics name and value pairs
+	 * @param resolver per host name resolution state
+	 * @param dbid
+	 * @param snap_id
+	 * @param timestamp
+	 * @param sql_time
+	 * @return null if there is no data
+	 */
+	public ByteBuffer encode(Map<String, String> rs, KeyResolver resolver, int dbid, int snap_id, long timestamp, int sql_time)
+	{
+		if(rs==null || rs.size()==0)return null;
+		ByteBuffer buf = ByteBuffer.allocate(this.recordLength);
+		buf.putInt(0, dbid);
+		buf.putInt(4, snap_id);
+		buf.putLong(8, timestamp);
+		buf.putInt(16, sql_time);
+
+		resolver.rows++;
+		Map<String, String> upperIndex = null;//built only when needed, upper case key to actual key
+		int len = this.types.length;
+		for(int i=0;i<len;i++)
+		{
+			String val = null;
+			String key = resolver.resolvedKeys[i];
+			if(key != null)
+				val = rs.get(key);
+			if(val == null && this.sourceNames[i] != null)
+			{
+				key = null;
+				if((val = rs.get(this.sourceNames[i])) != null)key = this.sourceNames[i];
+				else if((val = rs.get(this.upperNames[i])) != null)key = this.upperNames[i];
+				else if((val = rs.get(this.lowerNames[i])) != null)key = this.lowerNames[i];
+				else if(resolver.recheckAfter[i] <= resolver.rows)
+				{
+					//mixed case, or not there at all
+					if(upperIndex == null)upperIndex = buildUpperIndex(rs);
+					key = upperIndex.get(this.upperNames[i]);
+					if(key != null)
+						val = rs.get(key);
+					else
+						resolver.recheckAfter[i] = resolver.rows + ABSENT_RECHECK_ROWS;
+				}
+				if(key != null)resolver.resolvedKeys[i] = key;
+			}
+			int pos = this.offsets[i];
+			switch(this.types[i])
+			{
+				case BYTE: buf.put(pos, (byte)parseLong(val, Byte.MIN_VALUE, Byte.MAX_VALUE)); break;
+				case SHORT: buf.putShort(pos, (short)parseLong(val, Short.MIN_VALUE, Short.MAX_VALUE)); break;
+				case INT: buf.putInt(pos, (int)parseLong(val, Integer.MIN_VALUE, Integer.MAX_VALUE)); break;
+				case LONG: buf.putLong(pos, parseLong(val, Long.MIN_VALUE, Long.MAX_VALUE)); break;
+				case FLOAT: buf.putFloat(pos, parseFloat(val)); break;
+				case DOUBLE: buf.putDouble(pos, parseDouble(val)); break;
+			}
+		}
+		return buf;
+	}
+
+	private static Map<String, String> buildUpperIndex(Map<String, String> rs)
+	{
+		Map<String, String> index = new HashMap<String, String>(rs.size()*2);
+		for(Map.Entry<String, String> e: rs.entrySet())
+		{
+			if(e.getKey()==null||e.getValue()==null)continue;
+			index.put(e.getKey().toUpperCase(), e.getKey());
+		}
+		return index;
+	}
+
+	/**
+	 * Parse an integer the same way as Long.parseLong, but return 0 instead of throwing exception
+	 * when the value is null, not a number or out of range [min, max].
+	 * @param s
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public static long parseLong(String s, long min, long max)
+	{
+		if(s==null)return 0;
+		int len = s.length();
+		if(len==0)return 0;
+		int i = 0;
+		boolean neg = false;
+		char c = s.charAt(0);
+		if(c=='-' || c=='+')
+		{
+			neg = c=='-';
+			i++;
+			if(len==1)return 0;
+		}
+		if(len - i > 18)return parseLongSlow(s, min, max);//might overflow
+		long v = 0;
+		for(;i<len;i++)
+		{
+			c = s.charAt(i);
+			if(c<'0' || c>'9')
+			{
+				if(c>127)return parseLongSlow(s, min, max);//other unicode digits
+				return 0;
+			}
+			v = v*10 + (c - '0');
+		}
+		if(neg)v = -v;
+		return v<min || v>max? 0: v;
+	}
+
+	private static long parseLongSlow(String s, long min, long max)
+	{
+		try
+		{
+			long v = Long.parseLong(s);
+			return v<min || v>max? 0: v;
+		}catch(Exception ex)
+		{
+			return 0;
+		}
+	}
+
+	public static double parseDouble(String s)
+	{
+		if(s==null || s.length()==0)return 0;
+		if(isPlainDecimal(s))return Double.parseDouble(s);
+		if(!mightBeFloatingNumber(s))return 0;
+		try
+		{
+			return Double.parseDouble(s);
+		}catch(Exception ex)
+		{
+			return 0;
+		}
+	}
+
+	public static float parseFloat(String s)
+	{
+		if(s==null || s.length()==0)return 0;
+		if(isPlainDecimal(s))return Float.parseFloat(s);
+		if(!mightBeFloatingNumber(s))return 0;
+		try
+		{
+			return Float.parseFloat(s);
+		}catch(Exception ex)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Check [+-]digits[.digits][(e|E)[+-]digits], with at least one digit before the exponent.
+	 * Such string can be parsed by Double.parseDouble without exception.
+	 */
+	private static boolean isPlainDecimal(String s)
+	{
+		int len = s.length();
+		int i = 0;
+		char c = s.charAt(0);
+		if(c=='-' || c=='+')i++;
+		int digits = 0;
+		while(i<len && (c = s.charAt(i))>='0' && c<='9'){i++;digits++;}
+		if(i<len && s.charAt(i)=='.')
+		{
+			i++;
+			while(i<len && (c = s.charAt(i))>='0' && c<='9'){i++;digits++;}
+		}
+		if(digits==0)return false;
+		if(i<len && ((c = s.charAt(i))=='e' || c=='E'))
+		{
+			i++;
+			if(i<len && ((c = s.charAt(i))=='-' || c=='+'))i++;
+			int expDigits = 0;
+			while(i<len && (c = s.charAt(i))>='0' && c<='9'){i++;expDigits++;}
+			if(expDigits==0)return false;
+		}
+		return i==len;
+	}
+
+	/**
+	 * Java also accepts leading/trailing white spaces, NaN, Infinity, hex and type suffix.
+	 * Anything else, for example, ON or OFF, cannot be a number.
+	 */
+	private static boolean mightBeFloatingNumber(String s)
+	{
+		int len = s.length();
+		int i = 0;
+		while(i<len && s.charAt(i)<=' ')i++;
+		if(i==len)return false;
+		char c = s.charAt(i);
+		return (c>='0' && c<='9') || c=='+' || c=='-' || c=='.' || c=='N' || c=='I';
+	}
+}
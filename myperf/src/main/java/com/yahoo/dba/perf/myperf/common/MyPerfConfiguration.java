@@ -48,11 +48,29 @@ public class MyPerfConfiguration implements java.io.Serializable{
 	private int recordRententionDays = 60;
 	//number of threads used by scanner
 	private int scannerThreadCount = 4;
+	//connections kept by scanners to each managed server, shared by metrics and alert scans
+	private int scannerConnectionsPerHost = 2;
+	//close scanner connections not used for such time
+	private int scannerConnectionIdleSeconds = 900;
+	//maximum time to scan a single server. If not set, the host can use up to 90% of the scan interval
+	private int scannerHostTimeoutSeconds = 0;
+	//send all metrics queries of a server in a single round trip, for servers far away
+	private boolean scannerMultiQueries = false;
+	//servers to sample processlist continuously, comma separated dbgroup or dbgroup:host. Empty to disable
+	private String processListSamplerHosts;
+	//processlist sample interval, 1 to 5 seconds
+	private int processListSampleSeconds = 2;
+	//statement digests stored per server per scan, the rest are summed up as OTHER
+	private int statementDigestTopN = 100;
 	//avoid email or notification bombing
 	//TODO hard code to one hour.
 	//suppress similar alerts from the same db for at least such time
 	private int emailAlertIntervalMinutes = 60;
 	private int webAlertIntervalMinutes = 5;
+	//alerts to the same receivers within such time are sent as a single email
+	private int alertDigestSeconds = 60;
+	//if set, write alert notifications to this file instead of sending emails
+	private String alertNotificationFile;
 	  
 
 	//Metrics storage DB
@@ -65,6 +83,23 @@ public class MyPerfConfiguration implements java.io.Serializable{
 	private String metricsDbName = "METRICSDB";
 	private String metricsDbUserName;
 	private String metricsDbPassword;
+	//number of rows per insert batch and transaction when store metrics
+	private int metricsDbWriteBatchSize = 200;
+	//connections kept for metrics db retrieval, and prepared statements cached per connection
+	private int metricsDbPoolSize = 8;
+	private int metricsDbStatementCacheSize = 50;
+	private int metricsDbPoolValidateSeconds = 30;//validate pooled connection idled longer than this
+	//days of snapshots per partition of mysql metrics tables, 0 to create tables without partitions
+	private int metricsDbPartitionDays = 1;
+	//retention of 10 minutes and 1 hour rollup of metrics, 0 to disable
+	private int metricsRollup10mRetentionDays = 180;
+	private int metricsRollup1hRetentionDays = 730;
+	//recent metrics kept in memory for each server and served without metrics db query, 0 to disable
+	private int metricsHotWindowMinutes = 60;
+	private int metricsHotWindowMaxMB = 64;
+	private boolean metricsHotWindowOffHeap = false;//if true, use direct buffers
+	//disk space to keep metrics records metrics db cannot take in time, 0 to block scanners instead
+	private int metricsSpillMaxMB = 1024;
 
 	//If the app is just installed, it might not have been configured
 	private boolean configured = false;
@@ -132,6 +167,9 @@ public class MyPerfConfiguration implements java.io.Serializable{
 			if(this.metricsScannerUser == null)return false;
 			this.alertNotificationEmails = props.getProperty("alertNotificationEmails");
 			this.adminEmail = props.getProperty("adminEmail");
+			this.alertDigestSeconds = Integer.parseInt(props.getProperty("alertDigestSeconds", "60"));
+			if(this.alertDigestSeconds < 0)this.alertDigestSeconds = 60;
+			this.alertNotificationFile = props.getProperty("alertNotificationFile");
 
 			this.scannerIntervalSeconds = Integer.parseInt(props.getProperty("scannerIntervalSeconds","300"));//default to 5 minutes
 			if(this.scannerIntervalSeconds < 1 )this.scannerIntervalSeconds = 300;//minimum 1 second, if not set, use default
@@ -139,6 +177,16 @@ public class MyPerfConfiguration implements java.io.Serializable{
 			if(this.alertScanIntervalSeconds < 60)this.alertScanIntervalSeconds  = 300;//minimum 1 minute
 			this.recordRententionDays = Integer.parseInt(props.getProperty("recordRententionDays","60"));
 			this.scannerThreadCount =  Integer.parseInt(props.getProperty("scannerThreadCount","4"));
+			this.scannerConnectionsPerHost = Integer.parseInt(props.getProperty("scannerConnectionsPerHost","2"));
+			if(this.scannerConnectionsPerHost < 1)this.scannerConnectionsPerHost = 2;
+			this.scannerConnectionIdleSeconds = Integer.parseInt(props.getProperty("scannerConnectionIdleSeconds","900"));
+			this.scannerHostTimeoutSeconds = Integer.parseInt(props.getProperty("scannerHostTimeoutSeconds","0"));
+			this.scannerMultiQueries = "true".equalsIgnoreCase(props.getProperty("scannerMultiQueries","false"));
+			this.processListSamplerHosts = props.getProperty("processListSamplerHosts");
+			this.processListSampleSeconds = Integer.parseInt(props.getProperty("processListSampleSeconds","2"));
+			if(this.processListSampleSeconds < 1 || this.processListSampleSeconds > 5)this.processListSampleSeconds = 2;
+			this.statementDigestTopN = Integer.parseInt(props.getProperty("statementDigestTopN","100"));
+			if(this.statementDigestTopN < 1)this.statementDigestTopN = 100;
 
 			this.metricsDbType = props.getProperty("metricsDbType", this.metricsDbType);
 			if(!"derby".equalsIgnoreCase(this.metricsDbType))//if not derby db
@@ -149,6 +197,26 @@ public class MyPerfConfiguration implements java.io.Serializable{
 				this.setMetricsDbUserName(props.getProperty("metricsDbUserName"));
 				this.setMetricsDbPassword(ctx.getMetaDb().dec(props.getProperty("metricsDbPassword")));
 			}
+			this.metricsDbWriteBatchSize = Integer.parseInt(props.getProperty("metricsDbWriteBatchSize", "200"));
+			if(this.metricsDbWriteBatchSize < 1)this.metricsDbWriteBatchSize = 200;
+			this.metricsDbPoolSize = Integer.parseInt(props.getProperty("metricsDbPoolSize", "8"));
+			if(this.metricsDbPoolSize < 1)this.metricsDbPoolSize = 8;
+			this.metricsDbStatementCacheSize = Integer.parseInt(props.getProperty("metricsDbStatementCacheSize", "50"));
+			if(this.metricsDbStatementCacheSize < 0)this.metricsDbStatementCacheSize = 0;
+			this.metricsDbPoolValidateSeconds = Integer.parseInt(props.getProperty("metricsDbPoolValidateSeconds", "30"));
+			this.metricsDbPartitionDays = Integer.parseInt(props.getProperty("metricsDbPartitionDays", "1"));
+			if(this.metricsDbPartitionDays < 0)this.metricsDbPartitionDays = 0;
+			this.metricsRollup10mRetentionDays = Integer.parseInt(props.getProperty("metricsRollup10mRetentionDays", "180"));
+			if(this.metricsRollup10mRetentionDays < 0)this.metricsRollup10mRetentionDays = 0;
+			this.metricsRollup1hRetentionDays = Integer.parseInt(props.getProperty("metricsRollup1hRetentionDays", "730"));
+			if(this.metricsRollup1hRetentionDays < 0)this.metricsRollup1hRetentionDays = 0;
+			this.metricsHotWindowMinutes = Integer.parseInt(props.getProperty("metricsHotWindowMinutes", "60"));
+			if(this.metricsHotWindowMinutes < 0)this.metricsHotWindowMinutes = 0;
+			this.metricsHotWindowMaxMB = Integer.parseInt(props.getProperty("metricsHotWindowMaxMB", "64"));
+			if(this.metricsHotWindowMaxMB < 1)this.metricsHotWindowMaxMB = 64;
+			this.metricsHotWindowOffHeap = "true".equalsIgnoreCase(props.getProperty("metricsHotWindowOffHeap", "false"));
+			this.metricsSpillMaxMB = Integer.parseInt(props.getProperty("metricsSpillMaxMB", "1024"));
+			if(this.metricsSpillMaxMB < 0)this.metricsSpillMaxMB = 0;
 			return true;
 		}catch(Exception ex)
 		{
@@ -175,11 +243,22 @@ public class MyPerfConfiguration implements java.io.Serializable{
 			pw.println("metricsScannerUser="+ this.metricsScannerUser);
 			pw.println("adminEmail="+ this.adminEmail);
 			pw.println("alertNotificationEmails="+ this.alertNotificationEmails);
+			pw.println("alertDigestSeconds="+ this.alertDigestSeconds);
+			if(this.alertNotificationFile!=null && !this.alertNotificationFile.isEmpty())
+				pw.println("alertNotificationFile="+ this.alertNotificationFile);
 			
 			pw.println("scannerIntervalSeconds="+ this.scannerIntervalSeconds);
 			pw.println("alertScanIntervalSeconds="+this.alertScanIntervalSeconds);
 			pw.println("recordRententionDays="+ this.recordRententionDays);
 			pw.println("scannerThreadCount="+ this.scannerThreadCount);
+			pw.println("scannerConnectionsPerHost="+ this.scannerConnectionsPerHost);
+			pw.println("scannerConnectionIdleSeconds="+ this.scannerConnectionIdleSeconds);
+			pw.println("scannerHostTimeoutSeconds="+ this.scannerHostTimeoutSeconds);
+			pw.println("scannerMultiQueries="+ this.scannerMultiQueries);
+			if(this.processListSamplerHosts!=null && !this.processListSamplerHosts.isEmpty())
+				pw.println("processListSamplerHosts="+ this.processListSamplerHosts);
+			pw.println("processListSampleSeconds="+ this.processListSampleSeconds);
+			pw.println("statementDigestTopN="+ this.statementDigestTopN);
 			
 			pw.println("metricsDbType="+ this.metricsDbType);
 			if(this.metricsDbHost!=null && !this.metricsDbHost.isEmpty())
@@ -192,6 +271,17 @@ public class MyPerfConfiguration implements java.io.Serializable{
 				pw.println("metricsDbUserName="+ this.metricsDbUserName);
 			if(this.metricsDbPassword!=null && !this.metricsDbPassword.isEmpty())
 				pw.println("metricsDbPassword="+ ctx.getMetaDb().enc(this.metricsDbPassword));
+			pw.println("metricsDbWriteBatchSize="+ this.metricsDbWriteBatchSize);
+			pw.println("metricsDbPoolSize="+ this.metricsDbPoolSize);
+			pw.println("metricsDbStatementCacheSize="+ this.metricsDbStatementCacheSize);
+			pw.println("metricsDbPoolValidateSeconds="+ this.metricsDbPoolValidateSeconds);
+			pw.println("metricsDbPartitionDays="+ this.metricsDbPartitionDays);
+			pw.println("metricsRollup10mRetentionDays="+ this.metricsRollup10mRetentionDays);
+			pw.println("metricsRollup1hRetentionDays="+ this.metricsRollup1hRetentionDays);
+			pw.println("metricsHotWindowMinutes="+ this.metricsHotWindowMinutes);
+			pw.println("metricsHotWindowMaxMB="+ this.metricsHotWindowMaxMB);
+			pw.println("metricsHotWindowOffHeap="+ this.metricsHotWindowOffHeap);
+			pw.println("metricsSpillMaxMB="+ this.metricsSpillMaxMB);
 			return true;
 		}catch(Exception ex)
 		{
@@ -252,6 +342,78 @@ public class MyPerfConfiguration implements java.io.Serializable{
 		this.scannerThreadCount = scannerThreadCount;
 	}
 
+	public int getScannerConnectionsPerHost() {
+		return scannerConnectionsPerHost;
+	}
+
+	public void setScannerConnectionsPerHost(int scannerConnectionsPerHost) {
+		this.scannerConnectionsPerHost = scannerConnectionsPerHost;
+	}
+
+	public int getScannerConnectionIdleSeconds() {
+		return scannerConnectionIdleSeconds;
+	}
+
+	public void setScannerConnectionIdleSeconds(int scannerConnectionIdleSeconds) {
+		this.scannerConnectionIdleSeconds = scannerConnectionIdleSeconds;
+	}
+
+	public int getAlertDigestSeconds() {
+		return alertDigestSeconds;
+	}
+
+	public void setAlertDigestSeconds(int alertDigestSeconds) {
+		this.alertDigestSeconds = alertDigestSeconds;
+	}
+
+	public String getAlertNotificationFile() {
+		return alertNotificationFile;
+	}
+
+	public void setAlertNotificationFile(String alertNotificationFile) {
+		this.alertNotificationFile = alertNotificationFile;
+	}
+
+	public int getScannerHostTimeoutSeconds() {
+		return scannerHostTimeoutSeconds;
+	}
+
+	public void setScannerHostTimeoutSeconds(int scannerHostTimeoutSeconds) {
+		this.scannerHostTimeoutSeconds = scannerHostTimeoutSeconds;
+	}
+
+	public String getProcessListSamplerHosts() {
+		return processListSamplerHosts;
+	}
+
+	public void setProcessListSamplerHosts(String processListSamplerHosts) {
+		this.processListSamplerHosts = processListSamplerHosts;
+	}
+
+	public int getProcessListSampleSeconds() {
+		return processListSampleSeconds;
+	}
+
+	public void setProcessListSampleSeconds(int processListSampleSeconds) {
+		this.processListSampleSeconds = processListSampleSeconds;
+	}
+
+	public boolean isScannerMultiQueries() {
+		return scannerMultiQueries;
+	}
+
+	public void setScannerMultiQueries(boolean scannerMultiQueries) {
+		this.scannerMultiQueries = scannerMultiQueries;
+	}
+
+	public int getStatementDigestTopN() {
+		return statementDigestTopN;
+	}
+
+	public void setStatementDigestTopN(int statementDigestTopN) {
+		this.statementDigestTopN = statementDigestTopN;
+	}
+
 	public String getMetricsDbType() {
 		return metricsDbType;
 	}
@@ -300,6 +462,94 @@ public class MyPerfConfiguration implements java.io.Serializable{
 		this.metricsDbPassword = metricsDbPassword;
 	}
 
+	public int getMetricsDbWriteBatchSize() {
+		return metricsDbWriteBatchSize;
+	}
+
+	public void setMetricsDbWriteBatchSize(int metricsDbWriteBatchSize) {
+		this.metricsDbWriteBatchSize = metricsDbWriteBatchSize;
+	}
+
+	public int getMetricsDbPoolSize() {
+		return metricsDbPoolSize;
+	}
+
+	public void setMetricsDbPoolSize(int metricsDbPoolSize) {
+		this.metricsDbPoolSize = metricsDbPoolSize;
+	}
+
+	public int getMetricsDbStatementCacheSize() {
+		return metricsDbStatementCacheSize;
+	}
+
+	public void setMetricsDbStatementCacheSize(int metricsDbStatementCacheSize) {
+		this.metricsDbStatementCacheSize = metricsDbStatementCacheSize;
+	}
+
+	public int getMetricsDbPoolValidateSeconds() {
+		return metricsDbPoolValidateSeconds;
+	}
+
+	public void setMetricsDbPoolValidateSeconds(int metricsDbPoolValidateSeconds) {
+		this.metricsDbPoolValidateSeconds = metricsDbPoolValidateSeconds;
+	}
+
+	public int getMetricsDbPartitionDays() {
+		return metricsDbPartitionDays;
+	}
+
+	public void setMetricsDbPartitionDays(int metricsDbPartitionDays) {
+		this.metricsDbPartitionDays = metricsDbPartitionDays;
+	}
+
+	public int getMetricsRollup10mRetentionDays() {
+		return metricsRollup10mRetentionDays;
+	}
+
+	public void setMetricsRollup10mRetentionDays(int metricsRollup10mRetentionDays) {
+		this.metricsRollup10mRetentionDays = metricsRollup10mRetentionDays;
+	}
+
+	public int getMetricsRollup1hRetentionDays() {
+		return metricsRollup1hRetentionDays;
+	}
+
+	public void setMetricsRollup1hRetentionDays(int metricsRollup1hRetentionDays) {
+		this.metricsRollup1hRetentionDays = metricsRollup1hRetentionDays;
+	}
+
+	public int getMetricsHotWindowMinutes() {
+		return metricsHotWindowMinutes;
+	}
+
+	public void setMetricsHotWindowMinutes(int metricsHotWindowMinutes) {
+		this.metricsHotWindowMinutes = metricsHotWindowMinutes;
+	}
+
+	public int getMetricsHotWindowMaxMB() {
+		return metricsHotWindowMaxMB;
+	}
+
+	public void setMetricsHotWindowMaxMB(int metricsHotWindowMaxMB) {
+		this.metricsHotWindowMaxMB = metricsHotWindowMaxMB;
+	}
+
+	public boolean isMetricsHotWindowOffHeap() {
+		return metricsHotWindowOffHeap;
+	}
+
+	public void setMetricsHotWindowOffHeap(boolean metricsHotWindowOffHeap) {
+		this.metricsHotWindowOffHeap = metricsHotWindowOffHeap;
+	}
+
+	public int getMetricsSpillMaxMB() {
+		return metricsSpillMaxMB;
+	}
+
+	public void setMetricsSpillMaxMB(int metricsSpillMaxMB) {
+		this.metricsSpillMaxMB = metricsSpillMaxMB;
+	}
+
 	public boolean isConfigured() {
 		return configured;
 	}
@@ -24,8 +24,10 @@ import com.yahoo.dba.perf.myperf.db.QueryExecutor;
 import com.yahoo.dba.perf.myperf.meta.MetaDB;
 import com.yahoo.dba.perf.myperf.metrics.DerbyMetricsDb;
 import com.yahoo.dba.perf.myperf.metrics.MetricsDbBase;
+import com.yahoo.dba.perf.myperf.metrics.MetricsSpillJournal;
 import com.yahoo.dba.perf.myperf.metrics.MySQLMetricsDb;
 import com.yahoo.dba.perf.myperf.process.AutoScanner;
+import com.yahoo.dba.perf.myperf.snmp.SNMPEngine;
 
 /**
  * MyPerfContext contains configuration data, accessor to common resources,
@@ -42,6 +44,8 @@ public class MyPerfContext implements java.io.Serializable, InitializingBean,Dis
 
   private MyPerfConfiguration myperfConfig = new MyPerfConfiguration(); //configurations, from settings page
   private SNMPSettings snmpSettings = new SNMPSettings();
+  private SNMPEngine snmpEngine = new SNMPEngine();//shared SNMP session, started on first use
+  private NotificationDispatcher notificationDispatcher = new NotificationDispatcher(2);//alert emails, off the scanner threads
   private DBInfoManager dbInfoManager = new DBInfoManager(); //managed database servers
   private SqlManager sqlManager = new SqlManager();//built in SQL definitions
   private MetricsDefManager metricsDef = new MetricsDefManager();//metrics and alert definitions, builtin and user defined
@@ -171,6 +175,9 @@ public class MyPerfContext implements java.io.Serializable, InitializingBean,Dis
 	logger.info("Initialize AutoScanner ...");
 	this.myperfConfig.init(this);
 	this.snmpSettings.init(this);
+	this.notificationDispatcher.setDigestWindowMillis(this.myperfConfig.getAlertDigestSeconds()*1000L);
+	if(this.myperfConfig.getAlertNotificationFile()!=null && !this.myperfConfig.getAlertNotificationFile().isEmpty())
+	  this.notificationDispatcher.setTransport(new NotificationDispatcher.FileTransport(new File(this.myperfConfig.getAlertNotificationFile())));
 	if(this.myperfConfig.isConfigured())
 	{
 	  this.initMetricsDB(); //move metrics db creation and initialization away from scanner
@@ -213,6 +220,9 @@ public class MyPerfContext implements java.io.Serializable, InitializingBean,Dis
   public void destroy() throws Exception 
   {
     if(this.autoScanner!=null)this.autoScanner.stop();
+    this.instanceStatesManager.stop();
+    this.snmpEngine.stop();
+    this.notificationDispatcher.stop();
     if(this.metricDb != null)this.metricDb.destroy();
  	this.metaDb.destroy();
   }
@@ -377,6 +387,16 @@ public class MyPerfContext implements java.io.Serializable, InitializingBean,Dis
     return autoScanner;
   }
 
+  public SNMPEngine getSnmpEngine() 
+  {
+    return snmpEngine;
+  }
+
+  public NotificationDispatcher getNotificationDispatcher() 
+  {
+    return notificationDispatcher;
+  }
+
   public MetricsDbBase getMetricDb() 
   {
 	return metricDb;
@@ -523,6 +543,21 @@ public class MyPerfContext implements java.io.Serializable, InitializingBean,Dis
 			+ getMyperfConfig().getMetricsDbPort()+"/"
 		    + getMyperfConfig().getMetricsDbName());
 	}
+	this.metricDb.setWriteBatchSize(getMyperfConfig().getMetricsDbWriteBatchSize());
+	this.metricDb.getConnectionPool().setMaxSize(getMyperfConfig().getMetricsDbPoolSize());
+	this.metricDb.getConnectionPool().setStatementCacheSize(getMyperfConfig().getMetricsDbStatementCacheSize());
+	this.metricDb.getConnectionPool().setValidateIdleTime(getMyperfConfig().getMetricsDbPoolValidateSeconds()*1000L);
+	if(getMyperfConfig().getMetricsDbPartitionDays() > 0)//one partition per that many days of snapshots
+		this.metricDb.setPartitionSnapshots(Math.max(1, getMyperfConfig().getMetricsDbPartitionDays() * 86400
+				/ Math.max(1, getMyperfConfig().getScannerIntervalSeconds())));
+	this.metricDb.getRollup().setScanIntervalSeconds(getMyperfConfig().getScannerIntervalSeconds());
+	this.metricDb.getRollup().setRawRetentionDays(getMyperfConfig().getRecordRententionDays());
+	this.metricDb.getRollup().setRetentionDays("10M", getMyperfConfig().getMetricsRollup10mRetentionDays());
+	this.metricDb.getRollup().setRetentionDays("1H", getMyperfConfig().getMetricsRollup1hRetentionDays());
+	this.metricDb.getHotWindow().configure(getMyperfConfig().getMetricsHotWindowMinutes(), getMyperfConfig().getScannerIntervalSeconds(),
+			getMyperfConfig().getMetricsHotWindowMaxMB(), getMyperfConfig().isMetricsHotWindowOffHeap());
+	this.metricDb.getSpillJournal().configure(new File(new File(this.getFileReposirtoryPath()), MetricsSpillJournal.STORAGE_DIR),
+			getMyperfConfig().getMetricsSpillMaxMB());
 	this.metricDb.setFrameworkContext(this);
 	this.metricDb.setMetricsGroups(this.getMetricsDef());
 	this.metricDb.init();
@@ -615,7 +650,7 @@ public class MyPerfContext implements java.io.Serializable, InitializingBean,Dis
 	{
 		String subject = this.getAlertEmailSubject(alert);
 		String msg = this.getAlertMessage(alert);
-		MailUtil.sendMail(receiver, subject, msg);
+		this.notificationDispatcher.send(receiver, subject, msg);
 	}
 		
   }
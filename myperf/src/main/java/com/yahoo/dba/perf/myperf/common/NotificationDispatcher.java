@@ -0,0 +1,328 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Send alert notifications in the background, so the scanner threads do not wait for the mail command.
+ * Messages to the same receiver within digestWindowMillis are combined into a single digest message.
+ * The number of messages waiting is bounded, new messages are dropped and counted when it is reached.
+ * @author xrao
+ *
+ */
+public class NotificationDispatcher
+{
+	private static Logger logger = Logger.getLogger(NotificationDispatcher.class.getName());
+
+	/**
+	 * How the message is delivered
+	 */
+	public static interface Transport
+	{
+		boolean send(String receiver, String subject, String msg);
+	}
+
+	/**
+	 * Use mailx, see MailUtil
+	 */
+	public static class MailTransport implements Transport
+	{
+		@Override
+		public boolean send(String receiver, String subject, String msg)
+		{
+			return MailUtil.sendMail(receiver, subject, msg);
+		}
+	}
+
+	/**
+	 * Append the messages to a local file, for test or where mail is not available
+	 */
+	public static class FileTransport implements Transport
+	{
+		private File file;
+
+		public FileTransport(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		public synchronized boolean send(String receiver, String subject, String msg)
+		{
+			PrintWriter pw = null;
+			try
+			{
+				pw = new PrintWriter(new FileWriter(file, true));
+				pw.println("To: "+receiver);
+				pw.println("Subject: "+subject);
+				pw.println("Date: "+new java.util.Date());
+				pw.println();
+				pw.println(msg);
+				pw.println();
+				return true;
+			}catch(IOException ex)
+			{
+				logger.log(Level.WARNING, "Failed to write notification to "+file.getAbsolutePath(), ex);
+			}finally
+			{
+				if(pw!=null)pw.close();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Messages of one receiver in the current window
+	 */
+	private static class Digest
+	{
+		final String receiver;
+		final List<String[]> messages = new ArrayList<String[]>();//subject and body
+
+		Digest(String receiver)
+		{
+			this.receiver = receiver;
+		}
+	}
+
+	private volatile Transport transport = new MailTransport();
+	private volatile long digestWindowMillis = 60000L;
+	private int maxPending = 1000;//messages in digests or waiting to be sent
+
+	private final Map<String, Digest> digests = new HashMap<String, Digest>();
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final ThreadPoolExecutor senders;
+	private final AtomicInteger pending = new AtomicInteger();
+
+	//statistics
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong digestsSent = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public NotificationDispatcher(int senderThreads)
+	{
+		final AtomicInteger seq = new AtomicInteger();
+		ThreadFactory tf = new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread th = new Thread(r, "NotificationDispatcher - "+seq.getAndIncrement());
+				th.setDaemon(true);
+				return th;
+			}
+		};
+		this.scheduler = new ScheduledThreadPoolExecutor(1, tf);
+		int threads = senderThreads>0?senderThreads:1;
+		this.senders = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(100), tf);
+	}
+
+	/**
+	 * Queue a message. It never blocks.
+	 * @param receiver
+	 * @param subject
+	 * @param msg
+	 * @return false if the message is dropped
+	 */
+	public boolean send(final String receiver, String subject, String msg)
+	{
+		if(receiver == null || receiver.isEmpty())return false;
+		if(this.pending.incrementAndGet() > this.maxPending)
+		{
+			this.pending.decrementAndGet();
+			this.dropped.incrementAndGet();
+			logger.warning("Too many notifications pending, drop: "+subject);
+			return false;
+		}
+		this.queued.incrementAndGet();
+		boolean newDigest = false;
+		synchronized(this.digests)
+		{
+			Digest d = this.digests.get(receiver);
+			if(d == null)
+			{
+				d = new Digest(receiver);
+				this.digests.put(receiver, d);
+				newDigest = true;
+			}
+			d.messages.add(new String[]{subject, msg});
+		}
+		if(newDigest)
+		{
+			try
+			{
+				this.scheduler.schedule(new Runnable()
+				{
+					public void run()
+					{
+						flush(receiver);
+					}
+				}, this.digestWindowMillis, TimeUnit.MILLISECONDS);
+			}catch(RejectedExecutionException ex)
+			{
+				//stopped
+				flush(receiver);
+			}
+		}
+		return true;
+	}
+
+	private void flush(String receiver)
+	{
+		final Digest d;
+		synchronized(this.digests)
+		{
+			d = this.digests.remove(receiver);
+		}
+		if(d == null)return;
+		try
+		{
+			this.senders.execute(new Runnable()
+			{
+				public void run()
+				{
+					deliver(d);
+				}
+			});
+		}catch(RejectedExecutionException ex)
+		{
+			this.pending.addAndGet(-d.messages.size());
+			this.dropped.addAndGet(d.messages.size());
+			logger.warning("Notification senders busy, drop "+d.messages.size()+" messages to "+receiver);
+		}
+	}
+
+	private void deliver(Digest d)
+	{
+		int n = d.messages.size();
+		String subject;
+		String msg;
+		if(n == 1)
+		{
+			subject = d.messages.get(0)[0];
+			msg = d.messages.get(0)[1];
+		}else
+		{
+			subject = "MySQL Perf Analyzer Alert - "+n+" alerts";
+			StringBuilder sb = new StringBuilder();
+			for(String[] m: d.messages)
+			{
+				sb.append(m[0]).append("\n");
+				sb.append(m[1]).append("\n\n");
+			}
+			msg = sb.toString();
+		}
+		try
+		{
+			if(this.transport.send(d.receiver, subject, msg))
+			{
+				this.delivered.addAndGet(n);
+				this.digestsSent.incrementAndGet();
+			}else
+				this.failures.addAndGet(n);
+		}catch(Throwable ex)
+		{
+			this.failures.addAndGet(n);
+			logger.log(Level.WARNING, "Failed to send notification to "+d.receiver, ex);
+		}finally
+		{
+			this.pending.addAndGet(-n);
+		}
+	}
+
+	/**
+	 * Send what is pending, then stop the workers
+	 */
+	public void stop()
+	{
+		this.scheduler.shutdownNow();
+		List<String> receivers;
+		synchronized(this.digests)
+		{
+			receivers = new ArrayList<String>(this.digests.keySet());
+		}
+		for(String r: receivers)
+			flush(r);
+		this.senders.shutdown();
+		try
+		{
+			this.senders.awaitTermination(5, TimeUnit.SECONDS);
+		}catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public Transport getTransport()
+	{
+		return transport;
+	}
+
+	public void setTransport(Transport transport)
+	{
+		if(transport != null)this.transport = transport;
+	}
+
+	public long getDigestWindowMillis()
+	{
+		return digestWindowMillis;
+	}
+
+	/**
+	 * @param digestWindowMillis 0 to send each message as soon as possible
+	 */
+	public void setDigestWindowMillis(long digestWindowMillis)
+	{
+		this.digestWindowMillis = digestWindowMillis>=0?digestWindowMillis:0L;
+	}
+
+	public int getMaxPending()
+	{
+		return maxPending;
+	}
+
+	public void setMaxPending(int maxPending)
+	{
+		if(maxPending > 0)this.maxPending = maxPending;
+	}
+
+	/**
+	 * Statistics, for status page
+	 * @return
+	 */
+	public Map<String, String> getStats()
+	{
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		stats.put("notification.queued", String.valueOf(this.queued.get()));
+		stats.put("notification.pending", String.valueOf(this.pending.get()));
+		stats.put("notification.delivered", String.valueOf(this.delivered.get()));
+		stats.put("notification.digestsSent", String.valueOf(this.digestsSent.get()));
+		stats.put("notification.failures", String.valueOf(this.failures.get()));
+		stats.put("notification.dropped", String.valueOf(this.dropped.get()));
+		return stats;
+	}
+}
@@ -25,6 +25,10 @@ public class ProcessListEntryAggregate implements java.io.Serializable, Comparab
 	
 	private String checksum;
 	
+	//counts by user and by client host, only kept when recorded with user and host
+	private Map<String, Integer> users;
+	private Map<String, Integer> hosts;
+	
 	public static class SortByCount implements java.util.Comparator<ProcessListEntryAggregate>
 	{
 
@@ -86,6 +90,39 @@ public class ProcessListEntryAggregate implements java.io.Serializable, Comparab
 		this.max_time_sec = Math.max(this.max_time_sec, time_sec);
 	}
 
+	/**
+	 * Record one execution instance time, with user and client host breakdown
+	 * @param time_sec
+	 * @param user
+	 * @param host client host, without port
+	 */
+	public void record(int time_sec, String user, String host)
+	{
+		record(time_sec);
+		if(this.users == null)
+		{
+			this.users = new java.util.HashMap<String, Integer>();
+			this.hosts = new java.util.HashMap<String, Integer>();
+		}
+		increment(this.users, user);
+		increment(this.hosts, host);
+	}
+
+	private static void increment(Map<String, Integer> m, String key)
+	{
+		if(key == null)key = "";
+		Integer c = m.get(key);
+		m.put(key, c == null? 1 : c + 1);
+	}
+
+	public Map<String, Integer> getUsers() {
+		return users;
+	}
+
+	public Map<String, Integer> getHosts() {
+		return hosts;
+	}
+
 	@Override
 	public int compareTo(ProcessListEntryAggregate obj) {
 		if(obj==null)return -1;
@@ -93,15 +130,28 @@ public class ProcessListEntryAggregate implements java.io.Serializable, Comparab
 	}
 	
 	public static void updateDataMap(Map<String, ProcessListEntryAggregate> m, String sql, int time_sec)
+	{
+		updateDataMap(m, sql, time_sec, null);
+	}
+
+	/**
+	 * Same as updateDataMap, with the digest from normalizer cache
+	 * @param m
+	 * @param sql
+	 * @param time_sec
+	 * @param ns normalized text of sql, can be null
+	 */
+	public static void updateDataMap(Map<String, ProcessListEntryAggregate> m, String sql, int time_sec, SqlNormalizer.NormalizedSql ns)
 	{
 		if(m==null)return;
-		if(m.containsKey(sql))
+		ProcessListEntryAggregate e = m.get(sql);
+		if(e != null)
 		{
-			m.get(sql).record(time_sec);
+			e.record(time_sec);
 		}else
 		{
-			ProcessListEntryAggregate e = new ProcessListEntryAggregate(sql);
-			e.setChecksum(generateDigest(sql));
+			e = new ProcessListEntryAggregate(sql);
+			e.setChecksum(ns != null? ns.getDigest() : generateDigest(sql));
 			e.record(time_sec);
 			m.put(sql, e);
 		}
@@ -115,6 +165,22 @@ public class ProcessListEntryAggregate implements java.io.Serializable, Comparab
 		this.checksum = checksum;
 	}
 
+	//MessageDigest is not thread safe, keep one per thread
+	private static final ThreadLocal<java.security.MessageDigest> sha1 = new ThreadLocal<java.security.MessageDigest>()
+	{
+		@Override
+		protected java.security.MessageDigest initialValue()
+		{
+			try
+			{
+				return java.security.MessageDigest.getInstance("SHA1");
+			}catch(java.security.NoSuchAlgorithmException ex)
+			{
+				throw new RuntimeException(ex);
+			}
+		}
+	};
+
 	/**
 	 * Generate a digest for each query string
 	 * @param str
@@ -125,7 +191,8 @@ public class ProcessListEntryAggregate implements java.io.Serializable, Comparab
 		if(str==null||str.isEmpty())return "00000000";
 		try
 		{
-			java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA1");
+			java.security.MessageDigest md = sha1.get();
+			md.reset();
 			md.update(str.getBytes());
 			byte[] digest = md.digest();
 			StringBuilder sb = new StringBuilder();
@@ -125,9 +125,9 @@ public class ProcessListSummary implements java.io.Serializable{
 			
 			ProcessListEntryAggregate.updateDataMap(this.queries, s, t);
 			totalAccumultaedTime+=t;
-			String ns = this.normalize(s);
+			SqlNormalizer.NormalizedSql ns = SqlNormalizer.normalizeCached(s);
 						
-			ProcessListEntryAggregate.updateDataMap(this.normalizedQueries, ns, t);
+			ProcessListEntryAggregate.updateDataMap(this.normalizedQueries, ns.text, t, ns);
 			
 			String s2 = this.stripLimit(s);
 						
@@ -183,7 +183,7 @@ public class ProcessListSummary implements java.io.Serializable{
 	 * @param str
 	 * @return
 	 */
-	private static String stripComments(String str)
+	public static String stripComments(String str)
 	{
 		if(str==null)return "";
 		String s = str.trim();
@@ -225,77 +225,16 @@ public class ProcessListSummary implements java.io.Serializable{
 	
 	
 	/**
-	 * Normalize a query string
+	 * Normalize a query string, see SqlNormalizer
 	 * @param str
 	 * @return
 	 */
-	private String normalize(String str)
+	public String normalize(String str)
 	{
-		
-	    String rpt3 = "(?i)VALUES\\s*\\((.*?)\\)";
-	    String rpt4 = "(?i)in\\s*\\([^\\(^\\)]+\\)";
-	    String rpt5 = "(?i)limit\\s+\\d+\\s*$" ;
-	    String rpt6 = "(?i)limit\\s+\\d+\\s*,\\s*\\d+\\s*$" ;
-	    str =  str.replaceAll("=\\s*\\d+", "=?");
-	    str =  str.replaceAll("=\\s*'[^']+'", "=?");
-	    
-	    str = str.replaceAll("\\+\\s*'?\\d+'?", "+?");
-
-	    str = str.replaceAll("\\-\\s*'?\\d+'?", "-?");
-
-	    str = str.replaceAll(">\\s*\\d+", ">?");
-	    str = str.replaceAll(">\\s*'[^']+'", ">?");
-
-	    str = str.replaceAll(">=\\s*\\d+", ">=?");
-	    str = str.replaceAll(">=\\s*'[^']+'", ">=?");
-
-	    str = str.replaceAll("<\\s*\\d+", "<?");
-	    str = str.replaceAll("<\\s*'[^']+'", "<?");
-
-	    str = str.replaceAll("<=\\s*'?\\d+'?", "<=?");
-	    str = str.replaceAll("<=\\s*'[^']+'", "<=?");
-
-	    str = str.replaceAll("(?i)BETWEEN\\s+\\d+\\s+AND\\s+\\d+", "BETWEEN ? and ?");
-	    str = str.replaceAll("(?i)BETWEEN\\s+'[^']+'\\s+AND\\s+'[^']+'", "BETWEEN ? and ?");
-
-	    //BETWEEN 1391040000 AND 1391126400
-	    
-	    str = str.replaceAll(rpt4, "IN (?)");
-	    str = str.replaceAll(rpt3, "VALUES (?)");
-	    str = str.replaceAll(rpt5, "LIMIT ?");
-	    str = str.replaceAll(rpt6, "LIMIT ?, ?");
-	    //str = str.replaceAll("\\((\\s*'?\\d+'?\\s*,?)+", "(?");
-	    //add special treatment for big inlist
-	    str = replaceInlist(str);
-	    return str;
-
+		if(str == null)return null;
+		return SqlNormalizer.normalizeCached(str).text;
 	}
 	
-	/**
-	 * We might have a case processlist cannot print the full inlist
-	 * This should be used after all other normalize operations
-	 * @param str
-	 * @return
-	 */
-	private String replaceInlist(String str)
-	{
-		try
-		{
- 		   Pattern pt = Pattern.compile("(?i)\\s*IN\\s*\\('?\\d+'?,");
-		  Matcher m = pt.matcher(str);
-		  if(m.find())
-		  {
-			int start = m.start();
-			//find first close bracket )
-			int idx = str.indexOf(')', start);
-			if(idx<0 || idx==str.length()-1)
-				return str.substring(0, start)+" IN (......)";
-			else
-				return str.substring(0, start)+" IN (...) "+str.substring(idx+1);
-		  }
-		}catch(Exception ex){}
-		return str;
-	}
 	public Map<String, ProcessListEntryAggregate> getQueries() {
 		return queries;
 	}
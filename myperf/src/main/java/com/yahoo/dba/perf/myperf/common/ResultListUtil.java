@@ -5,6 +5,8 @@
  */
 package com.yahoo.dba.perf.myperf.common;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.*;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -275,9 +277,35 @@ public class ResultListUtil {
 	
 	public static String toMultiListJSONString(LinkedHashMap<String, ResultList> resultMap, QueryParameters qps, int status, String message)
 	{
-		StringBuilder sb = new StringBuilder();
+		return toMultiListJSONResult(resultMap, qps, status, message, false).toString();
+	}
+
+	/**
+	 * Same as toMultiListJSONString, the text is generated when it is written to the output
+	 * @param resultMap
+	 * @param qps
+	 * @param status
+	 * @param message
+	 * @param upper if true, column names are in upper case
+	 * @return
+	 */
+	public static JsonResult toMultiListJSONResult(final LinkedHashMap<String, ResultList> resultMap, final QueryParameters qps, final int status, final String message, final boolean upper)
+	{
+		return new JsonResult()
+		{
+			@Override
+			public void write(Writer out) throws IOException
+			{
+				writeMultiListJSON(out, resultMap, qps, status, message, upper);
+			}
+		};
+	}
+
+	public static void writeMultiListJSON(Writer out, LinkedHashMap<String, ResultList> resultMap, QueryParameters qps, int status, String message, boolean upper) throws IOException
+	{
+		JsonAppender sb = new JsonAppender(out);
 		sb.append("{\"resp\":{\"status\":").append(status);//start and status
-		sb.append(",\"message\":\"").append(escapeJson(message)).append("\"");//message line
+		sb.append(",\"message\":\"").appendEscaped(message).append("\"");//message line
 		//requests
 		if(qps!=null)
 		{
@@ -290,7 +318,6 @@ public class ResultListUtil {
 			}
 			sb.append("}");
 		}
-		//for(String key: resultMap.keySet())
 		for(Map.Entry<String, ResultList> e: resultMap.entrySet())
 		{
 			String key = e.getKey();
@@ -301,51 +328,56 @@ public class ResultListUtil {
 			sb.append("\"total\":\"").append(rs.getRows().size()).append("\",");
 			//column names
 			sb.append("\"columns\":[");
+			for(int i=0;i<cols.size();i++)
 			{
-				boolean first = true;
-				for(int i=0;i<cols.size();i++)
-				{
-					if(!first)sb.append(",");
-					first = false;
-					sb.append("\"").append(cols.get(i).getName()+"\"");
-				}
+				if(i>0)sb.append(",");
+				sb.append("\"").append(upper?cols.get(i).getName().toUpperCase():cols.get(i).getName()).append("\"");
 			}
 			sb.append("],");
+			String[] names = rs.getColumnDescriptor().getJsonNames(upper);
 			boolean firstRow = true;
 			sb.append("\"results\":[");
 			for(ResultRow row:rs.getRows())
 			{
 				if(!firstRow)sb.append(",");
-				int len = row.getColumns().size();
-				boolean first = true;
 				sb.append("{");
-				for(int i=0;i<len;i++)
-				{
-					if(!first)sb.append(",");
-					sb.append("\"").append(escapeJson(cols.get(i).getName())).append("\":");
-					if(cols.get(i).isNumberType())
-					{
-						if(row.getColumns().get(i)==null||row.getColumns().get(i).trim().length()==0)
-							sb.append("\"\"");
-						else	
-							sb.append(escapeJson(row.getColumns().get(i)));
-					}
-					else
-						sb.append("\"").append(escapeJson(row.getColumns().get(i))).append("\"");
-					first = false;
-				}
+				sb.appendFields(names, cols, row.getColumns(), false);
 				sb.append("}");
 				firstRow = false;
 			}
 			sb.append("]}");
 		}
 		sb.append("}}");
-
-		return sb.toString();
 	}
+
 	public static String toJSONString(ResultList rs, QueryParameters qps, int status, String message)
 	{
-		StringBuilder sb = new StringBuilder();
+		return toJSONResult(rs, qps, status, message).toString();
+	}
+
+	/**
+	 * Same as toJSONString, the text is generated when it is written to the output
+	 * @param rs
+	 * @param qps
+	 * @param status
+	 * @param message
+	 * @return
+	 */
+	public static JsonResult toJSONResult(final ResultList rs, final QueryParameters qps, final int status, final String message)
+	{
+		return new JsonResult()
+		{
+			@Override
+			public void write(Writer out) throws IOException
+			{
+				writeJSON(out, rs, qps, status, message);
+			}
+		};
+	}
+
+	public static void writeJSON(Writer out, ResultList rs, QueryParameters qps, int status, String message) throws IOException
+	{
+		JsonAppender sb = new JsonAppender(out);
 		sb.append("{\"resp\":{\"status\":").append(status);//start and status
 		if(rs!=null && rs.getTotalResponseTime()>0)
 		{
@@ -353,22 +385,10 @@ public class ResultListUtil {
 		  sb.append(",\"execTime\":\"").append(rs.getTotalExecutionTime()).append("ms\"");
 		  sb.append(",\"fetchTime\":\"").append(rs.getTotalFetchTime()).append("ms\"");
 		}
-		sb.append(",\"message\":\"").append(escapeJson(message)).append("\"");//message line
+		sb.append(",\"message\":\"").appendEscaped(message).append("\"");//message line
 		
 		//requests
-		if(qps!=null)
-		{
-			sb.append(",\"request\":{");
-			sb.append("\"group\":\"").append(qps.getGroup()).append("\"");
-			sb.append(",\"host\":\"").append(qps.getHost()).append("\"");
-			//sb.append(",\"port\":\"").append(qps.getPort()).append("\"");
-			sb.append(",\"sql\":\"").append(qps.getSql()).append("\"");
-			for(Map.Entry<String, String> e: qps.getSqlParams().entrySet())
-			{
-				sb.append(",\"").append(e.getKey()).append("\":\"").append(e.getValue()).append("\"");
-			}
-			sb.append("}\r\n");
-		}
+		appendRequest(sb, qps);
 		
 		if(rs!=null)
 		{
@@ -378,14 +398,10 @@ public class ResultListUtil {
 			sb.append("\"total\":\"").append(rs.getRows().size()).append("\",");
 			//column names
 			sb.append("\"columns\":[");
+			for(int i=0;i<cols.size();i++)
 			{
-				boolean first = true;
-				for(int i=0;i<cols.size();i++)
-				{
-					if(!first)sb.append(",");
-					first = false;
-					sb.append("\"").append(cols.get(i).getName()+"\"");
-				}
+				if(i>0)sb.append(",");
+				sb.append("\"").append(cols.get(i).getName()).append("\"");
 			}
 			sb.append("],\r\n");
 			if(rs.getCustomObjects()!=null && rs.getCustomObjects().size()>0)
@@ -397,36 +413,130 @@ public class ResultListUtil {
 					sb.append(",\r\n");
 				}
 			}
+			String[] names = rs.getColumnDescriptor().getJsonNames(false);
 			boolean firstRow = true;
 			sb.append("\"results\":[");
 			for(ResultRow row:rs.getRows())
 			{
 				if(!firstRow)sb.append(",");
-				int len = row.getColumns().size();
-				boolean first = true;
 				sb.append("{");
-				for(int i=0;i<len;i++)
+				sb.appendFields(names, cols, row.getColumns(), false);
+				sb.append("}\r\n");
+				firstRow = false;
+			}
+			sb.append("]}");
+		}
+		sb.append("}}");
+	}
+
+	private static void appendRequest(JsonAppender sb, QueryParameters qps) throws IOException
+	{
+		if(qps==null)return;
+		sb.append(",\"request\":{");
+		sb.append("\"group\":\"").append(qps.getGroup()).append("\"");
+		sb.append(",\"host\":\"").append(qps.getHost()).append("\"");
+		sb.append(",\"sql\":\"").append(qps.getSql()).append("\"");
+		for(Map.Entry<String, String> e: qps.getSqlParams().entrySet())
+		{
+			sb.append(",\"").append(e.getKey()).append("\":\"").append(e.getValue()).append("\"");
+		}
+		sb.append("}\r\n");
+	}
+
+	/**
+	 * Same as toJSONResult for ResultList, for metrics series
+	 * @param series
+	 * @param qps
+	 * @param status
+	 * @param message
+	 * @return
+	 */
+	public static JsonResult toJSONResult(final MetricSeries series, final QueryParameters qps, final int status, final String message)
+	{
+		return new JsonResult()
+		{
+			@Override
+			public void write(Writer out) throws IOException
+			{
+				writeJSON(out, series, qps, status, message);
+			}
+		};
+	}
+
+	/**
+	 * Write metrics series in the same format as ResultList, with columns (DBID or HOST,) SNAP_ID, TS and the metrics.
+	 * Values are written from the primitive arrays, null as "".
+	 * @param out
+	 * @param series
+	 * @param qps
+	 * @param status
+	 * @param message
+	 * @throws IOException
+	 */
+	public static void writeJSON(Writer out, MetricSeries series, QueryParameters qps, int status, String message) throws IOException
+	{
+		JsonAppender sb = new JsonAppender(out);
+		sb.append("{\"resp\":{\"status\":").append(status);
+		sb.append(",\"message\":\"").appendEscaped(message).append("\"");
+		appendRequest(sb, qps);
+		if(series!=null)
+		{
+			int n = series.getMetricCount();
+			Map<Integer, String> labels = series.getDbidLabels();
+			String dbidName = labels!=null?"HOST":"DBID";
+			String[] names = new String[n];
+			for(int i=0;i<n;i++)
+				names[i] = escapeJson(series.getName(i));
+
+			sb.append(",\"results\":{");
+			sb.append("\"total\":\"").append(series.size()).append("\",");
+			sb.append("\"columns\":[");
+			if(series.hasDbid())sb.append("\"").append(dbidName).append("\",");
+			sb.append("\"SNAP_ID\",\"TS\"");
+			for(int i=0;i<n;i++)
+				sb.append(",\"").append(series.getName(i)).append("\"");
+			sb.append("],\r\n");
+			if(series.getCustomObjects()!=null && series.getCustomObjects().size()>0)
+			{
+				for(Map.Entry<String, CustomResultObject> e: series.getCustomObjects().entrySet())
 				{
-					if(!first)sb.append(",");
-					sb.append("\"").append(escapeJson(cols.get(i).getName())).append("\":");
-					if(cols.get(i).isNumberType())
-					{
-						if(row.getColumns().get(i)==null||row.getColumns().get(i).trim().length()==0)
-							sb.append("\"\"");
-						else	
-							sb.append(escapeJson(row.getColumns().get(i)));
-					}
+					sb.append("\"").append(e.getKey()).append("\":");
+					sb.append(e.getValue().getValueJsonString());
+					sb.append(",\r\n");
+				}
+			}
+			sb.append("\"results\":[");
+			int rows = series.size();
+			for(int r=0;r<rows;r++)
+			{
+				if(r>0)sb.append(",");
+				sb.append("{");
+				if(series.hasDbid())
+				{
+					int dbid = series.getDbid(r);
+					String host = labels!=null?labels.get(dbid):null;
+					sb.append("\"").append(dbidName).append("\":\"");
+					if(host!=null)sb.appendEscaped(host);
+					else sb.append(dbid);
+					sb.append("\",");
+				}
+				sb.append("\"SNAP_ID\":").appendDigits(series.getSnapId(r));
+				sb.append(",\"TS\":").appendDigits(series.getTimestamp(r));
+				for(int i=0;i<n;i++)
+				{
+					sb.append(",\"").append(names[i]).append("\":");
+					if(series.isNull(i, r))
+						sb.append("\"\"");
+					else if(series.isIntegral(i))
+						sb.appendDigits(series.getLong(i, r));
 					else
-						sb.append("\"").append(escapeJson(row.getColumns().get(i))).append("\"");
-					first = false;
+						sb.appendNumber(series.getDouble(i, r));
 				}
 				sb.append("}\r\n");
-				firstRow = false;
 			}
 			sb.append("]}");
 		}
 		sb.append("}}");
-		return sb.toString();
 	}
 	/**
 	 * Retrieve distinct values from keyColumn, to be used to regroup the metrics
@@ -463,16 +573,40 @@ public class ResultListUtil {
 	 * @return
 	 */
 	public static String toMetricsJSONStringWithMultiRowsKeys(ResultList rs, String keyColumn, String[] groupByColumns, String metricName, QueryParameters qps, int status, String message)
+	{
+		return toMetricsJSONResultWithMultiRowsKeys(rs, keyColumn, groupByColumns, metricName, qps, status, message).toString();
+	}
+
+	/**
+	 * Same as toMetricsJSONStringWithMultiRowsKeys, the text is generated when it is written to the output
+	 * @return
+	 */
+	public static JsonResult toMetricsJSONResultWithMultiRowsKeys(final ResultList rs, final String keyColumn, final String[] groupByColumns, final String metricName, final QueryParameters qps, final int status, final String message)
+	{
+		return new JsonResult()
+		{
+			@Override
+			public void write(Writer out) throws IOException
+			{
+				writeMetricsJSONWithMultiRowsKeys(out, rs, keyColumn, groupByColumns, metricName, qps, status, message);
+			}
+		};
+	}
+
+	public static void writeMetricsJSONWithMultiRowsKeys(Writer out, ResultList rs, String keyColumn, String[] groupByColumns, String metricName, QueryParameters qps, int status, String message) throws IOException
 	{
 		String[] keys = getDistinctKeys(keyColumn, rs);
 		if(keys == null || keys.length ==0 || groupByColumns == null || groupByColumns.length == 0) //we don't want to bother about the case without multiple key values
-			return toJSONString(rs, qps, status, message);
+		{
+			writeJSON(out, rs, qps, status, message);
+			return;
+		}
 		
 		Map<String, String> keyMap = new HashMap<String, String>(keys.length);
 		for(int i = 0; i < keys.length; i++)
 			keyMap.put(keys[i],  "k"+i);
 		
-		StringBuilder sb = new StringBuilder();
+		JsonAppender sb = new JsonAppender(out);
 		sb.append("{\"resp\":{\"status\":").append(status);//start and status
 		if(rs!=null && rs.getTotalResponseTime()>0)
 		{
@@ -480,7 +614,7 @@ public class ResultListUtil {
 		  sb.append(",\"execTime\":\"").append(rs.getTotalExecutionTime()).append("ms\"");
 		  sb.append(",\"fetchTime\":\"").append(rs.getTotalFetchTime()).append("ms\"");
 		}
-		sb.append(",\"message\":\"").append(escapeJson(message)).append("\"");//message line
+		sb.append(",\"message\":\"").appendEscaped(message).append("\"");//message line
 		
 		//requests
 		if(qps!=null)
@@ -614,7 +748,6 @@ public class ResultListUtil {
 			sb.append("]}");
 		}
 		sb.append("}}");
-		return sb.toString();
 	}
 	
 	//compare tow arrays if the same
@@ -730,9 +863,30 @@ public class ResultListUtil {
 	}
 	public static String toJSONDiffListString(ResultList rsA, ResultList rsB,QueryParameters qpsA, QueryParameters qpsB,int status, String message)
 	{
-		StringBuilder sb = new StringBuilder();
+		return toJSONDiffListResult(rsA, rsB, qpsA, qpsB, status, message).toString();
+	}
+
+	/**
+	 * Same as toJSONDiffListString, the text is generated when it is written to the output
+	 * @return
+	 */
+	public static JsonResult toJSONDiffListResult(final ResultList rsA, final ResultList rsB, final QueryParameters qpsA, final QueryParameters qpsB, final int status, final String message)
+	{
+		return new JsonResult()
+		{
+			@Override
+			public void write(Writer out) throws IOException
+			{
+				writeJSONDiffList(out, rsA, rsB, qpsA, qpsB, status, message);
+			}
+		};
+	}
+
+	public static void writeJSONDiffList(Writer out, ResultList rsA, ResultList rsB,QueryParameters qpsA, QueryParameters qpsB,int status, String message) throws IOException
+	{
+		JsonAppender sb = new JsonAppender(out);
 		sb.append("{\"resp\":{\"status\":").append(status);//start and status
-		sb.append(",\"message\":\"").append(escapeJson(message)).append("\"");//message line
+		sb.append(",\"message\":\"").appendEscaped(message).append("\"");//message line
 		
 		//requests
 		sb.append(",\"request\":{");
@@ -763,18 +917,23 @@ public class ResultListUtil {
 
 		int cnt = 0;
 		List<ColumnInfo> cols = null;
+		String[] names = null;
 		if(rsA!=null||rsB!=null)
 		{
 			if(rsA!=null)
 			{
 				cnt += rsA.getRows().size();
 				cols = rsA.getColumnDescriptor().getColumns();
+				names = rsA.getColumnDescriptor().getJsonNames(false);
 			}
 			if(rsB!=null)
 			{
 				cnt += rsB.getRows().size();
 				if(cols==null)
+				{
 					cols = rsB.getColumnDescriptor().getColumns();
+					names = rsB.getColumnDescriptor().getJsonNames(false);
+				}
 			}
 			
 			sb.append(",\"results\":{");
@@ -798,22 +957,8 @@ public class ResultListUtil {
 			for(ResultRow row:rsA.getRows())
 			{
 				if(!firstRow)sb.append(",");
-				int len = row.getColumns().size();
 				sb.append("{\"DB\":\"A\"");
-				for(int i=0;i<len;i++)
-				{
-					sb.append(",");
-					sb.append("\"").append(escapeJson(cols.get(i).getName())).append("\":");
-					if(cols.get(i).isNumberType())
-					{
-						if(row.getColumns().get(i)==null||row.getColumns().get(i).trim().length()==0)
-							sb.append("\"\"");
-						else	
-							sb.append(escapeJson(row.getColumns().get(i)));
-					}
-					else
-						sb.append("\"").append(escapeJson(row.getColumns().get(i))).append("\"");
-				}
+				sb.appendFields(names, cols, row.getColumns(), true);
 				sb.append("}\r\n");
 				firstRow = false;
 			}
@@ -823,22 +968,8 @@ public class ResultListUtil {
 			for(ResultRow row:rsB.getRows())
 			{
 				if(!firstRow)sb.append(",");
-				int len = row.getColumns().size();
 				sb.append("{\"DB\":\"B\"");
-				for(int i=0;i<len;i++)
-				{
-					sb.append(",");
-					sb.append("\"").append(escapeJson(cols.get(i).getName())).append("\":");
-					if(cols.get(i).isNumberType())
-					{
-						if(row.getColumns().get(i)==null||row.getColumns().get(i).trim().length()==0)
-							sb.append("\"\"");
-						else	
-							sb.append(escapeJson(row.getColumns().get(i)));
-					}
-					else
-						sb.append("\"").append(escapeJson(row.getColumns().get(i))).append("\"");
-				}
+				sb.appendFields(names, cols, row.getColumns(), true);
 				sb.append("}\r\n");
 				firstRow = false;
 			}
@@ -846,7 +977,6 @@ public class ResultListUtil {
 		if(rsA!=null||rsB!=null)
 			sb.append("]}");
 		sb.append("}}");
-		return sb.toString();
 	}
 	
 	/**
@@ -981,6 +1111,153 @@ public class ResultListUtil {
 		return sb.toString();
 		
 	}
+
+	/**
+	 * Write str to out, escaped the same way as escapeJson, without building a new String
+	 * @param out
+	 * @param str
+	 * @throws IOException
+	 */
+	public static void writeEscapedJson(Writer out, String str) throws IOException
+	{
+		if(str==null)return;
+		int len = str.length();
+		int start = 0;//first char not written yet
+		for(int i=0;i<len;i++)
+		{
+			char c = str.charAt(i);
+			if(c>=' ' && c!='\"' && c!='\\')continue;
+			if(i>start)out.write(str, start, i - start);
+			start = i + 1;
+			if(c=='\"')
+				out.write("\\u0022");
+			else if(c=='\n')
+				out.write("\\u000A");
+			else if(c=='\\')
+				out.write("\\u005C");
+			else if(c=='\r')
+				out.write("\\u000D");
+			else if(c=='\t')
+				out.write("\\u0009");
+			//other control chars are skipped
+		}
+		if(len>start)out.write(str, start, len - start);
+	}
+
+	private static boolean isBlank(String str)
+	{
+		if(str==null)return true;
+		for(int i=str.length()-1;i>=0;i--)
+			if(str.charAt(i)>' ')return false;
+		return true;
+	}
+
+	/**
+	 * StringBuilder like wrapper of a Writer, to write JSON output directly
+	 */
+	private static class JsonAppender
+	{
+		private Writer out;
+		private char[] digits;//for numbers of metrics, to avoid a String per value
+
+		JsonAppender(Writer out)
+		{
+			this.out = out;
+		}
+
+		JsonAppender append(String str) throws IOException
+		{
+			out.write(str!=null?str:"null");
+			return this;
+		}
+
+		JsonAppender append(int v) throws IOException
+		{
+			out.write(Integer.toString(v));
+			return this;
+		}
+
+		JsonAppender append(long v) throws IOException
+		{
+			out.write(Long.toString(v));
+			return this;
+		}
+
+		/**
+		 * Same as append(long), write the digits from a reused buffer
+		 */
+		JsonAppender appendDigits(long v) throws IOException
+		{
+			if(v == Long.MIN_VALUE)
+				return append(v);
+			if(digits == null)digits = new char[20];
+			boolean negative = v < 0;
+			if(negative)v = -v;
+			int pos = digits.length;
+			do
+			{
+				digits[--pos] = (char)('0' + (int)(v % 10));
+				v /= 10;
+			}while(v > 0);
+			if(negative)digits[--pos] = '-';
+			out.write(digits, pos, digits.length - pos);
+			return this;
+		}
+
+		/**
+		 * Whole numbers are written without fraction, NaN and infinity as ""
+		 */
+		JsonAppender appendNumber(double v) throws IOException
+		{
+			if(Double.isNaN(v) || Double.isInfinite(v))
+				out.write("\"\"");
+			else if(v == Math.rint(v) && Math.abs(v) < 1e15)
+				appendDigits((long)v);
+			else
+				out.write(Double.toString(v));
+			return this;
+		}
+
+		JsonAppender appendEscaped(String str) throws IOException
+		{
+			writeEscapedJson(out, str);
+			return this;
+		}
+
+		/**
+		 * Write "name":value of each column of a row. Number columns are not quoted, empty number is written as "".
+		 * @param names column names escaped, from ColumnDescriptor.getJsonNames
+		 * @param cols
+		 * @param values
+		 * @param leadingComma if true, write comma before the first column
+		 * @throws IOException
+		 */
+		void appendFields(String[] names, List<ColumnInfo> cols, List<String> values, boolean leadingComma) throws IOException
+		{
+			int len = values.size();
+			for(int i=0;i<len;i++)
+			{
+				if(i>0 || leadingComma)out.write(',');
+				out.write('\"');
+				out.write(names[i]);
+				out.write("\":");
+				String v = values.get(i);
+				if(cols.get(i).isNumberType())
+				{
+					if(isBlank(v))
+						out.write("\"\"");
+					else
+						writeEscapedJson(out, v);
+				}
+				else
+				{
+					out.write('\"');
+					writeEscapedJson(out, v);
+					out.write('\"');
+				}
+			}
+		}
+	}
 		
 	private static boolean isSame(String[] s1, String[] s2)
 	{
@@ -1181,73 +1458,7 @@ public class ResultListUtil {
 	
 	public static String toMultiListJSONStringUpper(LinkedHashMap<String, ResultList> resultMap, QueryParameters qps, int status, String message)
 	{
-		StringBuilder sb = new StringBuilder();
-		sb.append("{\"resp\":{\"status\":").append(status);//start and status
-		sb.append(",\"message\":\"").append(escapeJson(message)).append("\"");//message line
-		//requests
-		if(qps!=null)
-		{
-			sb.append(",\"request\":{");
-			sb.append("\"group\":\"").append(qps.getGroup()).append("\"");
-			sb.append(",\"host\":\"").append(qps.getHost()).append("\"");
-			for(Map.Entry<String, String> e: qps.getSqlParams().entrySet())
-			{
-				sb.append(",\"").append(e.getKey()).append("\":\"").append(e.getValue()).append("\"");
-			}
-			sb.append("}");
-		}
-		//for(String key: resultMap.keySet())
-		for(Map.Entry<String, ResultList> e: resultMap.entrySet())
-		{
-			String key = e.getKey();
-			ResultList rs = e.getValue();
-			List<ColumnInfo> cols = rs.getColumnDescriptor().getColumns();
-
-			sb.append(",\"").append(key).append("\":{");
-			sb.append("\"total\":\"").append(rs.getRows().size()).append("\",");
-			//column names
-			sb.append("\"columns\":[");
-			{
-				boolean first = true;
-				for(int i=0;i<cols.size();i++)
-				{
-					if(!first)sb.append(",");
-					first = false;
-					sb.append("\"").append(cols.get(i).getName().toUpperCase()+"\"");
-				}
-			}
-			sb.append("],");
-			boolean firstRow = true;
-			sb.append("\"results\":[");
-			for(ResultRow row:rs.getRows())
-			{
-				if(!firstRow)sb.append(",");
-				int len = row.getColumns().size();
-				boolean first = true;
-				sb.append("{");
-				for(int i=0;i<len;i++)
-				{
-					if(!first)sb.append(",");
-					sb.append("\"").append(escapeJson(cols.get(i).getName().toUpperCase())).append("\":");
-					if(cols.get(i).isNumberType())
-					{
-						if(row.getColumns().get(i)==null||row.getColumns().get(i).trim().length()==0)
-							sb.append("\"\"");
-						else	
-							sb.append(escapeJson(row.getColumns().get(i)));
-					}
-					else
-						sb.append("\"").append(escapeJson(row.getColumns().get(i))).append("\"");
-					first = false;
-				}
-				sb.append("}");
-				firstRow = false;
-			}
-			sb.append("]}");
-		}
-		sb.append("}}");
-
-		return sb.toString();
+		return toMultiListJSONResult(resultMap, qps, status, message, true).toString();
 	}
 
 }
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Normalize SQL text for aggregation, in a single scan of the text: literals after comparison and
+ * arithmetic operators, BETWEEN ranges, IN lists, VALUES tuples and the LIMIT clause at the end are
+ * replaced by ?. Quoted strings, quoted identifiers and comments are skipped as a whole.
+ * Recent results are kept in a LRU cache, since the same statements are seen again and again.
+ * Long statements, such as bulk inserts, are not kept by their raw text, to bound the memory of the cache.
+ * @author xrao
+ *
+ */
+public class SqlNormalizer
+{
+	private static final int CACHE_SIZE = 10000;
+	private static final int MAX_CACHED_LENGTH = 4096;//characters, longer text is normalized each time
+
+	/**
+	 * Normalized text and its digest. The digest is only calculated when asked.
+	 */
+	public static class NormalizedSql
+	{
+		public final String text;
+		private volatile String digest;
+
+		NormalizedSql(String text)
+		{
+			this.text = text;
+		}
+
+		public String getDigest()
+		{
+			String d = digest;
+			if(d == null)
+			{
+				d = ProcessListEntryAggregate.generateDigest(text);
+				digest = d;
+			}
+			return d;
+		}
+	}
+
+	//raw text to normalized
+	private static final Map<String, NormalizedSql> cache = new LinkedHashMap<String, NormalizedSql>(1024, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, NormalizedSql> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+	//normalized text to the shared instance, so the digest is calculated once
+	private static final Map<String, NormalizedSql> normalizedCache = new LinkedHashMap<String, NormalizedSql>(256, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, NormalizedSql> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Normalize with cache
+	 * @param str
+	 * @return
+	 */
+	public static NormalizedSql normalizeCached(String str)
+	{
+		if(str == null)return null;
+		boolean cacheRaw = str.length() <= MAX_CACHED_LENGTH;
+		if(cacheRaw)
+		{
+			synchronized(cache)
+			{
+				NormalizedSql ns = cache.get(str);
+				if(ns != null)return ns;
+			}
+		}
+		String text = normalize(str);
+		if(text.length() > MAX_CACHED_LENGTH)return new NormalizedSql(text);
+		synchronized(cache)
+		{
+			NormalizedSql ns = normalizedCache.get(text);
+			if(ns == null)
+			{
+				ns = new NormalizedSql(text);
+				normalizedCache.put(text, ns);
+			}
+			if(cacheRaw)cache.put(str, ns);
+			return ns;
+		}
+	}
+
+	/**
+	 * Normalize a query string
+	 * @param str
+	 * @return
+	 */
+	public static String normalize(String str)
+	{
+		if(str == null)return null;
+		int len = str.length();
+		StringBuilder sb = new StringBuilder(len);
+		int i = 0;
+		while(i < len)
+		{
+			char c = str.charAt(i);
+			if(c == '\'' || c == '"' || c == '`')
+			{
+				int end = skipQuoted(str, i);
+				sb.append(str, i, end);
+				i = end;
+			}else if(c == '/' && i + 1 < len && str.charAt(i + 1) == '*')
+			{
+				int end = str.indexOf("*/", i + 2);
+				end = end < 0? len : end + 2;
+				sb.append(str, i, end);
+				i = end;
+			}else if(c == '#' || (c == '-' && i + 2 < len && str.charAt(i + 1) == '-' && isSpace(str.charAt(i + 2))))
+			{
+				int end = str.indexOf('\n', i);
+				end = end < 0? len : end;
+				sb.append(str, i, end);
+				i = end;
+			}else if(c == '=' || c == '>' || c == '<' || c == '+' || c == '-')
+			{
+				sb.append(c);
+				int j = skipSpaces(str, i + 1);
+				int end = literalEnd(str, j);
+				if(end > j)
+				{
+					sb.append('?');
+					i = end;
+				}else
+					i++;
+			}else if(isIdentifierStart(c) && (i == 0 || !isIdentifierPart(str.charAt(i - 1))))
+			{
+				int end = i + 1;
+				while(end < len && isIdentifierPart(str.charAt(end)))end++;
+				int next = -1;
+				int wordLen = end - i;
+				if(wordLen == 2 && str.regionMatches(true, i, "IN", 0, 2))
+					next = replaceInList(str, end, sb);
+				else if(wordLen == 6 && str.regionMatches(true, i, "VALUES", 0, 6))
+					next = replaceValues(str, end, sb);
+				else if(wordLen == 7 && str.regionMatches(true, i, "BETWEEN", 0, 7))
+					next = replaceBetween(str, end, sb);
+				else if(wordLen == 5 && str.regionMatches(true, i, "LIMIT", 0, 5))
+					next = replaceLimit(str, end, sb);
+				if(next < 0)
+				{
+					sb.append(str, i, end);
+					i = end;
+				}else
+					i = next;
+			}else
+			{
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * IN (...) without nested brackets becomes IN (?). A list cut off by processlist becomes IN (......)
+	 * @return position after the list, or -1 if not replaced
+	 */
+	private static int replaceInList(String str, int pos, StringBuilder sb)
+	{
+		int len = str.length();
+		int j = skipSpaces(str, pos);
+		if(j >= len || str.charAt(j) != '(')return -1;
+		int k = j + 1;
+		while(k < len)
+		{
+			char c = str.charAt(k);
+			if(c == ')' || c == '(')break;
+			if(c == '\'' || c == '"' || c == '`')k = skipQuoted(str, k);
+			else k++;
+		}
+		if(k < len)
+		{
+			if(str.charAt(k) == '(' || k == j + 1)return -1;
+			sb.append("IN (?)");
+			return k + 1;
+		}
+		if(!isTruncatedList(str, j + 1))return -1;
+		int n = sb.length();
+		while(n > 0 && isSpace(sb.charAt(n - 1)))n--;
+		sb.setLength(n);
+		sb.append(" IN (......)");
+		return len;
+	}
+
+	/**
+	 * A number, optionally quoted, followed by comma
+	 */
+	private static boolean isTruncatedList(String str, int pos)
+	{
+		int len = str.length();
+		int k = pos;
+		if(k < len && str.charAt(k) == '\'')k++;
+		int d = k;
+		while(k < len && isDigit(str.charAt(k)))k++;
+		if(k == d)return false;
+		if(k < len && str.charAt(k) == '\'')k++;
+		return k < len && str.charAt(k) == ',';
+	}
+
+	/**
+	 * VALUES (...), (...) becomes VALUES (?)
+	 * @return position after the last tuple, or -1 if not replaced
+	 */
+	private static int replaceValues(String str, int pos, StringBuilder sb)
+	{
+		int len = str.length();
+		int j = skipSpaces(str, pos);
+		if(j >= len || str.charAt(j) != '(')return -1;
+		int end = closingBracket(str, j);
+		while(end < len)
+		{
+			int m = skipSpaces(str, end + 1);
+			if(m >= len || str.charAt(m) != ',')break;
+			int n = skipSpaces(str, m + 1);
+			if(n >= len || str.charAt(n) != '(')break;
+			end = closingBracket(str, n);
+		}
+		sb.append("VALUES (?)");
+		return end < len? end + 1 : len;
+	}
+
+	/**
+	 * BETWEEN literal AND literal becomes BETWEEN ? and ?
+	 * @return position after the second literal, or -1 if not replaced
+	 */
+	private static int replaceBetween(String str, int pos, StringBuilder sb)
+	{
+		int j = skipSpaces(str, pos);
+		if(j == pos)return -1;
+		int e1 = literalEnd(str, j);
+		if(e1 == j)return -1;
+		int k = skipSpaces(str, e1);
+		if(k == e1 || !str.regionMatches(true, k, "AND", 0, 3))return -1;
+		int m = skipSpaces(str, k + 3);
+		if(m == k + 3)return -1;
+		int e2 = literalEnd(str, m);
+		if(e2 == m)return -1;
+		sb.append("BETWEEN ? and ?");
+		return e2;
+	}
+
+	/**
+	 * LIMIT n or LIMIT m, n at the end of the statement
+	 * @return the end of the text, or -1 if not replaced
+	 */
+	private static int replaceLimit(String str, int pos, StringBuilder sb)
+	{
+		int len = str.length();
+		int j = skipSpaces(str, pos);
+		if(j == pos)return -1;
+		int e1 = digitsEnd(str, j);
+		if(e1 == j)return -1;
+		int k = skipSpaces(str, e1);
+		if(k == len)
+		{
+			sb.append("LIMIT ?");
+			return len;
+		}
+		if(str.charAt(k) != ',')return -1;
+		int m = skipSpaces(str, k + 1);
+		int e2 = digitsEnd(str, m);
+		if(e2 == m || skipSpaces(str, e2) != len)return -1;
+		sb.append("LIMIT ?, ?");
+		return len;
+	}
+
+	/**
+	 * @return the end of the literal starting at pos, or pos if there is no string or number literal
+	 */
+	private static int literalEnd(String str, int pos)
+	{
+		int len = str.length();
+		if(pos >= len)return pos;
+		char c = str.charAt(pos);
+		if(c == '\'' || c == '"')return skipQuoted(str, pos);
+		if(c == '.' && pos + 1 < len && isDigit(str.charAt(pos + 1)))return numberEnd(str, pos);
+		if(!isDigit(c))return pos;
+		if(c == '0' && pos + 2 < len && (str.charAt(pos + 1) == 'x' || str.charAt(pos + 1) == 'X'))
+		{
+			int k = pos + 2;
+			while(k < len && Character.digit(str.charAt(k), 16) >= 0)k++;
+			if(k > pos + 2)return k;
+		}
+		return numberEnd(str, pos);
+	}
+
+	private static int numberEnd(String str, int pos)
+	{
+		int len = str.length();
+		int k = digitsEnd(str, pos);
+		if(k < len && str.charAt(k) == '.')k = digitsEnd(str, k + 1);
+		if(k < len && (str.charAt(k) == 'e' || str.charAt(k) == 'E'))
+		{
+			int m = k + 1;
+			if(m < len && (str.charAt(m) == '+' || str.charAt(m) == '-'))m++;
+			int e = digitsEnd(str, m);
+			if(e > m)k = e;
+		}
+		return k;
+	}
+
+	private static int digitsEnd(String str, int pos)
+	{
+		int len = str.length();
+		int k = pos;
+		while(k < len && isDigit(str.charAt(k)))k++;
+		return k;
+	}
+
+	/**
+	 * @param pos position of the quote
+	 * @return position after the closing quote, or the end of the text
+	 */
+	private static int skipQuoted(String str, int pos)
+	{
+		int len = str.length();
+		char q = str.charAt(pos);
+		int k = pos + 1;
+		while(k < len)
+		{
+			char c = str.charAt(k);
+			if(c == '\\' && q != '`')
+				k += 2;
+			else if(c == q)
+			{
+				if(k + 1 < len && str.charAt(k + 1) == q)k += 2;//doubled quote
+				else return k + 1;
+			}else
+				k++;
+		}
+		return len;
+	}
+
+	/**
+	 * @param pos position of the open bracket
+	 * @return position of the matching close bracket, or the end of the text
+	 */
+	private static int closingBracket(String str, int pos)
+	{
+		int len = str.length();
+		int depth = 0;
+		int k = pos;
+		while(k < len)
+		{
+			char c = str.charAt(k);
+			if(c == '\'' || c == '"' || c == '`')
+			{
+				k = skipQuoted(str, k);
+				continue;
+			}
+			if(c == '(')depth++;
+			else if(c == ')' && --depth == 0)return k;
+			k++;
+		}
+		return len;
+	}
+
+	private static int skipSpaces(String str, int pos)
+	{
+		int len = str.length();
+		int k = pos;
+		while(k < len && isSpace(str.charAt(k)))k++;
+		return k;
+	}
+
+	//same as \s of regular expression
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isIdentifierStart(char c)
+	{
+		return Character.isLetter(c) || c == '_' || c == '$';
+	}
+
+	private static boolean isIdentifierPart(char c)
+	{
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+}
@@ -5,6 +5,9 @@
  */
 package com.yahoo.dba.perf.myperf.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,7 +36,7 @@ public class StateSnapshot implements java.io.Serializable{
 	
 	private long uptime = 0L;//need it to calculate diff if restart
 	
-	//NOTE: when add new fields, make sure to update function copy()
+	//NOTE: when add new fields, make sure to update function copy(), writeTo() and readFrom()
 	
 	//for user defined alertsk, name is the alertName
 	private Map<String, Float> metricsMap;
@@ -258,4 +261,82 @@ public class StateSnapshot implements java.io.Serializable{
 	public void setSoftirqtime(long softirqtime) {
 		this.softirqtime = softirqtime;
 	}
+
+	/**
+	 * Compact binary form, used by InstanceStatesManager to persist states
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeLong(timestamp);
+		out.writeLong(usercputime);
+		out.writeLong(syscputime);
+		out.writeLong(softirqtime);
+		out.writeLong(iotime);
+		out.writeLong(availableMem);
+		out.writeFloat(loadAverage);
+		out.writeInt(threads);
+		out.writeInt(activeThreads);
+		out.writeLong(connections);
+		out.writeLong(abortedConnectsClients);
+		out.writeLong(slowQueryCount);
+		out.writeLong(totalcputime);
+		out.writeInt(replLag);
+		out.writeInt(replIo);
+		out.writeInt(replSql);
+		out.writeLong(queries);
+		out.writeLong(questions);
+		out.writeLong(deadlocks);
+		out.writeLong(uptime);
+		if(metricsMap == null)
+			out.writeInt(0);
+		else
+		{
+			out.writeInt(metricsMap.size());
+			for(Map.Entry<String, Float> e: metricsMap.entrySet())
+			{
+				out.writeUTF(e.getKey());
+				out.writeFloat(e.getValue() != null? e.getValue().floatValue() : 0.0f);
+			}
+		}
+	}
+
+	/**
+	 * Read the form written by writeTo
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static StateSnapshot readFrom(DataInput in) throws IOException
+	{
+		StateSnapshot ss = new StateSnapshot();
+		ss.timestamp = in.readLong();
+		ss.usercputime = in.readLong();
+		ss.syscputime = in.readLong();
+		ss.softirqtime = in.readLong();
+		ss.iotime = in.readLong();
+		ss.availableMem = in.readLong();
+		ss.loadAverage = in.readFloat();
+		ss.threads = in.readInt();
+		ss.activeThreads = in.readInt();
+		ss.connections = in.readLong();
+		ss.abortedConnectsClients = in.readLong();
+		ss.slowQueryCount = in.readLong();
+		ss.totalcputime = in.readLong();
+		ss.replLag = in.readInt();
+		ss.replIo = in.readInt();
+		ss.replSql = in.readInt();
+		ss.queries = in.readLong();
+		ss.questions = in.readLong();
+		ss.deadlocks = in.readLong();
+		ss.uptime = in.readLong();
+		int cnt = in.readInt();
+		for(int i=0; i<cnt; i++)
+		{
+			String name = in.readUTF();
+			ss.metricsMap.put(name, in.readFloat());
+		}
+		return ss;
+	}
 }
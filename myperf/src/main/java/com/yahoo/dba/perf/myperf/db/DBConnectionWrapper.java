@@ -32,6 +32,7 @@ public class DBConnectionWrapper implements Comparable<DBConnectionWrapper>
   private String version;//oracle version
   private Statement currentStatement;//current executing statement, for cancel during forceful close
   private long lastAccessTime = System.currentTimeMillis();
+  private boolean multiQueries = false;//opened with allowMultiQueries
   
   public DBConnectionWrapper()
   {
@@ -147,6 +148,16 @@ public class DBConnectionWrapper implements Comparable<DBConnectionWrapper>
     this.version = version;
   }
 
+  public boolean isMultiQueries() 
+  {
+    return multiQueries;
+  }
+
+  public void setMultiQueries(boolean multiQueries) 
+  {
+    this.multiQueries = multiQueries;
+  }
+
   public int compareTo(DBConnectionWrapper conn) 
   {
     if(this.db.getDbGroupName()!=null&&!this.db.getDbGroupName().equalsIgnoreCase(conn.getDb().getDbGroupName()))
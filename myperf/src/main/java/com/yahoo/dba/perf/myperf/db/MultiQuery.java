@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.db;
+
+import java.util.Map;
+
+/**
+ * One query of a multiple statement execution, see QueryExecutor.executeMultipleQueries.
+ * With keyColumn, the result is one metrics map per key. Otherwise it is name and value pairs,
+ * the same as QueryExecutor.executeQueryWithKeyValuPairs.
+ * @author xrao
+ *
+ */
+public class MultiQuery
+{
+  private String sqlText;
+  private String keyColumn;
+  private String nameColumn;
+  private String valueColumn;
+
+  private Map<String, String> keyValueResult;
+  private Map<String, Map<String, String>> multipleColumnsResult;
+  private int queryTime;//milliseconds
+
+  public MultiQuery(String sqlText, String keyColumn, String nameColumn, String valueColumn)
+  {
+    this.sqlText = sqlText;
+    this.keyColumn = keyColumn;
+    this.nameColumn = nameColumn;
+    this.valueColumn = valueColumn;
+  }
+
+  public String getSqlText()
+  {
+    return sqlText;
+  }
+
+  public String getKeyColumn()
+  {
+    return keyColumn;
+  }
+
+  public String getNameColumn()
+  {
+    return nameColumn;
+  }
+
+  public String getValueColumn()
+  {
+    return valueColumn;
+  }
+
+  public Map<String, String> getKeyValueResult()
+  {
+    return keyValueResult;
+  }
+
+  public void setKeyValueResult(Map<String, String> keyValueResult)
+  {
+    this.keyValueResult = keyValueResult;
+  }
+
+  public Map<String, Map<String, String>> getMultipleColumnsResult()
+  {
+    return multipleColumnsResult;
+  }
+
+  public void setMultipleColumnsResult(Map<String, Map<String, String>> multipleColumnsResult)
+  {
+    this.multipleColumnsResult = multipleColumnsResult;
+  }
+
+  public int getQueryTime()
+  {
+    return queryTime;
+  }
+
+  public void setQueryTime(int queryTime)
+  {
+    this.queryTime = queryTime;
+  }
+}
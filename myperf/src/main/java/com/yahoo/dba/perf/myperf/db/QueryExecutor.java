@@ -280,26 +280,7 @@ public class QueryExecutor
 		conn.setCurrentStatement(stmt);
 		rs = stmt.executeQuery(actualSql);
 	  }
-	  Map<String, String> metrics = new HashMap<String, String>();
-	  if(keyColumn != null && !keyColumn.isEmpty() && valueColumn != null && !valueColumn.isEmpty())
-	  {
-	    while(rs!=null && rs.next())
-	    {
-		  metrics.put(rs.getString(keyColumn.toLowerCase()), rs.getString(valueColumn.toLowerCase()));
-	    }
-	  }else
-	  {
-		  if(rs !=null)
-		  {
-			  java.sql.ResultSetMetaData meta = rs.getMetaData();
-			  int cnt = meta.getColumnCount();
-			  if(rs.next())
-			  {
-				  for(int i=1; i<=cnt; i++)
-					  metrics.put(meta.getColumnLabel(i).toLowerCase(), rs.getString(i));
-			  }
-		  }
-	  }
+	  Map<String, String> metrics = readKeyValuePairs(rs, keyColumn, valueColumn);
 	  //logger.info("Retrieved: "+metrics.size()+", sql: "+actualSql);
 	  return metrics;
 	}
@@ -387,18 +368,7 @@ public class QueryExecutor
 		conn.setCurrentStatement(stmt);
 		rs = stmt.executeQuery(actualSql);
 	  }
-	  Map<String, Map<String,String>> metrics = new HashMap<String, Map<String, String>>();
-	  int colCnt = 0;
-	  if(rs != null)colCnt = rs.getMetaData().getColumnCount();
-	  while(rs!=null && rs.next())
-	  {
-		  String key = rs.getString(keyColumn);
-		  Map<String, String> metricsperKey = new HashMap<String, String>(colCnt);
-		  for(int i=1; i<=colCnt; i++)
-			  metricsperKey.put(rs.getMetaData().getColumnName(i), rs.getString(i));
-		  metrics.put(key, metricsperKey);
-	  }
-	  return metrics;
+	  return readMultipleColumns(rs, keyColumn);
 	}
 	catch(SQLException sqlEx)
 	{
@@ -414,6 +384,137 @@ public class QueryExecutor
 	}
   }
 
+  /**
+   * Resolve the text of a metrics query for this connection.
+   * @param qps
+   * @param conn
+   * @return null if the query needs parameters
+   * @throws SQLException
+   */
+  public String getSqlText(QueryParameters qps, DBConnectionWrapper conn)throws SQLException
+  {
+	String sqlText = qps.getSqlText(); //if not predefined
+	Sql sql = null;
+	if(sqlText == null || sqlText.isEmpty())
+	  sql = sqlManager.getSql(qps.getSql());
+	if(sql != null && sql.getParamCount()>0)
+	  return null;
+	if(sql != null && sql.getQueryClass()!=null)
+	  sqlText = DynamicQueryFactory.getQuery(sql.getQueryClass(), conn, false);
+	if(sqlText == null && sql != null)
+	  sqlText = sql.getSqlText(conn.getVersion());
+	return sqlText;
+  }
+
+  /**
+   * Send all queries in a single round trip. The connection has to be opened with allowMultiQueries.
+   * Each query should return exactly one result set. The results are read into the queries in order,
+   * and the time of each query is the time from the end of the previous result to the end of its own,
+   * so the first one includes the round trip.
+   * If one query fails, the following ones are not executed. The queries done so far keep their results.
+   * @param queries
+   * @param conn
+   * @return number of queries done
+   * @throws SQLException
+   */
+  public int executeMultipleQueries(java.util.List<MultiQuery> queries, DBConnectionWrapper conn)throws SQLException
+  {
+	if(queries == null || queries.size() == 0)return 0;
+	StringBuilder sb = new StringBuilder();
+	for(MultiQuery q: queries)
+	{
+	  if(sb.length() > 0)sb.append(";\n");
+	  sb.append(q.getSqlText());
+	}
+	Statement stmt = null;
+	ResultSet rs = null;
+	int done = 0;
+	try
+	{
+	  stmt = conn.getConnection().createStatement();
+	  stmt.setQueryTimeout(this.frameworkContext.getQueryTimeout());
+	  conn.setCurrentStatement(stmt);
+	  long ts = System.currentTimeMillis();
+	  boolean hasResultSet = stmt.execute(sb.toString());
+	  while(done < queries.size())
+	  {
+		if(!hasResultSet)
+		{
+		  if(stmt.getUpdateCount() == -1)break;//no more results
+		  throw new SQLException("Query "+(done+1)+" does not return a result set");
+		}
+		MultiQuery q = queries.get(done);
+		rs = stmt.getResultSet();
+		if(q.getKeyColumn() != null && !q.getKeyColumn().isEmpty())
+		  q.setMultipleColumnsResult(readMultipleColumns(rs, q.getKeyColumn()));
+		else
+		  q.setKeyValueResult(readKeyValuePairs(rs, q.getNameColumn(), q.getValueColumn()));
+		DBUtils.close(rs);
+		rs = null;
+		long ts2 = System.currentTimeMillis();
+		q.setQueryTime((int)(ts2 - ts));
+		ts = ts2;
+		done++;
+		hasResultSet = stmt.getMoreResults();
+	  }
+	  if(done < queries.size())
+		throw new SQLException("Only "+done+" of "+queries.size()+" queries returned results");
+	  return done;
+	}
+	catch(SQLException sqlEx)
+	{
+	  logger.info("Failed to execute multiple queries at "+(done+1)+" of "+queries.size()+": "+queries.get(Math.min(done, queries.size()-1)).getSqlText());
+	  throw sqlEx;
+	}
+	finally
+	{
+	  DBUtils.close(rs);
+	  DBUtils.close(stmt);
+	  conn.setCurrentStatement(null);
+	}
+  }
+
+  private static Map<String, String> readKeyValuePairs(ResultSet rs, String keyColumn, String valueColumn)throws SQLException
+  {
+	Map<String, String> metrics = new HashMap<String, String>();
+	if(keyColumn != null && !keyColumn.isEmpty() && valueColumn != null && !valueColumn.isEmpty())
+	{
+	  while(rs!=null && rs.next())
+	  {
+		metrics.put(rs.getString(keyColumn.toLowerCase()), rs.getString(valueColumn.toLowerCase()));
+	  }
+	}else
+	{
+	  if(rs !=null)
+	  {
+		java.sql.ResultSetMetaData meta = rs.getMetaData();
+		int cnt = meta.getColumnCount();
+		if(rs.next())
+		{
+		  for(int i=1; i<=cnt; i++)
+			metrics.put(meta.getColumnLabel(i).toLowerCase(), rs.getString(i));
+		}
+	  }
+	}
+	return metrics;
+  }
+
+  private static Map<String, Map<String, String>> readMultipleColumns(ResultSet rs, String keyColumn)throws SQLException
+  {
+	Map<String, Map<String,String>> metrics = new HashMap<String, Map<String, String>>();
+	int colCnt = 0;
+	if(rs != null)colCnt = rs.getMetaData().getColumnCount();
+	while(rs!=null && rs.next())
+	{
+	  String key = rs.getString(keyColumn);
+	  Map<String, String> metricsperKey = new HashMap<String, String>(colCnt);
+	  for(int i=1; i<=colCnt; i++)
+		metricsperKey.put(rs.getMetaData().getColumnName(i), rs.getString(i));
+	  metrics.put(key, metricsperKey);
+	}
+	return metrics;
+  }
+
 
 	
 	
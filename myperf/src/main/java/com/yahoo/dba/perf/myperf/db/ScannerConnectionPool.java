@@ -0,0 +1,424 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yahoo.dba.perf.myperf.common.DBCredential;
+import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
+import com.yahoo.dba.perf.myperf.common.MyPerfContext;
+
+/**
+ * Long lived connections used by metrics and alert scanners, keyed by dbid.
+ * Connections are kept across scan cycles, validated after idle, and evicted
+ * when the host or its credential changes.
+ * @author xrao
+ *
+ */
+public class ScannerConnectionPool
+{
+  private static Logger logger = Logger.getLogger(ScannerConnectionPool.class.getName());
+
+  /**
+   * Connections of a single host
+   */
+  private static class HostConnections
+  {
+    String signature;//connection string and credential used to open the connections
+    List<DBConnectionWrapper> idle = new ArrayList<DBConnectionWrapper>();
+    int total;//idle + in use
+  }
+
+  private Map<Integer, HostConnections> hosts = new HashMap<Integer, HostConnections>();
+  private List<DBConnectionWrapper> inuse = new ArrayList<DBConnectionWrapper>();//to cancel and close on shutdown
+  //signature each open connection is created with, so connections checked out before a credential change will not be reused
+  private Map<DBConnectionWrapper, String> connSignatures = new java.util.IdentityHashMap<DBConnectionWrapper, String>();
+  private volatile boolean closed = false;
+
+  private MyPerfContext frameworkContext;
+  private String appUser;
+  private int maxConnectionsPerHost = 2;
+  private long connectionIdleTimeout = 900000L;//close connection not used for such time
+  private long validateIdleTime = 30000L;//validate connection before reuse if idled more than such time
+  private long checkoutWaitTime = 10000L;//wait when the host has reached max connections
+  private boolean multiQueries = false;//open MySQL connections with allowMultiQueries
+
+  //statistics
+  private AtomicLong hits = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+  private AtomicLong connects = new AtomicLong();
+  private AtomicLong connectFailures = new AtomicLong();
+  private AtomicLong connectTimeTotal = new AtomicLong();//milliseconds
+  private AtomicLong validationFailures = new AtomicLong();
+  private AtomicLong evictions = new AtomicLong();
+
+  public ScannerConnectionPool(MyPerfContext frameworkContext, String appUser)
+  {
+    this.frameworkContext = frameworkContext;
+    this.appUser = appUser;
+  }
+
+  /**
+   * Check out an idle connection of the host, or open a new one if none is available.
+   * @param dbinfo
+   * @param cred
+   * @return
+   */
+  public DBConnectionWrapper checkoutConnection(DBInstanceInfo dbinfo, DBCredential cred)
+  {
+    if(cred==null || cred.getPassword()==null)
+      throw new RuntimeException("No credential provided fro DB "+dbinfo.getDbGroupName());
+    if(closed)
+      throw new RuntimeException("Scanner connection pool has been closed");
+    String signature = signature(dbinfo, cred);
+    List<DBConnectionWrapper> stale = new ArrayList<DBConnectionWrapper>();
+    DBConnectionWrapper conn = null;
+    try
+    {
+      synchronized(this)
+      {
+        HostConnections hc = this.hosts.get(dbinfo.getDbid());
+        if(hc == null)
+        {
+          hc = new HostConnections();
+          hc.signature = signature;
+          this.hosts.put(dbinfo.getDbid(), hc);
+        }else if(!signature.equals(hc.signature))
+        {
+          //host or credential changed, drop idle connections
+          logger.info("Connection information changed for ("+dbinfo+"), evict "+hc.idle.size()+" idle connections");
+          this.evictions.addAndGet(hc.idle.size());
+          stale.addAll(hc.idle);
+          for(DBConnectionWrapper c: hc.idle)this.connSignatures.remove(c);
+          hc.total -= hc.idle.size();
+          hc.idle.clear();
+          hc.signature = signature;
+        }
+        long waitUntil = System.currentTimeMillis() + this.checkoutWaitTime;
+        while(hc.idle.size() == 0 && hc.total >= this.maxConnectionsPerHost)
+        {
+          long toWait = waitUntil - System.currentTimeMillis();
+          if(toWait <= 0 || closed)
+            throw new RuntimeException("Too many connections to ("+dbinfo+"), limit "+this.maxConnectionsPerHost);
+          try{this.wait(toWait);}catch(InterruptedException iex){Thread.currentThread().interrupt(); throw new RuntimeException(iex);}
+        }
+        if(hc.idle.size() > 0)
+        {
+          conn = hc.idle.remove(hc.idle.size() - 1);
+          conn.setInuse(true);
+          this.inuse.add(conn);
+        }else
+          hc.total++;//reserve a slot for new connection
+      }
+    }finally
+    {
+      for(DBConnectionWrapper c: stale)
+        c.close();
+    }
+
+    if(conn != null)
+    {
+      if(!conn.isExpired(this.validateIdleTime) || isValid(conn))
+      {
+        this.hits.incrementAndGet();
+        return conn;
+      }
+      this.validationFailures.incrementAndGet();
+      logger.fine("Idle connection to ("+dbinfo+") is no longer valid, reconnect");
+      conn.close();
+      synchronized(this)
+      {
+        this.inuse.remove(conn);//keep its slot for the new connection
+        this.connSignatures.remove(conn);
+      }
+    }
+    this.misses.incrementAndGet();
+
+    //Connect outside of the lock, it could take a while
+    long startTime = System.currentTimeMillis();
+    try
+    {
+      DBConnectionWrapper cw = createConnectionInternal(dbinfo, cred);
+      this.connects.incrementAndGet();
+      this.connectTimeTotal.addAndGet(System.currentTimeMillis() - startTime);
+      synchronized(this)
+      {
+        this.inuse.add(cw);
+        this.connSignatures.put(cw, signature);
+      }
+      return cw;
+    }catch(Exception ex)
+    {
+      this.connectFailures.incrementAndGet();
+      releaseSlot(dbinfo.getDbid());
+      logger.log(Level.SEVERE,"Exception when connecting to ("+dbinfo+")", ex);
+      throw new RuntimeException(ex.getMessage());
+    }
+  }
+
+  private DBConnectionWrapper createConnectionInternal(DBInstanceInfo dbinfo, DBCredential cred)
+	throws SQLException
+  {
+    logger.fine("Connecting to "+dbinfo.getConnectionString()+" using user "+cred.getUsername());
+    boolean multi = this.multiQueries && "mysql".equalsIgnoreCase(dbinfo.getDbType());
+    Connection conn = null;
+    if(multi)
+    {
+      java.util.Properties info = new java.util.Properties();
+      info.put("allowMultiQueries", "true");
+      conn = ConnectionFactory.connect(dbinfo, cred.getUsername(), cred.getPassword(), frameworkContext, info);
+    }else
+      conn = ConnectionFactory.connect(dbinfo, cred, frameworkContext);
+    if(conn==null)
+      throw new SQLException("Failed to create connection: null connection");
+    conn.setReadOnly(true);//TODO right now, we only allow readonly connection
+    DBConnectionWrapper cw = new DBConnectionWrapper(dbinfo);
+    cw.setMultiQueries(multi);
+    cw.setAppUser(this.appUser);
+    cw.setConnection(conn);
+    cw.setInuse(true);
+    return cw;
+  }
+
+  private boolean isValid(DBConnectionWrapper conn)
+  {
+    try
+    {
+      return conn.getConnection().isValid(5);
+    }catch(Throwable ex)
+    {
+      return false;
+    }
+  }
+
+  private String signature(DBInstanceInfo dbinfo, DBCredential cred)
+  {
+    return dbinfo.getConnectionString()+"|"+cred.getUsername()+"|"+cred.getPassword().hashCode();
+  }
+
+  private void releaseSlot(int dbid)
+  {
+    synchronized(this)
+    {
+      HostConnections hc = this.hosts.get(dbid);
+      if(hc != null && hc.total > 0)hc.total--;
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Return the connection to the pool for next scan
+   * @param conn
+   */
+  public void checkinConnection(DBConnectionWrapper conn)
+  {
+    if(conn==null)return;
+    conn.setCurrentStatement(null);
+    boolean toClose = false;
+    synchronized(this)
+    {
+      this.inuse.remove(conn);
+      conn.setInuse(false);
+      HostConnections hc = this.hosts.get(conn.getDb().getDbid());
+      String sig = this.connSignatures.get(conn);
+      if(closed || conn.isClosed() || hc == null || !hc.signature.equals(sig))
+      {
+        toClose = true;
+        this.connSignatures.remove(conn);
+      }
+      else
+        hc.idle.add(conn);
+      if(toClose && hc != null && hc.total > 0)hc.total--;
+      this.notifyAll();
+    }
+    if(toClose)conn.close();
+  }
+
+  /**
+   * The connection might be broken, close it instead of reuse
+   * @param conn
+   */
+  public void checkinConnectionOnError(DBConnectionWrapper conn)
+  {
+    if(conn==null)return;
+    conn.setCurrentStatement(null);
+    conn.close();
+    synchronized(this)
+    {
+      this.inuse.remove(conn);
+      this.connSignatures.remove(conn);
+      conn.setInuse(false);
+    }
+    releaseSlot(conn.getDb().getDbid());
+  }
+
+  /**
+   * Close idle connections of a host, for example, when the host is removed
+   * @param dbid
+   */
+  public void evict(int dbid)
+  {
+    List<DBConnectionWrapper> toClose = null;
+    synchronized(this)
+    {
+      HostConnections hc = this.hosts.get(dbid);
+      if(hc == null)return;
+      toClose = new ArrayList<DBConnectionWrapper>(hc.idle);
+      for(DBConnectionWrapper c: toClose)this.connSignatures.remove(c);
+      hc.total -= hc.idle.size();
+      hc.idle.clear();
+      if(hc.total <= 0)this.hosts.remove(dbid);
+      this.evictions.addAndGet(toClose.size());
+    }
+    for(DBConnectionWrapper conn: toClose)
+      conn.close();
+  }
+
+  /**
+   * Close connections idled for more than connectionIdleTimeout
+   */
+  public void closeExpired()
+  {
+    List<DBConnectionWrapper> idleList = new ArrayList<DBConnectionWrapper>();
+    synchronized(this)
+    {
+      for(HostConnections hc: this.hosts.values())
+      {
+        for(int i=hc.idle.size()-1;i>=0;i--)
+        {
+          if(hc.idle.get(i).isExpired(this.connectionIdleTimeout))
+          {
+            DBConnectionWrapper conn = hc.idle.remove(i);
+            this.connSignatures.remove(conn);
+            idleList.add(conn);
+            hc.total--;
+          }
+        }
+      }
+    }
+    for(DBConnectionWrapper conn:idleList)
+    {
+      conn.close();
+      logger.fine("Closed idle scanner connection ("+conn.getDb()+"), created at "+conn.getCreateTime());
+    }
+  }
+
+  /**
+   * Close all connections. Queries still running will be cancelled.
+   */
+  public void close()
+  {
+    List<DBConnectionWrapper> toClose = new ArrayList<DBConnectionWrapper>();
+    synchronized(this)
+    {
+      this.closed = true;
+      for(HostConnections hc: this.hosts.values())
+        toClose.addAll(hc.idle);
+      this.hosts.clear();
+      toClose.addAll(this.inuse);
+      this.inuse.clear();
+      this.connSignatures.clear();
+      this.notifyAll();
+    }
+    for(DBConnectionWrapper conn:toClose)
+    {
+      try
+      {
+        if(conn.getCurrentStatement()!=null)
+          conn.getCurrentStatement().cancel();
+      }catch(Exception ex)
+      {
+        logger.log(Level.WARNING,"Exception when cancel query on ("+conn.getDb()+")", ex);
+      }
+      conn.close();
+    }
+    logger.info("Scanner connection pool closed, "+toClose.size()+" connections closed.");
+  }
+
+  /**
+   * Pool statistics, for status page
+   * @return
+   */
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    int idleCount = 0;
+    int totalCount = 0;
+    synchronized(this)
+    {
+      for(HostConnections hc: this.hosts.values())
+      {
+        idleCount += hc.idle.size();
+        totalCount += hc.total;
+      }
+    }
+    long cnt = this.connects.get();
+    stats.put("scannerPool.connections", String.valueOf(totalCount));
+    stats.put("scannerPool.idle", String.valueOf(idleCount));
+    stats.put("scannerPool.hits", String.valueOf(this.hits.get()));
+    stats.put("scannerPool.misses", String.valueOf(this.misses.get()));
+    stats.put("scannerPool.connects", String.valueOf(cnt));
+    stats.put("scannerPool.connectFailures", String.valueOf(this.connectFailures.get()));
+    stats.put("scannerPool.connectTimeAvgMillis", String.valueOf(cnt>0?this.connectTimeTotal.get()/cnt:0));
+    stats.put("scannerPool.validationFailures", String.valueOf(this.validationFailures.get()));
+    stats.put("scannerPool.evictions", String.valueOf(this.evictions.get()));
+    return stats;
+  }
+
+  public boolean isClosed()
+  {
+    return closed;
+  }
+
+  public int getMaxConnectionsPerHost()
+  {
+    return maxConnectionsPerHost;
+  }
+
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+  {
+    this.maxConnectionsPerHost = maxConnectionsPerHost>0?maxConnectionsPerHost:1;
+  }
+
+  public long getConnectionIdleTimeout()
+  {
+    return connectionIdleTimeout;
+  }
+
+  public void setConnectionIdleTimeout(long connectionIdleTimeout)
+  {
+    this.connectionIdleTimeout = connectionIdleTimeout;
+  }
+
+  public boolean isMultiQueries()
+  {
+    return multiQueries;
+  }
+
+  public void setMultiQueries(boolean multiQueries)
+  {
+    this.multiQueries = multiQueries;
+  }
+
+  public long getValidateIdleTime()
+  {
+    return validateIdleTime;
+  }
+
+  public void setValidateIdleTime(long validateIdleTime)
+  {
+    this.validateIdleTime = validateIdleTime;
+  }
+}
@@ -69,6 +69,15 @@ public class DerbyMetricsDb extends MetricsDbBase implements java.io.Serializabl
 	return "create index IDX_ALERT_TS on ALERT(TS)";
   }
 
+  @Override
+  protected String[] buildProcessListDigestDDL()
+  {
+	    return new String[]{
+	    		"CREATE TABLE PROCESSLIST_DIGEST (DBID INT, TS BIGINT, DIGEST VARCHAR(40), POLLS INT, SAMPLES INT, TOTAL_TIME BIGINT, MAX_TIME INT, USERS VARCHAR(255), HOSTS VARCHAR(255), SQL_TEXT VARCHAR(2048), PRIMARY KEY(DBID, TS, DIGEST))",
+	    		"create index IDX_PROCESSLIST_DIGEST_TS on PROCESSLIST_DIGEST(TS)"
+	    };
+  }
+
   protected String[] buildGenericMetricDDL()
   {
 	    //StringBuilder sb = new StringBuilder();
@@ -13,12 +13,14 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,10 +31,13 @@ import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
 import com.yahoo.dba.perf.myperf.common.DBUtils;
 import com.yahoo.dba.perf.myperf.common.Metric;
 import com.yahoo.dba.perf.myperf.common.MetricDataType;
+import com.yahoo.dba.perf.myperf.common.MetricSeries;
 import com.yahoo.dba.perf.myperf.common.MetricsDefManager;
 import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+import com.yahoo.dba.perf.myperf.common.MetricsRecordEncoder;
 import com.yahoo.dba.perf.myperf.common.MetricsSubscribers;
 import com.yahoo.dba.perf.myperf.common.MyPerfContext;
+import com.yahoo.dba.perf.myperf.common.ProcessListEntryAggregate;
 import com.yahoo.dba.perf.myperf.common.ResultList;
 import com.yahoo.dba.perf.myperf.common.ResultListUtil;
 import com.yahoo.dba.perf.myperf.common.ResultRow;
@@ -72,6 +77,7 @@ public abstract class MetricsDbBase implements  Runnable
 	  protected static final String DBINFO_TABLENAME="DBINFOS";
 	  protected static final String ALERTSETTING_TABLENAME="ALERTSETTINGS";
 	  protected static final String ALERT_SUBSCRIPT = "ALERT_SUBSCRIPT";
+	  public static final String PROCESSLIST_DIGEST_TABLENAME = "PROCESSLIST_DIGEST";
 
 	private static final String METRICS_SUBSCRIPT = "METRICS_SUBSCRIPT";
 
@@ -95,8 +101,43 @@ public abstract class MetricsDbBase implements  Runnable
 	  protected java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyyMMddHHmmss");
 	 
 	  private transient Connection storeConnection = null;
+	  //number of rows inside one insert batch and transaction for builtin metrics
+	  private int writeBatchSize = 200;
+	  //number of snapshots per partition of metrics tables, 0 for no partition. Only used by mysql
+	  private int partitionSnapshots = 0;
+	  //number of snapshots removed by one delete statement, when purge metrics without partitions
+	  private static final int PURGE_SNAPSHOTS_PER_DELETE = 100;
+	  //writer statistics
+	  protected AtomicLong rowsWritten = new AtomicLong();
+	  protected AtomicLong batchesWritten = new AtomicLong();
+	  protected AtomicLong commitTimeTotal = new AtomicLong();//microseconds
+	  protected AtomicLong commitTimeMax = new AtomicLong();//microseconds
+	  protected AtomicLong storeFailures = new AtomicLong();
 	  private long lastConnTime = -1L;
 	  
+	  //START_TS to SNAP_ID, to avoid SNAPSHOTS lookup on each metrics retrieval
+	  private SnapshotIndex snapshotIndex = new SnapshotIndex();
+	  //maximum number of dbids in a single dbid in (...) query
+	  static final int MAX_DBIDS_PER_QUERY = 128;
+	  //connections for retrieval and metadata changes, separated from the writer connection
+	  private MetricsDbConnectionPool connectionPool = new MetricsDbConnectionPool(this);
+	  //10 minutes and 1 hour copies of the metrics tables
+	  private MetricsRollup rollup = new MetricsRollup(this);
+	  //recent records of each host, to answer queries of the last hour or so without reading tables
+	  private MetricsHotWindow hotWindow = new MetricsHotWindow();
+	  //records the queues cannot take, or failed to store, kept on local disk until metrics db takes them
+	  private MetricsSpillJournal spillJournal = new MetricsSpillJournal();
+	  //after a store failure, wait that long before trying metrics db again
+	  private static final long STORE_RETRY_MILLIS = 5000L;
+	  //spilled records stored per transaction, and time spent on replay between two stores
+	  private static final int REPLAY_RECORDS = 1000;
+	  private static final long REPLAY_MILLIS = 1000L;
+	  private volatile long storeRetryTime = 0L;
+	  protected AtomicLong replayDuplicates = new AtomicLong();
+	  protected AtomicLong replayRejected = new AtomicLong();
+	  //dbid, metric id, snap_id, timestamp and value, of metrics stored in the common table
+	  private static final int GENERIC_RECORD_LENGTH = 28;
+	  
 	  private Object codeLock = new Object();//sync new code
 	  
 	  /**
@@ -156,6 +197,34 @@ public abstract class MetricsDbBase implements  Runnable
 		  this.schemaName = schemaName;
 	  }
 	  
+	  /**
+	   * Number of rows per insert batch and transaction
+	   * @return
+	   */
+	  public int getWriteBatchSize()
+	  {
+		  return this.writeBatchSize;
+	  }
+	  
+	  public void setWriteBatchSize(int writeBatchSize)
+	  {
+		  this.writeBatchSize = writeBatchSize>0?writeBatchSize:1;
+	  }
+	  
+	  /**
+	   * Number of snapshots per partition of metrics tables, 0 if metrics tables are not partitioned
+	   * @return
+	   */
+	  public int getPartitionSnapshots()
+	  {
+		  return this.partitionSnapshots;
+	  }
+	  
+	  public void setPartitionSnapshots(int partitionSnapshots)
+	  {
+		  this.partitionSnapshots = partitionSnapshots>0?partitionSnapshots:0;
+	  }
+	  
 	  /**
 	   * Access other system info
 	   * @return
@@ -245,6 +314,7 @@ public abstract class MetricsDbBase implements  Runnable
 	      else
 	    	  return false;
 	    }
+	    this.rollup.addTable(mg);
 	    return true;
 	  }
 
@@ -317,6 +387,10 @@ public abstract class MetricsDbBase implements  Runnable
 		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));	  
 		createTables();
 		loadMetricCode();
+		loadSnapshotIndex();
+		addPartitions();
+		rollup.init();
+		spillJournal.open();
 		new Thread(this).start();
 		logger.info("Init metrics done");
 	  }
@@ -328,6 +402,7 @@ public abstract class MetricsDbBase implements  Runnable
 	  {
 		logger.info("Shutting donw metrics DB");
 	    this.stopped = true;	  
+	    this.connectionPool.close();
 	  }
 	  	  
 	  //derbydb does not support limit
@@ -347,6 +422,7 @@ public abstract class MetricsDbBase implements  Runnable
 
 	  abstract protected String[] buildAlertSubScriptionDDL();//create alert subscription table
 	  abstract protected String[] buildMetricsSubscrptionDDL();//create metrics subscription table for UDM and on demand metrics
+	  abstract protected String[] buildProcessListDigestDDL();//create processlist digest table, see ProcessListSampler
 
 	  protected String buildDDL(MetricsGroup mg)
 	  {
@@ -393,6 +469,7 @@ public abstract class MetricsDbBase implements  Runnable
 		  {
 		      conn = this.createConnection(false);
 		      createMetricsTable(mg, conn);
+		      addPartitions();
 		      return true;
 		  }catch(Exception ex)
 		  {
@@ -484,6 +561,18 @@ public abstract class MetricsDbBase implements  Runnable
 	        DBUtils.close(stmt);
 	        logger.info("Created alert table ALERT" );
 	      }
+	      if(!DBUtils.hasTable(conn, schemaName, PROCESSLIST_DIGEST_TABLENAME))
+	      {
+	        stmt = conn.createStatement();
+	        String[] ddls = this.buildProcessListDigestDDL();
+	        for(String ddl: ddls)
+	        {
+	        	logger.info("Create table "+PROCESSLIST_DIGEST_TABLENAME+": "+ddl);
+	        	stmt.execute(ddl);
+	        }
+	        DBUtils.close(stmt);
+	        logger.info("Created table "+PROCESSLIST_DIGEST_TABLENAME );
+	      }
 	      if(!DBUtils.hasTable(conn, schemaName, "ALERT_SUBSCRIPT"))
 	      {
 	        stmt = conn.createStatement();
@@ -570,7 +659,7 @@ public abstract class MetricsDbBase implements  Runnable
 		  Connection conn = null;
 		  try
 		  {
-			  conn = this.createConnection(true);
+			  conn = this.getPooledConnection();
 			  if("delete".equalsIgnoreCase(action))
 			  {
 				  if(dbInfo.getHostName()==null || "all".equalsIgnoreCase(dbInfo.getHostName()))
@@ -597,6 +686,15 @@ public abstract class MetricsDbBase implements  Runnable
 	   */
 	  abstract protected Connection createConnection(boolean autocommit);
 
+	  /**
+	   * Check out a pooled connection with autocommit on. close() returns it to the pool.
+	   * @return
+	   */
+	  protected Connection getPooledConnection()
+	  {
+		return this.connectionPool.getConnection();
+	  }
+
 
 	  public void flush()
 	  {
@@ -609,10 +707,20 @@ public abstract class MetricsDbBase implements  Runnable
 		java.util.concurrent.ArrayBlockingQueue<MetricsData> q = this.dataQueues.get(tblName);
 	    if(q!=null)
 	    {
-	      try
+	      //scanners do not wait for metrics db, what the queue cannot take goes to the spill journal
+	      if(!q.offer(new MetricsData(key, buf)))
 	      {
-	        q.put(new MetricsData(key, buf));
-	      }catch(Exception ex){}
+	        if(this.spillJournal.isEnabled())
+	          this.spillJournal.append(tblName, key, buf);
+	        else
+	        {
+	          try
+	          {
+	            q.put(new MetricsData(key, buf));
+	          }catch(Exception ex){}
+	        }
+	      }
+	      this.hotWindow.put(mg, buf);
 	    }else
 	    {
 	    	logger.info("Warning: cannot find sink queue "+mg.getGroupName()+", table "+tblName);
@@ -635,9 +743,17 @@ public abstract class MetricsDbBase implements  Runnable
 	    	  
 	      }
 	      store();
+	      replaySpill();
 	    }
-	    //final store after shutdown
+	    //final store after shutdown, what cannot be stored is kept for next start
 	    store();
+	    for(Map.Entry<String, java.util.concurrent.ArrayBlockingQueue<MetricsData>> e: this.dataQueues.entrySet())
+	    {
+	      List<MetricsData> q2 = new ArrayList<MetricsData>();
+	      e.getValue().drainTo(q2);
+	      spill(e.getKey(), q2);
+	    }
+	    this.spillJournal.close();
 	    DBUtils.close(storeConnection);
 	    storeConnection = null;
 	    logger.info("metrics db stopped");
@@ -645,118 +761,386 @@ public abstract class MetricsDbBase implements  Runnable
 	  
 	  protected void store()
 	  {
-		try
-		{
-	      for(String s: this.dataQueues.keySet())
+		if(System.currentTimeMillis() < this.storeRetryTime)return;//metrics db failed recently, queues spill over meanwhile
+	    for(String s: this.dataQueues.keySet())
+	    {
+	      java.util.concurrent.ArrayBlockingQueue<MetricsData> q = this.dataQueues.get(s);
+	      List<MetricsData> q2 = new ArrayList<MetricsData>(50);
+	      while(true)
 	      {
-	    	java.util.concurrent.ArrayBlockingQueue<MetricsData> q = this.dataQueues.get(s);
-	        List<MetricsData> q2 = new ArrayList<MetricsData>(50);
-	        while(true)
-	        {
-	          MetricsData bufData = q.poll();
-	          if(bufData == null)//if nothing there, go to next queue.
-	            break;
-	          q2.add(bufData);//accumulate all data from the same queue
-	        }
-	        if(q2.size()>0)
-	        {
-	    	  java.sql.PreparedStatement stmt = null;
-	          logger.fine("Store "+q2.size()+" "+s+" metric records.");
-	          long currTime = System.currentTimeMillis();
-	          if(currTime - this.lastConnTime >30000)
-	          {
-	        	  DBUtils.close(storeConnection);
-	        	  storeConnection = null;
-	          }
-	          if(storeConnection == null)
-	          {
-	        	  storeConnection = this.createConnection(true);
-  	              this.lastConnTime = currTime;
-	          }
-	          MetricsGroup mg = this.metricsGroups.get(s);//generic metrics
-	          if(mg.isStoreInCommonTable())
-	          {
-	        	  storeGenericMetric( s, q2,  storeConnection);
-		          this.lastConnTime = System.currentTimeMillis();
-		          logger.fine("Stored "+q2.size()+" "+s+" metric records.");
-	        	  continue;//go to next type
-	          }
-	          //builtin metrics
-	          String sql = this.insertSQL.get(s);
-	            stmt = storeConnection.prepareStatement(sql);
-	            for(MetricsData mdata:q2)
-	            {
-	        	  ByteBuffer buf = mdata.data;  
-	              int idx = 1;
-	              int pos = 0;
-	              stmt.setInt(idx++, buf.getInt(pos));pos+=4;//dbid
-	              stmt.setInt(idx++, buf.getInt(pos));pos+=4;//snap_id
-	              if(mg.getKeyColumn() != null && !mg.getKeyColumn().isEmpty())
-	              {
-	            	if (mdata.dataKey == null)
-	            		stmt.setNull(idx++, java.sql.Types.VARCHAR);
-	            	else
-	            		stmt.setString(idx++, mdata.dataKey);
-	              }
-	              stmt.setString(idx++, sdf.format(new java.util.Date(buf.getLong(pos))));pos+=8;//timestamp
-	              stmt.setInt(idx++, buf.getInt(pos));pos+=4;//sql time
-	            
-	              List<Metric> ms = mg.getMetrics();
-	              int len = ms.size();
-				  for(int i=0;i<len;i++)
-				  {
-				    Metric m = ms.get(i);
-				    if(m.getDataType()==MetricDataType.BYTE)
-				    {
-				      stmt.setInt(idx++, buf.get(pos));pos++;
-				    }else if(m.getDataType()==MetricDataType.SHORT)
-				    {
-					 stmt.setInt(idx++, buf.getShort(pos));pos+=2;				 
-				    }else if(m.getDataType()==MetricDataType.INT)
-				    {
-					 stmt.setInt(idx++, buf.getInt(pos));pos+=4;
-				    }else if(m.getDataType()==MetricDataType.LONG)
-				    {
-					  stmt.setLong(idx++,buf.getLong(pos));pos+=8;
-				    }else if(m.getDataType()==MetricDataType.FLOAT)
-				    {
-					  stmt.setString(idx++, df.format(buf.getFloat(pos)));pos+=4;
-				    }else if(m.getDataType()==MetricDataType.DOUBLE)
-				    {
-					  stmt.setString(idx++, df.format(buf.getDouble(pos)));pos+=8;
-				    }					
-			      }//one row
-		          stmt.execute();
-		          stmt.clearBatch();
-	            }//for loop
-	            //try{
-	        	//  stmt.executeBatch();
-	            //}catch(Exception iex)
-	            //{
-	        	// logger.warning("Failed: "+sql);
-	        	//  throw iex;
-	            //}
-	          //storeConnection.commit();
-	          this.lastConnTime = System.currentTimeMillis();
-	          stmt.close(); stmt = null;
-	          logger.fine("Stored "+q2.size()+" "+s+" metric records.");
-	        }
+	        MetricsData bufData = q.poll();
+	        if(bufData == null)//if nothing there, go to next queue.
+	          break;
+	        q2.add(bufData);//accumulate all data from the same queue
 	      }
-	    }catch(Exception ex)
-	    {
-	      logger.log(Level.WARNING, "Exception when store metrics", ex);
-	      if(ex instanceof com.mysql.jdbc.exceptions.jdbc4.MySQLNonTransientConnectionException)
+	      if(q2.size()==0)continue;
+	      try
+	      {
+	        logger.fine("Store "+q2.size()+" "+s+" metric records.");
+	        storeRows(s, this.metricsGroups.get(s), q2, getStoreConnection());
+	        this.lastConnTime = System.currentTimeMillis();
+	        logger.fine("Stored "+q2.size()+" "+s+" metric records.");
+	      }catch(Exception ex)
 	      {
-	    	  DBUtils.close(storeConnection);
-	    	  storeConnection = null;
+	        storeFailed(ex);
+	        //keep them for replay, the rest stay in the queues
+	        spill(s, q2);
+	        return;
 	      }
-	      if(storeConnection!=null){try{storeConnection.rollback();}catch(Exception iex){}}
 	    }
-		finally
-	    {
-		  //DBUtils.close(stmt);
-	      //DBUtils.close(conn);
-	    }	  
+	  }
+
+	  /**
+	   * The store connection, reconnect if it has been idle for 30 seconds
+	   * @return
+	   * @throws SQLException
+	   */
+	  private Connection getStoreConnection() throws SQLException
+	  {
+		long currTime = System.currentTimeMillis();
+		if(currTime - this.lastConnTime >30000)
+		{
+		  DBUtils.close(storeConnection);
+		  storeConnection = null;
+		}
+		if(storeConnection == null)
+		{
+		  storeConnection = this.createConnection(false);
+		  if(storeConnection == null)
+			throw new SQLException("Failed to connect to metrics db");
+		  //derby ignores the flag, and we commit per batch
+		  storeConnection.setAutoCommit(false);
+		  this.lastConnTime = currTime;
+		}
+		return storeConnection;
+	  }
+
+	  /**
+	   * Store rows of one sink table and commit
+	   */
+	  private void storeRows(String s, MetricsGroup mg, List<MetricsData> q2, Connection conn) throws SQLException
+	  {
+		if(mg.isStoreInCommonTable())//generic metrics
+		{
+		  storeGenericMetric( s, q2,  conn);
+		  commitBatch(conn, q2.size());
+		}else
+		  storeBuiltinMetric(s, mg, q2, conn);//builtin metrics
+	  }
+
+	  private void storeFailed(Exception ex)
+	  {
+		this.storeFailures.incrementAndGet();
+		this.storeRetryTime = System.currentTimeMillis() + STORE_RETRY_MILLIS;
+		logger.log(Level.WARNING, "Exception when store metrics", ex);
+		if(ex instanceof com.mysql.jdbc.exceptions.jdbc4.MySQLNonTransientConnectionException)
+		{
+		  DBUtils.close(storeConnection);
+		  storeConnection = null;
+		}
+		if(storeConnection!=null){try{storeConnection.rollback();}catch(Exception iex){}}
+	  }
+
+	  /**
+	   * Keep records in the spill journal. Without journal, they are lost as before.
+	   */
+	  private void spill(String s, List<MetricsData> q2)
+	  {
+		if(q2.size() == 0)return;
+		if(!this.spillJournal.isEnabled())
+		{
+		  logger.warning("Lost "+q2.size()+" "+s+" metric records");
+		  return;
+		}
+		for(MetricsData mdata: q2)
+		  this.spillJournal.append(s, mdata.dataKey, mdata.data);
+	  }
+
+	  /**
+	   * Store spilled records, a transaction of REPLAY_RECORDS at a time, until REPLAY_MILLIS is used.
+	   * If a batch fails for other reasons than the connection, its rows are stored one by one.
+	   * Rows already stored, by a batch committed before a failure or by a replay before a crash,
+	   * are skipped, and so are rows metrics db does not take, so they cannot hold up the rest.
+	   * Records not matching the current definition of their metrics group are dropped without trying.
+	   */
+	  protected void replaySpill()
+	  {
+		long startTime = System.currentTimeMillis();
+		while(System.currentTimeMillis() - startTime < REPLAY_MILLIS && !this.stopped)
+		{
+		  if(System.currentTimeMillis() < this.storeRetryTime || !this.spillJournal.hasPending())return;
+		  List<MetricsSpillJournal.SpilledRecord> records = this.spillJournal.peek(REPLAY_RECORDS);
+		  if(records.size() == 0)return;
+		  Map<String, List<MetricsData>> byTable = new java.util.LinkedHashMap<String, List<MetricsData>>();
+		  for(MetricsSpillJournal.SpilledRecord r: records)
+		  {
+			List<MetricsData> l = byTable.get(r.table);
+			if(l == null)
+			{
+			  l = new ArrayList<MetricsData>();
+			  byTable.put(r.table, l);
+			}
+			l.add(new MetricsData(r.key, r.data));
+		  }
+		  try
+		  {
+			Connection conn = getStoreConnection();
+			for(Map.Entry<String, List<MetricsData>> e: byTable.entrySet())
+			{
+			  MetricsGroup mg = this.metricsGroups.get(e.getKey());
+			  if(mg == null)
+			  {
+				logger.warning("Drop "+e.getValue().size()+" spilled metric records of removed table "+e.getKey());
+				continue;
+			  }
+			  List<MetricsData> rows = new ArrayList<MetricsData>(e.getValue().size());
+			  for(MetricsData mdata: e.getValue())
+			  {
+				if(isValidRecord(mg, mdata.data))rows.add(mdata);
+			  }
+			  if(rows.size() < e.getValue().size())
+			  {
+				this.replayRejected.addAndGet(e.getValue().size() - rows.size());
+				logger.warning("Drop "+(e.getValue().size() - rows.size())+" spilled "+e.getKey()+" metric records not matching its current definition");
+			  }
+			  if(rows.size() == 0)continue;
+			  try
+			  {
+				storeRows(e.getKey(), mg, rows, conn);
+			  }catch(Exception ex)
+			  {
+				if(isTransientFailure(ex, conn))throw ex;
+				conn.rollback();
+				for(MetricsData mdata: rows)
+				  storeSpilledRow(e.getKey(), mg, mdata, conn);
+			  }
+			}
+			this.lastConnTime = System.currentTimeMillis();
+			this.spillJournal.commit(records);
+		  }catch(Exception ex)
+		  {
+			storeFailed(ex);
+			return;
+		  }
+		}
+	  }
+
+	  /**
+	   * Store a spilled record alone. If metrics db does not take it, other than for connection
+	   * or transaction failures, it is skipped.
+	   */
+	  private void storeSpilledRow(String s, MetricsGroup mg, MetricsData mdata, Connection conn) throws SQLException
+	  {
+		try
+		{
+		  storeRows(s, mg, java.util.Collections.singletonList(mdata), conn);
+		}catch(Exception ex)
+		{
+		  if(isTransientFailure(ex, conn))throw ex;
+		  conn.rollback();
+		  if(ex instanceof SQLException && isDuplicateKey((SQLException)ex))
+			this.replayDuplicates.incrementAndGet();
+		  else
+		  {
+			this.replayRejected.incrementAndGet();
+			logger.log(Level.WARNING, "Skip spilled "+s+" metric record of db "+mdata.data.getInt(0), ex);
+		  }
+		}
+	  }
+
+	  /**
+	   * Record length as the sink table expects it. Metrics definition could change after a record is spilled.
+	   */
+	  private static boolean isValidRecord(MetricsGroup mg, ByteBuffer data)
+	  {
+		if(mg.isStoreInCommonTable())
+		  return data.limit() == GENERIC_RECORD_LENGTH;
+		return data.limit() == MetricsRecordEncoder.HEADER_LENGTH + mg.getLength();
+	  }
+
+	  /**
+	   * Failures the same row could pass later: connection, transaction rollback or timeout
+	   */
+	  private static boolean isTransientFailure(Exception ex, Connection conn)
+	  {
+		if(ex instanceof com.mysql.jdbc.exceptions.jdbc4.MySQLNonTransientConnectionException
+			|| ex instanceof java.sql.SQLTransientException || ex instanceof java.sql.SQLRecoverableException)
+		  return true;
+		if(ex instanceof SQLException)
+		{
+		  String state = ((SQLException)ex).getSQLState();
+		  if(state != null && (state.startsWith("08") || state.startsWith("40") || state.startsWith("41")))
+			return true;
+		}
+		try
+		{
+		  return !conn.isValid(5);
+		}catch(Exception iex)
+		{
+		  return true;
+		}
+	  }
+
+	  /**
+	   * Unique key violation, MySQL error 1062 or Derby 23505
+	   */
+	  private static boolean isDuplicateKey(SQLException ex)
+	  {
+		for(SQLException e = ex; e != null; e = e.getNextException())
+		{
+		  if("23505".equals(e.getSQLState()) || ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062))
+			return true;
+		}
+		return false;
+	  }
+
+	  /**
+	   * Store builtin metrics, one transaction per writeBatchSize rows. The default uses JDBC batching,
+	   * subclass can override it with a more efficient way supported by the target database.
+	   * @param s sink table name
+	   * @param mg
+	   * @param q2
+	   * @param conn non autocommit connection
+	   * @throws SQLException
+	   */
+	  protected void storeBuiltinMetric(String s, MetricsGroup mg, List<MetricsData> q2, Connection conn) throws SQLException
+	  {
+		  PreparedStatement stmt = null;
+		  int batchSize = this.getWriteBatchSize();
+		  try
+		  {
+			  stmt = conn.prepareStatement(this.insertSQL.get(s));
+			  int cnt = 0;
+			  for(MetricsData mdata:q2)
+			  {
+				  bindBuiltinRow(stmt, 1, mg, mdata);
+				  stmt.addBatch();
+				  cnt++;
+				  if(cnt >= batchSize)
+				  {
+					  stmt.executeBatch();
+					  stmt.clearBatch();
+					  commitBatch(conn, cnt);
+					  cnt = 0;
+				  }
+			  }//for loop
+			  if(cnt>0)
+			  {
+				  stmt.executeBatch();
+				  commitBatch(conn, cnt);
+			  }
+			  stmt.close(); stmt = null;
+		  }finally
+		  {
+			  DBUtils.close(stmt);
+		  }
+	  }
+	  
+	  /**
+	   * Bind one builtin metrics row, starting from parameter idx.
+	   * Numeric values are bound with their own types instead of formatted strings.
+	   * @param stmt
+	   * @param idx the first parameter index to use
+	   * @param mg
+	   * @param mdata
+	   * @return next parameter index
+	   * @throws SQLException
+	   */
+	  protected int bindBuiltinRow(PreparedStatement stmt, int idx, MetricsGroup mg, MetricsData mdata) throws SQLException
+	  {
+		  ByteBuffer buf = mdata.data;  
+		  int pos = 0;
+		  stmt.setInt(idx++, buf.getInt(pos));pos+=4;//dbid
+		  stmt.setInt(idx++, buf.getInt(pos));pos+=4;//snap_id
+		  if(mg.getKeyColumn() != null && !mg.getKeyColumn().isEmpty())
+		  {
+			  if (mdata.dataKey == null)
+				  stmt.setNull(idx++, java.sql.Types.VARCHAR);
+			  else
+				  stmt.setString(idx++, mdata.dataKey);
+		  }
+		  stmt.setLong(idx++, Long.parseLong(sdf.format(new java.util.Date(buf.getLong(pos)))));pos+=8;//timestamp
+		  stmt.setInt(idx++, buf.getInt(pos));pos+=4;//sql time
+		  
+		  List<Metric> ms = mg.getMetrics();
+		  int len = ms.size();
+		  for(int i=0;i<len;i++)
+		  {
+			  MetricDataType dt = ms.get(i).getDataType();
+			  if(dt==MetricDataType.BYTE)
+			  {
+				  stmt.setInt(idx++, buf.get(pos));pos++;
+			  }else if(dt==MetricDataType.SHORT)
+			  {
+				  stmt.setInt(idx++, buf.getShort(pos));pos+=2;				 
+			  }else if(dt==MetricDataType.INT)
+			  {
+				  stmt.setInt(idx++, buf.getInt(pos));pos+=4;
+			  }else if(dt==MetricDataType.LONG)
+			  {
+				  stmt.setLong(idx++,buf.getLong(pos));pos+=8;
+			  }else if(dt==MetricDataType.FLOAT)
+			  {
+				  bindDecimal(stmt, idx++, buf.getFloat(pos));pos+=4;
+			  }else if(dt==MetricDataType.DOUBLE)
+			  {
+				  bindDecimal(stmt, idx++, buf.getDouble(pos));pos+=8;
+			  }					
+		  }//one row
+		  return idx;
+	  }
+	  
+	  /**
+	   * DECIMAL columns cannot take NaN or infinity, store them as NULL
+	   */
+	  private void bindDecimal(PreparedStatement stmt, int idx, double val) throws SQLException
+	  {
+		  if(Double.isNaN(val) || Double.isInfinite(val))
+			  stmt.setNull(idx, java.sql.Types.DECIMAL);
+		  else
+			  stmt.setDouble(idx, val);
+	  }
+	  
+	  /**
+	   * Commit current transaction of the store connection and record writer statistics
+	   * @param conn
+	   * @param rows number of rows inside this transaction
+	   * @throws SQLException
+	   */
+	  protected void commitBatch(Connection conn, int rows) throws SQLException
+	  {
+		  long startTime = System.nanoTime();
+		  conn.commit();
+		  long commitTime = (System.nanoTime() - startTime)/1000;//microseconds
+		  this.rowsWritten.addAndGet(rows);
+		  this.batchesWritten.incrementAndGet();
+		  this.commitTimeTotal.addAndGet(commitTime);
+		  if(commitTime > this.commitTimeMax.get())
+			  this.commitTimeMax.set(commitTime);//only writer thread updates it
+	  }
+	  
+	  /**
+	   * Writer statistics, for status page
+	   * @return
+	   */
+	  public Map<String, String> getWriterStats()
+	  {
+		  Map<String, String> stats = new java.util.LinkedHashMap<String, String>();
+		  long batches = this.batchesWritten.get();
+		  stats.put("writer.batchSize", String.valueOf(this.getWriteBatchSize()));
+		  stats.put("writer.rows", String.valueOf(this.rowsWritten.get()));
+		  stats.put("writer.batches", String.valueOf(batches));
+		  stats.put("writer.failures", String.valueOf(this.storeFailures.get()));
+		  stats.put("writer.commitTimeAvgMicros", String.valueOf(batches>0?this.commitTimeTotal.get()/batches:0));
+		  stats.put("writer.commitTimeMaxMicros", String.valueOf(this.commitTimeMax.get()));
+		  int depth = 0;
+		  for(java.util.concurrent.ArrayBlockingQueue<MetricsData> q: this.dataQueues.values())
+			  depth += q.size();
+		  stats.put("writer.queueDepth", String.valueOf(depth));
+		  stats.put("writer.replayDuplicates", String.valueOf(this.replayDuplicates.get()));
+		  stats.put("writer.replayRejected", String.valueOf(this.replayRejected.get()));
+		  stats.putAll(this.spillJournal.getStats());
+		  return stats;
 	  }
 	  
 	  /**
@@ -784,7 +1168,7 @@ public abstract class MetricsDbBase implements  Runnable
 	    		  stmt.setString(idx++, df.format(buf.getDouble(pos)));
 	    		  stmt.addBatch();
 	    		  cnt++;
-	    		  if(cnt==20)
+	    		  if(cnt>=this.getWriteBatchSize())
 	    		  {
 	    			  stmt.executeBatch();
 	    			  cnt=0;
@@ -825,7 +1209,7 @@ public abstract class MetricsDbBase implements  Runnable
 			logger.log(Level.INFO, "To purge alerts up to " +endDate);
 		    try
 		    {
-		  	  conn = createConnection(true);
+		  	  conn = getPooledConnection();
 		      stmt = conn.prepareStatement(sql);
 		      stmt.setLong(1, endDate);
 		      stmt.execute();
@@ -841,7 +1225,54 @@ public abstract class MetricsDbBase implements  Runnable
 		  
 	  }
 	  /**
-	   * Purge metric data up to endDate
+	   * remove processlist digests exceeded retention threshold
+	   */
+	  public void purgeProcessListDigests(long endDate)
+	  {
+			Connection conn = null;
+			PreparedStatement stmt = null;
+		    String sql = "delete from "+PROCESSLIST_DIGEST_TABLENAME+" where ts<=?";
+			logger.log(Level.INFO, "To purge processlist digests up to " +endDate);
+		    try
+		    {
+		  	  conn = getPooledConnection();
+		      stmt = conn.prepareStatement(sql);
+		      stmt.setLong(1, endDate);
+		      stmt.execute();
+		    }catch(Exception ex)
+			{
+			  logger.log(Level.SEVERE, "Failed to purge processlist digests up to "+ endDate, ex);
+			  try {conn.rollback();}catch(Exception iex){}
+			}finally
+			{
+		      DBUtils.close(stmt);	
+			  DBUtils.close(conn);	
+			}		  
+	  }
+	  /**
+	   * Add partitions ahead of the current snapshot to partitioned metrics tables.
+	   * Invoked at startup, when a metrics table is created and by the retention job.
+	   * Nothing to do if metrics tables are not partitioned.
+	   */
+	  public void addPartitions()
+	  {
+	  }
+	  
+	  /**
+	   * Purge metric data up to endDate by dropping whole partitions, if the table is partitioned by SNAP_ID.
+	   * Rows in the partition holding endDate are kept until the next run after the partition is complete.
+	   * @param tableName
+	   * @param endDate
+	   * @return false if the table is not partitioned, and has to be purged by purge(tableName, dbid, endDate) 
+	   */
+	  public boolean purgeByPartition(String tableName, long endDate)
+	  {
+		return false;
+	  }
+	  
+	  /**
+	   * Purge metric data up to endDate. The rows are deleted a range of snapshots at a time, 
+	   * so each statement commits a limited number of rows.
 	   * @param metricGroupName
 	   * @param dbid
 	   * @param endDate
@@ -849,7 +1280,7 @@ public abstract class MetricsDbBase implements  Runnable
 	  public void purge(String metricGroupName, int dbid, long endDate)
 	  {
 		int[] snaps = this.getSnapshostRange(-1, endDate) ;
-		if(snaps == null)return;//no data
+		if(snaps == null || snaps[1] <= 0)return;//no data
 
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -857,11 +1288,19 @@ public abstract class MetricsDbBase implements  Runnable
 		//logger.log(Level.INFO, "To purge metrics "+metricGroupName+" for db "+dbid+" up to " +endDate);
 	    try
 	    {
-	  	  conn = createConnection(true);
+	  	  conn = getPooledConnection();
 	      stmt = conn.prepareStatement(sql);
-	      stmt.setInt(1, dbid);
-	      stmt.setInt(2, snaps[1]);
-	      stmt.execute();
+	      //snapshots before snaps[0] have been purged by the previous run
+	      int snapId = snaps[0] > 0 ? snaps[0] : snaps[1];
+	      while(true)
+	      {
+	        snapId = Math.min(snaps[1], snapId + PURGE_SNAPSHOTS_PER_DELETE - 1);
+	        stmt.setInt(1, dbid);
+	        stmt.setInt(2, snapId);
+	        stmt.execute();
+	        if(snapId >= snaps[1])break;
+	        snapId++;
+	      }
 	  	  //logger.log(Level.INFO, "To purge metrics "+metricGroupName+" for db "+dbid+" up to " +endDate+", number of records: "+stmt.getUpdateCount());
 	      //conn.commit();
 	    }catch(Exception ex)
@@ -894,7 +1333,7 @@ public abstract class MetricsDbBase implements  Runnable
 	    	logger.log(Level.INFO, "To purge metrics "+metricGroupName+" for db "+dbid);
 	    try
 	    {
-	  	  conn = createConnection(true);
+	  	  conn = getPooledConnection();
 	      stmt = conn.prepareStatement(sql);
 	      while(true)
 	      {
@@ -932,7 +1371,6 @@ public abstract class MetricsDbBase implements  Runnable
 		int[] snaps = this.getSnapshostRange(startDate, endDate) ;
 		if(snaps == null)return null;//no data
 		
-	    //later, connection pooling
 		ResultList rList = null;
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -942,7 +1380,7 @@ public abstract class MetricsDbBase implements  Runnable
 		logger.log(Level.FINE, "To retrieve metrics "+metricGroupName+" for db "+dbid+" with time range ("+startDate+", "+endDate+"), snap ("+snaps[0] +", "+snaps[1]+")");
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  stmt = conn.prepareStatement(sql);
 		  stmt.setFetchSize(1000);
 		  //stmt.setMaxRows(5000);
@@ -969,7 +1407,6 @@ public abstract class MetricsDbBase implements  Runnable
 
 		if(metrics==null||metrics.length==0)//not specify the metrics? Get all
 	    	return retrieveMetrics( metricGroupName,  dbid,  startDate,  endDate);
-	    //later, connection pooling
 		ResultList rList = null;
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -991,7 +1428,7 @@ public abstract class MetricsDbBase implements  Runnable
 		logger.log(Level.INFO, "To retrieve metrics "+metricGroupName+", metrics ("+sb.toString()+") for db "+dbid+" with time range ("+startDate+", "+endDate+"), snap ("+snaps[0]+", "+snaps[1]+")");
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  stmt = conn.prepareStatement(sql);
 		  stmt.setFetchSize(1000);
 		  //stmt.setMaxRows(5000);
@@ -1021,7 +1458,6 @@ public abstract class MetricsDbBase implements  Runnable
 
 		if(metrics==null||metrics.length==0)//not specify the metrics? Get all
 	    	return retrieveMetrics( metricGroupName,  dbid,  startDate,  endDate);
-	    //later, connection pooling
 		ResultList rList = null;
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -1047,7 +1483,7 @@ public abstract class MetricsDbBase implements  Runnable
 		logger.log(Level.INFO, "To retrieve metrics "+metricGroupName+", metrics ("+sb.toString()+") for db "+dbid+" with time range ("+startDate+", "+endDate+"), snap ("+snaps[0]+", "+snaps[1]+")");
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  stmt = conn.prepareStatement(sql);
 		  stmt.setFetchSize(1000);
 		  //stmt.setMaxRows(5000);
@@ -1080,7 +1516,6 @@ public abstract class MetricsDbBase implements  Runnable
 		int[] snaps = this.getSnapshostRange(startDate, endDate) ;
 		if(snaps == null)return null;//no data
 
-		//later, connection pooling
 		ResultList rList = null;
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -1101,7 +1536,7 @@ public abstract class MetricsDbBase implements  Runnable
 		logger.log(Level.INFO, "To retrieve "+metric+", "+ code+" on db "+dbid+" with time range ("+startDate+", "+endDate+"), using "+sql);
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  stmt = conn.prepareStatement(sql);
 		  stmt.setFetchSize(1000);
 		  //stmt.setMaxRows(5000);
@@ -1147,11 +1582,265 @@ public abstract class MetricsDbBase implements  Runnable
 		return rList;
 	  }
 
+	  /**
+	   * Retrieve metrics of one host into a MetricSeries, filled from the result set without converting values to String.
+	   * The columns are SNAP_ID, TS and the metrics, ordered by snap_id.
+	   * @param metricGroupName metrics table name
+	   * @param metrics
+	   * @param agg if true, sum or avg the rows of the same snapshot, used by metrics with key column
+	   * @param dbid
+	   * @param startDate
+	   * @param endDate
+	   * @return
+	   */
+	  public MetricSeries retrieveMetricSeries(String metricGroupName, Metric[] metrics, boolean agg, int dbid, long startDate, long endDate)
+	  {
+		int[] snaps = this.getSnapshostRange(startDate, endDate) ;
+		if(snaps == null || metrics == null || metrics.length == 0)return null;//no data
+
+		if(!agg)
+		{
+		  MetricSeries hot = this.hotWindow.retrieve(metricGroupName, metrics, java.util.Collections.singletonList(dbid), false, snaps[0], snaps[1]);
+		  if(hot != null)return hot;
+		}
+		String selectList = metricsSelectList(metrics, agg, false);
+		String sql = "select "+selectList+" from "+metricGroupName+" where dbid=? and snap_id between ? and ?"
+		    + (agg?" group by snap_id, ts":"") + " order by snap_id";
+		logger.log(Level.INFO, "To retrieve metrics "+metricGroupName+", metrics ("+selectList+") for db "+dbid+" with time range ("+startDate+", "+endDate+"), snap ("+snaps[0]+", "+snaps[1]+")");
+		MetricSeries series = null;
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try
+		{
+		  conn = getPooledConnection();
+		  stmt = conn.prepareStatement(sql);
+		  stmt.setFetchSize(1000);
+		  stmt.setInt(1, dbid);
+		  stmt.setInt(2, snaps[0]);
+		  stmt.setInt(3,  snaps[1]);
+		  rs = stmt.executeQuery();
+		  series = MetricSeries.fromResultSet(rs, 5000);
+		}catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Failed to retrieve metrics "+metricGroupName+" for db "+dbid+" with time range ("+startDate+", "+endDate+")", ex);
+		}finally
+		{
+	      DBUtils.close(rs);	
+	      DBUtils.close(stmt);	
+		  DBUtils.close(conn);	
+		}
+		return series;
+	  }
+
+	  /**
+	   * Retrieve metrics of multiple hosts with dbid in (...), so a group level chart does not need one query per host.
+	   * The columns are DBID, SNAP_ID, TS and the metrics. Rows are ordered by dbid and snap_id.
+	   * @param metricGroupName metrics table name
+	   * @param metrics
+	   * @param agg if true, sum or avg the rows of the same snapshot, used by metrics with key column
+	   * @param dbids
+	   * @param startDate
+	   * @param endDate
+	   * @return
+	   */
+	  public MetricSeries retrieveMetricSeries(String metricGroupName, Metric[] metrics, boolean agg, List<Integer> dbids, long startDate, long endDate)
+	  {
+		int[] snaps = this.getSnapshostRange(startDate, endDate) ;
+		if(snaps == null || metrics == null || metrics.length == 0)return null;//no data
+		List<Integer> ids = sortedDbids(dbids);
+		if(ids.size() == 0)return null;
+		if(!agg)
+		{
+		  MetricSeries hot = this.hotWindow.retrieve(metricGroupName, metrics, ids, true, snaps[0], snaps[1]);
+		  if(hot != null)return hot;
+		}
+
+		String selectList = metricsSelectList(metrics, agg, true);
+		logger.log(Level.INFO, "To retrieve metrics "+metricGroupName+", metrics ("+selectList+") for "+ids.size()+" dbs with time range ("+startDate+", "+endDate+"), snap ("+snaps[0]+", "+snaps[1]+")");
+
+		MetricSeries series = null;
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try
+		{
+		  conn = getPooledConnection();
+		  for(int from = 0; from < ids.size(); from += MAX_DBIDS_PER_QUERY)
+		  {
+			int to = Math.min(ids.size(), from + MAX_DBIDS_PER_QUERY);
+			int listSize = dbidListSize(to - from);
+			String sql = "select "+selectList+" from "+metricGroupName+" where dbid in "+dbidInList(listSize)+" and snap_id between ? and ?"
+			    + (agg?" group by dbid, snap_id, ts":"") + " order by dbid, snap_id";
+			stmt = conn.prepareStatement(sql);
+			stmt.setFetchSize(1000);
+			int idx = bindDbids(stmt, 1, ids, from, to, listSize);
+			stmt.setInt(idx++, snaps[0]);
+			stmt.setInt(idx++, snaps[1]);
+			rs = stmt.executeQuery();
+			MetricSeries more = MetricSeries.fromResultSet(rs, 5000*(to - from));
+			if(series == null)series = more;
+			else series.append(more);
+			DBUtils.close(rs); rs = null;
+			DBUtils.close(stmt); stmt = null;
+		  }
+		}catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Failed to retrieve metrics "+metricGroupName+" for dbs "+ids+" with time range ("+startDate+", "+endDate+")", ex);
+		}finally
+		{
+	      DBUtils.close(rs);	
+	      DBUtils.close(stmt);	
+		  DBUtils.close(conn);	
+		}
+		return series;
+	  }
+
+	  /**
+	   * Retrieve a user defined metric stored in METRIC_GENERIC for one host.
+	   * The columns are SNAP_ID, TS and the metric, ordered by snap_id.
+	   * @param metric
+	   * @param dbid
+	   * @param startDate
+	   * @param endDate
+	   * @return
+	   */
+	  public MetricSeries retrieveUDMMetricSeries(String metric, int dbid, long startDate, long endDate)
+	  {
+		List<Integer> dbids = new ArrayList<Integer>(1);
+		dbids.add(dbid);
+		return retrieveUDMMetricSeries(metric, dbids, false, startDate, endDate);
+	  }
+
+	  /**
+	   * Retrieve a user defined metric stored in METRIC_GENERIC for multiple hosts.
+	   * The columns are DBID, SNAP_ID, TS and the metric, ordered by dbid and snap_id.
+	   * @param metric
+	   * @param dbids
+	   * @param startDate
+	   * @param endDate
+	   * @return
+	   */
+	  public MetricSeries retrieveUDMMetricSeries(String metric, List<Integer> dbids, long startDate, long endDate)
+	  {
+		return retrieveUDMMetricSeries(metric, dbids, true, startDate, endDate);
+	  }
+
+	  private MetricSeries retrieveUDMMetricSeries(String metric, List<Integer> dbids, boolean withDbid, long startDate, long endDate)
+	  {
+		int[] snaps = this.getSnapshostRange(startDate, endDate) ;
+		if(snaps == null)return null;//no data
+		List<Integer> ids = sortedDbids(dbids);
+		if(ids.size() == 0)return null;
+		Integer code = this.metricCodeMap.get(metric);
+		if(code == null)
+		{
+			logger.warning("Failed to find metrics code for "+metric+", "+this.metricCodeMap);
+			return null;
+		}
+
+		MetricSeries series = null;
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try
+		{
+		  conn = getPooledConnection();
+		  for(int from = 0; from < ids.size(); from += MAX_DBIDS_PER_QUERY)
+		  {
+			int to = Math.min(ids.size(), from + MAX_DBIDS_PER_QUERY);
+			int listSize = dbidListSize(to - from);
+			String sql = "select "+(withDbid?"DBID, ":"")+"SNAP_ID, TS, VALUE from METRIC_GENERIC where dbid in "+dbidInList(listSize)
+			    +" and snap_id between ? and ? and METRIC_ID=? order by dbid, snap_id";
+			stmt = conn.prepareStatement(sql);
+			stmt.setFetchSize(1000);
+			int idx = bindDbids(stmt, 1, ids, from, to, listSize);
+			stmt.setInt(idx++, snaps[0]);
+			stmt.setInt(idx++, snaps[1]);
+			stmt.setLong(idx++, code);
+			rs = stmt.executeQuery();
+			MetricSeries more = MetricSeries.fromResultSet(rs, 5000*(to - from));
+			if(series == null)series = more;
+			else series.append(more);
+			DBUtils.close(rs); rs = null;
+			DBUtils.close(stmt); stmt = null;
+		  }
+		  if(series != null)series.setName(0, metric);
+		}catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Failed to retrieve UDM "+metric+" for dbs "+ids+" with time range ("+startDate+", "+endDate+")", ex);
+		}finally
+		{
+	      DBUtils.close(rs);	
+	      DBUtils.close(stmt);	
+		  DBUtils.close(conn);	
+		}
+		return series;
+	  }
+
+	  /**
+	   * Select list of metrics retrieval, SNAP_ID, TS and the metrics, with DBID in front if withDbid is true
+	   */
+	  private static String metricsSelectList(Metric[] metrics, boolean agg, boolean withDbid)
+	  {
+		StringBuilder sb = new StringBuilder();
+		sb.append(withDbid?"DBID, SNAP_ID, TS":"SNAP_ID, TS");
+		for(Metric me: metrics)
+		{
+			sb.append(", ");
+			if(!agg)
+				sb.append(me.getName());
+			else
+				sb.append(me.isIncremental()?"sum(":"avg(").append(me.getName()).append(") ").append(me.getName());
+		}
+		return sb.toString();
+	  }
+
+	  static List<Integer> sortedDbids(List<Integer> dbids)
+	  {
+		java.util.TreeSet<Integer> ids = new java.util.TreeSet<Integer>();
+		if(dbids != null)
+		  for(Integer id: dbids)
+			if(id != null)ids.add(id);
+		return new ArrayList<Integer>(ids);
+	  }
+
+	  /**
+	   * Number of placeholders of dbid in list, rounded up to power of 2, so only a few distinct
+	   * statements are prepared and they can be reused from statement cache.
+	   */
+	  static int dbidListSize(int n)
+	  {
+		int size = 4;
+		while(size < n)size <<= 1;
+		return size;
+	  }
+
+	  static String dbidInList(int size)
+	  {
+		StringBuilder sb = new StringBuilder(size*2+2);
+		sb.append("(");
+		for(int i=0;i<size;i++)
+		  sb.append(i==0?"?":",?");
+		sb.append(")");
+		return sb.toString();
+	  }
+
+	  /**
+	   * Bind dbids[from, to), unused placeholders repeat the last dbid
+	   * @return next parameter index
+	   */
+	  static int bindDbids(PreparedStatement stmt, int idx, List<Integer> dbids, int from, int to, int size) throws SQLException
+	  {
+		for(int i=0;i<size;i++)
+		  stmt.setInt(idx++, dbids.get(Math.min(from + i, to - 1)));
+		return idx;
+	  }
+
 	  public ResultList retrieveMetricsStatus(String metricGroupName, int dbid, long startDate, long endDate)
 	  {
 		int[] snaps = this.getSnapshostRange(startDate, endDate) ;
 		if(snaps == null)return null;//no data
-	    //later, connection pooling
 		ResultList rList = null;
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -1161,7 +1850,7 @@ public abstract class MetricsDbBase implements  Runnable
 		logger.log(Level.FINE, "Retrieve metrics status from "+metricGroupName+" for db "+dbid+" with time range ("+startDate+", "+endDate+")");
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  stmt = conn.prepareStatement(sql);
 		  stmt.setInt(1, dbid);
 		  stmt.setInt(2, snaps[0]);
@@ -1189,7 +1878,7 @@ public abstract class MetricsDbBase implements  Runnable
 			String sql = "select CODE_ID, NAME from METRIC_CODE";
 			try
 			{
-			  conn = createConnection(true);
+			  conn = getPooledConnection();
 			  stmt = conn.createStatement();
 			  rs = stmt.executeQuery(sql);
 			  while(rs!=null && rs.next())
@@ -1231,7 +1920,7 @@ public abstract class MetricsDbBase implements  Runnable
 				  String sql = "insert into METRIC_CODE (NAME) values (?)";
 				  try
 				  {
-					  conn = createConnection(true);
+					  conn = getPooledConnection();
 					  stmt = conn.prepareStatement(sql);
 					  stmt.setString(1, name);
 					  stmt.execute();
@@ -1269,7 +1958,7 @@ public abstract class MetricsDbBase implements  Runnable
 		  String sql = "insert into ALERT (DBID, TS, ALERT_TYPE, ALERT_REASON) values (?,?,?,?)";
 		  try
 		  {
-			  conn = createConnection(true);
+			  conn = getPooledConnection();
 			  stmt = conn.prepareStatement(sql);
 			  stmt.setInt(1, dbid);
 			  stmt.setLong(2, ts);
@@ -1288,6 +1977,124 @@ public abstract class MetricsDbBase implements  Runnable
 
 		  return false;
 	  }
+	  /**
+	   * Store the processlist digests of one sampling bucket, in a single transaction
+	   * @param dbid
+	   * @param ts bucket start time, yyyyMMddHHmmss in UTC
+	   * @param polls number of processlist samples taken within the bucket
+	   * @param digests
+	   * @return
+	   */
+	  public boolean storeProcessListDigests(int dbid, long ts, int polls, Collection<ProcessListEntryAggregate> digests)
+	  {
+		  if(digests == null || digests.isEmpty())return true;
+		  Connection conn = null;
+		  PreparedStatement stmt = null;
+		  String sql = "insert into "+PROCESSLIST_DIGEST_TABLENAME
+				  +" (DBID, TS, DIGEST, POLLS, SAMPLES, TOTAL_TIME, MAX_TIME, USERS, HOSTS, SQL_TEXT) values (?,?,?,?,?,?,?,?,?,?)";
+		  try
+		  {
+			  conn = getPooledConnection();
+			  conn.setAutoCommit(false);
+			  stmt = conn.prepareStatement(sql);
+			  for(ProcessListEntryAggregate e: digests)
+			  {
+				  stmt.setInt(1, dbid);
+				  stmt.setLong(2, ts);
+				  stmt.setString(3, e.getChecksum());
+				  stmt.setInt(4, polls);
+				  stmt.setInt(5, e.getCount());
+				  stmt.setLong(6, e.getTotal_time_sec());
+				  stmt.setInt(7, e.getMax_time_sec());
+				  stmt.setString(8, breakdown(e.getUsers(), 255));
+				  stmt.setString(9, breakdown(e.getHosts(), 255));
+				  stmt.setString(10, truncate(e.getSql(), 2048));
+				  stmt.addBatch();
+			  }
+			  stmt.executeBatch();
+			  conn.commit();
+			  return true;
+		  }catch(Exception ex)
+		  {
+			  logger.log(Level.SEVERE, "Failed to store processlist digests for db "+dbid, ex);
+			  try {conn.rollback();}catch(Exception iex){}
+		  }finally
+		  {
+			  DBUtils.close(stmt);	
+			  DBUtils.close(conn);	
+		  }
+		  return false;
+	  }
+
+	  /**
+	   * Top statements of a db by total time, from processlist samples
+	   * @param dbid
+	   * @param startTs yyyyMMddHHmmss
+	   * @param endTs yyyyMMddHHmmss
+	   * @param maxCount
+	   * @return
+	   */
+	  public ResultList retrieveTopProcessListDigests(int dbid, String startTs, String endTs, int maxCount)
+	  {
+		  Connection conn = null;
+		  PreparedStatement stmt = null;
+		  ResultSet rs = null;
+		  String sql = "select DIGEST, sum(SAMPLES) SAMPLES, sum(TOTAL_TIME) TOTAL_TIME, max(MAX_TIME) MAX_TIME,"
+				  +" min(TS) FIRST_TS, max(TS) LAST_TS, max(SQL_TEXT) SQL_TEXT from "+PROCESSLIST_DIGEST_TABLENAME
+				  +" where DBID=? and TS between ? and ? group by DIGEST order by 3 desc";
+		  try
+		  {
+			  conn = getPooledConnection();
+			  stmt = conn.prepareStatement(sql);
+			  stmt.setInt(1, dbid);
+			  stmt.setLong(2, Long.parseLong(startTs));
+			  stmt.setLong(3, Long.parseLong(endTs));
+			  stmt.setMaxRows(maxCount);
+			  rs = stmt.executeQuery();
+			  return ResultListUtil.fromSqlResultSet(rs, maxCount);
+		  }catch(Exception ex)
+		  {
+			  logger.log(Level.SEVERE, "Failed to retrieve processlist digests for db "+dbid, ex);
+		  }finally
+		  {
+			  DBUtils.close(rs);
+			  DBUtils.close(stmt);	
+			  DBUtils.close(conn);	
+		  }
+		  return null;
+	  }
+
+	  /**
+	   * Format counts as name:count,name:count, largest first
+	   */
+	  private static String breakdown(Map<String, Integer> counts, int maxLength)
+	  {
+		  if(counts == null || counts.isEmpty())return null;
+		  List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+		  java.util.Collections.sort(entries, new java.util.Comparator<Map.Entry<String, Integer>>()
+		  {
+			  public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2)
+			  {
+				  return e2.getValue().compareTo(e1.getValue());
+			  }
+		  });
+		  StringBuilder sb = new StringBuilder();
+		  for(Map.Entry<String, Integer> e: entries)
+		  {
+			  String s = e.getKey()+":"+e.getValue();
+			  if(sb.length() + s.length() + 1 > maxLength)break;
+			  if(sb.length() > 0)sb.append(",");
+			  sb.append(s);
+		  }
+		  return sb.toString();
+	  }
+
+	  private static String truncate(String s, int maxLength)
+	  {
+		  if(s == null || s.length() <= maxLength)return s;
+		  return s.substring(0, maxLength);
+	  }
+
 	  public boolean markAlertEnd(long ts, int dbid, long end_ts)
 	  {
 		  logger.info("ALERT UPDATE: ("+dbid+", "+ts+", "+end_ts+")");
@@ -1297,7 +2104,7 @@ public abstract class MetricsDbBase implements  Runnable
 		  String sql = "update ALERT set end_ts=? where dbid=? and ts<=? and ts >= ? - 240000";
 		  try
 		  {
-			  conn = createConnection(true);
+			  conn = getPooledConnection();
 			  stmt = conn.prepareStatement(sql);
 			  stmt.setLong(1, end_ts);
 			  stmt.setInt(2, dbid);
@@ -1326,7 +2133,7 @@ public abstract class MetricsDbBase implements  Runnable
 		  String sql = "update ALERT set end_ts=? where dbid=? and ts<=? and ts >= ? - 240000 and ALERT_TYPE=?";
 		  try
 		  {
-			  conn = createConnection(true);
+			  conn = getPooledConnection();
 			  stmt = conn.prepareStatement(sql);
 			  stmt.setLong(1, end_ts);
 			  stmt.setInt(2, dbid);
@@ -1406,7 +2213,7 @@ public abstract class MetricsDbBase implements  Runnable
 		Map<Integer, AlertSummary> sumMap = null;
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  
 		  sumMap = this.retrieve7DaysAlertsSummary(conn,  filteredDbs);
 		  
@@ -1755,7 +2562,7 @@ public abstract class MetricsDbBase implements  Runnable
 			try
 			{
 				logger.info("Start to sync meta DB host info with metrics DB host info");
-				conn = createConnection(true);
+				conn = getPooledConnection();
 				Map<Integer, DBInstanceInfo> metricsHosts = loadDbInfo(conn);
 				
 				for(DBInstanceInfo info: dbList)
@@ -1806,7 +2613,7 @@ public abstract class MetricsDbBase implements  Runnable
 	    Connection conn = null;
 		try
 		{		
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  if( removeDBInfo(conn, dbGroupName, hostName,owner,force) )
 			  return this.removeAlertSetting(conn, dbGroupName, hostName);
 		  return false;
@@ -1852,7 +2659,7 @@ public abstract class MetricsDbBase implements  Runnable
 	    Connection conn = null;
 		try
 		{		
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  return removeAlertSetting(conn, dbGroupName, hostName);
 		}catch(Exception ex)
 		{
@@ -1900,7 +2707,7 @@ public abstract class MetricsDbBase implements  Runnable
 	    Connection conn = null;
 		try
 		{			
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  return removeDbGroup(conn, dbGroupName, owner, force);
 		}catch(Exception ex)
 		{
@@ -1948,7 +2755,7 @@ public abstract class MetricsDbBase implements  Runnable
 	    Connection conn = null;
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  return retrieveDBInfo(conn, dbGroupName, hostName);
 		}catch(Exception ex)
 		{
@@ -2020,7 +2827,7 @@ public abstract class MetricsDbBase implements  Runnable
 		boolean findOne = false;
 		try
 		{
-		  conn = createConnection(true);
+		  conn = getPooledConnection();
 		  //first, check if we have record
 		  findOne = this.retrieveDBInfo(conn, dbinfo.getDbGroupName().toLowerCase(), dbinfo.getHostName().toLowerCase())!=null;
 		  if(findOne)
@@ -2098,7 +2905,7 @@ public abstract class MetricsDbBase implements  Runnable
 		boolean findOne = false;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  //first, check if we have record
 		  pstmt = conn.prepareStatement("select ALERT_TYPE, THRESHOLD from "+ ALERTSETTING_TABLENAME +" where DBGROUPNAME=? and HOSTNAME=?");
 		  pstmt.setString(1, dbgroup);
@@ -2162,7 +2969,7 @@ public abstract class MetricsDbBase implements  Runnable
 		int count = 0;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  //first, check if we have record
 		  pstmt = conn.createStatement();
 		  rs = pstmt.executeQuery("select DBGROUPNAME, HOSTNAME, ALERT_TYPE, THRESHOLD from "+ ALERTSETTING_TABLENAME);
@@ -2202,7 +3009,7 @@ public abstract class MetricsDbBase implements  Runnable
 		PreparedStatement pstmt = null;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		   pstmt = conn.prepareStatement(sql2);
 		   pstmt.setInt(1, enabled?1:0);
 		   pstmt.setString(2, dbGroup);
@@ -2234,7 +3041,7 @@ public abstract class MetricsDbBase implements  Runnable
 		PreparedStatement pstmt = null;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		   pstmt = conn.prepareStatement(sql2);
 		   pstmt.setInt(1, enabled?1:0);
 		   pstmt.setString(2, dbGroup);
@@ -2266,7 +3073,7 @@ public abstract class MetricsDbBase implements  Runnable
 		PreparedStatement pstmt = null;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		   pstmt = conn.prepareStatement(sql2);
 		   pstmt.setInt(1, enabled?1:0);
 		   pstmt.setString(2, dbGroup);
@@ -2316,7 +3123,7 @@ public abstract class MetricsDbBase implements  Runnable
 		java.util.ArrayList<DBInstanceInfo> dbList = new java.util.ArrayList<DBInstanceInfo>();
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  stmt = conn.createStatement();
 		  rs = stmt.executeQuery(sql);
 		  while(rs!=null && rs.next())
@@ -2365,7 +3172,7 @@ public abstract class MetricsDbBase implements  Runnable
 			String retrieveSQL = "select SNAP_ID from SNAPSHOTS where START_TS=?";
 			try
 			{
-			  conn = this.createConnection(true);
+			  conn = this.getPooledConnection();
 			  stmt = conn.prepareStatement(insertSQL);
 			  stmt.setLong(1, ts);
 			  stmt.execute();
@@ -2375,7 +3182,9 @@ public abstract class MetricsDbBase implements  Runnable
 			  rs = stmt.executeQuery();
 			  if(rs!=null && rs.next())
 			  {
-				  return rs.getInt(1);
+				  int snapId = rs.getInt(1);
+				  this.snapshotIndex.add(ts, snapId);
+				  return snapId;
 			  }
 			}catch(Exception ex)
 			{
@@ -2389,12 +3198,20 @@ public abstract class MetricsDbBase implements  Runnable
 	  }
 	  
 	  /**
-	   * Retrieve snapshot range based on given timestamp range 
+	   * Retrieve snapshot range based on given timestamp range.
+	   * Use the in memory index, unless it failed to load at startup.
 	   * @param startTs
 	   * @param endTs
 	   * @return
 	   */
 	  public int[] getSnapshostRange(long startTs, long endTs)
+	  {
+		if(this.snapshotIndex.isLoaded())
+		  return this.snapshotIndex.getRange(startTs, endTs);
+		return querySnapshotRange(startTs, endTs);
+	  }
+	  
+	  private int[] querySnapshotRange(long startTs, long endTs)
 	  {
 			Connection conn = null;
 			PreparedStatement stmt = null;
@@ -2402,7 +3219,7 @@ public abstract class MetricsDbBase implements  Runnable
 			String retrieveSQL = "select min(SNAP_ID) min_snap_id, max(snap_id) max_snap_id from SNAPSHOTS where START_TS between ? and ?";
 			try
 			{
-			  conn = this.createConnection(true);
+			  conn = this.getPooledConnection();
 			  stmt = conn.prepareStatement(retrieveSQL);
 			  stmt.setLong(1, startTs);
 			  stmt.setLong(2, endTs);
@@ -2422,6 +3239,82 @@ public abstract class MetricsDbBase implements  Runnable
 		  return null;//failed
 	  }
 	  
+	  /**
+	   * Load all snapshots into memory, at startup
+	   */
+	  private void loadSnapshotIndex()
+	  {
+			Connection conn = null;
+			Statement stmt = null;
+			ResultSet rs = null;
+			String sql = "select START_TS, SNAP_ID from SNAPSHOTS order by START_TS";
+			long[] ts = new long[1024];
+			int[] ids = new int[1024];
+			int count = 0;
+			try
+			{
+			  conn = getPooledConnection();
+			  stmt = conn.createStatement();
+			  rs = stmt.executeQuery(sql);
+			  while(rs!=null && rs.next())
+			  {
+				if(count == ts.length)
+				{
+				  ts = java.util.Arrays.copyOf(ts, count*2);
+				  ids = java.util.Arrays.copyOf(ids, count*2);
+				}
+				ts[count] = rs.getLong(1);
+				ids[count] = rs.getInt(2);
+				count++;
+			  }
+			  this.snapshotIndex.load(ts, ids, count);
+			  logger.info("Loaded snapshots: "+count);
+			}catch(Exception ex)
+			{
+				logger.log(Level.SEVERE, "Failed to load SNAPSHOTS, snapshot range will be queried from metrics db", ex);
+			}finally
+			{
+			  DBUtils.close(rs);	
+		      DBUtils.close(stmt);	
+			  DBUtils.close(conn);	
+			}
+	  }
+	  
+	  /**
+	   * Remove snapshots before the given timestamp from memory, after metrics data are purged.
+	   * @param endDate in yyyyMMddHHmmss format
+	   */
+	  public void pruneSnapshotIndex(long endDate)
+	  {
+		int n = this.snapshotIndex.prune(endDate);
+		logger.info("Removed "+n+" snapshots before "+endDate+" from memory, remaining "+this.snapshotIndex.size());
+	  }
+	  
+	  public SnapshotIndex getSnapshotIndex()
+	  {
+		return this.snapshotIndex;
+	  }
+
+	  public MetricsDbConnectionPool getConnectionPool()
+	  {
+		return this.connectionPool;
+	  }
+
+	  public MetricsRollup getRollup()
+	  {
+		return this.rollup;
+	  }
+
+	  public MetricsSpillJournal getSpillJournal()
+	  {
+		return spillJournal;
+	  }
+
+	  public MetricsHotWindow getHotWindow()
+	  {
+		return this.hotWindow;
+	  }
+	  
 	  /**
 	   * Update snapshot end timestamp
 	   * @param snap_id
@@ -2434,7 +3327,7 @@ public abstract class MetricsDbBase implements  Runnable
 			String sql = "update SNAPSHOTS set END_TS=? where SNAP_ID=?";
 			try
 			{
-			  conn = this.createConnection(true);
+			  conn = this.getPooledConnection();
 			  stmt = conn.prepareStatement(sql);
 			  stmt.setLong(1, ts);
 			  stmt.setInt(1, snap_id);
@@ -2457,7 +3350,7 @@ public abstract class MetricsDbBase implements  Runnable
 		  String sql = "select * from ALERT_SUBSCRIPT";
 		  try
 		  {
-			 conn = this.createConnection(true);
+			 conn = this.getPooledConnection();
 			 stmt = conn.createStatement();
 			 rs = stmt.executeQuery(sql);
 			 while(rs!=null && rs.next())
@@ -2492,7 +3385,7 @@ public abstract class MetricsDbBase implements  Runnable
 		boolean findOne = false;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  //first, check if we have record
 		  pstmt = conn.prepareStatement("select ID from "+ ALERT_SUBSCRIPT +" where DBGROUP=? and HOSTNAME=? and ALERT_NAME=?");
 		  pstmt.setString(1, sub.group);
@@ -2564,7 +3457,7 @@ public abstract class MetricsDbBase implements  Runnable
 		PreparedStatement pstmt = null;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  
 		  pstmt = conn.prepareStatement(sql2);
 		  pstmt.setString(1, sub.group);
@@ -2597,7 +3490,7 @@ public abstract class MetricsDbBase implements  Runnable
 		  String sql = "select * from " + METRICS_SUBSCRIPT;
 		  try
 		  {
-			 conn = this.createConnection(true);
+			 conn = this.getPooledConnection();
 			 stmt = conn.createStatement();
 			 rs = stmt.executeQuery(sql);
 			 while(rs!=null && rs.next())
@@ -2631,7 +3524,7 @@ public abstract class MetricsDbBase implements  Runnable
 		boolean findOne = false;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  //first, check if we have record
 		  pstmt = conn.prepareStatement("select ID from "+ METRICS_SUBSCRIPT +" where DBGROUP=? and HOSTNAME=? and MGROUP=? and MSUBGROUP=?");
 		  pstmt.setString(1, sub.group);
@@ -2692,7 +3585,7 @@ public abstract class MetricsDbBase implements  Runnable
 		PreparedStatement pstmt = null;
 		try
 		{
-		  conn = this.createConnection(true);
+		  conn = this.getPooledConnection();
 		  
 		  pstmt = conn.prepareStatement(sql2);
 		  pstmt.setString(1, sub.group);
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yahoo.dba.perf.myperf.common.DBUtils;
+
+/**
+ * Connections to metrics db used by UI retrieval and metadata updates. The metrics writer keeps
+ * its own connection and does not use this pool.
+ *
+ * A connection handed out is a wrapper, close() returns it to the pool, with uncommitted work rolled back
+ * and autocommit restored. Each pooled connection caches the statements prepared by prepareStatement(sql),
+ * close() on such statement only clears the parameters, so the same query is not parsed again on each request.
+ * Idle connections are validated before reuse. When all connections are in use, the caller waits for a while,
+ * then gets a connection outside of the pool, closed when returned.
+ * @author xrao
+ *
+ */
+public class MetricsDbConnectionPool
+{
+  private static Logger logger = Logger.getLogger(MetricsDbConnectionPool.class.getName());
+
+  private MetricsDbBase metricsDb;
+  private LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+  private int total = 0;//idle + in use, not including overflow connections
+  private volatile boolean closed = false;
+
+  private volatile int maxSize = 8;
+  private volatile int statementCacheSize = 50;//per connection
+  private volatile long validateIdleTime = 30000L;//validate connection before reuse if idled more than such time
+  private long checkoutWaitTime = 10000L;//wait when all connections are in use
+
+  //statistics
+  private AtomicLong checkouts = new AtomicLong();
+  private AtomicLong connects = new AtomicLong();
+  private AtomicLong connectFailures = new AtomicLong();
+  private AtomicLong waits = new AtomicLong();
+  private AtomicLong overflows = new AtomicLong();
+  private AtomicLong validationFailures = new AtomicLong();
+  private AtomicLong brokenConnections = new AtomicLong();
+  private AtomicLong statementHits = new AtomicLong();
+  private AtomicLong statementMisses = new AtomicLong();
+
+  public MetricsDbConnectionPool(MetricsDbBase metricsDb)
+  {
+    this.metricsDb = metricsDb;
+  }
+
+  /**
+   * Check out a connection with autocommit on.
+   * @return null if we cannot connect to metrics db
+   */
+  public Connection getConnection()
+  {
+    this.checkouts.incrementAndGet();
+    long waitUntil = -1L;
+    while(!this.closed)
+    {
+      PooledConnection pc = null;
+      boolean createNew = false;
+      synchronized(this)
+      {
+        if(!this.idle.isEmpty())
+          pc = this.idle.removeLast();//most recently used
+        else if(this.total < this.maxSize)
+        {
+          this.total++;
+          createNew = true;
+        }else
+        {
+          long now = System.currentTimeMillis();
+          if(waitUntil < 0)
+          {
+            waitUntil = now + this.checkoutWaitTime;
+            this.waits.incrementAndGet();
+          }
+          if(now >= waitUntil)
+            break;
+          try
+          {
+            this.wait(waitUntil - now);
+          }catch(InterruptedException ex)
+          {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          continue;
+        }
+      }
+      if(pc != null)
+      {
+        if(System.currentTimeMillis() - pc.lastUsed > this.validateIdleTime && !pc.validate())
+        {
+          this.validationFailures.incrementAndGet();
+          discard(pc);
+          continue;
+        }
+        return pc.lease();
+      }
+      if(createNew)
+      {
+        Connection conn = connect();
+        if(conn == null)
+        {
+          synchronized(this)
+          {
+            this.total--;
+            this.notifyAll();
+          }
+          return null;
+        }
+        return new PooledConnection(conn, false).lease();
+      }
+    }
+    //pool closed, or waited too long
+    if(!this.closed)
+    {
+      this.overflows.incrementAndGet();
+      logger.info("All "+this.maxSize+" metrics db connections are in use, open one outside of the pool");
+    }
+    Connection conn = connect();
+    return conn != null? new PooledConnection(conn, true).lease(): null;
+  }
+
+  private Connection connect()
+  {
+    Connection conn = this.metricsDb.createConnection(true);
+    if(conn == null)
+      this.connectFailures.incrementAndGet();
+    else
+      this.connects.incrementAndGet();
+    return conn;
+  }
+
+  private void checkin(PooledConnection pc)
+  {
+    if(pc.overflow)
+    {
+      pc.closeAll();
+      return;
+    }
+    boolean reuse = !pc.broken && pc.reset();
+    synchronized(this)
+    {
+      if(reuse && !this.closed)
+      {
+        pc.lastUsed = System.currentTimeMillis();
+        this.idle.add(pc);
+        this.notifyAll();
+        return;
+      }
+    }
+    if(pc.broken)
+      this.brokenConnections.incrementAndGet();
+    discard(pc);
+  }
+
+  private void discard(PooledConnection pc)
+  {
+    pc.closeAll();
+    synchronized(this)
+    {
+      this.total--;
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Close idle connections. Connections in use are closed when returned.
+   */
+  public void close()
+  {
+    List<PooledConnection> toClose = null;
+    synchronized(this)
+    {
+      this.closed = true;
+      toClose = new ArrayList<PooledConnection>(this.idle);
+      this.idle.clear();
+      this.total -= toClose.size();
+      this.notifyAll();
+    }
+    for(PooledConnection pc: toClose)
+      pc.closeAll();
+  }
+
+  public int getMaxSize()
+  {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize)
+  {
+    this.maxSize = maxSize>0?maxSize:1;
+  }
+
+  public int getStatementCacheSize()
+  {
+    return statementCacheSize;
+  }
+
+  /**
+   * @param statementCacheSize number of prepared statements cached per connection, 0 to disable
+   */
+  public void setStatementCacheSize(int statementCacheSize)
+  {
+    this.statementCacheSize = statementCacheSize>=0?statementCacheSize:0;
+  }
+
+  public long getValidateIdleTime()
+  {
+    return validateIdleTime;
+  }
+
+  public void setValidateIdleTime(long validateIdleTime)
+  {
+    this.validateIdleTime = validateIdleTime;
+  }
+
+  /**
+   * Statistics, for status page
+   * @return
+   */
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    int open = 0;
+    int idleCount = 0;
+    synchronized(this)
+    {
+      open = this.total;
+      idleCount = this.idle.size();
+    }
+    stats.put("metricsDbPool.maxSize", String.valueOf(this.maxSize));
+    stats.put("metricsDbPool.open", String.valueOf(open));
+    stats.put("metricsDbPool.idle", String.valueOf(idleCount));
+    stats.put("metricsDbPool.checkouts", String.valueOf(this.checkouts.get()));
+    stats.put("metricsDbPool.connects", String.valueOf(this.connects.get()));
+    stats.put("metricsDbPool.connectFailures", String.valueOf(this.connectFailures.get()));
+    stats.put("metricsDbPool.waits", String.valueOf(this.waits.get()));
+    stats.put("metricsDbPool.overflows", String.valueOf(this.overflows.get()));
+    stats.put("metricsDbPool.validationFailures", String.valueOf(this.validationFailures.get()));
+    stats.put("metricsDbPool.brokenConnections", String.valueOf(this.brokenConnections.get()));
+    stats.put("metricsDbPool.statementCacheSize", String.valueOf(this.statementCacheSize));
+    stats.put("metricsDbPool.statementCacheHits", String.valueOf(this.statementHits.get()));
+    stats.put("metricsDbPool.statementCacheMisses", String.valueOf(this.statementMisses.get()));
+    return stats;
+  }
+
+  /**
+   * SQL state class 08 is connection exception
+   */
+  private static boolean isConnectionError(Throwable t)
+  {
+    if(t instanceof SQLNonTransientConnectionException)return true;
+    if(t instanceof SQLException)
+    {
+      String state = ((SQLException)t).getSQLState();
+      return state != null && state.startsWith("08");
+    }
+    return false;
+  }
+
+  /**
+   * A physical connection with its statement cache. Used by a single thread at a time.
+   */
+  private class PooledConnection
+  {
+    final Connection conn;
+    final boolean overflow;
+    volatile long lastUsed = System.currentTimeMillis();
+    boolean broken = false;
+    //keyed by SQL text, least recently used first
+    final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true);
+    //statements not cached, closed when the connection is returned
+    final List<Statement> openStatements = new ArrayList<Statement>();
+
+    PooledConnection(Connection conn, boolean overflow)
+    {
+      this.conn = conn;
+      this.overflow = overflow;
+    }
+
+    Connection lease()
+    {
+      return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[]{Connection.class}, new Lease(this));
+    }
+
+    boolean validate()
+    {
+      try
+      {
+        return this.conn.isValid(5);
+      }catch(Throwable ex)
+      {
+        return false;
+      }
+    }
+
+    PreparedStatement prepare(String sql, Connection owner) throws SQLException
+    {
+      int cacheSize = statementCacheSize;
+      CachedStatement cs = cacheSize > 0 ? this.statements.get(sql) : null;
+      if(cs != null && !cs.inUse)
+      {
+        statementHits.incrementAndGet();
+        cs.inUse = true;
+        cs.owner = owner;
+        return cs.proxy;
+      }
+      statementMisses.incrementAndGet();
+      PreparedStatement stmt = this.conn.prepareStatement(sql);
+      if(cacheSize <= 0 || cs != null)
+      {
+        //the same SQL is still open on this connection
+        this.openStatements.add(stmt);
+        return stmt;
+      }
+      cs = new CachedStatement(stmt);
+      cs.inUse = true;
+      cs.owner = owner;
+      this.statements.put(sql, cs);
+      evict(cacheSize);
+      return cs.proxy;
+    }
+
+    private void evict(int cacheSize)
+    {
+      Iterator<CachedStatement> it = this.statements.values().iterator();
+      while(this.statements.size() > cacheSize && it.hasNext())
+      {
+        CachedStatement cs = it.next();
+        if(cs.inUse)continue;
+        it.remove();
+        DBUtils.close(cs.stmt);
+      }
+    }
+
+    /**
+     * Make the connection ready for next use
+     * @return false if the connection cannot be reused
+     */
+    boolean reset()
+    {
+      for(Statement stmt: this.openStatements)
+        DBUtils.close(stmt);
+      this.openStatements.clear();
+      Iterator<CachedStatement> it = this.statements.values().iterator();
+      while(it.hasNext())
+      {
+        CachedStatement cs = it.next();
+        if(cs.inUse && !cs.release())
+        {
+          it.remove();
+          DBUtils.close(cs.stmt);
+        }
+      }
+      try
+      {
+        if(!this.conn.getAutoCommit())
+        {
+          this.conn.rollback();
+          this.conn.setAutoCommit(true);
+        }
+        return !this.conn.isClosed();
+      }catch(Exception ex)
+      {
+        logger.log(Level.FINE, "Failed to reset metrics db connection", ex);
+        return false;
+      }
+    }
+
+    void closeAll()
+    {
+      for(Statement stmt: this.openStatements)
+        DBUtils.close(stmt);
+      this.openStatements.clear();
+      for(CachedStatement cs: this.statements.values())
+        DBUtils.close(cs.stmt);
+      this.statements.clear();
+      try
+      {
+        if(!this.conn.isClosed() && !this.conn.getAutoCommit())
+          this.conn.rollback();
+      }catch(Exception ex){}
+      DBUtils.close(this.conn);
+    }
+
+    Object invoke(Object target, Method method, Object[] args) throws Throwable
+    {
+      try
+      {
+        return method.invoke(target, args);
+      }catch(InvocationTargetException ex)
+      {
+        Throwable t = ex.getCause();
+        if(isConnectionError(t))this.broken = true;
+        throw t;
+      }
+    }
+
+    /**
+     * Handler of the connection wrapper given to a caller. A new one is created for each checkout,
+     * so a second close() by the same caller does not return the connection twice.
+     */
+    private class Lease implements InvocationHandler
+    {
+      private PooledConnection pc;
+
+      Lease(PooledConnection pc)
+      {
+        this.pc = pc;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+        String name = method.getName();
+        if("close".equals(name))
+        {
+          PooledConnection p = this.pc;
+          this.pc = null;
+          if(p != null)checkin(p);
+          return null;
+        }
+        if("isClosed".equals(name))
+          return this.pc == null || this.pc.conn.isClosed();
+        if("equals".equals(name))
+          return proxy == args[0];
+        if("hashCode".equals(name))
+          return System.identityHashCode(proxy);
+        if("toString".equals(name))
+          return "MetricsDbConnection@"+Integer.toHexString(System.identityHashCode(proxy));
+        PooledConnection p = this.pc;
+        if(p == null)
+          throw new SQLException("Connection has been returned to the pool", "08003");
+        if("prepareStatement".equals(name) && args != null && args.length == 1)
+          return p.prepare((String)args[0], (Connection)proxy);
+        Object res = p.invoke(p.conn, method, args);
+        if(res instanceof Statement)
+          p.openStatements.add((Statement)res);
+        return res;
+      }
+    }
+
+    /**
+     * A cached prepared statement. The wrapper's close() only releases it back to the cache.
+     */
+    private class CachedStatement implements InvocationHandler
+    {
+      final PreparedStatement stmt;
+      final PreparedStatement proxy;
+      boolean inUse;
+      Connection owner;
+      //result sets are closed when the statement is released, as a real close() would do
+      final List<ResultSet> results = new ArrayList<ResultSet>(1);
+
+      CachedStatement(PreparedStatement stmt)
+      {
+        this.stmt = stmt;
+        this.proxy = (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+            new Class<?>[]{PreparedStatement.class}, this);
+      }
+
+      boolean release()
+      {
+        this.inUse = false;
+        this.owner = null;
+        for(ResultSet rs: this.results)
+          DBUtils.close(rs);
+        this.results.clear();
+        try
+        {
+          this.stmt.clearParameters();
+          return true;
+        }catch(Exception ex)
+        {
+          return false;
+        }
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+        String name = method.getName();
+        if("close".equals(name))
+        {
+          if(this.inUse && !release())
+          {
+            statements.values().remove(this);
+            DBUtils.close(this.stmt);
+          }
+          return null;
+        }
+        if("isClosed".equals(name))
+          return !this.inUse || this.stmt.isClosed();
+        if("equals".equals(name))
+          return proxy == args[0];
+        if("hashCode".equals(name))
+          return System.identityHashCode(proxy);
+        if("toString".equals(name))
+          return this.stmt.toString();
+        if(!this.inUse)
+          throw new SQLException("Statement has been closed");
+        if("getConnection".equals(name))
+          return this.owner;
+        Object res = PooledConnection.this.invoke(this.stmt, method, args);
+        if(res instanceof ResultSet)
+          this.results.add((ResultSet)res);
+        return res;
+      }
+    }
+  }
+}
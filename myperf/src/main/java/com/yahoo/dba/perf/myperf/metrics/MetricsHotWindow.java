@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.yahoo.dba.perf.myperf.common.Metric;
+import com.yahoo.dba.perf.myperf.common.MetricDataType;
+import com.yahoo.dba.perf.myperf.common.MetricSeries;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+import com.yahoo.dba.perf.myperf.common.MetricsRecordEncoder;
+
+/**
+ * The most recent metrics records of each host, kept in memory as encoded by the scanner, one ring per host
+ * and metrics table. Charts of the last hour or so, the most common requests, are answered from here
+ * without metrics db query.
+ *
+ * A ring covers the snapshots from the first record it received, or from the one after the last record it dropped.
+ * Metrics db has no other row for those snapshots, so a query is answered from memory only if every host asked for
+ * has a ring covering the start of the range. Otherwise it goes to metrics db as before.
+ * Only metrics tables without key column and not stored in the common table are kept.
+ * The rings are allocated up to a memory budget, optionally as direct buffers outside of the java heap.
+ * @author xrao
+ *
+ */
+public class MetricsHotWindow
+{
+  private static Logger logger = Logger.getLogger(MetricsHotWindow.class.getName());
+
+  private volatile int capacity = 0;//records per ring, 0 to disable
+  private long maxBytes = 64L * 1024 * 1024;
+  private boolean offHeap = false;
+
+  //by metrics table, then dbid
+  private final Map<String, Map<Integer, Ring>> rings = new ConcurrentHashMap<String, Map<Integer, Ring>>();
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();//rings not created for lack of memory budget
+
+  /**
+   * Records of one host and one metrics table, in snapshot order
+   */
+  private static class Ring
+  {
+    final String[] names;
+    final boolean[] integral;
+    final MetricDataType[] types;
+    final int[] offsets;
+    final int recordLength;
+    final int capacity;
+    final ByteBuffer data;
+    int head = 0;//next slot to write
+    int count = 0;
+    int lastSnap = 0;
+    int coveredFrom = Integer.MAX_VALUE;//first snapshot all records are here
+
+    Ring(MetricsGroup mg, int recordLength, int capacity, boolean offHeap)
+    {
+      List<Metric> ms = new ArrayList<Metric>(mg.getMetrics());
+      int n = ms.size();
+      this.names = new String[n];
+      this.integral = new boolean[n];
+      this.types = new MetricDataType[n];
+      this.offsets = new int[n];
+      int pos = MetricsRecordEncoder.HEADER_LENGTH;
+      for(int i = 0; i < n; i++)
+      {
+        Metric m = ms.get(i);
+        names[i] = m.getName();
+        types[i] = m.getDataType();
+        integral[i] = types[i] == MetricDataType.BYTE || types[i] == MetricDataType.SHORT
+            || types[i] == MetricDataType.INT || types[i] == MetricDataType.LONG;
+        offsets[i] = pos;
+        pos += types[i].getLength();
+      }
+      this.recordLength = recordLength;
+      this.capacity = capacity;
+      this.data = offHeap ? ByteBuffer.allocateDirect(recordLength * capacity) : ByteBuffer.allocate(recordLength * capacity);
+    }
+
+    synchronized void add(ByteBuffer buf)
+    {
+      int snap = buf.getInt(4);
+      if(count > 0 && snap <= lastSnap)return;//not expected, scans of a host are in order
+      if(count == capacity)
+        coveredFrom = data.getInt(head * recordLength + 4) + 1;//the oldest is dropped
+      else
+      {
+        if(count == 0)coveredFrom = snap;
+        count++;
+      }
+      ByteBuffer src = buf.duplicate();
+      src.position(0);
+      src.limit(recordLength);
+      ByteBuffer dst = data.duplicate();
+      dst.position(head * recordLength);
+      dst.put(src);
+      head = (head + 1) % capacity;
+      lastSnap = snap;
+    }
+
+    /**
+     * @return true if records of the group have the layout of this ring: the same metrics, types and order
+     */
+    boolean sameLayout(MetricsGroup mg, int recordLength)
+    {
+      if(this.recordLength != recordLength)return false;
+      List<Metric> ms = mg.getMetrics();
+      if(ms.size() != names.length)return false;
+      for(int i = 0; i < names.length; i++)
+      {
+        Metric m = ms.get(i);
+        if(m.getDataType() != types[i] || !names[i].equals(m.getName()))return false;
+      }
+      return true;
+    }
+
+    int column(String name)
+    {
+      for(int i = 0; i < names.length; i++)
+        if(names[i].equalsIgnoreCase(name))return i;
+      return -1;
+    }
+
+    /**
+     * Append the records of snapshots [startSnap, endSnap] to series
+     * @return false if startSnap is not covered
+     */
+    synchronized boolean copyTo(MetricSeries series, int dbid, int[] cols, int startSnap, int endSnap)
+    {
+      if(coveredFrom > startSnap)return false;
+      int first = (head - count + capacity) % capacity;
+      for(int k = 0; k < count; k++)
+      {
+        int off = ((first + k) % capacity) * recordLength;
+        int snap = data.getInt(off + 4);
+        if(snap < startSnap)continue;
+        if(snap > endSnap)break;
+        int row = series.addRow(dbid, snap, MetricsRollup.toTs(data.getLong(off + 8)));
+        for(int i = 0; i < cols.length; i++)
+        {
+          int c = cols[i];
+          int pos = off + offsets[c];
+          MetricDataType dt = types[c];
+          if(dt == MetricDataType.BYTE)series.setLong(i, row, data.get(pos));
+          else if(dt == MetricDataType.SHORT)series.setLong(i, row, data.getShort(pos));
+          else if(dt == MetricDataType.INT)series.setLong(i, row, data.getInt(pos));
+          else if(dt == MetricDataType.LONG)series.setLong(i, row, data.getLong(pos));
+          else
+          {
+            double v = dt == MetricDataType.FLOAT ? data.getFloat(pos) : data.getDouble(pos);
+            if(Double.isNaN(v) || Double.isInfinite(v))series.setNull(i, row);//stored as NULL
+            else series.setDouble(i, row, v);
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @param minutes how long to keep, 0 to disable
+   * @param scanIntervalSeconds
+   * @param maxMB memory budget of all rings
+   * @param offHeap if true, use direct buffers
+   */
+  public void configure(int minutes, int scanIntervalSeconds, int maxMB, boolean offHeap)
+  {
+    this.maxBytes = Math.max(1, maxMB) * 1024L * 1024L;
+    this.offHeap = offHeap;
+    //one more for the scan in progress
+    this.capacity = minutes > 0 ? minutes * 60 / Math.max(1, scanIntervalSeconds) + 1 : 0;
+  }
+
+  public boolean isEnabled()
+  {
+    return this.capacity > 0;
+  }
+
+  private static boolean isHotGroup(MetricsGroup mg)
+  {
+    return mg != null && !mg.isStoreInCommonTable() && (mg.getKeyColumn() == null || mg.getKeyColumn().isEmpty());
+  }
+
+  /**
+   * Keep a copy of a record passed to metrics db
+   * @param mg
+   * @param buf dbid, snap_id, timestamp, sql time and the metrics
+   */
+  public void put(MetricsGroup mg, ByteBuffer buf)
+  {
+    if(this.capacity <= 0 || buf == null || !isHotGroup(mg))return;
+    int recordLength = MetricsRecordEncoder.HEADER_LENGTH + mg.getLength();
+    if(buf.limit() < recordLength)return;
+    String tbl = mg.getSinkTableName().toUpperCase();
+    Map<Integer, Ring> byDb = this.rings.get(tbl);
+    if(byDb == null)
+    {
+      this.rings.putIfAbsent(tbl, new ConcurrentHashMap<Integer, Ring>());
+      byDb = this.rings.get(tbl);
+    }
+    int dbid = buf.getInt(0);
+    Ring ring = byDb.get(dbid);
+    if(ring == null || !ring.sameLayout(mg, recordLength))//new host, or metrics definition changed
+    {
+      ring = newRing(byDb, dbid, mg, recordLength, ring);
+      if(ring == null)return;
+    }
+    ring.add(buf);
+  }
+
+  synchronized private Ring newRing(Map<Integer, Ring> byDb, int dbid, MetricsGroup mg, int recordLength, Ring old)
+  {
+    Ring ring = byDb.get(dbid);
+    if(ring != null && ring != old)return ring;//created by another thread
+    long bytes = (long)recordLength * this.capacity;
+    long released = old != null ? (long)old.recordLength * old.capacity : 0L;
+    if(this.usedBytes.get() - released + bytes > this.maxBytes)
+    {
+      if(this.rejected.incrementAndGet() == 1)
+        logger.warning("Metrics hot window reached its memory budget of " + (this.maxBytes / 1024 / 1024) + "MB, some metrics are retrieved from metrics db only");
+      return null;
+    }
+    ring = new Ring(mg, recordLength, this.capacity, this.offHeap);
+    byDb.put(dbid, ring);
+    this.usedBytes.addAndGet(bytes - released);
+    return ring;
+  }
+
+  /**
+   * Retrieve metrics of snapshots [startSnap, endSnap], with the same columns as metrics db query.
+   * @param metricsTable
+   * @param metrics
+   * @param dbids
+   * @param withDbid
+   * @param startSnap
+   * @param endSnap
+   * @return null if any host is not covered, metrics db should be queried
+   */
+  public MetricSeries retrieve(String metricsTable, Metric[] metrics, List<Integer> dbids, boolean withDbid, int startSnap, int endSnap)
+  {
+    if(this.capacity <= 0 || metrics == null || metrics.length == 0 || dbids == null || dbids.size() == 0)return null;
+    Map<Integer, Ring> byDb = this.rings.get(metricsTable.toUpperCase());
+    if(byDb == null)
+    {
+      misses.incrementAndGet();
+      return null;
+    }
+    List<Ring> hosts = new ArrayList<Ring>(dbids.size());
+    List<int[]> columns = new ArrayList<int[]>(dbids.size());
+    int rows = 0;
+    for(int dbid: dbids)
+    {
+      Ring ring = byDb.get(dbid);
+      int[] cols = ring != null ? new int[metrics.length] : null;
+      for(int i = 0; cols != null && i < metrics.length; i++)
+        if((cols[i] = ring.column(metrics[i].getName())) < 0)cols = null;
+      if(cols == null)
+      {
+        misses.incrementAndGet();
+        return null;
+      }
+      hosts.add(ring);
+      columns.add(cols);
+      rows += ring.capacity;
+    }
+    String[] names = new String[metrics.length];
+    boolean[] integral = new boolean[metrics.length];
+    int[] cols0 = columns.get(0);
+    for(int i = 0; i < metrics.length; i++)
+    {
+      names[i] = metrics[i].getName();
+      integral[i] = hosts.get(0).integral[cols0[i]];
+    }
+    MetricSeries series = new MetricSeries(names, integral, withDbid, rows);
+    for(int i = 0; i < hosts.size(); i++)
+    {
+      if(!hosts.get(i).copyTo(series, dbids.get(i), columns.get(i), startSnap, endSnap))
+      {
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+    hits.incrementAndGet();
+    return series;
+  }
+
+  /**
+   * Drop the records of a host, when it is removed
+   * @param dbid
+   */
+  public void remove(int dbid)
+  {
+    for(Map<Integer, Ring> byDb: this.rings.values())
+    {
+      synchronized(this)
+      {
+        Ring ring = byDb.remove(dbid);
+        if(ring != null)this.usedBytes.addAndGet(-(long)ring.recordLength * ring.capacity);
+      }
+    }
+  }
+
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    int count = 0;
+    for(Map<Integer, Ring> byDb: this.rings.values())
+      count += byDb.size();
+    stats.put("hotWindow.records", String.valueOf(this.capacity));
+    stats.put("hotWindow.rings", String.valueOf(count));
+    stats.put("hotWindow.usedMB", String.valueOf(this.usedBytes.get() / 1024 / 1024));
+    stats.put("hotWindow.maxMB", String.valueOf(this.maxBytes / 1024 / 1024));
+    stats.put("hotWindow.offHeap", String.valueOf(this.offHeap));
+    stats.put("hotWindow.hits", String.valueOf(this.hits.get()));
+    stats.put("hotWindow.misses", String.valueOf(this.misses.get()));
+    stats.put("hotWindow.rejected", String.valueOf(this.rejected.get()));
+    return stats;
+  }
+}
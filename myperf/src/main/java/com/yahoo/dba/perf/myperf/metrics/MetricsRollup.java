@@ -0,0 +1,792 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yahoo.dba.perf.myperf.common.DBGroupInfo;
+import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
+import com.yahoo.dba.perf.myperf.common.DBUtils;
+import com.yahoo.dba.perf.myperf.common.Metric;
+import com.yahoo.dba.perf.myperf.common.MetricDataType;
+import com.yahoo.dba.perf.myperf.common.MetricSeries;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+
+/**
+ * Coarser copies of the metrics tables, one row per host per 10 minutes and per hour by default,
+ * so charts of long time ranges do not have to read every snapshot.
+ * A tier table is named after its metrics table with the tier name appended, for example MYSQL_STATUS_COMMON_1H.
+ * Only metrics tables without key column and not stored in the common table are rolled up.
+ *
+ * A window covers the snapshots started within it. Closed windows are rolled up incrementally by run(),
+ * 10 minutes from the raw metrics, 1 hour from the 10 minutes tier. Each row has DBID, SNAP_ID, TS and SAMPLES, where
+ * SNAP_ID is the last snapshot of the window, so rows of different tables can be merged, and TS is the time of
+ * the last row of the host in the window. Incremental metrics keep the last counter value of the window, stamped with
+ * the time it was read, so the rate between two rows, or between a row and a raw snapshot after it, is still right. Other metrics keep the average under the metric name, with minimum and maximum in NAME_MIN, NAME_MAX.
+ * @author xrao
+ *
+ */
+public class MetricsRollup implements Runnable
+{
+  private static Logger logger = Logger.getLogger(MetricsRollup.class.getName());
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  //minimum number of points for a chart to be retrieved from a tier
+  public static final int MIN_POINTS = 300;
+  //at most that many windows per table are rolled up by one run, so the first run after upgrade catches up gradually
+  private static final int MAX_WINDOWS_PER_RUN = 144;
+  private static final String MIN_SUFFIX = "_MIN";
+  private static final String MAX_SUFFIX = "_MAX";
+
+  /**
+   * A rollup resolution
+   */
+  public static class Tier
+  {
+    private final String name;
+    private final int seconds;
+    private volatile int retentionDays;
+
+    Tier(String name, int seconds, int retentionDays)
+    {
+      this.name = name;
+      this.seconds = seconds;
+      this.retentionDays = retentionDays;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public int getSeconds()
+    {
+      return seconds;
+    }
+
+    public int getRetentionDays()
+    {
+      return retentionDays;
+    }
+
+    public String tableName(String metricsTable)
+    {
+      return metricsTable + "_" + name;
+    }
+  }
+
+  private final MetricsDbBase metricsDb;
+  private final Tier[] tiers = new Tier[]{new Tier("10M", 600, 180), new Tier("1H", 3600, 730)};
+  private int scanIntervalSeconds = 300;
+  private int rawRetentionDays = 60;
+
+  //metrics tables rolled up, with their groups
+  private final Map<String, MetricsGroup> tables = new ConcurrentHashMap<String, MetricsGroup>();
+  //start of the next window to roll up, epoch milliseconds, by tier table name
+  private final Map<String, Long> nextWindow = new ConcurrentHashMap<String, Long>();
+
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong windows = new AtomicLong();
+  private final AtomicLong rowsWritten = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile long lastRunTime = 0L;//milliseconds
+
+  public MetricsRollup(MetricsDbBase metricsDb)
+  {
+    this.metricsDb = metricsDb;
+  }
+
+  /**
+   * @param name tier name, 10M or 1H
+   * @param retentionDays 0 to disable the tier
+   */
+  public void setRetentionDays(String name, int retentionDays)
+  {
+    Tier tier = getTier(name);
+    if(tier != null)tier.retentionDays = retentionDays > 0 ? retentionDays : 0;
+  }
+
+  public Tier getTier(String name)
+  {
+    for(Tier tier: tiers)
+      if(tier.name.equalsIgnoreCase(name))return tier;
+    return null;
+  }
+
+  public void setScanIntervalSeconds(int scanIntervalSeconds)
+  {
+    if(scanIntervalSeconds > 0)this.scanIntervalSeconds = scanIntervalSeconds;
+  }
+
+  /**
+   * Retention of raw metrics, where the first rollup starts from
+   * @param rawRetentionDays
+   */
+  public void setRawRetentionDays(int rawRetentionDays)
+  {
+    if(rawRetentionDays > 0)this.rawRetentionDays = rawRetentionDays;
+  }
+
+  /**
+   * @return tiers in use, from the finest
+   */
+  public List<Tier> getTiers()
+  {
+    List<Tier> res = new ArrayList<Tier>(tiers.length);
+    for(Tier tier: tiers)
+      if(tier.retentionDays > 0 && tier.seconds > scanIntervalSeconds)res.add(tier);
+    return res;
+  }
+
+  /**
+   * @param mg
+   * @return true if the metrics table of this group can be rolled up
+   */
+  public static boolean isRollupGroup(MetricsGroup mg)
+  {
+    return mg != null && !mg.isStoreInCommonTable() && (mg.getKeyColumn() == null || mg.getKeyColumn().isEmpty());
+  }
+
+  /**
+   * @param metricsTable
+   * @return true if the table is rolled up
+   */
+  public boolean isRollupTable(String metricsTable)
+  {
+    return metricsTable != null && this.tables.containsKey(metricsTable.toUpperCase());
+  }
+
+  /**
+   * Create the tier tables of all metrics tables, if not exist, and find where to resume. Invoked at startup.
+   */
+  public void init()
+  {
+    for(Map.Entry<String, MetricsGroup> e: metricsDb.getMetricsGroups().entrySet())
+    {
+      if(isRollupGroup(e.getValue()))
+        addTable(e.getValue());
+    }
+    logger.info("Metrics rollup tiers " + getTiers().size() + ", tables " + this.tables.size());
+  }
+
+  /**
+   * Create the tier tables of a metrics group, if not exist, for example a new UDM.
+   * @param mg
+   * @return true if the tables are ready
+   */
+  public boolean addTable(MetricsGroup mg)
+  {
+    if(!isRollupGroup(mg))return false;
+    String tbl = mg.getSinkTableName().toUpperCase();
+    Connection conn = null;
+    Statement stmt = null;
+    try
+    {
+      conn = metricsDb.getPooledConnection();
+      for(Tier tier: getTiers())
+      {
+        String tierTable = tier.tableName(tbl);
+        if(!DBUtils.hasTable(conn, metricsDb.getSchemaName(), tierTable))
+        {
+          stmt = conn.createStatement();
+          String ddl = buildDDL(tierTable, mg);
+          logger.info("Create rollup table " + tierTable + ": " + ddl);
+          stmt.execute(ddl);
+          stmt.execute("create index IDX_" + tierTable + "_TS on " + tierTable + " (TS)");
+          DBUtils.close(stmt); stmt = null;
+        }
+        if(!this.nextWindow.containsKey(tierTable))
+          this.nextWindow.put(tierTable, findNextWindow(conn, tier, tierTable));
+      }
+      this.tables.put(tbl, mg);
+      return true;
+    }catch(Exception ex)
+    {
+      logger.log(Level.WARNING, "Failed to create rollup tables for " + tbl, ex);
+    }finally
+    {
+      DBUtils.close(stmt);
+      DBUtils.close(conn);
+    }
+    return false;
+  }
+
+  private String buildDDL(String tierTable, MetricsGroup mg)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("CREATE TABLE ").append(tierTable).append(" (DBID INT, SNAP_ID INT, TS BIGINT, SAMPLES INT");
+    for(Metric m: mg.getMetrics())
+    {
+      String name = m.getName().toUpperCase();
+      if(m.isIncremental())
+        sb.append(", ").append(name).append(isIntegral(m) ? " BIGINT" : " DECIMAL(22,7)");
+      else
+      {
+        sb.append(", ").append(name).append(" DECIMAL(22,7)");
+        sb.append(", ").append(name).append(MIN_SUFFIX).append(" DECIMAL(22,7)");
+        sb.append(", ").append(name).append(MAX_SUFFIX).append(" DECIMAL(22,7)");
+      }
+    }
+    sb.append(", PRIMARY KEY(DBID, TS))");
+    return sb.toString();
+  }
+
+  private static boolean isIntegral(Metric m)
+  {
+    MetricDataType t = m.getDataType();
+    return t == MetricDataType.BYTE || t == MetricDataType.SHORT || t == MetricDataType.INT || t == MetricDataType.LONG;
+  }
+
+  /**
+   * The window after the last one stored, or the start of raw metrics retention for a new table
+   */
+  private long findNextWindow(Connection conn, Tier tier, String tierTable) throws SQLException
+  {
+    Statement stmt = null;
+    ResultSet rs = null;
+    try
+    {
+      stmt = conn.createStatement();
+      rs = stmt.executeQuery("select max(TS) from " + tierTable);
+      if(rs.next())
+      {
+        long ts = rs.getLong(1);
+        if(!rs.wasNull() && ts > 0)
+          return floor(MetricSeries.toMillis(ts), tier) + tier.seconds * 1000L;
+      }
+    }finally
+    {
+      DBUtils.close(rs);
+      DBUtils.close(stmt);
+    }
+    return floor(System.currentTimeMillis() - this.rawRetentionDays * 86400000L, tier);
+  }
+
+  /**
+   * A window is closed after the scans started within it have been stored. Spilled records are stored
+   * when replayed, so windows are held open from the oldest record still in the spill journal.
+   * @param now milliseconds
+   * @return end of the last window that can be rolled up, in milliseconds
+   */
+  long closeTime(long now)
+  {
+    long closeTime = now;
+    long oldestSpill = metricsDb.getSpillJournal().getOldestSpillTime();
+    if(oldestSpill > 0)closeTime = Math.min(closeTime, oldestSpill);
+    return closeTime - (this.scanIntervalSeconds + 60) * 1000L;
+  }
+
+  /**
+   * Roll up closed windows of all tables, finest tier first
+   */
+  @Override
+  public void run()
+  {
+    long startTime = System.currentTimeMillis();
+    runs.incrementAndGet();
+    long closeTime = closeTime(startTime);
+    List<Integer> dbids = findDbids();
+    if(dbids.size() == 0)return;
+    List<Tier> active = getTiers();
+    for(int i = 0; i < active.size(); i++)
+    {
+      Tier tier = active.get(i);
+      Tier source = i > 0 ? active.get(i - 1) : null;
+      for(Map.Entry<String, MetricsGroup> e: this.tables.entrySet())
+      {
+        if(metricsDb.isStopped())return;
+        String tierTable = tier.tableName(e.getKey());
+        Long next = this.nextWindow.get(tierTable);
+        if(next == null)continue;
+        long limit = closeTime;
+        if(source != null)
+        {
+          Long sourceNext = this.nextWindow.get(source.tableName(e.getKey()));
+          if(sourceNext == null)continue;
+          limit = Math.min(limit, sourceNext);
+        }
+        try
+        {
+          //windows without any scan are skipped without query
+          while(true)
+          {
+            int n = (int)Math.min(MAX_WINDOWS_PER_RUN, (limit - next) / (tier.seconds * 1000L));
+            if(n <= 0)break;
+            boolean stored = rollup(tier, source, e.getKey(), e.getValue(), dbids, next, n);
+            next += n * tier.seconds * 1000L;
+            this.nextWindow.put(tierTable, next);
+            if(stored)
+            {
+              this.windows.addAndGet(n);
+              break;
+            }
+          }
+        }catch(Exception ex)
+        {
+          failures.incrementAndGet();
+          logger.log(Level.WARNING, "Failed to roll up " + tierTable + " from " + toTs(next), ex);
+        }
+      }
+    }
+    this.lastRunTime = System.currentTimeMillis() - startTime;
+  }
+
+  private List<Integer> findDbids()
+  {
+    List<Integer> dbids = new ArrayList<Integer>();
+    if(metricsDb.getFrameworkContext() == null)return dbids;
+    for(Map.Entry<String, DBGroupInfo> e: metricsDb.getFrameworkContext().getDbInfoManager().getClusters().entrySet())
+    {
+      for(DBInstanceInfo db: e.getValue().getInstances())
+        dbids.add(db.getDbid());
+    }
+    return MetricsDbBase.sortedDbids(dbids);
+  }
+
+  /**
+   * Roll up n windows from windowStart, replacing rows already stored for them.
+   * @return false if there is no snapshot in these windows
+   */
+  boolean rollup(Tier tier, Tier source, String tbl, MetricsGroup mg, List<Integer> dbids, long windowStart, int n) throws SQLException
+  {
+    long step = tier.seconds * 1000L;
+    //snapshots of each window
+    int[] lastSnaps = new int[n];
+    int minSnap = 0, maxSnap = 0;
+    int[][] ranges = new int[n][];
+    for(int w = 0; w < n; w++)
+    {
+      long start = windowStart + w * step;
+      int[] r = metricsDb.getSnapshostRange(toTs(start), toTs(start + step - 1000L));
+      if(r == null || r[1] <= 0)continue;
+      ranges[w] = r;
+      lastSnaps[w] = r[1];
+      if(minSnap == 0 || r[0] < minSnap)minSnap = r[0];
+      if(r[1] > maxSnap)maxSnap = r[1];
+    }
+    if(maxSnap == 0)return false;//no scan
+
+    Metric[] metrics = mg.getMetrics().toArray(new Metric[0]);
+    String tierTable = tier.tableName(tbl);
+    StringBuilder select = new StringBuilder("DBID, SNAP_ID, TS, ").append(source != null ? "SAMPLES" : "1 AS SAMPLES");
+    StringBuilder insert = new StringBuilder("insert into ").append(tierTable).append(" (DBID, SNAP_ID, TS, SAMPLES");
+    int columns = 4;
+    for(Metric m: metrics)
+    {
+      String name = m.getName().toUpperCase();
+      select.append(", ").append(name);
+      insert.append(", ").append(name);
+      columns++;
+      if(!m.isIncremental())
+      {
+        if(source != null)
+          select.append(", ").append(name).append(MIN_SUFFIX).append(", ").append(name).append(MAX_SUFFIX);
+        insert.append(", ").append(name).append(MIN_SUFFIX).append(", ").append(name).append(MAX_SUFFIX);
+        columns += 2;
+      }
+    }
+    insert.append(") values (");
+    for(int i = 0; i < columns; i++)
+      insert.append(i == 0 ? "?" : ",?");
+    insert.append(")");
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    PreparedStatement ins = null;
+    ResultSet rs = null;
+    try
+    {
+      conn = metricsDb.getPooledConnection();
+      conn.setAutoCommit(false);
+      stmt = conn.prepareStatement("delete from " + tierTable + " where TS>=? and TS<?");
+      stmt.setLong(1, toTs(windowStart));
+      stmt.setLong(2, toTs(windowStart + n * step));
+      stmt.execute();
+      DBUtils.close(stmt); stmt = null;
+
+      ins = conn.prepareStatement(insert.toString());
+      int rows = 0;
+      for(int from = 0; from < dbids.size(); from += MetricsDbBase.MAX_DBIDS_PER_QUERY)
+      {
+        int to = Math.min(dbids.size(), from + MetricsDbBase.MAX_DBIDS_PER_QUERY);
+        int listSize = MetricsDbBase.dbidListSize(to - from);
+        String sql = "select " + select + " from " + (source != null ? source.tableName(tbl) : tbl)
+            + " where dbid in " + MetricsDbBase.dbidInList(listSize)
+            + (source != null ? " and ts>=? and ts<? order by dbid, ts" : " and snap_id between ? and ? order by dbid, snap_id");
+        stmt = conn.prepareStatement(sql);
+        stmt.setFetchSize(1000);
+        int idx = MetricsDbBase.bindDbids(stmt, 1, dbids, from, to, listSize);
+        if(source != null)
+        {
+          stmt.setLong(idx++, toTs(windowStart));
+          stmt.setLong(idx++, toTs(windowStart + n * step));
+        }else
+        {
+          stmt.setInt(idx++, minSnap);
+          stmt.setInt(idx++, maxSnap);
+        }
+        rs = stmt.executeQuery();
+        Window cur = null;
+        while(rs.next())
+        {
+          int dbid = rs.getInt(1);
+          int w = source != null ? (int)((MetricSeries.toMillis(rs.getLong(3)) - windowStart) / step) : findWindow(ranges, rs.getInt(2));
+          if(w < 0 || w >= n)continue;
+          if(cur == null || cur.dbid != dbid || cur.window != w)
+          {
+            if(cur != null)rows += cur.store(ins, toTs(windowStart + (cur.window + 1) * step - 1000L), lastSnaps[cur.window]);
+            cur = new Window(dbid, w, metrics);
+          }
+          cur.add(rs, source != null);
+        }
+        if(cur != null)rows += cur.store(ins, toTs(windowStart + (cur.window + 1) * step - 1000L), lastSnaps[cur.window]);
+        DBUtils.close(rs); rs = null;
+        DBUtils.close(stmt); stmt = null;
+        ins.executeBatch();
+      }
+      conn.commit();
+      this.rowsWritten.addAndGet(rows);
+      return true;
+    }catch(SQLException ex)
+    {
+      try{if(conn != null)conn.rollback();}catch(Exception iex){}
+      throw ex;
+    }finally
+    {
+      DBUtils.close(rs);
+      DBUtils.close(stmt);
+      DBUtils.close(ins);
+      DBUtils.close(conn);
+    }
+  }
+
+  /**
+   * Window index of a snapshot. Windows with snapshots are in ascending order of snap_id.
+   */
+  private static int findWindow(int[][] ranges, int snapId)
+  {
+    for(int w = 0; w < ranges.length; w++)
+    {
+      if(ranges[w] == null)continue;
+      if(snapId < ranges[w][0])return -1;
+      if(snapId <= ranges[w][1])return w;
+    }
+    return -1;
+  }
+
+  /**
+   * Aggregation of one host in one window
+   */
+  private static class Window
+  {
+    final int dbid;
+    final int window;
+    final Metric[] metrics;
+    final double[] last;
+    final boolean[] hasLast;
+    final double[] sum;
+    final long[] count;
+    final double[] min;
+    final double[] max;
+    int samples;
+    long lastTs;//TS of the last row
+
+    Window(int dbid, int window, Metric[] metrics)
+    {
+      this.dbid = dbid;
+      this.window = window;
+      this.metrics = metrics;
+      int n = metrics.length;
+      last = new double[n];
+      hasLast = new boolean[n];
+      sum = new double[n];
+      count = new long[n];
+      min = new double[n];
+      max = new double[n];
+    }
+
+    /**
+     * Add a row of the source table, rows are in time order
+     * @param rs DBID, SNAP_ID, TS, SAMPLES and the metrics
+     * @param fromTier true if the source is a tier table, with minimum and maximum after each average
+     */
+    void add(ResultSet rs, boolean fromTier) throws SQLException
+    {
+      int rowSamples = Math.max(1, rs.getInt(4));
+      samples += rowSamples;
+      lastTs = rs.getLong(3);
+      int pos = 5;
+      for(int i = 0; i < metrics.length; i++)
+      {
+        double v = rs.getDouble(pos++);
+        boolean isNull = rs.wasNull();
+        if(metrics[i].isIncremental())
+        {
+          if(!isNull)
+          {
+            last[i] = v;
+            hasLast[i] = true;
+          }
+          continue;
+        }
+        double lo = v, hi = v;
+        if(fromTier)
+        {
+          lo = rs.getDouble(pos++);
+          if(rs.wasNull())lo = v;
+          hi = rs.getDouble(pos++);
+          if(rs.wasNull())hi = v;
+        }
+        if(isNull)continue;
+        sum[i] += v * rowSamples;
+        if(count[i] == 0 || lo < min[i])min[i] = lo;
+        if(count[i] == 0 || hi > max[i])max[i] = hi;
+        count[i] += rowSamples;
+      }
+    }
+
+    /**
+     * Add the row to the insert batch
+     * @param ins
+     * @param maxTs the last second of the window, a host scanned late is not stamped into the next window
+     * @param snapId
+     * @return number of rows
+     */
+    int store(PreparedStatement ins, long maxTs, int snapId) throws SQLException
+    {
+      int idx = 1;
+      ins.setInt(idx++, dbid);
+      ins.setInt(idx++, snapId);
+      ins.setLong(idx++, Math.min(lastTs, maxTs));
+      ins.setInt(idx++, samples);
+      for(int i = 0; i < metrics.length; i++)
+      {
+        if(metrics[i].isIncremental())
+        {
+          if(!hasLast[i])ins.setNull(idx++, java.sql.Types.DECIMAL);
+          else if(isIntegral(metrics[i]))ins.setLong(idx++, (long)last[i]);
+          else ins.setDouble(idx++, last[i]);
+          continue;
+        }
+        if(count[i] == 0)
+        {
+          ins.setNull(idx++, java.sql.Types.DECIMAL);
+          ins.setNull(idx++, java.sql.Types.DECIMAL);
+          ins.setNull(idx++, java.sql.Types.DECIMAL);
+        }else
+        {
+          ins.setDouble(idx++, sum[i] / count[i]);
+          ins.setDouble(idx++, min[i]);
+          ins.setDouble(idx++, max[i]);
+        }
+      }
+      ins.addBatch();
+      return 1;
+    }
+  }
+
+  /**
+   * The coarsest tier still giving MIN_POINTS points for the time range, if all tables are rolled up
+   * and the tier has been rolled up past the start time. The part after the last rolled up window
+   * is read from the metrics table by retrieveMetricSeries.
+   * @param metricsTables
+   * @param startTs yyyyMMddHHmmss
+   * @param endTs yyyyMMddHHmmss
+   * @return null if raw metrics should be used
+   */
+  public Tier chooseTier(List<String> metricsTables, long startTs, long endTs)
+  {
+    if(metricsTables == null || metricsTables.size() == 0)return null;
+    for(String tbl: metricsTables)
+      if(!isRollupTable(tbl))return null;
+    long seconds = (MetricSeries.toMillis(endTs) - MetricSeries.toMillis(startTs)) / 1000L;
+    List<Tier> active = getTiers();
+    for(int i = active.size() - 1; i >= 0; i--)
+    {
+      Tier tier = active.get(i);
+      if(seconds / tier.seconds < MIN_POINTS)continue;
+      boolean ready = true;
+      for(String tbl: metricsTables)
+      {
+        Long next = this.nextWindow.get(tier.tableName(tbl.toUpperCase()));
+        if(next == null || next <= MetricSeries.toMillis(startTs))
+        {
+          ready = false;
+          break;
+        }
+      }
+      if(ready)return tier;
+    }
+    return null;
+  }
+
+  /**
+   * Retrieve metrics from a tier table, the same as MetricsDbBase.retrieveMetricSeries does from the metrics table.
+   * The columns are DBID if withDbid, SNAP_ID, TS and the metrics, ordered by dbid and ts.
+   * Snapshots after the last rolled up window, up to an hour for 1H, are appended from the metrics table,
+   * so the chart does not stop short of endTs.
+   * @param tier
+   * @param metricsTable
+   * @param metrics
+   * @param dbids
+   * @param withDbid
+   * @param startTs
+   * @param endTs
+   * @return
+   */
+  public MetricSeries retrieveMetricSeries(Tier tier, String metricsTable, Metric[] metrics, List<Integer> dbids, boolean withDbid, long startTs, long endTs)
+  {
+    List<Integer> ids = MetricsDbBase.sortedDbids(dbids);
+    if(ids.size() == 0 || metrics == null || metrics.length == 0)return null;
+    String tierTable = tier.tableName(metricsTable.toUpperCase());
+    StringBuilder selectList = new StringBuilder(withDbid ? "DBID, SNAP_ID, TS" : "SNAP_ID, TS");
+    for(Metric m: metrics)
+      selectList.append(", ").append(m.getName());
+    //include the window holding startTs
+    long from = toTs(floor(MetricSeries.toMillis(startTs), tier));
+    logger.log(Level.INFO, "To retrieve metrics "+tierTable+", metrics ("+selectList+") for "+ids.size()+" dbs with time range ("+startTs+", "+endTs+")");
+
+    MetricSeries series = null;
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try
+    {
+      conn = metricsDb.getPooledConnection();
+      for(int i = 0; i < ids.size(); i += MetricsDbBase.MAX_DBIDS_PER_QUERY)
+      {
+        int to = Math.min(ids.size(), i + MetricsDbBase.MAX_DBIDS_PER_QUERY);
+        int listSize = MetricsDbBase.dbidListSize(to - i);
+        String sql = "select " + selectList + " from " + tierTable + " where dbid in " + MetricsDbBase.dbidInList(listSize)
+            + " and ts between ? and ? order by dbid, ts";
+        stmt = conn.prepareStatement(sql);
+        stmt.setFetchSize(1000);
+        int idx = MetricsDbBase.bindDbids(stmt, 1, ids, i, to, listSize);
+        stmt.setLong(idx++, from);
+        stmt.setLong(idx++, endTs);
+        rs = stmt.executeQuery();
+        MetricSeries more = MetricSeries.fromResultSet(rs, 5000 * (to - i));
+        if(series == null)series = more;
+        else series.append(more);
+        DBUtils.close(rs); rs = null;
+        DBUtils.close(stmt); stmt = null;
+      }
+    }catch(Exception ex)
+    {
+      logger.log(Level.SEVERE, "Failed to retrieve metrics " + tierTable + " for dbs " + ids + " with time range (" + startTs + ", " + endTs + ")", ex);
+    }finally
+    {
+      DBUtils.close(rs);
+      DBUtils.close(stmt);
+      DBUtils.close(conn);
+    }
+    if(series == null)return null;
+    Long next = this.nextWindow.get(tierTable);
+    if(next != null && toTs(next) <= endTs)
+    {
+      MetricSeries tail = withDbid ? metricsDb.retrieveMetricSeries(metricsTable.toUpperCase(), metrics, false, ids, toTs(next), endTs)
+          : metricsDb.retrieveMetricSeries(metricsTable.toUpperCase(), metrics, false, ids.get(0), toTs(next), endTs);
+      series = MetricSeries.union(series, tail);
+    }
+    return series;
+  }
+
+  /**
+   * Remove rows older than the retention of each tier. Tier tables are small, one delete per host and table.
+   * @param dbids
+   */
+  public void purge(List<Integer> dbids)
+  {
+    for(Tier tier: getTiers())
+    {
+      long endTs = toTs(System.currentTimeMillis() - tier.retentionDays * 86400000L);
+      for(String tbl: this.tables.keySet())
+        purge(tier.tableName(tbl), dbids, endTs);
+    }
+  }
+
+  /**
+   * Remove all rows of the given hosts, when they are removed from management
+   * @param dbids
+   */
+  public void purgeAll(List<Integer> dbids)
+  {
+    for(Tier tier: getTiers())
+    {
+      for(String tbl: this.tables.keySet())
+        purge(tier.tableName(tbl), dbids, Long.MAX_VALUE);
+    }
+  }
+
+  private void purge(String tierTable, List<Integer> dbids, long endTs)
+  {
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    try
+    {
+      conn = metricsDb.getPooledConnection();
+      stmt = conn.prepareStatement("delete from " + tierTable + " where dbid=? and ts<=?");
+      for(int dbid: dbids)
+      {
+        stmt.setInt(1, dbid);
+        stmt.setLong(2, endTs);
+        stmt.execute();
+      }
+    }catch(Exception ex)
+    {
+      logger.log(Level.SEVERE, "Failed to purge " + tierTable + " up to " + endTs, ex);
+    }finally
+    {
+      DBUtils.close(stmt);
+      DBUtils.close(conn);
+    }
+  }
+
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    stats.put("rollup.tiers", String.valueOf(getTiers().size()));
+    stats.put("rollup.tables", String.valueOf(this.tables.size()));
+    stats.put("rollup.runs", String.valueOf(this.runs.get()));
+    stats.put("rollup.windows", String.valueOf(this.windows.get()));
+    stats.put("rollup.rowsWritten", String.valueOf(this.rowsWritten.get()));
+    stats.put("rollup.failures", String.valueOf(this.failures.get()));
+    stats.put("rollup.lastRunTimeMs", String.valueOf(this.lastRunTime));
+    return stats;
+  }
+
+  private static long floor(long millis, Tier tier)
+  {
+    long step = tier.seconds * 1000L;
+    return millis - Math.floorMod(millis, step);
+  }
+
+  /**
+   * Epoch milliseconds to yyyyMMddHHmmss in UTC
+   */
+  static long toTs(long millis)
+  {
+    Calendar c = Calendar.getInstance(UTC);
+    c.setTimeInMillis(millis);
+    return c.get(Calendar.YEAR) * 10000000000L + (c.get(Calendar.MONTH) + 1) * 100000000L
+        + c.get(Calendar.DAY_OF_MONTH) * 1000000L + c.get(Calendar.HOUR_OF_DAY) * 10000L
+        + c.get(Calendar.MINUTE) * 100L + c.get(Calendar.SECOND);
+  }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Local journal of metrics records metrics db could not take, either because the queue is full when metrics db is slow,
+ * or because the store failed. The records are replayed into metrics db once it is back.
+ *
+ * The journal is a list of memory mapped segment files, spill-{seq}.seg, appended in order. A segment has a header,
+ * magic, version and the offset replayed so far, then the records: length, spill time, table, key, data and CRC32 of
+ * everything after the length. The length is written last, so a record torn by a crash reads as the end of the segment.
+ * A segment is removed once all its records are replayed. On startup the segments left are replayed from their offsets.
+ * Records replayed again after a crash are skipped by metrics db as duplicates.
+ * @author xrao
+ *
+ */
+public class MetricsSpillJournal
+{
+  private static Logger logger = Logger.getLogger(MetricsSpillJournal.class.getName());
+  public static final String STORAGE_DIR = "metricsdb_spill";
+  private static final String SEGMENT_PREFIX = "spill-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int SEGMENT_MAGIC = 0x4d50534a;//MPSJ
+  private static final int SEGMENT_VERSION = 1;
+  private static final int HEADER_LENGTH = 16;//magic, version, read offset, reserved
+  private static final int READ_OFFSET_POS = 8;
+  static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private File dir;
+  private long maxBytes = 0L;//0 to disable
+
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();//oldest first, the last one is written
+  private long nextSeq = 1;
+  private long pendingBytes = 0L;
+
+  private final AtomicLong spilled = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  private static class Segment
+  {
+    final long seq;
+    final File file;
+    final FileChannel channel;
+    final MappedByteBuffer buf;
+    int writePos = HEADER_LENGTH;
+    int readPos = HEADER_LENGTH;
+    boolean sealed = false;//no more append
+
+    Segment(long seq, File file, boolean create) throws IOException
+    {
+      this.seq = seq;
+      this.file = file;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try
+      {
+        if(create)raf.setLength(SEGMENT_SIZE);
+        this.channel = raf.getChannel();
+        this.buf = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+      }catch(IOException ex)
+      {
+        raf.close();
+        throw ex;
+      }
+    }
+
+    void close()
+    {
+      try
+      {
+        this.buf.force();
+        this.channel.close();
+      }catch(Exception ex)
+      {
+        logger.log(Level.WARNING, "Failed to close " + this.file, ex);
+      }
+    }
+  }
+
+  /**
+   * A record read back from the journal
+   */
+  static class SpilledRecord
+  {
+    final String table;
+    final String key;
+    final ByteBuffer data;
+    final long spillTime;
+    final Segment segment;
+    final int end;
+
+    SpilledRecord(String table, String key, ByteBuffer data, long spillTime, Segment segment, int end)
+    {
+      this.table = table;
+      this.key = key;
+      this.data = data;
+      this.spillTime = spillTime;
+      this.segment = segment;
+      this.end = end;
+    }
+  }
+
+  /**
+   * @param dir where to keep the segments
+   * @param maxMB maximum size of records waiting for replay, 0 to disable the journal
+   */
+  public void configure(File dir, int maxMB)
+  {
+    this.dir = dir;
+    this.maxBytes = maxMB > 0 ? maxMB * 1024L * 1024L : 0L;
+  }
+
+  public boolean isEnabled()
+  {
+    return this.maxBytes > 0 && this.dir != null;
+  }
+
+  /**
+   * Find the segments left by last run. They are replayed, new records go to a new segment.
+   */
+  synchronized public void open()
+  {
+    if(!isEnabled())return;
+    if(!this.dir.exists())this.dir.mkdirs();
+    File[] files = this.dir.listFiles();
+    if(files == null)return;
+    Arrays.sort(files);
+    for(File f: files)
+    {
+      String name = f.getName();
+      if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))continue;
+      long seq;
+      try
+      {
+        seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      }catch(Exception ex)
+      {
+        continue;
+      }
+      this.nextSeq = Math.max(this.nextSeq, seq + 1);
+      if(f.length() != SEGMENT_SIZE)
+      {
+        logger.warning("Ignore metrics spill segment " + f + " of unexpected size " + f.length());
+        continue;
+      }
+      try
+      {
+        Segment seg = new Segment(seq, f, false);
+        if(seg.buf.getInt(0) != SEGMENT_MAGIC || seg.buf.getInt(4) != SEGMENT_VERSION)
+        {
+          logger.warning("Ignore metrics spill segment " + f + " of unknown format");
+          seg.close();
+          continue;
+        }
+        seg.readPos = seg.buf.getInt(READ_OFFSET_POS);
+        seg.writePos = seg.readPos;
+        SpilledRecord r;
+        while((r = readRecord(seg, seg.writePos)) != null)
+          seg.writePos = r.end;
+        seg.sealed = true;
+        if(seg.writePos <= seg.readPos)
+        {
+          seg.close();
+          f.delete();
+          continue;
+        }
+        this.segments.add(seg);
+        this.pendingBytes += seg.writePos - seg.readPos;
+      }catch(Exception ex)
+      {
+        logger.log(Level.WARNING, "Failed to open metrics spill segment " + f, ex);
+      }
+    }
+    if(this.pendingBytes > 0)
+      logger.info("Metrics spill journal has " + this.pendingBytes + " bytes to replay in " + this.segments.size() + " segments");
+  }
+
+  /**
+   * Append a record.
+   * @param table sink table name
+   * @param key key column value, can be null
+   * @param data the encoded record, from position 0 to limit
+   * @return false if the journal is disabled or full, the record is dropped
+   */
+  synchronized public boolean append(String table, String key, ByteBuffer data)
+  {
+    if(!isEnabled())return false;
+    byte[] tbl = table.getBytes(StandardCharsets.UTF_8);
+    byte[] k = key != null ? key.getBytes(StandardCharsets.UTF_8) : null;
+    int dataLen = data.limit();
+    int bodyLen = 8 + 2 + tbl.length + 2 + (k != null ? k.length : 0) + 4 + dataLen;
+    int recordLen = 4 + bodyLen + 4;
+    if(recordLen + 4 > SEGMENT_SIZE - HEADER_LENGTH || tbl.length > Short.MAX_VALUE || (k != null && k.length > Short.MAX_VALUE)
+        || this.pendingBytes + recordLen > this.maxBytes)
+    {
+      if(this.dropped.incrementAndGet() % 10000 == 1)
+        logger.warning("Metrics spill journal is full with " + this.pendingBytes + " bytes, drop metrics records, dropped " + this.dropped.get());
+      return false;
+    }
+    try
+    {
+      Segment seg = this.segments.isEmpty() ? null : this.segments.getLast();
+      if(seg == null || seg.sealed || seg.writePos + recordLen + 4 > SEGMENT_SIZE)
+        seg = newSegment(seg);
+      ByteBuffer b = seg.buf.duplicate();
+      int start = seg.writePos;
+      b.position(start + 4);
+      b.putLong(System.currentTimeMillis());
+      b.putShort((short)tbl.length);
+      b.put(tbl);
+      b.putShort((short)(k != null ? k.length : -1));
+      if(k != null)b.put(k);
+      b.putInt(dataLen);
+      ByteBuffer src = data.duplicate();
+      src.position(0);
+      src.limit(dataLen);
+      b.put(src);
+      b.putInt((int)crc(seg.buf, start + 4, bodyLen));
+      seg.buf.putInt(start, bodyLen + 4);//last, so a torn record is not seen
+      seg.writePos += recordLen;
+      this.pendingBytes += recordLen;
+      this.spilled.incrementAndGet();
+      return true;
+    }catch(Exception ex)
+    {
+      this.dropped.incrementAndGet();
+      logger.log(Level.WARNING, "Failed to spill metrics record of " + table, ex);
+    }
+    return false;
+  }
+
+  private Segment newSegment(Segment last) throws IOException
+  {
+    if(last != null && !last.sealed)
+    {
+      last.sealed = true;
+      last.buf.force();
+    }
+    if(!this.dir.exists())this.dir.mkdirs();
+    long seq = this.nextSeq++;
+    Segment seg = new Segment(seq, new File(this.dir, String.format("%s%012d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX)), true);
+    seg.buf.putInt(0, SEGMENT_MAGIC);
+    seg.buf.putInt(4, SEGMENT_VERSION);
+    seg.buf.putInt(READ_OFFSET_POS, HEADER_LENGTH);
+    this.segments.add(seg);
+    return seg;
+  }
+
+  private static long crc(ByteBuffer buf, int pos, int len)
+  {
+    ByteBuffer b = buf.duplicate();
+    b.position(pos);
+    b.limit(pos + len);
+    CRC32 crc = new CRC32();
+    crc.update(b);
+    return crc.getValue();
+  }
+
+  /**
+   * Read the record at pos
+   * @return null at the end of the segment, or if the record is torn
+   */
+  private static SpilledRecord readRecord(Segment seg, int pos)
+  {
+    if(pos + 4 > SEGMENT_SIZE)return null;
+    int len = seg.buf.getInt(pos);
+    if(len <= 4 || pos + 4 + len > SEGMENT_SIZE)return null;
+    int bodyLen = len - 4;
+    if((int)crc(seg.buf, pos + 4, bodyLen) != seg.buf.getInt(pos + 4 + bodyLen))return null;
+    ByteBuffer b = seg.buf.duplicate();
+    b.position(pos + 4);
+    long spillTime = b.getLong();
+    byte[] tbl = new byte[b.getShort()];
+    b.get(tbl);
+    short keyLen = b.getShort();
+    byte[] k = keyLen >= 0 ? new byte[keyLen] : null;
+    if(k != null)b.get(k);
+    byte[] data = new byte[b.getInt()];
+    b.get(data);
+    return new SpilledRecord(new String(tbl, StandardCharsets.UTF_8), k != null ? new String(k, StandardCharsets.UTF_8) : null,
+        ByteBuffer.wrap(data), spillTime, seg, pos + 4 + len);
+  }
+
+  synchronized public boolean hasPending()
+  {
+    return this.pendingBytes > 0;
+  }
+
+  /**
+   * @return when the oldest record not replayed yet was spilled, in milliseconds, 0 if none
+   */
+  synchronized public long getOldestSpillTime()
+  {
+    if(this.pendingBytes <= 0)return 0L;
+    Segment seg = this.segments.getFirst();
+    return seg.readPos < seg.writePos ? seg.buf.getLong(seg.readPos + 4) : 0L;
+  }
+
+  /**
+   * The oldest records not replayed yet, all from the same segment. They stay in the journal until commit.
+   * @param max
+   * @return
+   */
+  synchronized List<SpilledRecord> peek(int max)
+  {
+    List<SpilledRecord> records = new ArrayList<SpilledRecord>();
+    while(!this.segments.isEmpty())
+    {
+      Segment seg = this.segments.getFirst();
+      int pos = seg.readPos;
+      while(records.size() < max && pos < seg.writePos)
+      {
+        SpilledRecord r = readRecord(seg, pos);
+        if(r == null)break;
+        records.add(r);
+        pos = r.end;
+      }
+      if(records.size() > 0 || !seg.sealed && seg.readPos >= seg.writePos)
+        break;
+      //nothing readable left, not expected but the segment would block replay
+      logger.warning("Skip unreadable metrics spill segment " + seg.file + " at " + seg.readPos);
+      this.pendingBytes -= seg.writePos - seg.readPos;
+      removeSegment(seg);
+    }
+    return records;
+  }
+
+  /**
+   * The records are in metrics db, advance the replay offset
+   * @param records returned by peek
+   */
+  synchronized void commit(List<SpilledRecord> records)
+  {
+    if(records == null || records.size() == 0)return;
+    SpilledRecord last = records.get(records.size() - 1);
+    Segment seg = last.segment;
+    if(!this.segments.contains(seg))return;
+    this.pendingBytes -= last.end - seg.readPos;
+    seg.readPos = last.end;
+    seg.buf.putInt(READ_OFFSET_POS, seg.readPos);
+    this.replayed.addAndGet(records.size());
+    if(seg.readPos >= seg.writePos)
+      removeSegment(seg);//a new segment is created for the next spill
+  }
+
+  private void removeSegment(Segment seg)
+  {
+    this.segments.remove(seg);
+    seg.close();
+    if(!seg.file.delete())
+      logger.warning("Failed to delete metrics spill segment " + seg.file);
+  }
+
+  /**
+   * Flush and close the segments. The records not replayed are kept for next start.
+   */
+  synchronized public void close()
+  {
+    for(Segment seg: this.segments)
+      seg.close();
+    this.segments.clear();
+    this.pendingBytes = 0L;
+  }
+
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    long lag = 0;
+    int segs;
+    long pending;
+    synchronized(this)
+    {
+      segs = this.segments.size();
+      pending = this.pendingBytes;
+      long oldest = getOldestSpillTime();
+      if(oldest > 0)
+        lag = Math.max(0, (System.currentTimeMillis() - oldest) / 1000);
+    }
+    stats.put("spill.pendingBytes", String.valueOf(pending));
+    stats.put("spill.segments", String.valueOf(segs));
+    stats.put("spill.records", String.valueOf(this.spilled.get()));
+    stats.put("spill.replayed", String.valueOf(this.replayed.get()));
+    stats.put("spill.dropped", String.valueOf(this.dropped.get()));
+    stats.put("spill.replayLagSeconds", String.valueOf(lag));
+    return stats;
+  }
+}
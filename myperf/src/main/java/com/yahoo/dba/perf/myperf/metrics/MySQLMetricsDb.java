@@ -7,8 +7,11 @@ package com.yahoo.dba.perf.myperf.metrics;
 import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,6 +28,12 @@ public class MySQLMetricsDb  extends MetricsDbBase implements java.io.Serializab
 {
 	  private static final long serialVersionUID = 1L;
 	  private static Logger logger = Logger.getLogger(MySQLMetricsDb.class.getName());  
+	  //mysql prepared statement allows at most 65535 placeholders
+	  private static final int MAX_PLACEHOLDERS = 60000;
+	  //metrics tables are range partitioned by SNAP_ID, with the last partition taking everything above
+	  private static final String MAX_PARTITION = "pmax";
+	  //number of partitions kept ahead of the current snapshot
+	  private static final int PARTITIONS_AHEAD = 3;
 	
 	  //private java.text.DecimalFormat df = new java.text.DecimalFormat("#.###");
 	  //private java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyyMMddHHmmss");
@@ -59,14 +68,181 @@ public class MySQLMetricsDb  extends MetricsDbBase implements java.io.Serializab
 		return "create index IDX_ALERT_TS on ALERT(TS)";
 	  }
 
+	  @Override
+	  protected String[] buildProcessListDigestDDL()
+	  {
+		  return new String[]{
+			"CREATE TABLE PROCESSLIST_DIGEST (DBID INT, TS BIGINT, DIGEST VARCHAR(40), POLLS INT, SAMPLES INT, TOTAL_TIME BIGINT, MAX_TIME INT, USERS VARCHAR(255), HOSTS VARCHAR(255), SQL_TEXT VARCHAR(2048), PRIMARY KEY(DBID, TS, DIGEST), KEY IDX_PROCESSLIST_DIGEST_TS (TS))"
+		  };
+	  }
+
 	  protected String[] buildGenericMetricDDL()
 	  {
 		  return new String[]{
 			"CREATE TABLE METRIC_GENERIC (DBID INT, METRIC_ID INT, SNAP_ID INT, TS BIGINT, VALUE DECIMAL(22,7), PRIMARY KEY(DBID, METRIC_ID, SNAP_ID), KEY idx_metrics_dbid_ts (DBID, SNAP_ID), KEY idx_metrics_ts (SNAP_ID) )"
+				+ partitionClause()
 		  };
 		  
 	  }
 	  
+	  @Override
+	  protected String buildDDL(MetricsGroup mg)
+	  {
+		  return super.buildDDL(mg) + partitionClause();
+	  }
+	  
+	  /**
+	   * New metrics tables start with the catch all partition only, addPartitions will split it by SNAP_ID ranges.
+	   * @return
+	   */
+	  private String partitionClause()
+	  {
+		  if(this.getPartitionSnapshots() <= 0)return "";
+		  return " PARTITION BY RANGE (SNAP_ID) (PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE)";
+	  }
+	  
+	  /**
+	   * Split the catch all partition of each partitioned metrics table, so that there are
+	   * PARTITIONS_AHEAD partitions above the current snapshot. 
+	   * The catch all partition is normally empty, so this is a metadata only change.
+	   */
+	  @Override
+	  public void addPartitions()
+	  {
+		  int width = this.getPartitionSnapshots();
+		  if(width <= 0)return;
+		  int[] snaps = this.getSnapshostRange(-1, Long.MAX_VALUE);
+		  int lastSnap = snaps != null ? snaps[1] : 0;
+		  Connection conn = null;
+		  Statement stmt = null;
+		  try
+		  {
+			  conn = this.getPooledConnection();
+			  stmt = conn.createStatement();
+			  for(String tbl: findPartitionedTables(conn))
+			  {
+				  List<Integer> bounds = new ArrayList<Integer>();
+				  if(!loadPartitionBounds(conn, tbl, bounds))continue;
+				  int high = bounds.size() > 0 ? bounds.get(bounds.size() - 1) : (lastSnap / width) * width;
+				  StringBuilder sb = new StringBuilder();
+				  while(high < lastSnap + PARTITIONS_AHEAD * width)
+				  {
+					  high += width;
+					  sb.append("PARTITION p").append(high).append(" VALUES LESS THAN (").append(high).append("), ");
+				  }
+				  if(sb.length() == 0)continue;
+				  String ddl = "ALTER TABLE " + tbl + " REORGANIZE PARTITION " + MAX_PARTITION + " INTO ("
+						  + sb.toString() + "PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE)";
+				  logger.info("Add partitions: " + ddl);
+				  stmt.execute(ddl);
+			  }
+		  }catch(Exception ex)
+		  {
+			  logger.log(Level.SEVERE, "Failed to add partitions to metrics tables", ex);
+		  }finally
+		  {
+			  DBUtils.close(stmt);
+			  DBUtils.close(conn);
+		  }
+	  }
+	  
+	  @Override
+	  public boolean purgeByPartition(String tableName, long endDate)
+	  {
+		  if(this.getPartitionSnapshots() <= 0)return false;
+		  Connection conn = null;
+		  Statement stmt = null;
+		  try
+		  {
+			  conn = this.getPooledConnection();
+			  List<Integer> bounds = new ArrayList<Integer>();
+			  if(!loadPartitionBounds(conn, tableName, bounds))
+				  return false;
+			  int[] snaps = this.getSnapshostRange(-1, endDate);
+			  if(snaps == null || snaps[1] <= 0)return true;//nothing to purge
+			  //a partition holds SNAP_ID below its bound
+			  StringBuilder sb = new StringBuilder();
+			  for(int b: bounds)
+			  {
+				  if(b > snaps[1] + 1)break;
+				  if(sb.length() > 0)sb.append(",");
+				  sb.append("p").append(b);
+			  }
+			  if(sb.length() == 0)return true;
+			  String ddl = "ALTER TABLE " + tableName + " DROP PARTITION " + sb.toString();
+			  logger.info("Purge metrics up to " + endDate + ": " + ddl);
+			  stmt = conn.createStatement();
+			  stmt.execute(ddl);
+		  }catch(Exception ex)
+		  {
+			  //do not fall back to delete, it will be retried by the next run
+			  logger.log(Level.SEVERE, "Failed to drop partitions of " + tableName + " up to " + endDate, ex);
+		  }finally
+		  {
+			  DBUtils.close(stmt);
+			  DBUtils.close(conn);
+		  }
+		  return true;
+	  }
+	  
+	  /**
+	   * @param conn
+	   * @return tables in the metrics schema with the catch all partition
+	   * @throws SQLException
+	   */
+	  private List<String> findPartitionedTables(Connection conn) throws SQLException
+	  {
+		  List<String> tables = new ArrayList<String>();
+		  PreparedStatement stmt = null;
+		  ResultSet rs = null;
+		  try
+		  {
+			  stmt = conn.prepareStatement("select TABLE_NAME from information_schema.PARTITIONS where TABLE_SCHEMA=database() and PARTITION_NAME=? and PARTITION_METHOD='RANGE'");
+			  stmt.setString(1, MAX_PARTITION);
+			  rs = stmt.executeQuery();
+			  while(rs.next())
+				  tables.add(rs.getString(1));
+		  }finally
+		  {
+			  DBUtils.close(rs);
+			  DBUtils.close(stmt);
+		  }
+		  return tables;
+	  }
+	  
+	  /**
+	   * Read the upper bounds of the SNAP_ID range partitions, in ascending order
+	   * @param conn
+	   * @param tableName
+	   * @param bounds bounds except the catch all partition
+	   * @return true if the table is partitioned with the catch all partition
+	   * @throws SQLException
+	   */
+	  private boolean loadPartitionBounds(Connection conn, String tableName, List<Integer> bounds) throws SQLException
+	  {
+		  PreparedStatement stmt = null;
+		  ResultSet rs = null;
+		  boolean hasMax = false;
+		  try
+		  {
+			  stmt = conn.prepareStatement("select PARTITION_NAME, PARTITION_DESCRIPTION from information_schema.PARTITIONS where TABLE_SCHEMA=database() and TABLE_NAME=? and PARTITION_METHOD='RANGE' order by PARTITION_ORDINAL_POSITION");
+			  stmt.setString(1, tableName);
+			  rs = stmt.executeQuery();
+			  while(rs.next())
+			  {
+				  if(MAX_PARTITION.equals(rs.getString(1)))
+					  hasMax = true;
+				  else
+					  bounds.add(Integer.parseInt(rs.getString(2)));
+			  }
+		  }finally
+		  {
+			  DBUtils.close(rs);
+			  DBUtils.close(stmt);
+		  }
+		  return hasMax;
+	  }
+	  
 	  protected Connection createConnection(boolean autocommit)
 	  {
 	    Connection conn = null;
@@ -97,7 +273,7 @@ public class MySQLMetricsDb  extends MetricsDbBase implements java.io.Serializab
 	      {
 			  stmt = conn.createStatement();
 	    	  int cnt = 0;
-	    	  int batchSize = 100;//hard coded for now
+	    	  int batchSize = this.getWriteBatchSize();
 	    	  for(MetricsData dbuf:q2)
 	    	  {
 	    		  ByteBuffer buf = dbuf.data;
@@ -118,7 +294,7 @@ public class MySQLMetricsDb  extends MetricsDbBase implements java.io.Serializab
 	    			  cnt=0;
 	    			  //conn.commit();
 	    			  sb.setLength(0);
-	    			  sb.append("INSERT INTO "+targetTable+" (DBID, METRIC_ID, TS, VALUE) VALUES" );
+	    			  sb.append("INSERT INTO "+targetTable+" (DBID, METRIC_ID, SNAP_ID, TS, VALUE) VALUES" );
 	    		  }
 	    	  }//for loop
 	    	  if(cnt>0)
@@ -135,6 +311,61 @@ public class MySQLMetricsDb  extends MetricsDbBase implements java.io.Serializab
 	      }
 		  	  
 	  }
+	  
+	  /**
+	   * Use multiple rows VALUES insert for builtin metrics. One statement per batch.
+	   */
+	  @Override
+	  protected void storeBuiltinMetric(String s, MetricsGroup mg, List<MetricsData> q2, Connection conn) throws SQLException
+	  {
+		  String sql = this.insertSQL.get(s);
+		  //keep the number of placeholders within mysql limit
+		  int rowParams = 4 + mg.getMetrics().size() + (mg.getKeyColumn() != null && !mg.getKeyColumn().isEmpty()?1:0);
+		  int batchSize = Math.max(1, Math.min(this.getWriteBatchSize(), MAX_PLACEHOLDERS/rowParams));
+		  PreparedStatement stmt = null;
+		  int stmtRows = 0;
+		  try
+		  {
+			  int total = q2.size();
+			  for(int start = 0; start < total; start += batchSize)
+			  {
+				  int rows = Math.min(batchSize, total - start);
+				  if(stmt == null || rows != stmtRows)
+				  {
+					  DBUtils.close(stmt);
+					  stmt = conn.prepareStatement(multiRowInsertSQL(sql, rows));
+					  stmtRows = rows;
+				  }
+				  int idx = 1;
+				  for(int i = start; i < start + rows; i++)
+					  idx = bindBuiltinRow(stmt, idx, mg, q2.get(i));
+				  stmt.execute();
+				  commitBatch(conn, rows);
+			  }
+			  if(stmt != null){stmt.close(); stmt = null;}
+		  }finally
+		  {
+			  DBUtils.close(stmt);
+		  }
+	  }
+	  
+	  /**
+	   * Expand a single row "insert ... values (?,...)" into rows of value lists
+	   * @param sql
+	   * @param rows
+	   * @return
+	   */
+	  private String multiRowInsertSQL(String sql, int rows)
+	  {
+		  if(rows <= 1)return sql;
+		  String valueList = sql.substring(sql.lastIndexOf(" values ") + 8);
+		  StringBuilder sb = new StringBuilder(sql.length() + (valueList.length() + 1) * rows);
+		  sb.append(sql);
+		  for(int i = 1; i < rows; i++)
+			  sb.append(",").append(valueList);
+		  return sb.toString();
+	  }
+	  
 	@Override
 	protected String[] buildHostDDL() {
 		return new String[] {
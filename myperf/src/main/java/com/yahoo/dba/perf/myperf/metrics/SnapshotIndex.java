@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory copy of SNAPSHOTS (START_TS, SNAP_ID), sorted by START_TS, so a time range
+ * can be translated into a snap_id range without database access.
+ * Entries are kept in primitive arrays. New snapshots are normally appended at the end.
+ * @author xrao
+ *
+ */
+public class SnapshotIndex
+{
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private long[] startTs = new long[INITIAL_CAPACITY];
+  private int[] snapIds = new int[INITIAL_CAPACITY];
+  private int size = 0;
+  //true if snap_id increases with START_TS, then min and max are at both ends of a range
+  private boolean ordered = true;
+  private volatile boolean loaded = false;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Replace the content, used at startup. Not required to be sorted.
+   * @param ts START_TS
+   * @param ids SNAP_ID
+   * @param count number of entries
+   */
+  public void load(long[] ts, int[] ids, int count)
+  {
+    lock.writeLock().lock();
+    try
+    {
+      int cap = INITIAL_CAPACITY;
+      while(cap < count)cap <<= 1;
+      this.startTs = new long[cap];
+      this.snapIds = new int[cap];
+      this.size = 0;
+      this.ordered = true;
+      for(int i=0;i<count;i++)
+        insert(ts[i], ids[i]);
+      this.loaded = true;
+    }finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the index has been loaded from SNAPSHOTS, and can be used for lookup
+   */
+  public boolean isLoaded()
+  {
+    return this.loaded;
+  }
+
+  /**
+   * Record a new snapshot
+   * @param ts START_TS
+   * @param snapId
+   */
+  public void add(long ts, int snapId)
+  {
+    lock.writeLock().lock();
+    try
+    {
+      insert(ts, snapId);
+    }finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void insert(long ts, int snapId)
+  {
+    if(size == startTs.length)
+    {
+      long[] ts2 = new long[size*2];
+      int[] ids2 = new int[size*2];
+      System.arraycopy(startTs, 0, ts2, 0, size);
+      System.arraycopy(snapIds, 0, ids2, 0, size);
+      startTs = ts2;
+      snapIds = ids2;
+    }
+    //after all entries with the same or smaller START_TS
+    int pos = size;
+    if(size > 0 && startTs[size-1] > ts)
+      pos = upperBound(ts);
+    if(pos < size)
+    {
+      System.arraycopy(startTs, pos, startTs, pos+1, size - pos);
+      System.arraycopy(snapIds, pos, snapIds, pos+1, size - pos);
+    }
+    startTs[pos] = ts;
+    snapIds[pos] = snapId;
+    size++;
+    if((pos > 0 && snapIds[pos-1] > snapId) || (pos < size-1 && snapIds[pos+1] < snapId))
+      ordered = false;
+  }
+
+  /**
+   * Same as select min(SNAP_ID), max(SNAP_ID) from SNAPSHOTS where START_TS between startTs and endTs
+   * @param startTs
+   * @param endTs
+   * @return min and max snap_id, 0 and 0 if no snapshot in range
+   */
+  public int[] getRange(long startTs, long endTs)
+  {
+    lock.readLock().lock();
+    try
+    {
+      int from = lowerBound(startTs);
+      int to = upperBound(endTs) - 1;
+      if(from > to)return new int[]{0, 0};
+      if(ordered)return new int[]{snapIds[from], snapIds[to]};
+      int min = snapIds[from];
+      int max = min;
+      for(int i=from+1;i<=to;i++)
+      {
+        if(snapIds[i] < min)min = snapIds[i];
+        if(snapIds[i] > max)max = snapIds[i];
+      }
+      return new int[]{min, max};
+    }finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Remove snapshots started before the given time, after metrics are purged
+   * @param beforeTs
+   * @return number of entries removed
+   */
+  public int prune(long beforeTs)
+  {
+    lock.writeLock().lock();
+    try
+    {
+      int n = lowerBound(beforeTs);
+      if(n == 0)return 0;
+      System.arraycopy(startTs, n, startTs, 0, size - n);
+      System.arraycopy(snapIds, n, snapIds, 0, size - n);
+      size -= n;
+      if(!ordered)
+      {
+        ordered = true;
+        for(int i=1;i<size && ordered;i++)
+          if(snapIds[i-1] > snapIds[i])ordered = false;
+      }
+      return n;
+    }finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public int size()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return size;
+    }finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * first position with START_TS >= ts
+   */
+  private int lowerBound(long ts)
+  {
+    int lo = 0, hi = size;
+    while(lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if(startTs[mid] < ts)lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * first position with START_TS > ts
+   */
+  private int upperBound(long ts)
+  {
+    int lo = 0, hi = size;
+    while(lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if(startTs[mid] <= ts)lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Statistics, for status page
+   * @return
+   */
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    lock.readLock().lock();
+    try
+    {
+      stats.put("snapshotIndex.loaded", String.valueOf(loaded));
+      stats.put("snapshotIndex.entries", String.valueOf(size));
+      stats.put("snapshotIndex.firstStartTs", size>0?String.valueOf(startTs[0]):"");
+      stats.put("snapshotIndex.lastStartTs", size>0?String.valueOf(startTs[size-1]):"");
+    }finally
+    {
+      lock.readLock().unlock();
+    }
+    return stats;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.process;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs alert reports (process list, replication and innodb status) off the scanner threads, with a
+ * small worker pool and a bounded queue. Each report uses its own connection to the host.
+ * A report for a host and alert type already queued or running absorbs the new one. When the queue is full,
+ * or a report has waited too long, only the alert is recorded and notified, without the report.
+ * @author xrao
+ *
+ */
+public class AlertReportExecutor
+{
+  private static Logger logger = Logger.getLogger(AlertReportExecutor.class.getName());
+
+  private String name;
+  private ThreadPoolExecutor executor;
+  private long maxQueueTime = 120000L;//report not started within such time is no longer useful
+  private ConcurrentHashMap<String, AlertReportRunner> pending = new ConcurrentHashMap<String, AlertReportRunner>();
+
+  //statistics
+  private AtomicLong submitted = new AtomicLong();
+  private AtomicLong coalesced = new AtomicLong();
+  private AtomicLong rejected = new AtomicLong();
+  private AtomicLong expired = new AtomicLong();
+  private AtomicLong completed = new AtomicLong();
+  private AtomicLong failed = new AtomicLong();
+  private AtomicLong reportTimeTotal = new AtomicLong();//milliseconds
+
+  public AlertReportExecutor(String name, int threadCount, int queueSize)
+  {
+    this.name = name;
+    final AtomicInteger seq = new AtomicInteger();
+    final String prefix = name;
+    int threads = threadCount>0?threadCount:1;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(queueSize>0?queueSize:1), new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread th = new Thread(r, prefix+" - "+seq.getAndIncrement());
+        th.setDaemon(true);
+        return th;
+      }
+    });
+  }
+
+  private static String key(AlertReportRunner report)
+  {
+    return report.getDbInfo().getDbid()+":"+String.valueOf(report.getAlertReason()).toUpperCase();
+  }
+
+  /**
+   * Queue the report. It never blocks the caller.
+   * @param report
+   */
+  public void submit(final AlertReportRunner report)
+  {
+    this.submitted.incrementAndGet();
+    final String key = key(report);
+    if(this.pending.putIfAbsent(key, report) != null)
+    {
+      this.coalesced.incrementAndGet();
+      logger.fine("Alert report for "+key+" already pending, skip");
+      return;
+    }
+    final long queueTime = System.currentTimeMillis();
+    try
+    {
+      this.executor.execute(new Runnable()
+      {
+        public void run()
+        {
+          runReport(key, report, queueTime);
+        }
+      });
+    }catch(RejectedExecutionException ex)
+    {
+      this.pending.remove(key);
+      this.rejected.incrementAndGet();
+      logger.warning(this.name+": queue full, record alert without report for "+report.getDbInfo()+", "+report.getAlertReason());
+      report.recordAlert();
+    }
+  }
+
+  private void runReport(String key, AlertReportRunner report, long queueTime)
+  {
+    long startTime = System.currentTimeMillis();
+    if(startTime - queueTime > this.maxQueueTime)
+    {
+      this.pending.remove(key);
+      this.expired.incrementAndGet();
+      logger.warning(this.name+": report waited "+(startTime - queueTime)+"ms, record alert without report for "
+        +report.getDbInfo()+", "+report.getAlertReason());
+      report.recordAlert();
+      return;
+    }
+    try
+    {
+      report.run();
+      this.completed.incrementAndGet();
+    }catch(Throwable ex)
+    {
+      this.failed.incrementAndGet();
+      logger.log(Level.WARNING, "Failed to generate alert report for "+report.getDbInfo(), ex);
+    }finally
+    {
+      this.reportTimeTotal.addAndGet(System.currentTimeMillis() - startTime);
+      this.pending.remove(key);
+    }
+  }
+
+  /**
+   * Stop all workers. Queued reports are discarded.
+   */
+  public void shutdown()
+  {
+    this.executor.shutdownNow();
+    this.pending.clear();
+  }
+
+  public long getMaxQueueTime()
+  {
+    return maxQueueTime;
+  }
+
+  public void setMaxQueueTime(long maxQueueTime)
+  {
+    this.maxQueueTime = maxQueueTime;
+  }
+
+  /**
+   * Statistics, for status page
+   * @return
+   */
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    long done = this.completed.get() + this.failed.get();
+    stats.put(this.name+".submitted", String.valueOf(this.submitted.get()));
+    stats.put(this.name+".coalesced", String.valueOf(this.coalesced.get()));
+    stats.put(this.name+".rejected", String.valueOf(this.rejected.get()));
+    stats.put(this.name+".expired", String.valueOf(this.expired.get()));
+    stats.put(this.name+".completed", String.valueOf(this.completed.get()));
+    stats.put(this.name+".failed", String.valueOf(this.failed.get()));
+    stats.put(this.name+".queued", String.valueOf(this.executor.getQueue().size()));
+    stats.put(this.name+".active", String.valueOf(this.executor.getActiveCount()));
+    stats.put(this.name+".avgReportTimeMillis", done>0?String.valueOf(this.reportTimeTotal.get()/done):"0");
+    return stats;
+  }
+}
@@ -5,6 +5,7 @@
  */
 package com.yahoo.dba.perf.myperf.process;
 
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -18,6 +19,7 @@ import java.util.logging.Logger;
 import com.yahoo.dba.perf.myperf.common.AlertEntry;
 import com.yahoo.dba.perf.myperf.common.AlertReport;
 import com.yahoo.dba.perf.myperf.common.AppUser;
+import com.yahoo.dba.perf.myperf.common.DBCredential;
 import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
 import com.yahoo.dba.perf.myperf.common.DBUtils;
 import com.yahoo.dba.perf.myperf.common.MyPerfContext;
@@ -25,15 +27,17 @@ import com.yahoo.dba.perf.myperf.common.ProcessListEntry;
 import com.yahoo.dba.perf.myperf.common.ProcessListSummary;
 import com.yahoo.dba.perf.myperf.common.ResultList;
 import com.yahoo.dba.perf.myperf.common.ResultListUtil;
+import com.yahoo.dba.perf.myperf.db.ConnectionFactory;
 import com.yahoo.dba.perf.myperf.db.DBConnectionWrapper;
 
 public class AlertReportRunner implements Runnable{
 	private static Logger logger = Logger.getLogger(AlertReportRunner.class.getName());
+	private static final int QUERY_TIMEOUT = 60;//seconds, do not let a hung host hold the report worker
 	private MyPerfContext context;
 	private DBInstanceInfo dbInfo;
 	private long timestamp;
 	private AppUser appUser;
-	private DBConnectionWrapper connection;
+	private DBConnectionWrapper connection;//if null, open a connection for the report
 	private String alertReason;
 	private String alertValue;
 	
@@ -74,11 +78,43 @@ public class AlertReportRunner implements Runnable{
 		return false;
 	}
 
+	/**
+	 * Record and notify the alert only, without the report. Used when the report cannot be generated in time.
+	 */
+	public void recordAlert()
+	{
+		AlertEntry alertEntry = new AlertEntry(timestamp, alertReason, alertValue, dbInfo.getDbGroupName(), dbInfo.getHostName());
+		this.context.getAlerts().addAlert(alertEntry);
+		this.context.emailAlert(alertEntry);
+	}
+
+	/**
+	 * Open a read only connection for this report, not shared with scanners
+	 * @return
+	 * @throws SQLException
+	 */
+	private DBConnectionWrapper connect() throws SQLException
+	{
+		DBCredential cred = DBUtils.findDBCredential(context, dbInfo.getDbGroupName(), appUser);
+		if(cred == null)
+			throw new SQLException("No credential for cluster "+dbInfo.getDbGroupName());
+		Connection conn = ConnectionFactory.connect(dbInfo, cred, context);
+		if(conn == null)
+			throw new SQLException("Failed to create connection: null connection");
+		conn.setReadOnly(true);
+		DBConnectionWrapper cw = new DBConnectionWrapper(dbInfo);
+		cw.setAppUser(appUser.getName());
+		cw.setConnection(conn);
+		return cw;
+	}
+
 	@Override
 	public void run() {
 		AlertEntry alertEntry = new AlertEntry(timestamp, alertReason, alertValue, dbInfo.getDbGroupName(), dbInfo.getHostName());
 		this.context.getAlerts().addAlert(alertEntry);
 		
+		DBConnectionWrapper conn = this.connection;
+		boolean ownConnection = conn == null;
 		ResultSet rs = null;
 		Statement stmt = null;
 		long reportTimestamp = System.currentTimeMillis();
@@ -89,7 +125,10 @@ public class AlertReportRunner implements Runnable{
 		ResultList clientList = null;
 		try
 		{
-			stmt = connection.getConnection().createStatement();
+			if(ownConnection)
+				conn = connect();
+			stmt = conn.getConnection().createStatement();
+			stmt.setQueryTimeout(QUERY_TIMEOUT);
 			stmt.setFetchSize(5000);
 			stmt.setMaxRows(5000);
 			rs = stmt.executeQuery("select * from information_schema.processlist limit 5000");
@@ -155,6 +194,8 @@ public class AlertReportRunner implements Runnable{
 		{
 			DBUtils.close(rs);
 			DBUtils.close(stmt);
+			if(ownConnection && conn != null)
+				DBUtils.close(conn.getConnection());
 		}
 		if(prList.size()>0||repMap.size()>0)
 		{
@@ -176,6 +217,10 @@ public class AlertReportRunner implements Runnable{
 		this.context.emailAlert(alertEntry);
 	}
 	
+	public DBInstanceInfo getDbInfo() {
+		return dbInfo;
+	}
+
 	public DBConnectionWrapper getConnection() {
 		return connection;
 	}
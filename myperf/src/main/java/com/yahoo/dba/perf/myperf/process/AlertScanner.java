@@ -5,11 +5,12 @@
  */
 package com.yahoo.dba.perf.myperf.process;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,7 +67,7 @@ public class AlertScanner{
 	{
 		Set<String> clusternames = frameworkContext.getDbInfoManager().getMyDatabases(appUser.getName()).getMyDbList();
 		logger.info("Start scan alerts");
-		LinkedBlockingQueue<DBInstanceInfo> dbqueue = new LinkedBlockingQueue<DBInstanceInfo>();
+		List<AlertScannerRunner> tasks = new ArrayList<AlertScannerRunner>();
 		for(String cl: clusternames)
 		{
 			DBCredential cred = DBUtils.findDBCredential(frameworkContext, cl, appUser);
@@ -84,24 +85,16 @@ public class AlertScanner{
 			
 			for(DBInstanceInfo dbinfo: cls.getInstances())
 			{
-				dbqueue.add(dbinfo);
+				tasks.add(new AlertScannerRunner(frameworkContext, dbinfo, appUser));
 			}
 		}
 			
-		int mythreadcnt = this.threadCount;
-		if(dbqueue.size()<mythreadcnt)mythreadcnt = dbqueue.size();
-		Thread th[] = new Thread[mythreadcnt];
-		for(int i=0;i<mythreadcnt;i++)
-		{
-			AlertScannerRunner runner = new 
-					AlertScannerRunner(frameworkContext,
-						dbqueue,
-						appUser);
-			th[i] = new Thread(runner);
-			th[i].setName("AlertScannerRunner - "+i);
-			th[i].start();
-		}
-		for(int i=0;i<th.length;i++)try{th[i].join();}catch(Exception ex){}
+		//each host is a task of the shared executor, leave some room before next scan
+		long cycleTimeout = this.frameworkContext.getMyperfConfig().getAlertScanIntervalSeconds()*900L;
+		long hostTimeout = this.frameworkContext.getMyperfConfig().getScannerHostTimeoutSeconds()*1000L;
+		if(hostTimeout <= 0 || hostTimeout > cycleTimeout)hostTimeout = cycleTimeout;
+		this.frameworkContext.getAutoScanner().getAlertScanExecutor().runAll(tasks, hostTimeout, cycleTimeout);
+		this.frameworkContext.getAutoScanner().getConnectionPool().closeExpired();
 	
 		logger.info("Done alert scanner");
 		this.frameworkContext.getAutoScanner().getMetricDb().flush();//notify persistent store
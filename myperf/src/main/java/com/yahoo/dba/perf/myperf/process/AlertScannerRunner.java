@@ -10,33 +10,33 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.yahoo.dba.perf.myperf.common.*;
 import com.yahoo.dba.perf.myperf.db.DBConnectionWrapper;
-import com.yahoo.dba.perf.myperf.db.UserDBConnections;
+import com.yahoo.dba.perf.myperf.db.ScannerConnectionPool;
 
-public class AlertScannerRunner implements Runnable
+public class AlertScannerRunner implements ScanExecutor.HostScanTask
 {
   private static Logger logger = Logger.getLogger(AlertScannerRunner.class.getName());
   private MyPerfContext frameworkContext;
 	
-  //note those objects are shared, so we need handle synchronization here	
-  private LinkedBlockingQueue<DBInstanceInfo> dbqueue;//distribute job
+  private DBInstanceInfo dbinfo;//the host to scan
   private AppUser appUser;
-  private UserDBConnections conns;
+  private volatile long startTime = 0L;
+  private volatile boolean cancelled = false;
+  private volatile DBConnectionWrapper currentConn;//to cancel running query
+  private ScannerConnectionPool conns;//shared across scans
   
   protected java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyyMMddHHmmss");
 
   public AlertScannerRunner(MyPerfContext frameworkContext,
-			LinkedBlockingQueue<DBInstanceInfo> dbqueue,
+			DBInstanceInfo dbinfo,
 			AppUser appUser)
   {
     this.frameworkContext = frameworkContext;
-	this.dbqueue = dbqueue;
+	this.dbinfo = dbinfo;
 	this.appUser = appUser;
 	sdf.setTimeZone(TimeZone.getTimeZone("UTC"));	  
   }
@@ -48,26 +48,44 @@ public class AlertScannerRunner implements Runnable
 
   private void scan()
   {
-    conns = new UserDBConnections();
-	conns.setAppUser(appUser.getName());
-	conns.setFrameworkContext(frameworkContext);
-	int count = 0;
-	while(!dbqueue.isEmpty())
+    this.startTime = System.currentTimeMillis();
+    conns = this.frameworkContext.getAutoScanner().getConnectionPool();
+	try
 	{
-	  try
-	  {
-	    DBInstanceInfo db = this.dbqueue.poll(1, TimeUnit.SECONDS);
-	    count++;
-		if(db==null || !db.isAlertEnabled())continue;
-		long startTime = System.currentTimeMillis();
-		scanHost(db);
-		//this.frameworkContext.getInstanceStatesManager().getStates(db.getDbid()).setLastScanTime(System.currentTimeMillis() - startTime);
-	  }catch(Exception ex)
-	  {
-	    logger.log(Level.WARNING, "Exception: scan loop", ex);
-	  }
+	  if(this.cancelled || !dbinfo.isAlertEnabled())return;
+	  scanHost(dbinfo);
+	}catch(Exception ex)
+	{
+	  logger.log(Level.WARNING, "Exception: scan "+dbinfo, ex);
 	}
-	logger.info(Thread.currentThread()+" done scan alerts: "+count+" servers.");
+  }
+
+  public DBInstanceInfo getDbInfo()
+  {
+    return this.dbinfo;
+  }
+
+  public long getStartTime()
+  {
+    return this.startTime;
+  }
+
+  /**
+   * Stop scanning more alerts and cancel the running query, if any
+   */
+  public void cancel()
+  {
+    this.cancelled = true;
+    DBConnectionWrapper conn = this.currentConn;
+    if(conn == null)return;
+    try
+    {
+      if(conn.getCurrentStatement()!=null)
+        conn.getCurrentStatement().cancel();
+    }catch(Exception ex)
+    {
+      logger.log(Level.WARNING, "Failed to cancel query on "+dbinfo, ex);
+    }
   }
 
 
@@ -142,19 +160,24 @@ public class AlertScannerRunner implements Runnable
 		  return false; //nothing to scan
 
       if(!tryConnect(scanData))return false;
+      this.currentConn = scanData.conn;
       
 
 	  for(AlertSubscribers.Subscription subscript: subscripts)
 	  {
+		  if(this.cancelled)break;
 		  scanAlert(scanData,  subscript);
 	  }
 	  	  
 	}catch(Exception ex)
 	{
 	  logger.log(Level.WARNING, "exception: "+dbinfo, ex);
+	  //the connection might be in a bad state, do not reuse it
+	  if(scanData.conn!=null){conns.checkinConnectionOnError(scanData.conn);scanData.conn = null;}
 	}finally
 	{
-	  if(scanData.conn!=null){conns.checkinConnectionAndClose(scanData.conn);scanData.conn = null;}
+	  this.currentConn = null;
+	  if(scanData.conn!=null){conns.checkinConnection(scanData.conn);scanData.conn = null;}
 	}
 	logger.fine("Done scan for host ("+dbinfo+")");
 	//TODO update with mysql status 
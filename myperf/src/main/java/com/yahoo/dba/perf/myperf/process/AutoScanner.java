@@ -16,6 +16,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.yahoo.dba.perf.myperf.common.*;
+import com.yahoo.dba.perf.myperf.db.ScannerConnectionPool;
 import com.yahoo.dba.perf.myperf.metrics.MetricsDbBase;
 
 /**
@@ -37,6 +38,12 @@ public class AutoScanner {
 	private boolean running = false;//if the scanner is running
 
 	private MetricsDbBase metricDb; //let AutoScanner to handle its initialization
+	private volatile ScannerConnectionPool connectionPool;//connections shared by metrics and alert scanners
+	private volatile ScanExecutor metricsScanExecutor;//workers for metrics scan, one task per host
+	private volatile ScanExecutor alertScanExecutor;//workers for alert scan, one task per host
+	private volatile AlertReportExecutor alertReportExecutor;//alert reports, off the scanner threads
+	private volatile ProcessListSampler processListSampler;//continuous processlist sampling of selected servers
+	private volatile StatementDigestCollector statementDigestCollector;//previous digest counters per server
 	
 	//scheduler	
 	private ScheduledExecutorService metricsScheduler;
@@ -111,6 +118,19 @@ public class AutoScanner {
 	
 	private void startSchedulers()
 	{
+		ScannerConnectionPool pool = new ScannerConnectionPool(this.context, this.appUser.getName());
+		pool.setMaxConnectionsPerHost(context.getMyperfConfig().getScannerConnectionsPerHost());
+		pool.setConnectionIdleTimeout(context.getMyperfConfig().getScannerConnectionIdleSeconds()*1000L);
+		pool.setMultiQueries(context.getMyperfConfig().isScannerMultiQueries());
+		this.connectionPool = pool;
+		this.metricsScanExecutor = new ScanExecutor("MetricScannerRunner", context.getMyperfConfig().getScannerThreadCount());
+		this.alertScanExecutor = new ScanExecutor("AlertScannerRunner", context.getMyperfConfig().getScannerThreadCount());
+		this.alertReportExecutor = new AlertReportExecutor("AlertReportExecutor", 2, 32);
+		ProcessListSampler sampler = new ProcessListSampler(this.context, this.appUser);
+		this.processListSampler = sampler.start()? sampler : null;
+		StatementDigestCollector collector = new StatementDigestCollector(context.getMyperfConfig().getStatementDigestTopN());
+		collector.setMaxAgeSeconds(2 * context.getMyperfConfig().getScannerIntervalSeconds());
+		this.statementDigestCollector = collector;
 		metricsScheduler = Executors.newSingleThreadScheduledExecutor();//we only need a single thread
 		alertScheduler = Executors.newSingleThreadScheduledExecutor();//we only need a single thread
 		scheduler2 = Executors.newSingleThreadScheduledExecutor();//we only need a single thread
@@ -148,6 +168,8 @@ public class AutoScanner {
 				configDelay2+60, 24*3600, TimeUnit.SECONDS);//once a day
 		ScheduledFuture<?> runtimeTaskFuture3 = scheduler2.scheduleAtFixedRate(configScanTask, 
 				configDelay+120, 12*3600, TimeUnit.SECONDS);//twice a day
+		ScheduledFuture<?> rollupTaskFuture = scheduler2.scheduleAtFixedRate(this.metricDb.getRollup(), 
+				monitorDelay+30, 600, TimeUnit.SECONDS);//each 10 minutes
 		logger.info("Rentention Task and configuratiion scan task scheduled.");
 		
 		ScheduledFuture<?> monitorTaskFuture = this.monitorScheduler.scheduleAtFixedRate(monitorTask, 
@@ -207,6 +229,17 @@ public class AutoScanner {
 		{
 			logger.info("AutoScanner failed to shutdown alert scheduler in 5 sec.");			
 		}
+		//also cancel queries of hung scanners
+		if(this.connectionPool != null)
+			this.connectionPool.close();
+		if(this.metricsScanExecutor != null)
+			this.metricsScanExecutor.shutdown();
+		if(this.alertScanExecutor != null)
+			this.alertScanExecutor.shutdown();
+		if(this.alertReportExecutor != null)
+			this.alertReportExecutor.shutdown();
+		if(this.processListSampler != null)
+			this.processListSampler.stop();
 		
 	}
 	
@@ -237,6 +270,33 @@ public class AutoScanner {
 		this.metricDb = metricDb;
 	}
 
+	public ScannerConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	public ScanExecutor getMetricsScanExecutor() {
+		return metricsScanExecutor;
+	}
+
+	public ScanExecutor getAlertScanExecutor() {
+		return alertScanExecutor;
+	}
+
+	public AlertReportExecutor getAlertReportExecutor() {
+		return alertReportExecutor;
+	}
+
+	/**
+	 * @return null if no server is configured for processlist sampling
+	 */
+	public ProcessListSampler getProcessListSampler() {
+		return processListSampler;
+	}
+
+	public StatementDigestCollector getStatementDigestCollector() {
+		return statementDigestCollector;
+	}
+
 	private final class MetricsScanTask implements Runnable
 	{
 		public void run() {
@@ -5,11 +5,12 @@
  */
 package com.yahoo.dba.perf.myperf.process;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -129,7 +130,7 @@ public class MetricScanner{
 			logger.severe("Data buffer was not found. Scan cannot continue.");
 			return;
 		}
-		LinkedBlockingQueue<DBInstanceInfo> dbqueue = new LinkedBlockingQueue<DBInstanceInfo>();
+		List<MetricScannerRunner> tasks = new ArrayList<MetricScannerRunner>();
 		for(String cl: clusternames)
 		{
 			DBCredential cred = DBUtils.findDBCredential(frameworkContext, cl, appUser);
@@ -148,27 +149,22 @@ public class MetricScanner{
 			for(DBInstanceInfo dbinfo: cls.getInstances())
 			{
 				checkAndSetupMetricsBuffer(dbinfo);
-				dbqueue.add(dbinfo);
+				MetricScannerRunner runner = new 
+						MetricScannerRunner(frameworkContext,
+							dbinfo,
+							appUser,
+							snap_id);
+				runner.setBuffer(buffer);
+				tasks.add(runner);
 			}
 		}
 			
-		int mythreadcnt = this.threadCount;
-		if(dbqueue.size()<mythreadcnt)mythreadcnt = dbqueue.size();
-		Thread th[] = new Thread[mythreadcnt];
-		for(int i=0;i<mythreadcnt;i++)
-		{
-			MetricScannerRunner runner = new 
-					MetricScannerRunner(frameworkContext,
-						dbqueue,
-						appUser,
-						snap_id);
-			runner.setBuffer(buffer);
-//			runner.setBuiltinMetrics(builtinMetrics);
-			th[i] = new Thread(runner);
-			th[i].setName("MetricScannerRunner - "+i);
-			th[i].start();
-		}
-		for(int i=0;i<th.length;i++)try{th[i].join();}catch(Exception ex){}
+		//each host is a task of the shared executor, leave some room before next scan
+		long cycleTimeout = this.frameworkContext.getMyperfConfig().getScannerIntervalSeconds()*900L;
+		long hostTimeout = this.frameworkContext.getMyperfConfig().getScannerHostTimeoutSeconds()*1000L;
+		if(hostTimeout <= 0 || hostTimeout > cycleTimeout)hostTimeout = cycleTimeout;
+		this.frameworkContext.getAutoScanner().getMetricsScanExecutor().runAll(tasks, hostTimeout, cycleTimeout);
+		this.frameworkContext.getAutoScanner().getConnectionPool().closeExpired();
 	
 		logger.info("Done gather metrics");
 		this.frameworkContext.getAutoScanner().getMetricDb().flush();//notify persistent store
@@ -7,48 +7,50 @@ package com.yahoo.dba.perf.myperf.process;
 
 import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.yahoo.dba.perf.myperf.common.*;
 import com.yahoo.dba.perf.myperf.db.DBConnectionWrapper;
 import com.yahoo.dba.perf.myperf.db.InnoDbMutexPostProccessor;
-import com.yahoo.dba.perf.myperf.db.UserDBConnections;
+import com.yahoo.dba.perf.myperf.db.MultiQuery;
+import com.yahoo.dba.perf.myperf.db.ScannerConnectionPool;
 import com.yahoo.dba.perf.myperf.snmp.SNMPClient;
 
 /**
- * A thread runner executing the real metrics gathering tasks
+ * A task executing the real metrics gathering for a single host
  * @author xrao
  *
  */
-public class MetricScannerRunner implements Runnable
+public class MetricScannerRunner implements ScanExecutor.HostScanTask
 {
   private static Logger logger = Logger.getLogger(MetricScannerRunner.class.getName());
   private MyPerfContext frameworkContext;
 	
-  //note those objects are shared, so we need handle synchronization here	
-  private LinkedBlockingQueue<DBInstanceInfo> dbqueue;//distributed job
+  private DBInstanceInfo dbinfo;//the host to scan
   private AppUser appUser;//to get db credentials
-  private UserDBConnections conns;
+  private ScannerConnectionPool conns;//shared across scans
   private Map<String,Map<String, MetricsBuffer>> buffer ;
   private int snap_id;
+  private volatile long startTime = 0L;
+  private volatile boolean cancelled = false;
+  private volatile DBConnectionWrapper currentConn;//to cancel running query
   
   protected java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyyMMddHHmmss");
 
   public MetricScannerRunner(MyPerfContext frameworkContext,
-			LinkedBlockingQueue<DBInstanceInfo> dbqueue,
+			DBInstanceInfo dbinfo,
 			AppUser appUser,
 			int snap_id)
   {
     this.frameworkContext = frameworkContext;
-	this.dbqueue = dbqueue;
+	this.dbinfo = dbinfo;
 	this.appUser = appUser;
 	this.snap_id = snap_id;
 	sdf.setTimeZone(TimeZone.getTimeZone("UTC"));	  
@@ -61,28 +63,49 @@ public class MetricScannerRunner implements Runnable
 
   private void scan()
   {
-    conns = new UserDBConnections();
-	conns.setAppUser(appUser.getName());
-	conns.setFrameworkContext(frameworkContext);
-	int count = 0;
-	while(!dbqueue.isEmpty())
+    this.startTime = System.currentTimeMillis();
+    conns = this.frameworkContext.getAutoScanner().getConnectionPool();
+	try
 	{
-	  try
-	  {
-	    DBInstanceInfo db = this.dbqueue.poll(1, TimeUnit.SECONDS);
-	    count++;
-		if(db==null || !db.isMetricsEnabled())continue;
-		long startTime = System.currentTimeMillis();
-		scanHost(db);
-		//record total scan time for each server
-		this.frameworkContext.getInstanceStatesManager().getStates(db.getDbid())
-		    .setLastScanTime(System.currentTimeMillis() - startTime);
-	  }catch(Exception ex)
-	  {
-	    logger.log(Level.WARNING, "Exception: scan loop", ex);
-	  }
+	  if(this.cancelled || !dbinfo.isMetricsEnabled())return;
+	  scanHost(dbinfo);
+	}catch(Exception ex)
+	{
+	  logger.log(Level.WARNING, "Exception: scan "+dbinfo, ex);
+	}finally
+	{
+	  //record total scan time for each server, including the late ones
+	  this.frameworkContext.getInstanceStatesManager().getStates(dbinfo.getDbid())
+	    .setLastScanTime(System.currentTimeMillis() - this.startTime);
 	}
-	logger.info(Thread.currentThread()+" done scan metrics: "+count+" servers.");
+  }
+
+  public DBInstanceInfo getDbInfo()
+  {
+    return this.dbinfo;
+  }
+
+  public long getStartTime()
+  {
+    return this.startTime;
+  }
+
+  /**
+   * Stop scanning more metrics groups and cancel the running query, if any
+   */
+  public void cancel()
+  {
+    this.cancelled = true;
+    DBConnectionWrapper conn = this.currentConn;
+    if(conn == null)return;
+    try
+    {
+      if(conn.getCurrentStatement()!=null)
+        conn.getCurrentStatement().cancel();
+    }catch(Exception ex)
+    {
+      logger.log(Level.WARNING, "Failed to cancel query on "+dbinfo, ex);
+    }
   }
 
 
@@ -158,6 +181,26 @@ public class MetricScannerRunner implements Runnable
 	  String snapAlertType = null;
 	  String snapAlertValue = null;
 	  boolean canQuerySNMP = true;//since we do multi round SNMP, if one failed, no meaning for next
+	  SNMPClient snmpClient = null;//shared by all SNMP groups of this scan
+  }
+
+  /**
+   * SNMP client of the host, created on first use. It uses the shared SNMP engine, no socket of its own.
+   * @param scanData
+   * @return
+   * @throws Exception
+   */
+  private SNMPClient getSnmpClient(ScanData scanData) throws Exception
+  {
+	  if(scanData.snmpClient == null)
+	  {
+		  SNMPClient snmpClient = new SNMPClient(scanData.dbinfo.getHostName(), this.frameworkContext.getSnmpEngine());
+		  snmpClient.setSnmpSetting(this.frameworkContext.getSnmpSettings()
+				  .getHostSetting(scanData.dbinfo.getDbGroupName(), scanData.dbinfo.getHostName()));
+		  snmpClient.start();
+		  scanData.snmpClient = snmpClient;
+	  }
+	  return scanData.snmpClient;
   }
   
   private void scanSnmpDisk(ScanData scanData, MetricsGroup mg) throws Exception
@@ -167,10 +210,7 @@ public class MetricScannerRunner implements Runnable
 		SNMPClient  snmpClient = null;
 	    try
 	    {
-	      snmpClient = new SNMPClient(scanData.dbinfo.getHostName());
-	      snmpClient.setSnmpSetting(this.frameworkContext.getSnmpSettings()
-	    		  .getHostSetting(scanData.dbinfo.getDbGroupName(), scanData.dbinfo.getHostName()));
-	      snmpClient.start();	
+	      snmpClient = getSnmpClient(scanData);
 		  long ts1 = System.currentTimeMillis();  
 		  Map<String, List<SNMPClient.SNMPTriple>> diskStats = snmpClient.getMultiDiskData();
 		  long ts2 = System.currentTimeMillis();
@@ -195,9 +235,6 @@ public class MetricScannerRunner implements Runnable
 	    {
 		  logger.log(Level.WARNING, "Faled to scan snmp for "+scanData.dbinfo.getHostName(), iex);
 		  scanData.canQuerySNMP = false;
-	    }finally
-	    {
-	    	if(snmpClient!=null)try{snmpClient.stop();}catch(Exception snmpExc){}
 	    }
 	  }
 	  
@@ -209,10 +246,7 @@ public class MetricScannerRunner implements Runnable
 		SNMPClient  snmpClient = null;
 	    try
 	    {
-	      snmpClient = new SNMPClient(scanData.dbinfo.getHostName());
-	      snmpClient.setSnmpSetting(this.frameworkContext.getSnmpSettings()
-	    		  .getHostSetting(scanData.dbinfo.getDbGroupName(), scanData.dbinfo.getHostName()));
-	      snmpClient.start();	
+	      snmpClient = getSnmpClient(scanData);
 		  long ts1 = System.currentTimeMillis();  
 		  Map<String, List<SNMPClient.SNMPTriple>> diskStats = snmpClient.getStorageData(null);
 		  long ts2 = System.currentTimeMillis();
@@ -254,9 +288,6 @@ public class MetricScannerRunner implements Runnable
 	    {
 		  logger.log(Level.WARNING, "Faled to scan snmp for "+scanData.dbinfo.getHostName(), iex);
 		  scanData.canQuerySNMP = false;
-	    }finally
-	    {
-	    	if(snmpClient!=null)try{snmpClient.stop();}catch(Exception snmpExc){}
 	    }
 	  }
 	  
@@ -268,10 +299,7 @@ public class MetricScannerRunner implements Runnable
 		SNMPClient  snmpClient = null;
 	    try
 	    {
-	      snmpClient = new SNMPClient(scanData.dbinfo.getHostName());
-	      snmpClient.setSnmpSetting(this.frameworkContext.getSnmpSettings()
-	    		  .getHostSetting(scanData.dbinfo.getDbGroupName(), scanData.dbinfo.getHostName()));
-	      snmpClient.start();	
+	      snmpClient = getSnmpClient(scanData);
 		  long ts1 = System.currentTimeMillis();  
 		  Map<String, List<SNMPClient.SNMPTriple>> diskStats = snmpClient.getNetIfData(null);//assume eth0
 		  long ts2 = System.currentTimeMillis();
@@ -300,9 +328,6 @@ public class MetricScannerRunner implements Runnable
 	    {
 		  logger.log(Level.WARNING, "Faled to scan snmp for "+scanData.dbinfo.getHostName(), iex);
 		  scanData.canQuerySNMP = false;
-	    }finally
-	    {
-	    	if(snmpClient!=null)try{snmpClient.stop();}catch(Exception snmpExc){}
 	    }
 	  }
 	  
@@ -314,10 +339,7 @@ public class MetricScannerRunner implements Runnable
 		SNMPClient  snmpClient = null;
 	    try
 	    {
-	      snmpClient = new SNMPClient(scanData.dbinfo.getHostName());
-	      snmpClient.setSnmpSetting(this.frameworkContext.getSnmpSettings()
-	    		  .getHostSetting(scanData.dbinfo.getDbGroupName(), scanData.dbinfo.getHostName()));
-	      snmpClient.start();	
+	      snmpClient = getSnmpClient(scanData);
 		  long ts1 = System.currentTimeMillis();  
 		  Map<String, String> snmpRes = snmpClient.querySysData();				  
 		  long ts2 = System.currentTimeMillis();
@@ -341,10 +363,6 @@ public class MetricScannerRunner implements Runnable
 		  logger.log(Level.WARNING, "Faled to scan snmp for "+scanData.dbinfo.getHostName(), iex);
 		  scanData.canQuerySNMP = false;
 	    }
-	    finally
-	    {
-	    	try{if(snmpClient!=null)snmpClient.stop();}catch(Exception snmpExc){}
-	    }
 	  }
 
   }
@@ -356,10 +374,7 @@ public class MetricScannerRunner implements Runnable
 		SNMPClient  snmpClient = null;
 	    try
 	    {
-	      snmpClient = new SNMPClient(scanData.dbinfo.getHostName());
-	      snmpClient.setSnmpSetting(this.frameworkContext.getSnmpSettings()
-	    		  .getHostSetting(scanData.dbinfo.getDbGroupName(), scanData.dbinfo.getHostName()));
-	      snmpClient.start();	
+	      snmpClient = getSnmpClient(scanData);
 		  long ts1 = System.currentTimeMillis();  
 		  Map<String, String> snmpRes = snmpClient.queryMysqld();				  
 		  long ts2 = System.currentTimeMillis();
@@ -370,10 +385,6 @@ public class MetricScannerRunner implements Runnable
 		  logger.log(Level.WARNING, "Faled to scan mysqld snmp for "+scanData.dbinfo.getHostName(), iex);
 		  scanData.canQuerySNMP = false;
 	    }
-	    finally
-	    {
-	    	try{if(snmpClient!=null)snmpClient.stop();}catch(Exception snmpExc){}
-	    }
 	  }
 
   }
@@ -418,6 +429,34 @@ public class MetricScannerRunner implements Runnable
 	  }			  
   
   }
+
+  /**
+   * Only the digests executed since last scan are stored, one row per digest
+   * @param scanData
+   * @param mg
+   * @throws Exception
+   */
+  private void scanStatementDigest(ScanData scanData, MetricsGroup mg) throws Exception
+  {
+	  StatementDigestCollector collector = this.frameworkContext.getAutoScanner().getStatementDigestCollector();
+	  if(collector == null)return;
+	  QueryParameters qps = new QueryParameters();
+	  qps.setSql(mg.getSql());
+	  ResultList rs = null;
+	  long ts1 = System.currentTimeMillis();
+	  try
+	  {
+		  rs = this.frameworkContext.getQueryEngine().executeQuery(qps, scanData.conn, 10000);
+	  }catch(Exception iex)
+	  {
+		  logger.log(Level.INFO, "failed to retrieve statement digests for "+scanData.dbinfo, iex);
+	  }
+	  if(rs == null)return;
+	  int queryTime = (int)(System.currentTimeMillis() - ts1);
+	  Map<String, Map<String, String>> deltas = collector.collect(scanData.dbinfo.getDbid(), rs);
+	  for(Map.Entry<String, Map<String, String>> e: deltas.entrySet())
+		  storeKVTabularData(scanData, mg, e.getKey(), e.getValue(), queryTime);
+  }
   
   //Retrieve metrics buffer for a given group or sub group
   private MetricsBuffer retrieveMetricsBuffer(ScanData scanData, MetricsGroup mg, MetricsGroup subGrp)
@@ -634,7 +673,29 @@ public class MetricScannerRunner implements Runnable
 	if(mg.getKeyColumn() == null || mg.getKeyColumn().isEmpty())
 	{
 	  Map<String, String> kvPairs = this.frameworkContext.getQueryEngine().executeQueryWithKeyValuPairs(qps, scanData.conn, mg.getMetricNameColumn(), mg.getMetricValueColumn());
-	  storeKVTabularData(scanData, mg, null,kvPairs, (int)(System.currentTimeMillis() - q_startTime));    
+	  storePredefinedData(scanData, mg, kvPairs, null, (int)(System.currentTimeMillis() - q_startTime));
+	}else
+	{
+		Map<String, Map<String, String>> mkvPairs = this.frameworkContext.getQueryEngine().executeQueryWithMultipleColumns(qps, scanData.conn, mg.getKeyColumn());
+		storePredefinedData(scanData, mg, null, mkvPairs, (int)(System.currentTimeMillis() - q_startTime));
+	}
+  }
+
+  /**
+   * Store the result of a predefined or UDM group query
+   * @param scanData
+   * @param mg
+   * @param kvPairs result of group without key column
+   * @param mkvPairs result of group with key column
+   * @param queryTime
+   * @throws Exception
+   */
+  private void storePredefinedData(ScanData scanData, MetricsGroup mg, Map<String, String> kvPairs,
+		  Map<String, Map<String, String>> mkvPairs, int queryTime) throws Exception
+  {
+	if(mkvPairs == null)
+	{
+	  storeKVTabularData(scanData, mg, null,kvPairs, queryTime);    
   	  if ("STATUS".equalsIgnoreCase(mg.getGroupName()))
   	  {
   		scanData.stateSnap.recordSnapFromMySQLStatus(kvPairs);//built in alerts
@@ -642,10 +703,9 @@ public class MetricScannerRunner implements Runnable
   	  }
 	}else
 	{
-		Map<String, Map<String, String>> mkvPairs = this.frameworkContext.getQueryEngine().executeQueryWithMultipleColumns(qps, scanData.conn, mg.getKeyColumn());
 		for(Map.Entry<String, Map<String, String>> kvEntry: mkvPairs.entrySet())
 		{
-			storeKVTabularData(scanData, mg, kvEntry.getKey(), kvEntry.getValue(), (int)(System.currentTimeMillis() - q_startTime));
+			storeKVTabularData(scanData, mg, kvEntry.getKey(), kvEntry.getValue(), queryTime);
 		}
 	}
 	java.util.Date dt = new java.util.Date(); 
@@ -653,6 +713,94 @@ public class MetricScannerRunner implements Runnable
 	this.frameworkContext.getInstanceStatesManager().getStates(scanData.dbinfo.getDbid()).setLastAccessTime(dt);
   }
   
+  /**
+   * Run the queries of all groups in a single round trip, for connections opened with allowMultiQueries.
+   * Queries with parameters or more than one statement are run one by one. If the combined execution fails,
+   * the groups without results are scanned one by one as usual.
+   * @param scanData
+   * @param groups predefined groups and UDM groups
+   */
+  private void scanMultiQueries(ScanData scanData, List<MetricsGroup> groups)
+  {
+	  List<MetricsGroup> batchGroups = new ArrayList<MetricsGroup>(groups.size());
+	  List<MultiQuery> queries = new ArrayList<MultiQuery>(groups.size());
+	  List<MetricsGroup> serialGroups = new ArrayList<MetricsGroup>();
+	  for(MetricsGroup mg: groups)
+	  {
+		  String sqlText = null;
+		  try
+		  {
+			  QueryParameters qps = new QueryParameters();
+			  if(mg.isUdmFlagged())
+				  qps.setSqlText(mg.getSqlText());
+			  else
+				  qps.setSql(mg.getSql());
+			  sqlText = this.frameworkContext.getQueryEngine().getSqlText(qps, scanData.conn);
+		  }catch(Exception ex)
+		  {
+			  logger.log(Level.FINE, "failed to resolve query of "+mg.getGroupName(), ex);
+		  }
+		  sqlText = trimStatement(sqlText);
+		  if(sqlText == null || sqlText.indexOf(';') >= 0)
+		  {
+			  serialGroups.add(mg);
+			  continue;
+		  }
+		  batchGroups.add(mg);
+		  queries.add(new MultiQuery(sqlText, mg.getKeyColumn(), mg.getMetricNameColumn(), mg.getMetricValueColumn()));
+	  }
+	  int done = 0;
+	  if(queries.size() > 0)
+	  {
+		  try
+		  {
+			  done = this.frameworkContext.getQueryEngine().executeMultipleQueries(queries, scanData.conn);
+		  }catch(Exception ex)
+		  {
+			  logger.log(Level.INFO, "multiple queries failed for "+scanData.dbinfo+", scan the remaining groups one by one", ex);
+			  for(MultiQuery q: queries)
+			  {
+				  if(q.getKeyValueResult() == null && q.getMultipleColumnsResult() == null)break;
+				  done++;
+			  }
+		  }
+	  }
+	  for(int i=0; i<done; i++)
+	  {
+		  MultiQuery q = queries.get(i);
+		  try
+		  {
+			  storePredefinedData(scanData, batchGroups.get(i), q.getKeyValueResult(), q.getMultipleColumnsResult(), q.getQueryTime());
+		  }catch(Exception ex)
+		  {
+			  logger.log(Level.WARNING, "Failed to store "+batchGroups.get(i).getGroupName()+" for "+scanData.dbinfo, ex);
+		  }
+	  }
+	  serialGroups.addAll(batchGroups.subList(done, batchGroups.size()));
+	  for(MetricsGroup mg: serialGroups)
+	  {
+		  if(this.cancelled)break;
+		  try
+		  {
+			  scanRegularPredefined(scanData, mg);
+		  }catch(Exception ex)
+		  {
+			  logger.log(Level.WARNING, "Failed to scan "+mg.getGroupName()+" for "+scanData.dbinfo, ex);
+		  }
+	  }
+  }
+
+  /**
+   * Remove trailing spaces and semicolons
+   */
+  private static String trimStatement(String sqlText)
+  {
+	  if(sqlText == null)return null;
+	  int end = sqlText.length();
+	  while(end > 0 && (Character.isWhitespace(sqlText.charAt(end - 1)) || sqlText.charAt(end - 1) == ';'))end--;
+	  return end == 0 ? null : sqlText.substring(0, end);
+  }
+
   //for UDM, now we will treat it same as scanRegularPredefined 
   private void scanUDM(ScanData scanData, UserDefinedMetrics udm) throws Exception
   {
@@ -702,6 +850,7 @@ public class MetricScannerRunner implements Runnable
 	try
 	{
       if(!tryConnect(scanData))return false;
+      this.currentConn = scanData.conn;
       
       scanData.snap_id = this.snap_id;
 	  scanData.startTimestamp = System.currentTimeMillis();//use a common timestamp
@@ -709,9 +858,12 @@ public class MetricScannerRunner implements Runnable
 	  
 	  
 	  //Now actual scanning
+	  //with allowMultiQueries, SQL based groups are collected and sent in one round trip
+	  List<MetricsGroup> multiGroups = scanData.conn.isMultiQueries()? new ArrayList<MetricsGroup>() : null;
 	  String[] mgNames = this.frameworkContext.getMetricsDef().getGroupNames();
 	  for(String mgName: mgNames)
 	  {		
+		  if(this.cancelled)break;
 		  MetricsGroup mg = this.frameworkContext.getMetricsDef().getGroupByName(mgName);
 		  if(!mg.isAuto())
 		  { //skip groups requiring manual configuration for now 
@@ -741,6 +893,13 @@ public class MetricScannerRunner implements Runnable
 		  }else if("mysql_innodb_mutex".equalsIgnoreCase(mg.getSql()))//replication
 		  {
 			  scanInnoDBMutex( scanData,  mg);
+		  }else if("mysql_stmt_digest".equalsIgnoreCase(mg.getSql()))//statement digest deltas
+		  {
+			  scanStatementDigest( scanData,  mg);
+		  }
+		  else if(multiGroups != null)
+		  {
+			  multiGroups.add(mg);
 		  }
 		  else //other predefined metrics
 		  {
@@ -754,12 +913,18 @@ public class MetricScannerRunner implements Runnable
 	  {
 		  for(String s: udms)
 		  {
+			  if(this.cancelled)break;
 			  UserDefinedMetrics udm = this.frameworkContext.getMetricsDef().getUdmManager().getUDMByName(s);
 			  if (udm == null || !"SQL".equals(udm.getSource()))
 				  continue;
-			  scanUDM(scanData, udm);
+			  if(multiGroups != null && udm.getMetricsGroup() != null)
+				  multiGroups.add(udm.getMetricsGroup());
+			  else
+				  scanUDM(scanData, udm);
 		  }
 	  }
+	  if(multiGroups != null && multiGroups.size() > 0 && !this.cancelled)
+		  scanMultiQueries(scanData, multiGroups);
 	  
 	  //TODO handle alerts
 	  if(!scanData.statusUpdated &&
@@ -831,9 +996,13 @@ public class MetricScannerRunner implements Runnable
 	}catch(Exception ex)
 	{
 	  logger.log(Level.WARNING, "exception: "+dbinfo, ex);
+	  //the connection might be in a bad state, do not reuse it
+	  if(scanData.conn!=null){conns.checkinConnectionOnError(scanData.conn);scanData.conn = null;}
 	}finally
 	{
-	  if(scanData.conn!=null){conns.checkinConnectionAndClose(scanData.conn);scanData.conn = null;}
+	  this.currentConn = null;
+	  if(scanData.conn!=null){conns.checkinConnection(scanData.conn);scanData.conn = null;}
+	  if(scanData.snmpClient!=null){try{scanData.snmpClient.stop();}catch(Exception snmpExc){} scanData.snmpClient = null;}
 	}
 	logger.fine("Done scan for host ("+dbinfo+")");
 	if(!scanData.statusUpdated &&
@@ -853,14 +1022,20 @@ public class MetricScannerRunner implements Runnable
 	  
 	  this.frameworkContext.getMetricDb().addNewAlert(Long.parseLong(sdf.format(timestamp)), dbinfo.getDbid(), alertType,  alertValue);
 	  AlertReportRunner arr = new AlertReportRunner(this.frameworkContext, dbinfo, timestamp, appUser );
-	  arr.setConnection(conn);
 	  arr.setAlertReason( alertType);
 	  arr.setAlertValue(alertValue);
 	  //move to start of AlertReportRunner
 	  //this.frameworkContext.getAlerts().addAlert(new AlertEntry(timestamp, alertType, alertValue, dbinfo.getDbGroupName(), dbinfo.getHostName()));
 	  
-	  //new Thread(arr).start();//TODO need some control	  
-	  arr.run();
+	  //the report runs on its own connection, do not hold the scan
+	  AlertReportExecutor reportExecutor = this.frameworkContext.getAutoScanner().getAlertReportExecutor();
+	  if(reportExecutor != null)
+		  reportExecutor.submit(arr);
+	  else
+	  {
+		  arr.setConnection(conn);
+		  arr.run();
+	  }
   }
   public void setBuffer(Map<String, Map<String, MetricsBuffer>> buffer) 
   {
@@ -9,8 +9,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.logging.Logger;
 
@@ -110,25 +113,57 @@ public class MetricsRetentionTask implements Runnable{
       if(group == null)continue; //not supposed to be so
       mgs.add(group);
     }
+    //groups stored in the common table share it
+    Set<String> tables = new LinkedHashSet<String>();
+    for(MetricsGroup g: mgs)
+      tables.add(g.getSinkTableName());
 
+    if(this.dbidToPurge == null)
+    {
+      this.context.getMetricDb().addPartitions();
+      //partitioned tables are purged for all dbs at once, the rest row by row for each db
+      for(Iterator<String> it = tables.iterator(); it.hasNext();)
+      {
+        if(this.context.getMetricDb().purgeByPartition(it.next(), endDate))
+          it.remove();
+      }
+    }
     for(int dbid: ids)
     {
       logger.info("Check and purge db: "+dbid);
-      for(MetricsGroup g: mgs)
+      for(String tbl: tables)
       {
     	if(this.dbidToPurge != null )
-    	  this.context.getMetricDb().purgeAll(g.getSinkTableName(), dbid);
+    	  this.context.getMetricDb().purgeAll(tbl, dbid);
     	else
-    	  this.context.getMetricDb().purge(g.getSinkTableName(), dbid, endDate);
+    	  this.context.getMetricDb().purge(tbl, dbid, endDate);
+      }
+      if(this.dbidToPurge != null)
+      {
+        this.context.getMetricDb().purgeAll(MetricsDbBase.PROCESSLIST_DIGEST_TABLENAME, dbid);
+        this.context.getMetricDb().getHotWindow().remove(dbid);
+        if(this.context.getAutoScanner() != null && this.context.getAutoScanner().getStatementDigestCollector() != null)
+          this.context.getAutoScanner().getStatementDigestCollector().reset(dbid);
+        if(this.context.getAutoScanner() != null && this.context.getAutoScanner().getConnectionPool() != null)
+          this.context.getAutoScanner().getConnectionPool().evict(dbid);
       }
     }
+    //rollup tiers have their own retention
+    if(this.dbidToPurge != null)
+      this.context.getMetricDb().getRollup().purgeAll(ids);
+    else
+      this.context.getMetricDb().getRollup().purge(ids);
     java.text.SimpleDateFormat sdf2 = new java.text.SimpleDateFormat("yyyyMMdd");
 	sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
     purgeAlertReports(Integer.parseInt(sdf2.format(dt)));
 	logger.info("Ended metrics purge job");
 
 	if(this.dbidToPurge == null)
+	{
 		this.context.getMetricDb().purgeAlerts(endDate);
+		this.context.getMetricDb().purgeProcessListDigests(endDate);
+		this.context.getMetricDb().pruneSnapshotIndex(endDate);
+	}
 	
 	//for now, we only do it once a day.
 	//TODO keep consistency with DB add/update/delete
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.process;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yahoo.dba.perf.myperf.common.AppUser;
+import com.yahoo.dba.perf.myperf.common.DBCredential;
+import com.yahoo.dba.perf.myperf.common.DBGroupInfo;
+import com.yahoo.dba.perf.myperf.common.DBInfoManager;
+import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
+import com.yahoo.dba.perf.myperf.common.DBUtils;
+import com.yahoo.dba.perf.myperf.common.MyPerfContext;
+import com.yahoo.dba.perf.myperf.common.ProcessListEntryAggregate;
+import com.yahoo.dba.perf.myperf.common.ProcessListSummary;
+import com.yahoo.dba.perf.myperf.common.SqlNormalizer;
+import com.yahoo.dba.perf.myperf.db.ConnectionFactory;
+import com.yahoo.dba.perf.myperf.metrics.MetricsDbBase;
+
+/**
+ * Sample information_schema.processlist of selected servers (processListSamplerHosts) every
+ * processListSampleSeconds, each server on its own connection. Active statements are folded into
+ * per digest aggregates (count, total and max time, user and client host breakdown) of one minute buckets.
+ * Each server keeps a fixed size ring of buckets, the completed ones are written to PROCESSLIST_DIGEST
+ * once per scan interval. A bucket still not written when its slot is reused is dropped.
+ * The current bucket is not written on stop: after a restart within the same minute, the new
+ * sampler would write the same bucket again.
+ * @author xrao
+ *
+ */
+public class ProcessListSampler
+{
+  private static Logger logger = Logger.getLogger(ProcessListSampler.class.getName());
+
+  private static final String PROCESSLIST_SQL = "select USER, HOST, TIME, INFO from information_schema.processlist"
+    + " where COMMAND <> 'Sleep' and INFO is not null and ID <> CONNECTION_ID()";
+  private static final long BUCKET_MILLIS = 60000L;
+
+  private MyPerfContext context;
+  private AppUser appUser;
+  private int sampleSeconds = 2;
+  private int bucketCount;
+  private ScheduledThreadPoolExecutor scheduler;
+  private List<HostSampler> samplers = new ArrayList<HostSampler>();
+
+  //statistics
+  private AtomicLong polls = new AtomicLong();
+  private AtomicLong rows = new AtomicLong();
+  private AtomicLong pollFailures = new AtomicLong();
+  private AtomicLong bucketsFlushed = new AtomicLong();
+  private AtomicLong digestsFlushed = new AtomicLong();
+  private AtomicLong bucketsDropped = new AtomicLong();
+  private AtomicLong flushFailures = new AtomicLong();
+
+  /**
+   * Statements seen within one bucket
+   */
+  private static class Bucket
+  {
+    final long start;
+    int polls;
+    final Map<String, ProcessListEntryAggregate> digests = new HashMap<String, ProcessListEntryAggregate>();
+
+    Bucket(long start)
+    {
+      this.start = start;
+    }
+  }
+
+  public ProcessListSampler(MyPerfContext context, AppUser appUser)
+  {
+    this.context = context;
+    this.appUser = appUser;
+  }
+
+  /**
+   * Start to sample the servers configured by processListSamplerHosts
+   * @return false if no server to sample
+   */
+  synchronized public boolean start()
+  {
+    List<DBInstanceInfo> dbs = findHosts(this.context.getDbInfoManager(), this.context.getMyperfConfig().getProcessListSamplerHosts());
+    if(dbs.isEmpty())return false;
+    this.sampleSeconds = this.context.getMyperfConfig().getProcessListSampleSeconds();
+    int flushSeconds = this.context.getMyperfConfig().getScannerIntervalSeconds();
+    //keep two scan intervals, so a slow or missed flush does not lose data
+    this.bucketCount = (int)Math.ceil(2000.0 * flushSeconds / BUCKET_MILLIS) + 1;
+
+    final AtomicInteger seq = new AtomicInteger();
+    this.scheduler = new ScheduledThreadPoolExecutor(Math.min(dbs.size(), 4), new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread th = new Thread(r, "ProcessListSampler - "+seq.getAndIncrement());
+        th.setDaemon(true);
+        return th;
+      }
+    });
+    for(DBInstanceInfo db: dbs)
+    {
+      HostSampler hs = new HostSampler(db);
+      this.samplers.add(hs);
+      this.scheduler.scheduleAtFixedRate(hs, this.sampleSeconds, this.sampleSeconds, TimeUnit.SECONDS);
+    }
+    this.scheduler.scheduleAtFixedRate(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          flush();
+        }catch(Throwable ex)
+        {
+          logger.log(Level.WARNING, "Failed to flush processlist samples", ex);
+        }
+      }
+    }, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    logger.info("ProcessListSampler started for "+dbs.size()+" servers, sample each "+this.sampleSeconds+" seconds");
+    return true;
+  }
+
+  /**
+   * Stop sampling, and write the completed buckets
+   */
+  synchronized public void stop()
+  {
+    if(this.scheduler == null)return;
+    this.scheduler.shutdownNow();
+    try
+    {
+      this.scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    }catch(InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    for(HostSampler hs: this.samplers)
+      hs.close();
+    logger.info("ProcessListSampler stopped.");
+  }
+
+  /**
+   * Write completed buckets to metrics db
+   */
+  private void flush()
+  {
+    MetricsDbBase metricsDb = this.context.getMetricDb();
+    if(metricsDb == null)return;
+    long before = System.currentTimeMillis();
+    java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyyMMddHHmmss");
+    sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+    for(HostSampler hs: this.samplers)
+    {
+      for(Bucket b: hs.drain(before))
+      {
+        long ts = Long.parseLong(sdf.format(new java.util.Date(b.start)));
+        if(metricsDb.storeProcessListDigests(hs.dbinfo.getDbid(), ts, b.polls, b.digests.values()))
+        {
+          this.bucketsFlushed.incrementAndGet();
+          this.digestsFlushed.addAndGet(b.digests.size());
+        }else
+          this.flushFailures.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @param dbInfoManager
+   * @param hosts comma separated dbgroup (all servers of the group) or dbgroup:host
+   * @return
+   */
+  static List<DBInstanceInfo> findHosts(DBInfoManager dbInfoManager, String hosts)
+  {
+    List<DBInstanceInfo> dbs = new ArrayList<DBInstanceInfo>();
+    if(hosts == null || hosts.trim().isEmpty())return dbs;
+    Set<Integer> ids = new HashSet<Integer>();
+    for(String s: hosts.split(","))
+    {
+      s = s.trim();
+      if(s.isEmpty())continue;
+      int idx = s.indexOf(':');
+      List<DBInstanceInfo> found = new ArrayList<DBInstanceInfo>();
+      if(idx < 0)
+      {
+        DBGroupInfo g = dbInfoManager.findGroup(s);
+        if(g != null)found.addAll(g.getInstances());
+      }else
+      {
+        DBInstanceInfo db = dbInfoManager.findDB(s.substring(0, idx).trim(), s.substring(idx+1).trim());
+        if(db != null)found.add(db);
+      }
+      if(found.isEmpty())
+        logger.warning("ProcessListSampler: cannot find "+s);
+      for(DBInstanceInfo db: found)
+      {
+        if(ids.add(db.getDbid()))
+          dbs.add(db);
+      }
+    }
+    return dbs;
+  }
+
+  /**
+   * Statistics, for status page
+   * @return
+   */
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    stats.put("processListSampler.hosts", String.valueOf(this.samplers.size()));
+    stats.put("processListSampler.polls", String.valueOf(this.polls.get()));
+    stats.put("processListSampler.rows", String.valueOf(this.rows.get()));
+    stats.put("processListSampler.pollFailures", String.valueOf(this.pollFailures.get()));
+    stats.put("processListSampler.bucketsFlushed", String.valueOf(this.bucketsFlushed.get()));
+    stats.put("processListSampler.digestsFlushed", String.valueOf(this.digestsFlushed.get()));
+    stats.put("processListSampler.bucketsDropped", String.valueOf(this.bucketsDropped.get()));
+    stats.put("processListSampler.flushFailures", String.valueOf(this.flushFailures.get()));
+    return stats;
+  }
+
+  /**
+   * Sampling task of one server
+   */
+  private class HostSampler implements Runnable
+  {
+    private final DBInstanceInfo dbinfo;
+    private final Bucket[] ring = new Bucket[bucketCount];
+    private volatile Connection conn;//dedicated connection, not from scanner pool
+    private boolean failing = false;//only log the first failure
+
+    HostSampler(DBInstanceInfo dbinfo)
+    {
+      this.dbinfo = dbinfo;
+    }
+
+    public void run()
+    {
+      long ts = System.currentTimeMillis();
+      Statement stmt = null;
+      ResultSet rs = null;
+      try
+      {
+        if(this.conn == null)this.conn = connect();
+        stmt = this.conn.createStatement();
+        stmt.setQueryTimeout(sampleSeconds * 2);
+        rs = stmt.executeQuery(PROCESSLIST_SQL);
+        int n = 0;
+        synchronized(this)
+        {
+          Bucket b = bucket(ts);
+          b.polls++;
+          while(rs.next())
+          {
+            String sql = ProcessListSummary.stripComments(rs.getString("INFO"));
+            if(sql == null || sql.isEmpty())continue;
+            SqlNormalizer.NormalizedSql ns = SqlNormalizer.normalizeCached(sql);
+            ProcessListEntryAggregate e = b.digests.get(ns.text);
+            if(e == null)
+            {
+              e = new ProcessListEntryAggregate(ns.text);
+              e.setChecksum(ns.getDigest());
+              b.digests.put(ns.text, e);
+            }
+            int t = rs.getInt("TIME");
+            if(t < 0)t = 0;
+            String host = rs.getString("HOST");
+            if(host != null && host.indexOf(':') > 0)host = host.substring(0, host.indexOf(':'));
+            e.record(t, rs.getString("USER"), host);
+            n++;
+          }
+        }
+        polls.incrementAndGet();
+        rows.addAndGet(n);
+        if(this.failing)
+        {
+          logger.info("ProcessListSampler: resumed sampling "+this.dbinfo);
+          this.failing = false;
+        }
+      }catch(Throwable ex)
+      {
+        pollFailures.incrementAndGet();
+        if(!this.failing)
+          logger.log(Level.WARNING, "ProcessListSampler: failed to sample "+this.dbinfo, ex);
+        this.failing = true;
+        close();//reconnect next time
+      }finally
+      {
+        DBUtils.close(rs);
+        DBUtils.close(stmt);
+      }
+    }
+
+    private Connection connect() throws SQLException
+    {
+      DBCredential cred = DBUtils.findDBCredential(context, this.dbinfo.getDbGroupName(), appUser);
+      if(cred == null)
+        throw new SQLException("No credential for cluster "+this.dbinfo.getDbGroupName());
+      Connection c = ConnectionFactory.connect(this.dbinfo, cred, context);
+      if(c == null)
+        throw new SQLException("Failed to create connection: null connection");
+      c.setReadOnly(true);
+      return c;
+    }
+
+    void close()
+    {
+      Connection c = this.conn;
+      this.conn = null;
+      DBUtils.close(c);
+    }
+
+    /**
+     * The bucket of the sample time. The older bucket using the same slot is dropped.
+     */
+    private Bucket bucket(long ts)
+    {
+      long start = ts - ts % BUCKET_MILLIS;
+      int idx = (int)((start / BUCKET_MILLIS) % this.ring.length);
+      Bucket b = this.ring[idx];
+      if(b != null && b.start == start)return b;
+      if(b != null)
+      {
+        bucketsDropped.incrementAndGet();
+        logger.warning("ProcessListSampler: drop processlist samples of "+this.dbinfo+" not flushed in time");
+      }
+      b = new Bucket(start);
+      this.ring[idx] = b;
+      return b;
+    }
+
+    /**
+     * Remove and return buckets ended before the given time, oldest first
+     */
+    synchronized List<Bucket> drain(long before)
+    {
+      List<Bucket> res = new ArrayList<Bucket>();
+      for(int i = 0; i < this.ring.length; i++)
+      {
+        Bucket b = this.ring[i];
+        if(b != null && b.start + BUCKET_MILLIS <= before)
+        {
+          res.add(b);
+          this.ring[i] = null;
+        }
+      }
+      Collections.sort(res, new Comparator<Bucket>()
+      {
+        public int compare(Bucket b1, Bucket b2)
+        {
+          return b1.start < b2.start? -1 : (b1.start == b2.start? 0 : 1);
+        }
+      });
+      return res;
+    }
+  }
+}
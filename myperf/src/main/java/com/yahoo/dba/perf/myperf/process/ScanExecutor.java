@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.process;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.yahoo.dba.perf.myperf.common.DBInstanceInfo;
+
+/**
+ * A fixed size worker pool kept across scan cycles. Each host is scanned as its own task,
+ * idle workers pick up the next host. A host running longer than the host timeout, or still
+ * not done when the cycle deadline is reached, has its current query cancelled and is reported late.
+ * @author xrao
+ *
+ */
+public class ScanExecutor
+{
+  private static Logger logger = Logger.getLogger(ScanExecutor.class.getName());
+
+  /**
+   * A scan task for a single host
+   */
+  public static interface HostScanTask extends Runnable
+  {
+    DBInstanceInfo getDbInfo();
+    /**
+     * @return the time the task starts to run, or 0 if not started yet
+     */
+    long getStartTime();
+    /**
+     * Stop the scan, including to cancel the current running query
+     */
+    void cancel();
+  }
+
+  private String name;
+  private ExecutorService executor;
+
+  //statistics
+  private AtomicLong cycles = new AtomicLong();
+  private AtomicLong hostsScanned = new AtomicLong();
+  private AtomicLong hostsLate = new AtomicLong();
+  private volatile long lastCycleTime;//milliseconds
+  private volatile String lastLateHosts = "";
+
+  public ScanExecutor(String name, int threadCount)
+  {
+    this.name = name;
+    final AtomicInteger seq = new AtomicInteger();
+    final String prefix = name;
+    this.executor = Executors.newFixedThreadPool(threadCount>0?threadCount:1, new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread th = new Thread(r, prefix+" - "+seq.getAndIncrement());
+        th.setDaemon(true);
+        return th;
+      }
+    });
+  }
+
+  /**
+   * Scan all hosts and wait for them to finish, at most until cycleTimeout.
+   * @param tasks
+   * @param hostTimeout maximum time in milliseconds for a single host
+   * @param cycleTimeout maximum time in milliseconds for all hosts
+   * @return the hosts not finished in time
+   */
+  public List<DBInstanceInfo> runAll(List<? extends HostScanTask> tasks, long hostTimeout, long cycleTimeout)
+  {
+    long cycleStart = System.currentTimeMillis();
+    long cycleEnd = cycleStart + cycleTimeout;
+    Map<Future<?>, HostScanTask> futures = new LinkedHashMap<Future<?>, HostScanTask>();
+    for(HostScanTask t: tasks)
+      futures.put(this.executor.submit(t), t);
+
+    List<DBInstanceInfo> lateHosts = new ArrayList<DBInstanceInfo>();
+    StringBuilder lateSummary = new StringBuilder();
+    while(!futures.isEmpty())
+    {
+      long now = System.currentTimeMillis();
+      Iterator<Map.Entry<Future<?>, HostScanTask>> it = futures.entrySet().iterator();
+      while(it.hasNext())
+      {
+        Map.Entry<Future<?>, HostScanTask> e = it.next();
+        HostScanTask t = e.getValue();
+        if(e.getKey().isDone())
+        {
+          it.remove();
+          continue;
+        }
+        long startTime = t.getStartTime();
+        boolean hostExpired = startTime > 0 && now - startTime > hostTimeout;
+        if(hostExpired || now >= cycleEnd)
+        {
+          t.cancel();
+          e.getKey().cancel(true);
+          it.remove();
+          lateHosts.add(t.getDbInfo());
+          if(lateSummary.length()>0)lateSummary.append(", ");
+          lateSummary.append(t.getDbInfo().getDbGroupName()).append(":").append(t.getDbInfo().getHostName())
+            .append(startTime > 0? "("+(now - startTime)+"ms)" : "(not started)");
+        }
+      }
+      if(futures.isEmpty())break;
+      try
+      {
+        Thread.sleep(100);
+      }catch(InterruptedException ex)
+      {
+        //we are asked to stop, cancel all remaining
+        for(Map.Entry<Future<?>, HostScanTask> e: futures.entrySet())
+        {
+          e.getValue().cancel();
+          e.getKey().cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    this.cycles.incrementAndGet();
+    this.hostsScanned.addAndGet(tasks.size());
+    this.hostsLate.addAndGet(lateHosts.size());
+    this.lastCycleTime = System.currentTimeMillis() - cycleStart;
+    this.lastLateHosts = lateSummary.toString();
+    if(lateHosts.size()>0)
+      logger.warning(this.name+": "+lateHosts.size()+" of "+tasks.size()+" hosts not finished in time: "+lateSummary);
+    return lateHosts;
+  }
+
+  /**
+   * Stop all workers
+   */
+  public void shutdown()
+  {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Statistics, for status page
+   * @return
+   */
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    stats.put(this.name+".cycles", String.valueOf(this.cycles.get()));
+    stats.put(this.name+".hosts", String.valueOf(this.hostsScanned.get()));
+    stats.put(this.name+".lateHosts", String.valueOf(this.hostsLate.get()));
+    stats.put(this.name+".lastCycleTimeMillis", String.valueOf(this.lastCycleTime));
+    stats.put(this.name+".lastLateHosts", this.lastLateHosts);
+    return stats;
+  }
+}
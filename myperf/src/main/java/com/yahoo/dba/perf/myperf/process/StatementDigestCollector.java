@@ -0,0 +1,367 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yahoo.dba.perf.myperf.common.ResultList;
+import com.yahoo.dba.perf.myperf.common.ResultRow;
+
+/**
+ * Turn performance_schema.events_statements_summary_by_digest into per scan deltas.
+ * The counters of the previous scan are kept per server, keyed by a 64 bit hash of schema and digest,
+ * so a snapshot of ten thousand digests costs a few arrays of longs instead of ten thousand entry objects.
+ * The first scan of a server is only used as the baseline, and so is a scan after the previous one is older
+ * than maxAgeSeconds, for example after metrics of the server were disabled. Only digests executed since the previous scan
+ * are returned, at most topN of them by wait time; the rest are added up as OTHER so the totals still add up.
+ * The expected columns are SCHEMA_NAME, DIGEST, COUNT_STAR, SUM_TIMER_WAIT, SUM_ROWS_EXAMINED, SUM_ROWS_SENT.
+ * @author xrao
+ *
+ */
+public class StatementDigestCollector
+{
+  public static final String COUNT_STAR = "COUNT_STAR";
+  public static final String SUM_TIMER_WAIT = "SUM_TIMER_WAIT";
+  public static final String SUM_ROWS_EXAMINED = "SUM_ROWS_EXAMINED";
+  public static final String SUM_ROWS_SENT = "SUM_ROWS_SENT";
+  public static final String OTHER = "OTHER";
+
+  private static final long PICO_PER_MICRO = 1000000L;
+
+  private volatile int topN;
+  private volatile long maxAgeMillis = 0L;//0 to keep previous snapshots regardless of age
+  private final Map<Integer, DigestSnapshot> snapshots = new ConcurrentHashMap<Integer, DigestSnapshot>();
+
+  private final AtomicLong scans = new AtomicLong();
+  private final AtomicLong baselines = new AtomicLong();
+  private final AtomicLong resets = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong digestsSeen = new AtomicLong();
+  private final AtomicLong digestsChanged = new AtomicLong();
+  private final AtomicLong digestsStored = new AtomicLong();
+
+  public StatementDigestCollector(int topN)
+  {
+    this.topN = topN > 0 ? topN : 100;
+  }
+
+  /**
+   * Compute deltas against the previous snapshot of the same server and keep the current one.
+   * @param dbid
+   * @param rs result of the digest summary query
+   * @return metrics keyed by schema:digest, ordered by wait time. Empty for the first scan.
+   */
+  public Map<String, Map<String, String>> collect(int dbid, ResultList rs)
+  {
+    Map<String, Map<String, String>> res = new LinkedHashMap<String, Map<String, String>>();
+    if(rs == null || rs.getRows() == null)return res;
+    long now = System.currentTimeMillis();
+    if(scans.incrementAndGet() % 256 == 0)expire(now);//servers no longer scanned
+    List<ResultRow> rows = rs.getRows();
+    DigestSnapshot prev = snapshots.get(dbid);
+    if(prev != null && isExpired(prev, now))
+    {
+      expired.incrementAndGet();
+      prev = null;
+    }
+    DigestSnapshot cur = new DigestSnapshot(rows.size(), now);
+    List<Delta> changed = new ArrayList<Delta>();
+    for(ResultRow row: rows)
+    {
+      List<String> cols = row.getColumns();
+      if(cols == null || cols.size() < 6)continue;
+      String schema = cols.get(0);
+      String digest = cols.get(1);
+      long count = parseLong(cols.get(2));
+      long timer = parseLong(cols.get(3));
+      long examined = parseLong(cols.get(4));
+      long sent = parseLong(cols.get(5));
+      long key = keyOf(schema, digest);
+      cur.put(key, count, timer, examined, sent);
+      if(prev == null)continue;
+
+      int idx = prev.find(key);
+      long dCount = count, dTimer = timer, dExamined = examined, dSent = sent;
+      if(idx >= 0)
+      {
+        if(count < prev.counts[idx] || timer < prev.timers[idx]
+            || examined < prev.examined[idx] || sent < prev.sent[idx])
+          resets.incrementAndGet();//truncated, or the digest was evicted and came back
+        else
+        {
+          dCount = count - prev.counts[idx];
+          dTimer = timer - prev.timers[idx];
+          dExamined = examined - prev.examined[idx];
+          dSent = sent - prev.sent[idx];
+        }
+      }
+      if(dCount <= 0)continue;
+      changed.add(new Delta(schema, digest, dCount, dTimer, dExamined, dSent));
+    }
+    snapshots.put(dbid, cur);
+    digestsSeen.addAndGet(cur.size);
+    if(prev == null)
+    {
+      baselines.incrementAndGet();
+      return res;
+    }
+    digestsChanged.addAndGet(changed.size());
+
+    int n = this.topN;
+    if(changed.size() > n)
+    {
+      Collections.sort(changed, new Comparator<Delta>()
+      {
+        @Override
+        public int compare(Delta o1, Delta o2)
+        {
+          return o1.timer < o2.timer ? 1 : (o1.timer > o2.timer ? -1 : 0);
+        }
+      });
+    }
+    Delta other = null;
+    for(int i = 0; i < changed.size(); i++)
+    {
+      Delta d = changed.get(i);
+      if(i < n)
+        res.put(d.key(), d.toMetrics());
+      else
+      {
+        if(other == null)other = new Delta(null, OTHER, 0, 0, 0, 0);
+        other.count += d.count;
+        other.timer += d.timer;
+        other.examined += d.examined;
+        other.sent += d.sent;
+      }
+    }
+    if(other != null)
+      res.put(OTHER, other.toMetrics());
+    digestsStored.addAndGet(res.size());
+    return res;
+  }
+
+  /**
+   * Forget the previous snapshot of a server, for example when it is removed or restarted
+   * @param dbid
+   */
+  public void reset(int dbid)
+  {
+    snapshots.remove(dbid);
+  }
+
+  private boolean isExpired(DigestSnapshot snapshot, long now)
+  {
+    long maxAge = this.maxAgeMillis;
+    return maxAge > 0 && now - snapshot.time > maxAge;
+  }
+
+  private void expire(long now)
+  {
+    for(Iterator<Map.Entry<Integer, DigestSnapshot>> it = snapshots.entrySet().iterator(); it.hasNext();)
+    {
+      if(isExpired(it.next().getValue(), now))
+      {
+        it.remove();
+        expired.incrementAndGet();
+      }
+    }
+  }
+
+  public int getTopN()
+  {
+    return topN;
+  }
+
+  public void setTopN(int topN)
+  {
+    if(topN > 0)this.topN = topN;
+  }
+
+  /**
+   * A previous snapshot older than this is not used for deltas, about two scan intervals
+   * @param maxAgeSeconds 0 to disable
+   */
+  public void setMaxAgeSeconds(int maxAgeSeconds)
+  {
+    this.maxAgeMillis = maxAgeSeconds > 0 ? maxAgeSeconds * 1000L : 0L;
+  }
+
+  public Map<String, String> getStats()
+  {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    stats.put("statementDigest.hosts", String.valueOf(this.snapshots.size()));
+    stats.put("statementDigest.scans", String.valueOf(this.scans.get()));
+    stats.put("statementDigest.baselines", String.valueOf(this.baselines.get()));
+    stats.put("statementDigest.resets", String.valueOf(this.resets.get()));
+    stats.put("statementDigest.expired", String.valueOf(this.expired.get()));
+    stats.put("statementDigest.digestsSeen", String.valueOf(this.digestsSeen.get()));
+    stats.put("statementDigest.digestsChanged", String.valueOf(this.digestsChanged.get()));
+    stats.put("statementDigest.digestsStored", String.valueOf(this.digestsStored.get()));
+    return stats;
+  }
+
+  /**
+   * 64 bit key from the first 16 hex digits of the digest, mixed with the schema name.
+   * Digests not in hex, or null, are hashed as text.
+   */
+  static long keyOf(String schema, String digest)
+  {
+    long h = 0;
+    boolean hex = digest != null && digest.length() >= 16;
+    if(hex)
+    {
+      for(int i = 0; i < 16; i++)
+      {
+        int v = Character.digit(digest.charAt(i), 16);
+        if(v < 0)
+        {
+          hex = false;
+          break;
+        }
+        h = (h << 4) | v;
+      }
+    }
+    if(!hex)
+      h = digest == null ? 0x9E3779B97F4A7C15L : digest.hashCode() * 0x9E3779B97F4A7C15L;
+    if(schema != null)
+      h ^= (schema.hashCode() + 0x632BE59BD9B4E019L) * 0xBF58476D1CE4E5B9L;
+    return h;
+  }
+
+  private static long parseLong(String s)
+  {
+    if(s == null || s.isEmpty())return 0L;
+    try
+    {
+      return Long.parseLong(s);
+    }catch(NumberFormatException ex)
+    {
+      //SUM_TIMER_WAIT is BIGINT UNSIGNED
+      try
+      {
+        return (long)Double.parseDouble(s);
+      }catch(Exception ex2){}
+    }
+    return 0L;
+  }
+
+  /**
+   * Counters of one changed digest
+   */
+  private static class Delta
+  {
+    final String schema;
+    final String digest;
+    long count;
+    long timer;
+    long examined;
+    long sent;
+
+    Delta(String schema, String digest, long count, long timer, long examined, long sent)
+    {
+      this.schema = schema;
+      this.digest = digest;
+      this.count = count;
+      this.timer = timer;
+      this.examined = examined;
+      this.sent = sent;
+    }
+
+    String key()
+    {
+      String d = digest == null ? "NULL" : digest;
+      return schema == null ? d : schema + ":" + d;
+    }
+
+    Map<String, String> toMetrics()
+    {
+      Map<String, String> m = new HashMap<String, String>(8);
+      m.put(COUNT_STAR, String.valueOf(count));
+      m.put(SUM_TIMER_WAIT, String.valueOf(timer / PICO_PER_MICRO));
+      m.put(SUM_ROWS_EXAMINED, String.valueOf(examined));
+      m.put(SUM_ROWS_SENT, String.valueOf(sent));
+      return m;
+    }
+  }
+
+  /**
+   * Open addressing hash table of long keys with the counters in parallel arrays.
+   * Built once per scan and only read afterward.
+   */
+  static class DigestSnapshot
+  {
+    private static final long FREE = 0L;
+    final long[] keys;
+    final long[] counts;
+    final long[] timers;
+    final long[] examined;
+    final long[] sent;
+    private final int mask;
+    final long time;//when collected
+    int size;
+
+    DigestSnapshot(int expected, long time)
+    {
+      this.time = time;
+      int cap = 16;
+      while(cap < expected * 2)cap <<= 1;
+      keys = new long[cap];
+      counts = new long[cap];
+      timers = new long[cap];
+      examined = new long[cap];
+      sent = new long[cap];
+      mask = cap - 1;
+    }
+
+    void put(long key, long count, long timer, long rowsExamined, long rowsSent)
+    {
+      if(key == FREE)key = 1L;
+      if(size * 2 >= keys.length)return;//more rows than expected, should not happen
+      int i = slot(key);
+      while(keys[i] != FREE && keys[i] != key)i = (i + 1) & mask;
+      if(keys[i] == FREE)
+      {
+        keys[i] = key;
+        size++;
+      }
+      //the same schema and digest twice, can only happen with the null digest row
+      counts[i] += count;
+      timers[i] += timer;
+      examined[i] += rowsExamined;
+      sent[i] += rowsSent;
+    }
+
+    /**
+     * @return the slot of the key, or -1 if not found
+     */
+    int find(long key)
+    {
+      if(key == FREE)key = 1L;
+      int i = slot(key);
+      while(keys[i] != FREE)
+      {
+        if(keys[i] == key)return i;
+        i = (i + 1) & mask;
+      }
+      return -1;
+    }
+
+    private int slot(long key)
+    {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h >>> 32) & mask;
+    }
+  }
+}
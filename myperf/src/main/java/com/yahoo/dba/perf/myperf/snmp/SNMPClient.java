@@ -101,6 +101,7 @@ public class SNMPClient
 	public final static String tcpCurrEstab =      ".1.3.6.1.2.1.6.9.0";
 		//tcpCurrEstab
 	public static OID[] COMMON_SYS_OIDS = null;
+	private static final int TABLE_ROWS_PER_PDU = 50;
 
 	public static final  Map<String, String> OID_MAP = new LinkedHashMap<String, String>(); //Name to OID
 	public static final Map<String, String> OID_NAME_MAP = new LinkedHashMap<String, String>(); //OID to Name
@@ -108,6 +109,8 @@ public class SNMPClient
 	
 	Snmp snmp = null;
 	String address = null;
+	private String host;
+	private SNMPEngine engine;//shared session, if null, use own session
     private String community;
 	private String version;
 	//v3 support
@@ -197,6 +200,18 @@ public class SNMPClient
 	public SNMPClient(String host_name)
 	{
 		address = "udp:"+host_name+"/161";
+		host = host_name;
+	}
+
+	/**
+	 * Constructor, using the shared SNMP session of the engine instead of opening a new one
+	 * @param host_name
+	 * @param engine
+	 */
+	public SNMPClient(String host_name, SNMPEngine engine)
+	{
+		this(host_name);
+		this.engine = engine;
 	}
 	
 	/**
@@ -250,6 +265,13 @@ public class SNMPClient
 	 */
 	public void start() throws IOException 
 	{
+		if(engine != null)
+		{
+			if(!engine.isAvailable(host))
+				throw new IOException("SNMP requests to "+host+" are suspended after repeated timeouts");
+			snmp = engine.getSnmp();
+			return;
+		}
 		TransportMapping transport = new DefaultUdpTransportMapping();
 		snmp = new Snmp(transport);
 		if("3".equals(this.version))//add v3 support
@@ -263,7 +285,7 @@ public class SNMPClient
 	
 	public void stop() throws IOException
 	{
-		if(snmp!=null)snmp.close();
+		if(snmp!=null && engine == null)snmp.close();
 		snmp = null;
 	}
 	/**
@@ -274,10 +296,79 @@ public class SNMPClient
 	 */
 	public String getAsString(OID oid) throws IOException {
 		ResponseEvent res = getEvent(new OID[] { oid });
-		if(res!=null)
+		if(res!=null && res.getResponse()!=null)
 			return res.getResponse().get(0).getVariable().toString();
 		return null;
 	}
+
+	/**
+	 * Send the request, through the shared engine if available
+	 * @param pdu
+	 * @return response, null if timed out
+	 * @throws IOException
+	 */
+	private PDU send(PDU pdu) throws IOException
+	{
+		if(engine != null)
+			return engine.sendAndWait(host, pdu, getTarget());
+		ResponseEvent event = snmp.send(pdu, getTarget(), null);
+		return event!=null?event.getResponse():null;
+	}
+
+	/**
+	 * Table walk, through the shared engine if available, so it counts against the retry budget of the host.
+	 * Use GETBULK with more rows per request than default 10, to reduce round trips.
+	 * @param columns
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	private List getTable(OID[] columns) throws IOException
+	{
+		if(engine != null)
+			return engine.getTable(host, getTarget(), columns, TABLE_ROWS_PER_PDU);
+		TableUtils tUtils = new TableUtils(snmp, new DefaultPDUFactory());
+		tUtils.setMaxNumRowsPerPDU(TABLE_ROWS_PER_PDU);
+		return tUtils.getTable(getTarget(), columns, null, null);
+	}
+
+	/**
+	 * @param table cache key of the index table
+	 * @return cached index to name map, null if not cached or no shared engine
+	 */
+	private Map<Integer, String> getCachedIndexes(String table)
+	{
+		return engine != null? engine.getIndexCache().get(host, table) : null;
+	}
+
+	private void cacheIndexes(String table, Map<Integer, String> indexes)
+	{
+		if(engine != null)engine.getIndexCache().put(host, table, indexes);
+	}
+
+	private void invalidateIndexes(String table)
+	{
+		if(engine != null)engine.getIndexCache().invalidate(host, table);
+		logger.fine("SNMP indexes of "+table+" changed on "+host);
+	}
+
+	/**
+	 * Check the response of a GET by cached indexes. A row removed from the table (noSuchInstance),
+	 * or an index reused by another device, will not have the cached name.
+	 * @param res GET result, OID to value
+	 * @param nameOid OID of the name column, without index
+	 * @param indexes cached index to name map
+	 * @return true if all rows still have the cached names
+	 */
+	private static boolean isSameRows(Map<String, String> res, String nameOid, Map<Integer, String> indexes)
+	{
+		for(Map.Entry<Integer, String> e: indexes.entrySet())
+		{
+			if(!e.getValue().equals(res.get(nameOid+"."+e.getKey())))
+				return false;
+		}
+		return true;
+	}
 	
 	private PDU createPDU() {
 		if(!"3".equals(this.version))
@@ -301,19 +392,15 @@ public class SNMPClient
 			pdu.add(new VariableBinding(oid));
 		}
 		pdu.setType(PDU.GET);
-		ResponseEvent event = snmp.send(pdu, getTarget(), null);
-		if(event != null) {
-			PDU pdu2 = event.getResponse();
-			VariableBinding[] binds = pdu2!=null?event.getResponse().toArray():null;
-			if(binds!=null)
-			{
-				Map<OID, String> res = new LinkedHashMap<OID, String>(binds.length);
-				for(VariableBinding b: binds)
-					res.put(b.getOid(), b.getVariable().toString());
-				return res;
-			}else return null;
-		}
-		throw new RuntimeException("GET timed out");
+		PDU pdu2 = send(pdu);
+		VariableBinding[] binds = pdu2!=null?pdu2.toArray():null;
+		if(binds!=null)
+		{
+			Map<OID, String> res = new LinkedHashMap<OID, String>(binds.length);
+			for(VariableBinding b: binds)
+				res.put(b.getOid(), b.getVariable().toString());
+			return res;
+		}else return null;
 	}
 
 	public ResponseEvent getEvent(OID oids[]) throws IOException 
@@ -323,9 +410,9 @@ public class SNMPClient
 			pdu.add(new VariableBinding(oid));
 		}
 		pdu.setType(PDU.GET);
-		ResponseEvent event = snmp.send(pdu, getTarget(), null);
-		if(event != null) {
-			return event;
+		PDU response = send(pdu);
+		if(response != null) {
+			return new ResponseEvent(snmp, null, pdu, response, null);
 		}
 		throw new RuntimeException("GET timed out");
 	}
@@ -335,7 +422,7 @@ public class SNMPClient
 	* where the data should be fetched and how.
 	* @return
 	*/
-	private Target getTarget() {
+	private Target getTarget() throws IOException {
 		if("3".equals(this.version))return getTargetV3();
 		Address targetAddress = GenericAddress.parse(address);
 		CommunityTarget target = new CommunityTarget();
@@ -351,7 +438,7 @@ public class SNMPClient
 		return target;
 	}
 
-	private Target getTargetV3() {
+	private Target getTargetV3() throws IOException {
 		//logger.info("Use SNMP v3, "+this.privacyprotocol +"="+this.password+", "+this.privacyprotocol+"="+this.privacypassphrase);
 		OID authOID = AuthMD5.ID;
 		if("SHA".equals(this.authprotocol))
@@ -362,12 +449,19 @@ public class SNMPClient
 		UsmUser user = new UsmUser(new OctetString(this.username),  
 				authOID, new OctetString(this.password),  //auth
 				privOID, this.privacypassphrase!=null?new OctetString(this.privacypassphrase):null); //enc
-		snmp.getUSM().addUser(new OctetString(this.username), user);  
 		Address targetAddress = GenericAddress.parse(address);
 		UserTarget target = new UserTarget();
 		target.setAddress(targetAddress);
 		target.setRetries(2);
 		target.setTimeout(1500);
+		if(engine != null)
+		{
+			//the USM is shared by all hosts, keep the user of each agent apart
+			OctetString engineId = engine.getAuthoritativeEngineID(host, targetAddress, target.getTimeout());
+			engine.addUser(engineId, user);
+			target.setAuthoritativeEngineID(engineId.getValue());
+		}else
+			snmp.getUSM().addUser(new OctetString(this.username), user);
 		target.setVersion(this.getVersionInt());
 		if(privOID != null)
 			target.setSecurityLevel(SecurityLevel.AUTH_PRIV);  
@@ -377,6 +471,11 @@ public class SNMPClient
 		return target;
 	}
 
+    private static final String DISK_INDEX_CACHE = "disk";
+    private static final String STORAGE_INDEX_CACHE = "storage";
+    private static final String NETIF_INDEX_CACHE = "netif:";//followed by device name
+    private static final String PROCESS_INDEX_CACHE = "process:";//followed by process name
+
     public static final String DISK_TABLE_OID        ="1.3.6.1.4.1.2021.13.15.1.1";
     public static final String DISK_TABLE_DEVICE_OID ="1.3.6.1.4.1.2021.13.15.1.1.2";
     public static final String[] DISK_TABLE_ENTRIES = {"",
@@ -409,9 +508,9 @@ public class SNMPClient
 		}
 		pdu.setType(PDU.GET);
 		Map<String, String> res = new HashMap<String, String>(13);
-		ResponseEvent event = snmp.send(pdu, getTarget(), null);
-		if(event != null) {
-			VariableBinding[] binds = event.getResponse().toArray();
+		PDU resp = send(pdu);
+		if(resp != null) {
+			VariableBinding[] binds = resp.toArray();
 			for(VariableBinding b: binds)
 				res.put(b.getOid().toString(), b.getVariable().toString());
 			//logger.info(res.toString());
@@ -427,7 +526,13 @@ public class SNMPClient
    public Map<String, List<SNMPTriple>> getMultiDiskData() throws IOException {
 		
 		Map<String, List<SNMPTriple>> resMap = new HashMap<String, List<SNMPTriple>>();
-		Map<Integer, String> indexes = this.getDiskIndexes();
+		Map<Integer, String> indexes = getCachedIndexes(DISK_INDEX_CACHE);
+		boolean cached = indexes != null;
+		if(!cached)
+		{
+			indexes = this.getDiskIndexes();
+			cacheIndexes(DISK_INDEX_CACHE, indexes);
+		}
 		if(indexes == null || indexes.size() == 0)
 			return  resMap;
 		
@@ -444,12 +549,11 @@ public class SNMPClient
 		}
 		pdu.setType(PDU.GET);
 		Map<String, String> res = new HashMap<String, String>(13);
-		ResponseEvent event = snmp.send(pdu, getTarget(), null);
-		if(event != null) {
-			PDU resp = event.getResponse();
+		{
+			PDU resp = send(pdu);
 			if(resp == null)
 			{
-				logger.info("Unexpected snmp response: "+event+", request size " + reqSize );
+				logger.info("No snmp response from "+address+", request size " + reqSize );
 				return resMap;
 			}
 			VariableBinding[] binds = resp.toArray();
@@ -457,6 +561,11 @@ public class SNMPClient
 				res.put(b.getOid().toString(), b.getVariable().toString());
 			//logger.info(res.toString());
 		}
+		if(cached && !isSameRows(res, DISK_TABLE_DEVICE_OID, indexes))
+		{
+			invalidateIndexes(DISK_INDEX_CACHE);
+			return getMultiDiskData();
+		}
 		for(Map.Entry<Integer, String> entry: indexes.entrySet())
 		{
 			List<SNMPTriple> resList = new ArrayList<SNMPTriple>(res.size());
@@ -472,11 +581,10 @@ public class SNMPClient
 	
 	private int getDiskIndex(String device) throws IOException {
 		
-        TableUtils tUtils = new TableUtils(snmp, new DefaultPDUFactory());
         
         logger.fine("Query "+this.address+" for disk data: "+device);
          @SuppressWarnings("unchecked")
-         List<TableEvent> events = tUtils.getTable(getTarget(), new OID[]{new OID("."+DISK_TABLE_DEVICE_OID)}, null, null);
+         List<TableEvent> events = getTable(new OID[]{new OID("."+DISK_TABLE_DEVICE_OID)});
 
          for (TableEvent event : events) {
            if(event.isError()) {
@@ -505,11 +613,10 @@ public class SNMPClient
 
 	private Map<Integer, String> getDiskIndexes() throws IOException {
 		Map<Integer, String> diskIndexes = new HashMap<Integer, String>();
-        TableUtils tUtils = new TableUtils(snmp, new DefaultPDUFactory());
         
         logger.fine("Query "+this.address+" for disk oids");
          @SuppressWarnings("unchecked")
-         List<TableEvent> events = tUtils.getTable(getTarget(), new OID[]{new OID("."+DISK_TABLE_DEVICE_OID)}, null, null);
+         List<TableEvent> events = getTable(new OID[]{new OID("."+DISK_TABLE_DEVICE_OID)});
 
          for (TableEvent event : events) {
            if(event.isError()) {
@@ -574,11 +681,10 @@ public class SNMPClient
   private Map<Integer, String> getNetIfIndexes(String device) throws IOException {
 	    Map<Integer, String> ifMaps = new HashMap<Integer, String> ();
 		
-        TableUtils tUtils = new TableUtils(snmp, new DefaultPDUFactory());
         
         logger.fine("Query "+this.address+" for network interface, excluding lo");
          @SuppressWarnings("unchecked")
-         List<TableEvent> events = tUtils.getTable(getTarget(), new OID[]{new OID("."+IF_TABLE_DEVICE_OID)}, null, null);
+         List<TableEvent> events = getTable(new OID[]{new OID("."+IF_TABLE_DEVICE_OID)});
 
          for (TableEvent event : events) {
            if(event.isError()) {
@@ -609,14 +715,24 @@ public class SNMPClient
 
    public Map<String, List<SNMPTriple>> getNetIfData(String device) throws IOException {
 		
+		String cacheKey = NETIF_INDEX_CACHE + (device != null? device : "");
+		Map<Integer, String> cachedIfMaps = getCachedIndexes(cacheKey);
+		if(cachedIfMaps != null)
+		{
+			//known interfaces, fetch the values only
+			Map<String, String> res = getTableRows(IF_TABLE_OID, IF_TABLE_ENTRIES, cachedIfMaps);
+			if(res == null)
+				return new HashMap<String, List<SNMPTriple>>();
+			if(isSameRows(res, IF_TABLE_DEVICE_OID, cachedIfMaps))
+				return toNetIfData(cachedIfMaps, res);
+			invalidateIndexes(cacheKey);
+		}
 	    Map<Integer, String> ifMaps = new HashMap<Integer, String> ();
-		Map<String, List<SNMPTriple>> resMap = new HashMap<String, List<SNMPTriple>>();
 		Map<String, String> res = new HashMap<String, String>();
-        TableUtils tUtils = new TableUtils(snmp, new DefaultPDUFactory());
         
         logger.fine("Query "+this.address+" for network interface, excluding lo");
          @SuppressWarnings("unchecked")
-         List<TableEvent> events = tUtils.getTable(getTarget(), new OID[]{new OID("."+IF_TABLE_OID)}, null, null);
+         List<TableEvent> events = getTable(new OID[]{new OID("."+IF_TABLE_OID)});
 
          for (TableEvent event : events) {
            if(event.isError()) {
@@ -646,7 +762,13 @@ public class SNMPClient
              }
            }//for var
          }//for event
-		
+		cacheIndexes(cacheKey, ifMaps);
+		return toNetIfData(ifMaps, res);
+   }
+
+   private Map<String, List<SNMPTriple>> toNetIfData(Map<Integer, String> ifMaps, Map<String, String> res)
+   {
+		Map<String, List<SNMPTriple>> resMap = new HashMap<String, List<SNMPTriple>>();
 		for(Map.Entry<Integer, String> entry: ifMaps.entrySet())
 		{
 			int index = entry.getKey();
@@ -662,6 +784,42 @@ public class SNMPClient
          return resMap;
    }
 
+   /**
+    * GET all columns of the given rows with a single request
+    * @param tableOid
+    * @param entries column names, empty name for a column not requested
+    * @param indexes
+    * @return OID to value, null if timed out, empty if rejected by the agent
+    * @throws IOException
+    */
+   private Map<String, String> getTableRows(String tableOid, String[] entries, Map<Integer, String> indexes) throws IOException {
+		PDU pdu = createPDU();
+		for(Integer idx: indexes.keySet())
+		{
+			for ( int i=1; i< entries.length; i++) {
+				if(entries[i].length()==0)continue;
+				pdu.add(new VariableBinding(new OID("."+tableOid+"."+i+"."+idx)));
+			}
+		}
+		pdu.setType(PDU.GET);
+		PDU resp = send(pdu);
+		if(resp == null)
+		{
+			logger.info("No snmp response from "+address+" for "+tableOid);
+			return null;
+		}
+		if(resp.getErrorStatus() != PDU.noError)
+		{
+			//for example, tooBig. Return nothing, so the caller will walk the table again
+			logger.info("SNMP error from "+address+" for "+tableOid+": "+resp.getErrorStatusText());
+			return new HashMap<String, String>();
+		}
+		Map<String, String> res = new HashMap<String, String>(pdu.size());
+		for(VariableBinding b: resp.toArray())
+			res.put(b.getOid().toString(), b.getVariable().toString());
+		return res;
+   }
+
    public Map<String, List<SNMPTriple>> getNetIfData3(String device) throws IOException {
 		
 		Map<String, List<SNMPTriple>> resMap = new HashMap<String, List<SNMPTriple>>();
@@ -682,9 +840,9 @@ public class SNMPClient
 		}
 		pdu.setType(PDU.GET);
 		Map<String, String> res = new HashMap<String, String>(IF_TABLE_ENTRIES.length*indexMap.size());
-		ResponseEvent event = snmp.send(pdu, getTarget(), null);
-		if(event != null) {
-			VariableBinding[] binds = event.getResponse().toArray();
+		PDU resp = send(pdu);
+		if(resp != null) {
+			VariableBinding[] binds = resp.toArray();
 			for(VariableBinding b: binds)
 				res.put(b.getOid().toString(), b.getVariable().toString());
 			//logger.info(res.toString());
@@ -715,20 +873,46 @@ public class SNMPClient
    													"hrStorageUsed",
    													"hrStorageAllocationFailures"};
    public Map<String, List<SNMPTriple>> getStorageData(String device) throws IOException {
-	   List<SNMPTriple> resList = querySingleSNMPTableByOID("."+STORAGE_TABLE_OID);
 	   List<Integer> idxList = new ArrayList<Integer>();
-	   Map<String, String> tmpMap = new HashMap<String, String>();
-	   for(SNMPTriple e: resList)
+	   Map<String, String> tmpMap = null;
+	   Map<Integer, String> cachedNames = getCachedIndexes(STORAGE_INDEX_CACHE);
+	   if(cachedNames != null)
 	   {
-		   tmpMap.put(e.oid, e.value);
-		   if(e.oid.startsWith(STORAGE_TABLE_DEVICE_OID))
+		   //known storage entries, fetch the values only
+		   tmpMap = getTableRows(STORAGE_TABLE_OID, STORAGE_TABLE_ENTRIES, cachedNames);
+		   if(tmpMap == null)
+			   return new HashMap<String, List<SNMPTriple>>();
+		   if(isSameRows(tmpMap, STORAGE_TABLE_OID+".3", cachedNames))
+			   idxList.addAll(cachedNames.keySet());
+		   else
 		   {
-			   try
+			   invalidateIndexes(STORAGE_INDEX_CACHE);
+			   tmpMap = null;
+		   }
+	   }
+	   if(tmpMap == null)
+	   {
+		   tmpMap = new HashMap<String, String>();
+		   List<SNMPTriple> resList = querySingleSNMPTableByOID("."+STORAGE_TABLE_OID);
+		   for(SNMPTriple e: resList)
+		   {
+			   tmpMap.put(e.oid, e.value);
+			   if(e.oid.startsWith(STORAGE_TABLE_DEVICE_OID))
 			   {
-			     int idx = Integer.parseInt(e.oid.substring(STORAGE_TABLE_DEVICE_OID.length() + 1));
-			     idxList.add(idx);
-			   }catch(Exception ex){}
+				   try
+				   {
+				     int idx = Integer.parseInt(e.oid.substring(STORAGE_TABLE_DEVICE_OID.length() + 1));
+				     idxList.add(idx);
+				   }catch(Exception ex){}
+			   }
 		   }
+		   Map<Integer, String> names = new LinkedHashMap<Integer, String>(idxList.size());
+		   for(int idx: idxList)
+		   {
+			   String name = tmpMap.get(STORAGE_TABLE_OID+"." + 3 +"." + idx);
+			   if(name != null)names.put(idx, name);
+		   }
+		   cacheIndexes(STORAGE_INDEX_CACHE, names);
 	   }
 	   Map<String, List<SNMPTriple>> resMap = new HashMap<String, List<SNMPTriple>>();
 	   for(int idx: idxList)
@@ -772,8 +956,7 @@ public class SNMPClient
    {
 	   if(oid == null || oid.isEmpty())return null;
 	   if(!oid.startsWith("."))oid = "."+oid;
-       TableUtils tUtils = new TableUtils(snmp, new DefaultPDUFactory());
-       List<TableEvent> events = tUtils.getTable(getTarget(), new OID[]{new OID(oid)}, null, null);
+       List<TableEvent> events = getTable(new OID[]{new OID(oid)});
 
 	   List<SNMPTriple> snmpList = new ArrayList<SNMPTriple>();
        
@@ -793,6 +976,7 @@ public class SNMPClient
    }
    
    public static final String PROCESS_TABLE_OID = "1.3.6.1.2.1.25.4.2.1"; //hrSWRunTable
+   private static final String PROCESS_NAME_OID = "1.3.6.1.2.1.25.4.2.1.2"; //hrSWRunName
    //1.3.6.1.2.1.25.4.2.1.2.
    /**
     * Query index for given process name. Note the parameter only provides 128 characters,
@@ -802,14 +986,14 @@ public class SNMPClient
     * @return
     * @throws IOException
     */
-   private List<Integer> getProcessIndexes(String process) throws IOException {
-	   List<Integer> indexes = new ArrayList<Integer> ();
+   private Map<Integer, String> getProcessIndexes(String process) throws IOException {
+	   Map<Integer, String> indexes = new LinkedHashMap<Integer, String> ();
        if(process == null || process.isEmpty())return indexes;
 		
-       TableUtils tUtils = new TableUtils(snmp, new DefaultPDUFactory());
        logger.fine("Query "+this.address+" for process " + process);
+        //hrSWRunName only, other columns have path and parameters
         @SuppressWarnings("unchecked")
-        List<TableEvent> events = tUtils.getTable(getTarget(), new OID[]{new OID("."+PROCESS_TABLE_OID)}, null, null);
+        List<TableEvent> events = getTable(new OID[]{new OID("."+PROCESS_NAME_OID)});
 
         for (TableEvent event : events) {
           if(event.isError()) {
@@ -830,7 +1014,7 @@ public class SNMPClient
        	       try
        	       {
        	    	   index = Integer.parseInt(strs[strs.length-1]);
-       	    	   indexes.add(index);
+       	    	   indexes.put(index, value);
        	       }catch(Exception ex){}
        	   }
           }
@@ -844,14 +1028,24 @@ public class SNMPClient
    													"hrSWRunPerfMem"};
    public List<SNMPTriple> getProcessData(String processName) throws IOException {
 		List<SNMPTriple> resList = new ArrayList<SNMPTriple>();
-		List<Integer> prIndexes = this.getProcessIndexes(processName);
-		if(prIndexes == null || prIndexes.size() == 0)
+		String cacheKey = PROCESS_INDEX_CACHE + processName;
+		Map<Integer, String> prNames = getCachedIndexes(cacheKey);
+		boolean cached = prNames != null;
+		if(!cached)
+		{
+			prNames = this.getProcessIndexes(processName);
+			cacheIndexes(cacheKey, prNames);
+		}
+		if(prNames == null || prNames.size() == 0)
 			return  resList;
+		java.util.Set<Integer> prIndexes = prNames.keySet();
 		
 		logger.fine("Query process stats");
 		PDU pdu = createPDU();
 		for(Integer idx: prIndexes)
 		{
+			if(cached)//the process index is its pid, check it is still the same process
+				pdu.add(new VariableBinding(new OID("."+PROCESS_NAME_OID+"."+idx)));
 			for ( int i=1; i< PROCESS_PERF_TABLE_ENTRIES.length; i++) {
 				if(PROCESS_PERF_TABLE_ENTRIES[i].length()==0)continue;
 				pdu.add(new VariableBinding(new OID("."+PROCESS_PERF_TABLE_OID+"."+i+"."+idx)));
@@ -860,15 +1054,20 @@ public class SNMPClient
 		}
 		pdu.setType(PDU.GET);
 		Map<String, String> res = new HashMap<String, String>(prIndexes.size()*2);
-		ResponseEvent event = snmp.send(pdu, getTarget(), null);
-		if(event != null) {
-			VariableBinding[] binds = event.getResponse().toArray();
+		PDU resp = send(pdu);
+		if(resp != null) {
+			VariableBinding[] binds = resp.toArray();
 			for(VariableBinding b: binds)
 			{
 				res.put(b.getOid().toString(), b.getVariable().toString());
 				//logger.info(b.getOid().toString() +", "+ b.getVariable().toString());
 			}
 		}
+		if(cached && resp != null && !isSameRows(res, PROCESS_NAME_OID, prNames))
+		{
+			invalidateIndexes(cacheKey);
+			return getProcessData(processName);
+		}
 		//logger.info("result: "+res);
 		for(int i=1;i<PROCESS_PERF_TABLE_ENTRIES.length; i++) {
 			if(PROCESS_PERF_TABLE_ENTRIES[i].length()==0)continue;
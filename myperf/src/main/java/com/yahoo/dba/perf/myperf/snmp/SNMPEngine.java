@@ -0,0 +1,496 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.snmp;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.security.SecurityModels;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.DefaultPDUFactory;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.TableEvent;
+import org.snmp4j.util.TableUtils;
+import org.snmp4j.util.ThreadPool;
+
+/**
+ * One SNMP session shared by all SNMPClient instances: a single UDP socket, and a small thread pool
+ * to process the responses. Requests are sent asynchronously and matched to the responses by snmp4j,
+ * so requests to many hosts can be outstanding at the same time.
+ *
+ * Each host has a retry budget. After a request times out, the following requests to the same host
+ * use fewer retries, and after maxHostFailures consecutive timeouts the host is skipped for a while,
+ * so an unreachable host does not hold a scanner thread for the full timeout of every SNMP group.
+ * Table walks and SNMPv3 engine ID discovery count against the same budget.
+ *
+ * SNMPv3 users are added to the shared USM under the authoritative engine ID of each agent,
+ * so hosts with the same user name but different passwords keep their own keys.
+ * @author xrao
+ *
+ */
+public class SNMPEngine
+{
+	private static Logger logger = Logger.getLogger(SNMPEngine.class.getName());
+
+	private Snmp snmp;
+	private ThreadPool threadPool;
+	private int dispatcherThreads = 4;
+	private int maxHostFailures = 3;//consecutive timeouts before a host is skipped
+	private long hostBackoffMillis = 60000L;//first skip period, doubled for each further failure
+	private long maxHostBackoffMillis = 600000L;
+
+	private final SNMPIndexCache indexCache = new SNMPIndexCache();
+	private final ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<String, HostState>();
+	//host to authoritative engine ID of its SNMPv3 agent
+	private final ConcurrentHashMap<String, OctetString> engineIds = new ConcurrentHashMap<String, OctetString>();
+	//engine ID and user name to the credentials added to USM
+	private final ConcurrentHashMap<String, String> usmUsers = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * Timeout and backoff state of a single host
+	 */
+	private static class HostState
+	{
+		int failures = 0;
+		long skipUntil = 0L;
+	}
+
+	/**
+	 * Receive the response of an asynchronous request.
+	 * The response PDU is null if the request timed out after all retries.
+	 */
+	public static interface SNMPResponseHandler
+	{
+		void onResponse(PDU response);
+		void onError(Exception ex);
+	}
+
+	/**
+	 * Open the UDP transport. Called on first use.
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException
+	{
+		if(snmp != null)return;
+		logger.info("Start SNMP engine with "+dispatcherThreads+" dispatcher threads");
+		threadPool = ThreadPool.create("SNMPEngine", dispatcherThreads);
+		MultiThreadedMessageDispatcher dispatcher = new MultiThreadedMessageDispatcher(threadPool, new MessageDispatcherImpl());
+		//Snmp only adds them with its own dispatcher
+		SecurityProtocols.getInstance().addDefaultProtocols();
+		USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
+		SecurityModels.getInstance().addSecurityModel(usm);
+		dispatcher.addMessageProcessingModel(new MPv1());
+		dispatcher.addMessageProcessingModel(new MPv2c());
+		dispatcher.addMessageProcessingModel(new MPv3(usm));
+		Snmp session = new Snmp(dispatcher, new DefaultUdpTransportMapping());
+		try
+		{
+			session.listen();
+		}catch(IOException ex)
+		{
+			threadPool.stop();
+			threadPool = null;
+			throw ex;
+		}
+		snmp = session;
+	}
+
+	public synchronized void stop()
+	{
+		if(snmp == null)return;
+		logger.info("Stop SNMP engine");
+		try
+		{
+			snmp.close();
+		}catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Failed to close SNMP session", ex);
+		}
+		if(threadPool != null)threadPool.stop();
+		snmp = null;
+		threadPool = null;
+		engineIds.clear();
+		usmUsers.clear();
+	}
+
+	/**
+	 * @return the shared session, started if not yet
+	 * @throws IOException
+	 */
+	public synchronized Snmp getSnmp() throws IOException
+	{
+		if(snmp == null)start();
+		return snmp;
+	}
+
+	/**
+	 * Check the retry budget of the host
+	 * @param host
+	 * @return false if the host should be skipped after repeated timeouts
+	 */
+	public boolean isAvailable(String host)
+	{
+		HostState st = hosts.get(host);
+		if(st == null)return true;
+		synchronized(st)
+		{
+			return st.skipUntil <= System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Number of retries to use for the host, reduced by its recent timeouts
+	 * @param host
+	 * @param retries configured retries
+	 * @return
+	 */
+	public int getRetries(String host, int retries)
+	{
+		HostState st = hosts.get(host);
+		if(st == null)return retries;
+		synchronized(st)
+		{
+			return Math.max(0, retries - st.failures);
+		}
+	}
+
+	/**
+	 * Send a request asynchronously. The handler is called from the dispatcher threads.
+	 * @param host used to track the retry budget
+	 * @param pdu
+	 * @param target
+	 * @param handler
+	 * @throws IOException if the host is skipped, or the request cannot be sent
+	 */
+	public void send(final String host, PDU pdu, Target target, final SNMPResponseHandler handler) throws IOException
+	{
+		if(!isAvailable(host))
+		{
+			skipped.incrementAndGet();
+			throw new IOException("SNMP requests to "+host+" are suspended after "+maxHostFailures+" timeouts");
+		}
+		target.setRetries(getRetries(host, target.getRetries()));
+		Snmp session = getSnmp();
+		requests.incrementAndGet();
+		inFlight.incrementAndGet();
+		ResponseListener listener = new ResponseListener()
+		{
+			private volatile boolean done = false;
+
+			@Override
+			public void onResponse(ResponseEvent event)
+			{
+				//snmp4j keeps the request until it is cancelled
+				((Snmp)event.getSource()).cancel(event.getRequest(), this);
+				if(done)return;
+				done = true;
+				inFlight.decrementAndGet();
+				if(event.getError() != null)
+				{
+					errors.incrementAndGet();
+					engineIds.remove(host);//the agent could have a new engine ID
+					handler.onError(event.getError());
+					return;
+				}
+				PDU response = event.getResponse();
+				if(response == null)
+				{
+					timeouts.incrementAndGet();
+					recordTimeout(host);
+				}else
+				{
+					responses.incrementAndGet();
+					recordSuccess(host);
+				}
+				handler.onResponse(response);
+			}
+		};
+		try
+		{
+			session.send(pdu, target, null, listener);
+		}catch(IOException ex)
+		{
+			inFlight.decrementAndGet();
+			errors.incrementAndGet();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Send a request and wait for the response
+	 * @param host
+	 * @param pdu
+	 * @param target
+	 * @return response PDU, or null if timed out
+	 * @throws IOException
+	 */
+	public PDU sendAndWait(String host, PDU pdu, Target target) throws IOException
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		final PDU[] response = new PDU[1];
+		final Exception[] error = new Exception[1];
+		send(host, pdu, target, new SNMPResponseHandler()
+		{
+			@Override
+			public void onResponse(PDU resp)
+			{
+				response[0] = resp;
+				latch.countDown();
+			}
+
+			@Override
+			public void onError(Exception ex)
+			{
+				error[0] = ex;
+				latch.countDown();
+			}
+		});
+		//snmp4j reports timeout after all retries, wait a little longer than that
+		long wait = target.getTimeout() * (target.getRetries() + 1) + 5000L;
+		try
+		{
+			if(!latch.await(wait, TimeUnit.MILLISECONDS))
+				return null;
+		}catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for SNMP response from "+host);
+		}
+		if(error[0] instanceof IOException)throw (IOException)error[0];
+		if(error[0] != null)throw new IOException(error[0]);
+		return response[0];
+	}
+
+	/**
+	 * Walk a table with the shared session
+	 * @param host used to track the retry budget
+	 * @param target
+	 * @param columns
+	 * @param rowsPerPDU
+	 * @return table events, as TableUtils.getTable
+	 * @throws IOException if the host is skipped
+	 */
+	@SuppressWarnings("rawtypes")
+	public List getTable(String host, Target target, OID[] columns, int rowsPerPDU) throws IOException
+	{
+		if(!isAvailable(host))
+		{
+			skipped.incrementAndGet();
+			throw new IOException("SNMP requests to "+host+" are suspended after "+maxHostFailures+" timeouts");
+		}
+		target.setRetries(getRetries(host, target.getRetries()));
+		TableUtils tUtils = new TableUtils(getSnmp(), new DefaultPDUFactory());
+		tUtils.setMaxNumRowsPerPDU(rowsPerPDU);
+		requests.incrementAndGet();
+		inFlight.incrementAndGet();
+		List events = null;
+		try
+		{
+			events = tUtils.getTable(target, columns, null, null);
+		}finally
+		{
+			inFlight.decrementAndGet();
+		}
+		boolean timedOut = false;
+		boolean failed = false;
+		for(Object o: events)
+		{
+			TableEvent event = (TableEvent)o;
+			if(event.getStatus() == TableEvent.STATUS_TIMEOUT)timedOut = true;
+			else if(event.isError())failed = true;
+		}
+		if(timedOut)
+		{
+			timeouts.incrementAndGet();
+			recordTimeout(host);
+		}else if(failed)
+		{
+			errors.incrementAndGet();
+		}else
+		{
+			responses.incrementAndGet();
+			recordSuccess(host);
+		}
+		return events;
+	}
+
+	/**
+	 * Authoritative engine ID of the SNMPv3 agent of the host, discovered on first use
+	 * @param host
+	 * @param address
+	 * @param timeout
+	 * @return
+	 * @throws IOException if the host is skipped, or the agent does not respond
+	 */
+	public OctetString getAuthoritativeEngineID(String host, Address address, long timeout) throws IOException
+	{
+		OctetString engineId = engineIds.get(host);
+		if(engineId != null)return engineId;
+		if(!isAvailable(host))
+		{
+			skipped.incrementAndGet();
+			throw new IOException("SNMP requests to "+host+" are suspended after "+maxHostFailures+" timeouts");
+		}
+		requests.incrementAndGet();
+		byte[] id = getSnmp().discoverAuthoritativeEngineID(address, timeout);
+		if(id == null || id.length == 0)
+		{
+			timeouts.incrementAndGet();
+			recordTimeout(host);
+			throw new IOException("Failed to discover SNMP engine ID of "+host);
+		}
+		responses.incrementAndGet();
+		recordSuccess(host);
+		engineId = new OctetString(id);
+		engineIds.put(host, engineId);
+		return engineId;
+	}
+
+	/**
+	 * Add the user to the shared USM for the agent with the engine ID, if not added with the same credentials yet
+	 * @param engineId
+	 * @param user
+	 * @throws IOException
+	 */
+	public void addUser(OctetString engineId, UsmUser user) throws IOException
+	{
+		String key = engineId.toHexString()+"/"+user.getSecurityName();
+		String credentials = user.getAuthenticationProtocol()+"/"+user.getAuthenticationPassphrase()
+				+"/"+user.getPrivacyProtocol()+"/"+user.getPrivacyPassphrase();
+		if(credentials.equals(usmUsers.get(key)))return;
+		//localizes the keys, which is expensive
+		getSnmp().getUSM().addUser(user.getSecurityName(), engineId, user);
+		usmUsers.put(key, credentials);
+	}
+
+	private HostState getHostState(String host)
+	{
+		HostState st = hosts.get(host);
+		if(st == null)
+		{
+			hosts.putIfAbsent(host, new HostState());
+			st = hosts.get(host);
+		}
+		return st;
+	}
+
+	private void recordTimeout(String host)
+	{
+		engineIds.remove(host);
+		HostState st = getHostState(host);
+		synchronized(st)
+		{
+			st.failures++;
+			if(st.failures >= maxHostFailures)
+			{
+				long backoff = hostBackoffMillis << Math.min(st.failures - maxHostFailures, 10);
+				st.skipUntil = System.currentTimeMillis() + Math.min(backoff, maxHostBackoffMillis);
+				logger.info("Suspend SNMP requests to "+host+" for "+(Math.min(backoff, maxHostBackoffMillis)/1000)+" seconds after "+st.failures+" timeouts");
+			}
+		}
+	}
+
+	private void recordSuccess(String host)
+	{
+		HostState st = hosts.get(host);
+		if(st == null)return;
+		synchronized(st)
+		{
+			st.failures = 0;
+			st.skipUntil = 0L;
+		}
+	}
+
+	/**
+	 * @return table index cache shared by the clients
+	 */
+	public SNMPIndexCache getIndexCache()
+	{
+		return indexCache;
+	}
+
+	public int getDispatcherThreads()
+	{
+		return dispatcherThreads;
+	}
+
+	/**
+	 * Takes effect when the engine is started
+	 * @param dispatcherThreads
+	 */
+	public void setDispatcherThreads(int dispatcherThreads)
+	{
+		if(dispatcherThreads > 0)this.dispatcherThreads = dispatcherThreads;
+	}
+
+	public int getMaxHostFailures()
+	{
+		return maxHostFailures;
+	}
+
+	public void setMaxHostFailures(int maxHostFailures)
+	{
+		if(maxHostFailures > 0)this.maxHostFailures = maxHostFailures;
+	}
+
+	/**
+	 * Statistics, for status page
+	 * @return
+	 */
+	public Map<String, String> getStats()
+	{
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		int suspended = 0;
+		long now = System.currentTimeMillis();
+		for(HostState st: hosts.values())
+		{
+			synchronized(st)
+			{
+				if(st.skipUntil > now)suspended++;
+			}
+		}
+		stats.put("snmpEngine.started", String.valueOf(snmp != null));
+		stats.put("snmpEngine.inFlight", String.valueOf(inFlight.get()));
+		stats.put("snmpEngine.requests", String.valueOf(requests.get()));
+		stats.put("snmpEngine.responses", String.valueOf(responses.get()));
+		stats.put("snmpEngine.timeouts", String.valueOf(timeouts.get()));
+		stats.put("snmpEngine.errors", String.valueOf(errors.get()));
+		stats.put("snmpEngine.skipped", String.valueOf(skipped.get()));
+		stats.put("snmpEngine.suspendedHosts", String.valueOf(suspended));
+		stats.putAll(indexCache.getStats());
+		return stats;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.snmp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per host cache of SNMP table indexes (disk, storage, network interface, process), so a scan
+ * does not need to walk the index table before fetching the values. Entries expire after ttlMillis,
+ * and are invalidated by SNMPClient when a GET by cached index no longer returns the same row.
+ * @author xrao
+ *
+ */
+public class SNMPIndexCache
+{
+	private long ttlMillis = 3600000L;
+
+	private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private static class Entry
+	{
+		final Map<Integer, String> indexes;
+		final long expireTime;
+
+		Entry(Map<Integer, String> indexes, long expireTime)
+		{
+			this.indexes = indexes;
+			this.expireTime = expireTime;
+		}
+	}
+
+	private static String key(String host, String table)
+	{
+		return host + "|" + table;
+	}
+
+	/**
+	 * @param host
+	 * @param table
+	 * @return index to name map, or null if not cached or expired
+	 */
+	public Map<Integer, String> get(String host, String table)
+	{
+		Entry e = cache.get(key(host, table));
+		if(e == null || e.expireTime < System.currentTimeMillis())
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return e.indexes;
+	}
+
+	/**
+	 * Empty result is not cached, it could come from a partial walk.
+	 * @param host
+	 * @param table
+	 * @param indexes
+	 */
+	public void put(String host, String table, Map<Integer, String> indexes)
+	{
+		if(indexes == null || indexes.isEmpty())return;
+		cache.put(key(host, table), new Entry(Collections.unmodifiableMap(new LinkedHashMap<Integer, String>(indexes)),
+				System.currentTimeMillis() + ttlMillis));
+	}
+
+	public void invalidate(String host, String table)
+	{
+		if(cache.remove(key(host, table)) != null)
+			invalidations.incrementAndGet();
+	}
+
+	public long getTtlMillis()
+	{
+		return ttlMillis;
+	}
+
+	public void setTtlMillis(long ttlMillis)
+	{
+		if(ttlMillis > 0)this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Statistics, for status page
+	 * @return
+	 */
+	public Map<String, String> getStats()
+	{
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		long h = hits.get();
+		long m = misses.get();
+		stats.put("snmpIndexCache.entries", String.valueOf(cache.size()));
+		stats.put("snmpIndexCache.hits", String.valueOf(h));
+		stats.put("snmpIndexCache.misses", String.valueOf(m));
+		stats.put("snmpIndexCache.invalidations", String.valueOf(invalidations.get()));
+		stats.put("snmpIndexCache.hitRate", h + m > 0? String.format("%.1f%%", 100.0 * h / (h + m)) : "");
+		return stats;
+	}
+}
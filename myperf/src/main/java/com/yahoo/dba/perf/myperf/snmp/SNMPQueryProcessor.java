@@ -55,7 +55,7 @@ public class SNMPQueryProcessor implements CustomQueryProcessor{
 		SNMPClient client = null;
 		try
 		{
-		  client = new SNMPClient(qps.getHost());
+		  client = new SNMPClient(qps.getHost(), context.getSnmpEngine());
 	      client.setSnmpSetting(context.getSnmpSettings()
 	    		  .getHostSetting(dbinfo.getDbGroupName(), dbinfo.getHostName()));
 		  client.start();
@@ -299,6 +299,11 @@ public class AlertsController extends MyPerfBaseController
 				   appUser.getName(), true))
 		   {
 			   dbinfo.setMetricsEnabled( "metrics_enabled_yes".equalsIgnoreCase(cmd));
+			   AutoScanner scanner = this.getFrameworkContext().getAutoScanner();
+			   if(!dbinfo.isMetricsEnabled() && scanner != null && scanner.getStatementDigestCollector() != null)
+				   scanner.getStatementDigestCollector().reset(dbinfo.getDbid());//the next scan will be a new baseline
+			   if(!dbinfo.isMetricsEnabled() && scanner != null && scanner.getConnectionPool() != null)
+				   scanner.getConnectionPool().evict(dbinfo.getDbid());//no longer scanned
 		   }else
 		   {
 			   message = "Failed to update metrics setting";
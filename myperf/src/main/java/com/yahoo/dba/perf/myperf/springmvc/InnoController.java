@@ -108,7 +108,12 @@ public class InnoController extends MyPerfBaseController
   }
 
   
-  private LinkedHashMap<String, ResultList> parse(String str)
+  /**
+   * Parse the output of SHOW ENGINE INNODB STATUS into result lists, one per section
+   * @param str
+   * @return
+   */
+  public LinkedHashMap<String, ResultList> parse(String str)
   {
 	final int BEFORE_STARTLINE = -1;
 	final int STARTLINE = 0;
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the Apache License.
+ * See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.springmvc;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.View;
+
+import com.yahoo.dba.perf.myperf.common.JsonResult;
+
+/**
+ * Write json_result of the model to the response directly. A JsonResult is serialized into the
+ * response as it is generated, so a large result is not built as a String first.
+ * It replaces jsonresult.jsp, which only prints json_result.
+ * @author xrao
+ *
+ */
+public class JsonResultView implements View
+{
+	private static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+
+	//compress by ourselves. Not needed for *.html, which is handled by GzipFilter in web.xml
+	private boolean gzip = false;
+
+	@Override
+	public String getContentType()
+	{
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public void render(Map<String, ?> model, HttpServletRequest request,
+			HttpServletResponse response) throws Exception
+	{
+		Object result = model!=null?model.get("json_result"):null;
+		response.setContentType(CONTENT_TYPE);
+		boolean compress = this.gzip && acceptGzip(request);
+		OutputStream os = response.getOutputStream();
+		GZIPOutputStream gzos = null;
+		if(compress)
+		{
+			response.setHeader("Content-Encoding", "gzip");
+			response.addHeader("Vary", "Accept-Encoding");
+			gzos = new GZIPOutputStream(os, 8192);
+			os = gzos;
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 8192);
+		if(result instanceof JsonResult)
+			((JsonResult)result).write(out);
+		else if(result != null)
+			out.write(result.toString());
+		out.flush();
+		if(gzos != null)gzos.finish();
+	}
+
+	private static boolean acceptGzip(HttpServletRequest request)
+	{
+		String enc = request.getHeader("Accept-Encoding");
+		return enc != null && enc.toLowerCase().contains("gzip");
+	}
+
+	public boolean isGzip()
+	{
+		return gzip;
+	}
+
+	public void setGzip(boolean gzip)
+	{
+		this.gzip = gzip;
+	}
+}
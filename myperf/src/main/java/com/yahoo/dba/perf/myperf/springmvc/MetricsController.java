@@ -18,6 +18,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.web.servlet.ModelAndView;
 
 import com.yahoo.dba.perf.myperf.common.*;
+import com.yahoo.dba.perf.myperf.metrics.MetricsRollup;
 
 /**
  * Retrieve metrics data from metricsDB
@@ -32,6 +33,8 @@ public class MetricsController extends MyPerfBaseController
    * URL path pattern: /metrics/{cmd}/{dbgroup}/{dbhost}/[{metrics}/[{start_ts}/][{end_ts}/]]{random}.html
    * cmd:
    *   get: get one or more metrics for one dbhost. metrics name separated by comma
+   *   mget: get one or more metrics for multiple hosts of the same group. dbhost is a list of hosts separated by comma, or all
+   *   topsql: top statements by total time from processlist samples. metrics is the number of statements, or _ for 20
    * @param req
    * @return
    */
@@ -91,19 +94,31 @@ public class MetricsController extends MyPerfBaseController
 	  for(ColumnInfo col: rs.getColumnDescriptor().getColumns())
 	  {
 		  String name = col.getName();
-		  if("TS".equals(name) || "SNAP_ID".equals(name))continue;
+		  if("TS".equals(name) || "SNAP_ID".equals(name) || "DBID".equals(name))continue;
 		  if(!name.startsWith(mg+"."))
 		  {
 			  col.setName(mg+"."+name);
 		  }
 	  }
   }
+
+  private void prefixMetricGroupName(String mg, MetricSeries series)
+  {
+	  if(mg==null||"globalstatus".equals(mg)||mg.isEmpty() ||series==null)return;
+	  for(int i=0;i<series.getMetricCount();i++)
+	  {
+		  String name = series.getName(i);
+		  if(!name.startsWith(mg+"."))
+			  series.setName(i, mg+"."+name);
+	  }
+  }
   private ModelAndView getMetrics( Map<String, String> pathParameters, HttpServletRequest req,
 			HttpServletResponse resp) throws Exception 
   {
 	  int status = Constants.STATUS_OK;
 	  String message = "OK";
-	  ResultList rlist = null;
+	  ResultList rlist = null;//only used when useKeyColumn is true
+	  MetricSeries series = null;
 	  boolean useKeyColumn = false;
 	  String[] metricsList = null;//used when useKeyColumn is true
 	  DBInstanceInfo dbinfo =  retrieveDBInfoFromPath(pathParameters);
@@ -145,6 +160,7 @@ public class MetricsController extends MyPerfBaseController
 				subGrp.put(subGrpName, new ArrayList<String>());
 			subGrp.get(subGrpName).add(metricName);
 		}
+		MetricsRollup.Tier tier = chooseRollupTier(metricsByGroup, dateRange);
 		
 		for(String mg: metricsByGroup.keySet())
 		{
@@ -180,31 +196,30 @@ public class MetricsController extends MyPerfBaseController
 			HashMap<String, ArrayList<String>> subGroups = metricsByGroup.get(mg);
 			for(String subGrpName: subGroups.keySet())
 			{
-				ResultList tmpList = null;
+				MetricSeries tmpSeries = null;
 				if(mGroup != null && mGroup.isStoreInCommonTable())
 				{
-					tmpList = retrieveGenericMetrics(subGroups.get(subGrpName).toArray(new String[0]), mGroup, dbinfo, dateRange[0],dateRange[1]);
+					tmpSeries = retrieveGenericMetrics(subGroups.get(subGrpName).toArray(new String[0]), mGroup, dbinfo, dateRange[0],dateRange[1]);
 				}
-				else if(mGroup != null && mGroup.getKeyColumn() != null && !mGroup.getKeyColumn().isEmpty())
-					tmpList = retrieveMetricsWithKey(subGroups.get(subGrpName).toArray(new String[0]), mg, subGrpName, dbinfo, dateRange[0], dateRange[1], true);
 				else 
-					tmpList = retrieveMetrics(subGroups.get(subGrpName).toArray(new String[0]), mg, subGrpName, dbinfo, dateRange[0], dateRange[1]);
+					tmpSeries = retrieveMetrics(subGroups.get(subGrpName).toArray(new String[0]), mg, subGrpName, dbinfo, dateRange[0], dateRange[1],
+							mGroup != null && mGroup.getKeyColumn() != null && !mGroup.getKeyColumn().isEmpty(), tier);
 				//if(mGroup == null || !mGroup.isStoreInCommonTable())
 				{
 					String prefix = mg + ".";
 					if(subGrpName != null)prefix += subGrpName;
 					if(mg.startsWith("UDM_"))
 						prefix = "UDM." + subGrpName;
-					prefixMetricGroupName(prefix, tmpList);
+					prefixMetricGroupName(prefix, tmpSeries);
 				}
-				if(rlist==null && tmpList != null)
+				if(series==null && tmpSeries != null)
 				{
-					logger.info("Return list size: "+tmpList.getRows().size());
-					rlist = tmpList;
+					logger.info("Return list size: "+tmpSeries.size());
+					series = tmpSeries;
 				}
-				else if(tmpList!=null)rlist = this.mergeResultList(rlist, tmpList);
-				if(rlist != null)
-					logger.info("End list size after merge: "+ rlist.getRows().size());
+				else if(tmpSeries!=null)series = this.mergeMetricSeries(series, tmpSeries);
+				if(series != null)
+					logger.info("End list size after merge: "+ series.size());
 			}
 		}
 		//when we reach here, at least we have valid query and can connect to db	
@@ -222,27 +237,9 @@ public class MetricsController extends MyPerfBaseController
 	  }else
 	  {
 
-	    if(rlist !=null && rlist.getCustomObjects()!=null)
+	    if(useKeyColumn && rlist !=null && rlist.getCustomObjects()!=null)
 	    {
-	    	  HashMap<String, String> metricsMapping = new HashMap<String, String>(rlist.getCustomObjects().size());
-	    	  int idx = 0;
-		      for(CustomResultObject obj: rlist.getCustomObjects().values())
-			  {
-			  	if(obj instanceof MetricsResultObject)
-			  	{
-			  		MetricsResultObject mco = MetricsResultObject.class.cast(obj);
-			  		for(Metric m: mco.getMetrics())
-			  		{
-			  		  if(!useKeyColumn)
-			  			  m.setShortName("M_"+idx);
-			  		  else
-			  			  m.setShortName(m.getName().substring(m.getName().lastIndexOf(".")+1));
-		    		  metricsMapping.put(m.getName(), m.getShortName());
-		    		  idx++;
-			  		}
-			  	}
-			  }
-
+	    	  HashMap<String, String> metricsMapping = shortNameMapping(rlist.getCustomObjects(), true);
 	    	  //fix column def
 		      logger.info("short name mapping: "+metricsMapping);
 	    	  for(ColumnInfo col: rlist.getColumnDescriptor().getColumns())
@@ -251,6 +248,11 @@ public class MetricsController extends MyPerfBaseController
 	    		  if(shortName != null)
 	    			  col.setName(shortName);
 	    	  }
+	    }else if(!useKeyColumn && series != null && series.getCustomObjects()!=null)
+	    {
+	    	  HashMap<String, String> metricsMapping = shortNameMapping(series.getCustomObjects(), false);
+		      logger.info("short name mapping: "+metricsMapping);
+	    	  renameMetrics(series, metricsMapping);
 	    }
 		mv = new ModelAndView(this.jsonView);
 		if(req.getParameter("callback")!=null&&req.getParameter("callback").trim().length()>0)
@@ -258,9 +260,286 @@ public class MetricsController extends MyPerfBaseController
 		QueryParameters qps = new QueryParameters();
 		qps.setGroup(dbinfo.getDbGroupName());
 		qps.setHost(dbinfo.getHostName());
-		mv.addObject("json_result", useKeyColumn?ResultListUtil.toMetricsJSONStringWithMultiRowsKeys(rlist, "KEY_COLUMN", new String[]{"SNAP_ID", "TS"},  metricsList[0], qps, status, message)
-				:ResultListUtil.toJSONString(rlist, qps , status, message));
+		if(!useKeyColumn)
+			series = downsample(series, req);
+		mv.addObject("json_result", useKeyColumn?ResultListUtil.toMetricsJSONResultWithMultiRowsKeys(rlist, "KEY_COLUMN", new String[]{"SNAP_ID", "TS"},  metricsList[0], qps, status, message)
+				:ResultListUtil.toJSONResult(series, qps , status, message));
+	  }
+	  return mv;
+  }
+
+  /**
+   * Assign short names to the metrics definitions, M_{idx}, or the metric name without group if keyName is true
+   * @param customObjects
+   * @param keyName
+   * @return mapping from full name to short name
+   */
+  private HashMap<String, String> shortNameMapping(Map<String, CustomResultObject> customObjects, boolean keyName)
+  {
+	  HashMap<String, String> metricsMapping = new HashMap<String, String>(customObjects.size());
+	  int idx = 0;
+	  for(CustomResultObject obj: customObjects.values())
+	  {
+		  if(!(obj instanceof MetricsResultObject))continue;
+		  for(Metric m: MetricsResultObject.class.cast(obj).getMetrics())
+		  {
+			  if(!keyName)
+				  m.setShortName("M_"+idx);
+			  else
+				  m.setShortName(m.getName().substring(m.getName().lastIndexOf(".")+1));
+			  metricsMapping.put(m.getName(), m.getShortName());
+			  idx++;
+		  }
+	  }
+	  return metricsMapping;
+  }
+
+  /**
+   * Reduce the rows of each host to the request parameter maxPoints, usually the chart width.
+   * Without the parameter, all rows are returned.
+   * @param series
+   * @param req
+   * @return
+   */
+  private MetricSeries downsample(MetricSeries series, HttpServletRequest req)
+  {
+	  if(series == null)return null;
+	  int maxPoints = 0;
+	  try
+	  {
+		  String s = req.getParameter("maxPoints");
+		  if(s != null && !s.trim().isEmpty())maxPoints = Integer.parseInt(s.trim());
+	  }catch(Exception ex)
+	  {
+		  logger.info("Invalid maxPoints: "+req.getParameter("maxPoints"));
+	  }
+	  if(maxPoints <= 0)return series;
+	  //counters have to be known, the chart computes their rate from adjacent rows
+	  HashMap<String, Metric> metricsByName = new HashMap<String, Metric>();
+	  if(series.getCustomObjects() != null)
+	  {
+		  for(CustomResultObject obj: series.getCustomObjects().values())
+		  {
+			  if(!(obj instanceof MetricsResultObject))continue;
+			  for(Metric m: MetricsResultObject.class.cast(obj).getMetrics())
+			  {
+				  metricsByName.put(m.getName(), m);
+				  if(m.getShortName() != null)metricsByName.put(m.getShortName(), m);
+			  }
+		  }
+	  }
+	  boolean[] incremental = new boolean[series.getMetricCount()];
+	  for(int i=0;i<incremental.length;i++)
+	  {
+		  Metric m = metricsByName.get(series.getName(i));
+		  incremental[i] = m != null && m.isIncremental();
+	  }
+	  long startTime = System.currentTimeMillis();
+	  int size = series.size();
+	  series = MetricSeriesDownsampler.downsample(series, maxPoints, incremental);
+	  if(series.size() < size)
+		  logger.info("Downsampled metrics from "+size+" to "+series.size()+" rows: "+(System.currentTimeMillis() - startTime)+"ms");
+	  return series;
+  }
+
+  private void renameMetrics(MetricSeries series, Map<String, String> metricsMapping)
+  {
+	  for(int i=0;i<series.getMetricCount();i++)
+	  {
+		  String shortName = metricsMapping.get(series.getName(i));
+		  if(shortName != null)
+			  series.setName(i, shortName);
+	  }
+  }
+
+  /**
+   * Retrieve DBInstanceInfo list from path, for mget. dbhost can be a list of hosts separated by comma, or all.
+   * Unknown hosts are ignored.
+   * @param pathParameters
+   * @return
+   */
+  private List<DBInstanceInfo> retrieveDBInfoListFromPath(Map<String, String> pathParameters)
+  {
+	List<DBInstanceInfo> dbs = new ArrayList<DBInstanceInfo>();
+	String dbgroup = pathParameters.get(Constants.URL_PATH_DBGROUP);
+	String dbhost = pathParameters.get(Constants.URL_PATH_DBHOST);
+	if(dbgroup==null || dbgroup.isEmpty() || dbhost==null || dbhost.isEmpty())
+		return dbs;
+	try
+	{
+		if("all".equalsIgnoreCase(dbhost))
+		{
+			DBGroupInfo grp = this.frameworkContext.getDbInfoManager().findGroup(dbgroup);
+			if(grp != null)
+				dbs.addAll(grp.getInstances());
+		}else
+		{
+			for(String h: dbhost.split(","))
+			{
+				if(h.trim().isEmpty())continue;
+				DBInstanceInfo dbinfo = this.frameworkContext.getDbInfoManager().findDB(dbgroup, h.trim());
+				if(dbinfo != null)dbs.add(dbinfo);
+			}
+		}
+	}catch(Exception ex){}
+	return dbs;
+  }
+
+  /**
+   * Retrieve metrics of multiple hosts of the same group. Each metrics table is read by one query
+   * with dbid in (...), instead of one query per host. The first column of the result is HOST,
+   * followed by SNAP_ID, TS and the metrics, ordered by host and snap_id.
+   * Metrics with key column are aggregated per snapshot.
+   * @param pathParameters
+   * @param req
+   * @param resp
+   * @return
+   * @throws Exception
+   */
+  private ModelAndView getMultiHostMetrics( Map<String, String> pathParameters, HttpServletRequest req,
+			HttpServletResponse resp) throws Exception 
+  {
+	  int status = Constants.STATUS_OK;
+	  String message = "OK";
+	  MetricSeries series = null;
+	  List<DBInstanceInfo> dbs =  retrieveDBInfoListFromPath(pathParameters);
+	  Map<Integer, String> hostNames = new HashMap<Integer, String>(dbs.size());
+	  List<Integer> dbids = new ArrayList<Integer>(dbs.size());
+	  for(DBInstanceInfo dbinfo: dbs)
+	  {
+		  hostNames.put(dbinfo.getDbid(), dbinfo.getHostName());
+		  dbids.add(dbinfo.getDbid());
+	  }
+	  do
+	  {
+		if(dbs.size()==0)
+		{
+			status = Constants.STATUS_BAD;	
+			message = "There is no record for DB ("+pathParameters.get(Constants.URL_PATH_DBGROUP)+", "+pathParameters.get(Constants.URL_PATH_DBHOST)+"), please add it to the system first.";
+			break;
+		}
+		String m = pathParameters.get(Constants.URL_PATH_METRICS);
+		if(m==null)
+		{
+			status = Constants.STATUS_BAD;
+			message = "No valid meteic name is provided.";
+			break;
+		}
+		String[] dateRange = MyPerfBaseController.getDateRange(pathParameters.get(Constants.URL_PATH_START_TS), pathParameters.get(Constants.URL_PATH_END_TS));
+		HashMap<String, HashMap<String, ArrayList<String>>> metricsByGroup = new HashMap<String, HashMap<String, ArrayList<String>>>();
+		for(String s: m.split(","))
+		{   //all name should be in the form of {group}.{subgrp}.{metric name}
+			String[] cmp = s.split("\\."); //retrieve name component
+			if (cmp.length != 3) continue; //invalid name, ignore
+			if (cmp[2] == null || cmp[2].isEmpty())continue;//invalid name, ignore
+			String mg = cmp[0];
+			String subGrpName = cmp[1];
+			if(mg==null||mg.isEmpty())mg = "STATUS";
+			if("UDM".equals(mg))//need special processing for UDM
+				mg = "UDM_"+ subGrpName;
+			if(!metricsByGroup.containsKey(mg))
+				metricsByGroup.put(mg, new HashMap<String, ArrayList<String>>());
+			HashMap<String, ArrayList<String>> subGrp = metricsByGroup.get(mg);
+			if (!subGrp.containsKey(subGrpName))
+				subGrp.put(subGrpName, new ArrayList<String>());
+			subGrp.get(subGrpName).add(cmp[2]);
+		}
+		MetricsRollup.Tier tier = chooseRollupTier(metricsByGroup, dateRange);
+		
+		for(String mg: metricsByGroup.keySet())
+		{
+			MetricsGroup mGroup = null;
+			if(mg.startsWith("UDM_"))
+			{
+				try
+				{
+					mGroup = this.frameworkContext.getMetricsDef().getUdmManager()
+							.getUDMByName(mg.substring(mg.indexOf('_') + 1)).getMetricsGroup();
+				}catch(Exception ex){}
+			}else
+				mGroup = this.frameworkContext.getMetricsDef().getGroupByName(mg);
+			if(mGroup == null)
+			{
+				logger.info("Failed to find metris definition for " + mg);
+				continue;
+			}
+			HashMap<String, ArrayList<String>> subGroups = metricsByGroup.get(mg);
+			for(String subGrpName: subGroups.keySet())
+			{
+				MetricSeries tmpSeries = null;
+				String[] metrics = subGroups.get(subGrpName).toArray(new String[0]);
+				if(mGroup.isStoreInCommonTable())
+					tmpSeries = retrieveGenericMetrics(metrics, mGroup, dbids, dateRange[0],dateRange[1]);
+				else
+					tmpSeries = retrieveMetrics(metrics, mg, subGrpName, dbids, dateRange[0], dateRange[1],
+							mGroup.getKeyColumn() != null && !mGroup.getKeyColumn().isEmpty(), tier);
+				String prefix = mg + ".";
+				if(subGrpName != null)prefix += subGrpName;
+				if(mg.startsWith("UDM_"))
+					prefix = "UDM." + subGrpName;
+				prefixMetricGroupName(prefix, tmpSeries);
+				if(series==null)
+					series = tmpSeries;
+				else if(tmpSeries!=null)
+					series = this.mergeMetricSeries(series, tmpSeries);
+			}
+		}
+		break;
+	  }while(false);
+
+	  ModelAndView mv = new ModelAndView(this.jsonView);
+	  if(req.getParameter("callback")!=null&&req.getParameter("callback").trim().length()>0)
+		mv.addObject("callback", req.getParameter("callback"));//YUI datasource binding
+	  if(status == Constants.STATUS_BAD)
+	  {
+		  mv.addObject("json_result", ResultListUtil.toJSONString(null, null, status, message));
+		  return mv;
+	  }
+	  if(series != null)
+	  {
+		  if(series.getCustomObjects()!=null)
+			  renameMetrics(series, shortNameMapping(series.getCustomObjects(), false));
+		  //replace dbid with host name
+		  series.setDbidLabels(hostNames);
+		  series = downsample(series, req);
 	  }
+	  QueryParameters qps = new QueryParameters();
+	  qps.setGroup(pathParameters.get(Constants.URL_PATH_DBGROUP));
+	  qps.setHost(pathParameters.get(Constants.URL_PATH_DBHOST));
+	  mv.addObject("json_result", ResultListUtil.toJSONResult(series, qps , status, message));
+	  return mv;
+  }
+
+  /**
+   * Top statements of one dbhost, from processlist samples
+   * @param pathParameters
+   * @param req
+   * @param resp
+   * @return
+   */
+  private ModelAndView getTopSql( Map<String, String> pathParameters, HttpServletRequest req,
+			HttpServletResponse resp)
+  {
+	  DBInstanceInfo dbinfo =  retrieveDBInfoFromPath(pathParameters);
+	  if(dbinfo==null)
+		  return this.respondFailure("There is no record for DB ("+pathParameters.get(Constants.URL_PATH_DBGROUP)+", "+pathParameters.get(Constants.URL_PATH_DBHOST)+"), please add it to the system first.", req);
+	  int maxCount = 20;
+	  try
+	  {
+		  maxCount = Integer.parseInt(pathParameters.get(Constants.URL_PATH_METRICS));
+	  }catch(Exception ex){}
+	  String[] dateRange = MyPerfBaseController.getDateRange(pathParameters.get(Constants.URL_PATH_START_TS), pathParameters.get(Constants.URL_PATH_END_TS));
+	  ResultList rList = this.frameworkContext.getMetricDb().retrieveTopProcessListDigests(dbinfo.getDbid(), dateRange[0], dateRange[1], maxCount);
+	  if(rList == null)
+		  return this.respondFailure("No processlist samples available", req);
+	  WebAppUtil.storeLastDbInfoRequest(dbinfo.getDbGroupName(),dbinfo.getHostName(), req);
+	  ModelAndView mv = new ModelAndView(this.jsonView);
+	  if(req.getParameter("callback")!=null&&req.getParameter("callback").trim().length()>0)
+		  mv.addObject("callback", req.getParameter("callback"));//YUI datasource binding
+	  QueryParameters qps = new QueryParameters();
+	  qps.setGroup(dbinfo.getDbGroupName());
+	  qps.setHost(dbinfo.getHostName());
+	  mv.addObject("json_result", ResultListUtil.toJSONString(rList, qps, Constants.STATUS_OK, "OK"));
 	  return mv;
   }
 
@@ -277,10 +556,14 @@ public class MetricsController extends MyPerfBaseController
 		logger.info("Receive command: "+cmd);
 		if("get".equalsIgnoreCase(cmd))
 			return getMetrics(pathParameters, req, resp);
+		else if("mget".equalsIgnoreCase(cmd))
+			return getMultiHostMetrics(pathParameters, req, resp);
+		else if("topsql".equalsIgnoreCase(cmd))
+			return getTopSql(pathParameters, req, resp);
 	}
 	
 	//if we reach here, something wrong
-	return this.respondFailure("Invalid command. Supported URL: /metrics/{enable, disable,get}/{dbgroup}/{dbhost}/{metrics_separated_by_comma}/[{start_time}]/[{end_time}]/{random_number}.html", req);	
+	return this.respondFailure("Invalid command. Supported URL: /metrics/{enable, disable,get,mget,topsql}/{dbgroup}/{dbhost}/{metrics_separated_by_comma}/[{start_time}]/[{end_time}]/{random_number}.html", req);	
   }
 
   
@@ -331,141 +614,240 @@ public class MetricsController extends MyPerfBaseController
 	return rList;
   }
 
-  private ResultList retrieveMetrics(String[] metrics, String metricgroup, String subGroup, DBInstanceInfo dbinfo, String startDate, String endDate)
+  /**
+   * Retrieve metrics of one host from a metrics table.
+   * @param metrics
+   * @param metricgroup
+   * @param subGroup
+   * @param dbinfo
+   * @param startDate
+   * @param endDate
+   * @param agg if true, use aggregation, for metrics with key column
+   * @param tier if not null, retrieve from this rollup tier
+   * @return
+   */
+  private MetricSeries retrieveMetrics(String[] metrics, String metricgroup, String subGroup, DBInstanceInfo dbinfo, String startDate, String endDate, boolean agg,
+		  MetricsRollup.Tier tier)
   {
-	  ResultList rList = null;
+	  MetricSeries series = null;
 	  try
 	  {
-      {
-    	  String tblName = subGroup;
-    	  if (tblName == null || tblName.isEmpty() || tblName.equals("_"))tblName = metricgroup;
-    	  if(metricgroup.startsWith("UDM_")) tblName = metricgroup;
-    	  else tblName = "MYSQL_" + tblName;    		
+    	  String tblName = metricsTableName(metricgroup, subGroup);
+    	  List<Metric> mtrs = this.frameworkContext.getMetricsDef().getMetrics(metricgroup, subGroup, metrics);
     	  long sqlStartTime = System.currentTimeMillis();
-    	  rList = this.frameworkContext.getMetricDb().retrieveMetrics(tblName.toUpperCase(), metrics, false,
-    		  dbinfo.getDbid(), Long.parseLong(startDate), Long.parseLong(endDate));
+    	  if(tier != null)
+    	  {
+    		  List<Integer> dbids = new ArrayList<Integer>(1);
+    		  dbids.add(dbinfo.getDbid());
+    		  series = this.frameworkContext.getMetricDb().getRollup().retrieveMetricSeries(tier, tblName, mtrs.toArray(new Metric[0]),
+    			  dbids, false, Long.parseLong(startDate), Long.parseLong(endDate));
+    		  if(series != null && series.size() > 0)
+    			  tblName = tier.tableName(tblName);
+    	  }
+    	  if(series == null || series.size() == 0)//not rolled up yet
+    		  series = this.frameworkContext.getMetricDb().retrieveMetricSeries(tblName, mtrs.toArray(new Metric[0]), agg,
+    			  dbinfo.getDbid(), Long.parseLong(startDate), Long.parseLong(endDate));
     	  logger.info("Time used to retrieve metrics from "+tblName+": "+(System.currentTimeMillis() - sqlStartTime)+"ms");
+    	  if(series == null)return null;
     	  //add back metrics definition
-    	  MetricsResultObject mrs = new  MetricsResultObject();
+    	  addMetricsDefinition(series, mtrs, metricgroup, subGroup);
+	}catch(Throwable th)//don't want to throw exception back to the user
+	{
+		logger.log(Level.WARNING, "Failed to retrieve metrics", th);
+	}
+	  
+	return series;
+  }
+
+  /**
+   * Retrieve metrics of multiple hosts from a metrics table. The first column is DBID.
+   * @param metrics
+   * @param metricgroup
+   * @param subGroup
+   * @param dbids
+   * @param startDate
+   * @param endDate
+   * @param agg if true, use aggregation
+   * @param tier if not null, retrieve from this rollup tier
+   * @return
+   */
+  private MetricSeries retrieveMetrics(String[] metrics, String metricgroup, String subGroup, List<Integer> dbids, String startDate, String endDate, boolean agg,
+		  MetricsRollup.Tier tier)
+  {
+	  MetricSeries series = null;
+	  try
+	  {
+    	  String tblName = metricsTableName(metricgroup, subGroup);
     	  List<Metric> mtrs = this.frameworkContext.getMetricsDef().getMetrics(metricgroup, subGroup, metrics);
-    	  String prefix = metricgroup+".";
-    	  if(metricgroup.startsWith("UDM_"))
-    	      prefix = "UDM." + subGroup+".";
-    	  else if (subGroup == null || subGroup.isEmpty() )
-    		  prefix += "_.";
-    	  else 
-    		  prefix += subGroup + ".";
-    	  for (Metric m: mtrs)
-    		  m.setName(prefix+m.getName());//prefix name with group/sub group name
-    	  mrs.setMetrics(mtrs);
-    	  rList.addCustomeObject(mrs);
-      }
+    	  long sqlStartTime = System.currentTimeMillis();
+    	  if(tier != null)
+    	  {
+    		  series = this.frameworkContext.getMetricDb().getRollup().retrieveMetricSeries(tier, tblName, mtrs.toArray(new Metric[0]),
+    			  dbids, true, Long.parseLong(startDate), Long.parseLong(endDate));
+    		  if(series != null && series.size() > 0)
+    			  tblName = tier.tableName(tblName);
+    	  }
+    	  if(series == null || series.size() == 0)//not rolled up yet
+    		  series = this.frameworkContext.getMetricDb().retrieveMetricSeries(tblName, mtrs.toArray(new Metric[0]), agg,
+    			  dbids, Long.parseLong(startDate), Long.parseLong(endDate));
+    	  logger.info("Time used to retrieve metrics from "+tblName+" for "+dbids.size()+" dbs: "+(System.currentTimeMillis() - sqlStartTime)+"ms");
+    	  if(series == null)return null;
+    	  //add back metrics definition
+    	  addMetricsDefinition(series, mtrs, metricgroup, subGroup);
 	}catch(Throwable th)//don't want to throw exception back to the user
 	{
 		logger.log(Level.WARNING, "Failed to retrieve metrics", th);
 	}
 	  
-	return rList;
+	return series;
   }
 
-  private ResultList retrieveGenericMetrics(String[] metrics, MetricsGroup mg, DBInstanceInfo dbinfo, String startDate, String endDate)
+  /**
+   * Metrics table of a group or sub group
+   * @param metricgroup
+   * @param subGroup
+   * @return
+   */
+  private static String metricsTableName(String metricgroup, String subGroup)
   {
-	  ResultList rList = null;
+	  String tblName = subGroup;
+	  if (tblName == null || tblName.isEmpty() || tblName.equals("_"))tblName = metricgroup;
+	  if(metricgroup.startsWith("UDM_")) tblName = metricgroup;
+	  else tblName = "MYSQL_" + tblName;
+	  return tblName.toUpperCase();
+  }
+
+  /**
+   * Use a rollup tier for long time range, if all requested metrics tables are rolled up
+   * @param metricsByGroup
+   * @param dateRange
+   * @return null to use the metrics tables
+   */
+  private MetricsRollup.Tier chooseRollupTier(Map<String, HashMap<String, ArrayList<String>>> metricsByGroup, String[] dateRange)
+  {
+	  try
+	  {
+		  List<String> tables = new ArrayList<String>();
+		  for(Map.Entry<String, HashMap<String, ArrayList<String>>> e: metricsByGroup.entrySet())
+			  for(String subGrpName: e.getValue().keySet())
+				  tables.add(metricsTableName(e.getKey(), subGrpName));
+		  MetricsRollup.Tier tier = this.frameworkContext.getMetricDb().getRollup().chooseTier(tables,
+				  Long.parseLong(dateRange[0]), Long.parseLong(dateRange[1]));
+		  if(tier != null)
+			  logger.info("Use rollup tier " + tier.getName() + " for " + tables + " with time range (" + dateRange[0] + ", " + dateRange[1] + ")");
+		  return tier;
+	  }catch(Throwable th)
+	  {
+		  logger.log(Level.WARNING, "Failed to choose rollup tier", th);
+	  }
+	  return null;
+  }
+
+  /**
+   * Attach metrics definition to the result, with the names prefixed with group/sub group name
+   * @param series
+   * @param mtrs
+   * @param metricgroup
+   * @param subGroup
+   */
+  private void addMetricsDefinition(MetricSeries series, List<Metric> mtrs, String metricgroup, String subGroup)
+  {
+	  MetricsResultObject mrs = new  MetricsResultObject();
+	  String prefix = metricgroup+".";
+	  if(metricgroup.startsWith("UDM_"))
+		  prefix = "UDM." + subGroup+".";
+	  else if (subGroup == null || subGroup.isEmpty() )
+		  prefix += "_.";
+	  else 
+		  prefix += subGroup + ".";
+	  for (Metric m: mtrs)
+		  m.setName(prefix+m.getName());//prefix name with group/sub group name
+	  mrs.setMetrics(mtrs);
+	  series.addCustomObject(mrs);
+  }
+
+  private MetricSeries retrieveGenericMetrics(String[] metrics, MetricsGroup mg, List<Integer> dbids, String startDate, String endDate)
+  {
+	  MetricSeries series = null;
 	  for(String mname: metrics)
 	  {
 		  try
 		  {
 			  String metricFullName = mg.getMetricFullName(mname);
 			  if(metricFullName == null)continue;
-			  ResultList tmpList = this.frameworkContext.getMetricDb().retrieveUDMMetrics(metricFullName,  
-					  dbinfo.getDbid(), Long.parseLong(startDate), Long.parseLong(endDate));
-			  if(tmpList == null )continue;
-			  Metric m = mg.getMetricByName(mname).copy();
-			  m.setName(metricFullName);
-			  List<Metric> mtrs = new java.util.ArrayList<Metric>(1);
-			  mtrs.add(m);
-			  MetricsResultObject mrs = new  MetricsResultObject();
-			  mrs.setMetrics(mtrs);
-			  tmpList.addCustomeObject(mrs);
-			  if(rList==null)
-				  rList = tmpList;
-			  else rList = this.mergeResultList(rList, tmpList);
+			  MetricSeries tmpSeries = this.frameworkContext.getMetricDb().retrieveUDMMetricSeries(metricFullName,  
+					  dbids, Long.parseLong(startDate), Long.parseLong(endDate));
+			  series = mergeGenericMetric(series, tmpSeries, mg, mname, metricFullName);
 		  }catch(Exception ex)
 		  {
 			  
 		  }
 	  }
-	return rList;
+	return series;
   }
 
-  private ResultList mergeResultList(ResultList rList1, ResultList rList2)
+  private MetricSeries retrieveGenericMetrics(String[] metrics, MetricsGroup mg, DBInstanceInfo dbinfo, String startDate, String endDate)
   {
-	  
-	  ResultList rList = new ResultList();
-	  ColumnDescriptor desc = new ColumnDescriptor();
-	  int idx = 0;
-	  for(ColumnInfo c: rList1.getColumnDescriptor().getColumns())
-	  {
-		  desc.addColumn(c.getName(), c.isNumberType(), idx++);
-	  }
-
-	  for(ColumnInfo c: rList2.getColumnDescriptor().getColumns())
-	  {
-		  if(!"TS".equalsIgnoreCase(c.getName()) && !"SNAP_ID".equalsIgnoreCase(c.getName()))
- 		    desc.addColumn(c.getName(), c.isNumberType(), idx++);
-	  }
-	  rList.setColumnDescriptor(desc);
-	  
-	  //we have use the same timestamp and data are sorted, ignore if we have any missing data in one list
-	  int idx1 = 0;
-	  int idx2 = 0;
-	  int n1 = rList1.getRows().size();
-	  int n2 = rList2.getRows().size();
-	  while(idx1<n1 && idx2<n2)
+	  MetricSeries series = null;
+	  for(String mname: metrics)
 	  {
-		  ResultRow row1 = rList1.getRows().get(idx1);
-		  ResultRow row2 = rList2.getRows().get(idx2);
-		  if(row1.getColumns().get(0).equals(row2.getColumns().get(0)))//same timestamp, accept it
+		  try
 		  {
-			  ResultRow row = new ResultRow();
-			  row.setColumnDescriptor(desc);
-			  for(int i=0;i<row1.getColumns().size();i++)
-				  row.addColumn(row1.getColumns().get(i));
-			  for(int i=2;i<row2.getColumns().size();i++)//skip TS and SNAP_ID
-				  row.addColumn(row2.getColumns().get(i));
-			  rList.addRow(row);
-			  idx1++;
-			  idx2++;
-		  }else if(Long.parseLong(row1.getColumns().get(0)) < Long.parseLong(row2.getColumns().get(0)))
-			  idx1++;//advance the first rList
-		  else idx2++;//advance the second rList
+			  String metricFullName = mg.getMetricFullName(mname);
+			  if(metricFullName == null)continue;
+			  MetricSeries tmpSeries = this.frameworkContext.getMetricDb().retrieveUDMMetricSeries(metricFullName,  
+					  dbinfo.getDbid(), Long.parseLong(startDate), Long.parseLong(endDate));
+			  series = mergeGenericMetric(series, tmpSeries, mg, mname, metricFullName);
+		  }catch(Exception ex)
+		  {
+			  
+		  }
 	  }
+	return series;
+  }
+
+  private MetricSeries mergeGenericMetric(MetricSeries series, MetricSeries tmpSeries, MetricsGroup mg, String mname, String metricFullName)
+  {
+	  if(tmpSeries == null )return series;
+	  Metric m = mg.getMetricByName(mname).copy();
+	  m.setName(metricFullName);
+	  List<Metric> mtrs = new java.util.ArrayList<Metric>(1);
+	  mtrs.add(m);
 	  MetricsResultObject mrs = new  MetricsResultObject();
-	  if(rList1.getCustomObjects()!=null)
-	  for(CustomResultObject obj: rList1.getCustomObjects().values())
-	  {
-		if(obj instanceof MetricsResultObject)
-		{
-			MetricsResultObject mco = MetricsResultObject.class.cast(obj);
-			for(Metric m: mco.getMetrics())
-			{
-				mrs.addMetric(m);
-			}
-		}
-	  }
-	  if(rList2.getCustomObjects()!=null)
-	  for(CustomResultObject obj: rList2.getCustomObjects().values())
+	  mrs.setMetrics(mtrs);
+	  tmpSeries.addCustomObject(mrs);
+	  if(series==null)
+		  return tmpSeries;
+	  return this.mergeMetricSeries(series, tmpSeries);
+  }
+
+  /**
+   * Merge two results with the same sorting, by snap_id, or by dbid and snap_id for multiple hosts.
+   * Snapshots missing in either one are dropped.
+   * @param series1
+   * @param series2
+   * @return
+   */
+  private MetricSeries mergeMetricSeries(MetricSeries series1, MetricSeries series2)
+  {
+	  MetricSeries series = MetricSeries.merge(series1, series2);
+	  MetricsResultObject mrs = new  MetricsResultObject();
+	  addMetrics(mrs, series1.getCustomObjects());
+	  addMetrics(mrs, series2.getCustomObjects());
+	  series.addCustomObject(mrs);
+	  return series;
+  }
+
+  private void addMetrics(MetricsResultObject mrs, Map<String, CustomResultObject> customObjects)
+  {
+	  if(customObjects == null)return;
+	  for(CustomResultObject obj: customObjects.values())
 	  {
 		if(obj instanceof MetricsResultObject)
 		{
-			MetricsResultObject mco = MetricsResultObject.class.cast(obj);
-			for(Metric m: mco.getMetrics())
-			{
+			for(Metric m: MetricsResultObject.class.cast(obj).getMetrics())
 				mrs.addMetric(m);
-			}
 		}
 	  }
-	  rList.addCustomeObject(mrs);
-	  return rList;
-  } 
+  }
 }
\ No newline at end of file
@@ -155,9 +155,9 @@ public class QueryController extends MyPerfBaseController
 
 	mv = new ModelAndView(this.jsonView);	
 	if(listMap!=null)
-		mv.addObject("json_result", ResultListUtil.toMultiListJSONStringUpper(listMap, qps, status, message));
+		mv.addObject("json_result", ResultListUtil.toMultiListJSONResult(listMap, qps, status, message, true));
 	else	
-		mv.addObject("json_result", ResultListUtil.toJSONString(filterResultList(rList, req), qps, status, message));
+		mv.addObject("json_result", ResultListUtil.toJSONResult(filterResultList(rList, req), qps, status, message));
 	return mv;
   }
 
@@ -33,6 +33,8 @@ public class StatusController extends MyPerfBaseController
 	  protected ModelAndView handleRequestImpl(HttpServletRequest req,
 					HttpServletResponse resp) throws Exception 
 	  {
+		if("stats".equalsIgnoreCase(req.getParameter("task")))
+			return this.handleStats(req, resp);
 				
 	    String dbgroup = req.getParameter("group");
 		if(dbgroup==null||dbgroup.trim().length()==0)dbgroup = "all";
@@ -309,6 +311,58 @@ public class StatusController extends MyPerfBaseController
 		return mv;
 	  }
 	  
+	  /**
+	   * Internal statistics of the scanner and metrics store, as NAME/VALUE pairs
+	   * @param req
+	   * @param resp
+	   * @return
+	   */
+	  private ModelAndView handleStats(HttpServletRequest req,
+				HttpServletResponse resp)
+	  {
+		  Map<String, String> stats = new java.util.LinkedHashMap<String, String>();
+		  if(this.frameworkContext.getMetricDb() != null)
+		  {
+			  stats.putAll(this.frameworkContext.getMetricDb().getWriterStats());
+			  stats.putAll(this.frameworkContext.getMetricDb().getSnapshotIndex().getStats());
+			  stats.putAll(this.frameworkContext.getMetricDb().getConnectionPool().getStats());
+			  stats.putAll(this.frameworkContext.getMetricDb().getRollup().getStats());
+			  stats.putAll(this.frameworkContext.getMetricDb().getHotWindow().getStats());
+		  }
+		  if(this.frameworkContext.getAutoScanner() != null && this.frameworkContext.getAutoScanner().getConnectionPool() != null)
+			  stats.putAll(this.frameworkContext.getAutoScanner().getConnectionPool().getStats());
+		  if(this.frameworkContext.getAutoScanner() != null && this.frameworkContext.getAutoScanner().getMetricsScanExecutor() != null)
+			  stats.putAll(this.frameworkContext.getAutoScanner().getMetricsScanExecutor().getStats());
+		  if(this.frameworkContext.getAutoScanner() != null && this.frameworkContext.getAutoScanner().getAlertScanExecutor() != null)
+			  stats.putAll(this.frameworkContext.getAutoScanner().getAlertScanExecutor().getStats());
+		  if(this.frameworkContext.getAutoScanner() != null && this.frameworkContext.getAutoScanner().getAlertReportExecutor() != null)
+			  stats.putAll(this.frameworkContext.getAutoScanner().getAlertReportExecutor().getStats());
+		  if(this.frameworkContext.getAutoScanner() != null && this.frameworkContext.getAutoScanner().getProcessListSampler() != null)
+			  stats.putAll(this.frameworkContext.getAutoScanner().getProcessListSampler().getStats());
+		  if(this.frameworkContext.getAutoScanner() != null && this.frameworkContext.getAutoScanner().getStatementDigestCollector() != null)
+			  stats.putAll(this.frameworkContext.getAutoScanner().getStatementDigestCollector().getStats());
+		  stats.putAll(this.frameworkContext.getInstanceStatesManager().getStats());
+		  stats.putAll(this.frameworkContext.getSnmpEngine().getStats());
+		  stats.putAll(this.frameworkContext.getNotificationDispatcher().getStats());
+		  
+		  ResultList rList = new ResultList();
+		  ColumnDescriptor desc = new ColumnDescriptor();
+		  desc.addColumn("NAME", false, 1);
+		  desc.addColumn("VALUE", false, 2);
+		  rList.setColumnDescriptor(desc);
+		  for(Map.Entry<String, String> e: stats.entrySet())
+		  {
+			  ResultRow row = new ResultRow();
+			  row.setColumnDescriptor(desc);
+			  row.addColumn(e.getKey());
+			  row.addColumn(e.getValue());
+			  rList.addRow(row);
+		  }
+		  ModelAndView mv = new ModelAndView(jsonView);
+		  mv.addObject("json_result", ResultListUtil.toJSONString(rList, null, 0, "OK"));
+		  return mv;
+	  }
+	  
 	  /**
 	   * diff between v1 and v2. If diff is negative and uptime is positive, use v1. Otherwise 0.
 	   * If avg is set, divide by (t1 - t2), or uptime*1000 for case v1<v2 , then multiply by adjustment. 
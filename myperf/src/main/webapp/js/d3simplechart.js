@@ -35,6 +35,7 @@ function percental(data, p)
    dbHost:
    start_datetime:
    end_datetime:
+   maxPoints: optional, maximum number of points per line, default to the widest chart width. 0 to retrieve all.
    messageCB: a function to handle message callback
    				input: messageStr, isError
    statusCB: a function to notify the chart status, take input (chart.domid, status)
@@ -81,6 +82,16 @@ function simpleCharts(chartInfo)
    url += "/" + escape(chartInfo.start_datetime)
               + "/" + escape(chartInfo.end_datetime)
               +"/"+Math.round(Math.random()*100000000)+".html";
+   //no need for more points than pixels
+   var maxPoints = chartInfo.maxPoints;
+   if(maxPoints == null)
+   {
+     maxPoints = 0;
+     for(var i = 0; i < chartInfo.charts.length; i++)
+       if(chartInfo.charts[i].width > maxPoints)maxPoints = chartInfo.charts[i].width;
+   }
+   if(maxPoints > 0)
+     url += "?maxPoints=" + Math.round(maxPoints);
    
    //retrieve data           
    d3.json(url,
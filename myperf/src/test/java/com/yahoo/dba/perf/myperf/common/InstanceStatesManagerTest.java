@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2015, Yahoo Inc.
+ *  Copyrights licensed under the Apache License.
+ *  See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the state log of InstanceStatesManager: states written by appends and compactions
+ * read back the same, and a tail torn by a crash is ignored and rewritten by the next write.
+ */
+public class InstanceStatesManagerTest
+	extends TestCase
+{
+	private File root;
+
+	public InstanceStatesManagerTest(String testName)
+	{
+		super(testName);
+	}
+
+	public static Test suite()
+	{
+		return new TestSuite(InstanceStatesManagerTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		root = Files.createTempDirectory("instance_states").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		delete(root);
+	}
+
+	public void testRoundTrip()
+	{
+		InstanceStatesManager m = newManager();
+		setAlert(m, 1, "CPU");
+		setAlert(m, 2, "LOADAVG");
+		m.stop();//first write compacts
+		setAlert(m, 1, "THREAD");
+		m.removeInstanceStates(2);
+		setAlert(m, 3, "SLAVE_LAG");
+		m.stop();//appended
+
+		Map<Integer, InstanceStates> res = newManager().readLog(getLogFile());
+		assertNotNull(res);
+		assertEquals(2, res.size());
+		assertEquals("THREAD", res.get(1).getLastAlertType());
+		assertNull(res.get(2));
+		assertEquals("SLAVE_LAG", res.get(3).getLastAlertType());
+	}
+
+	public void testTornLength() throws IOException
+	{
+		for(int n = 1; n < 4; n++)
+		{
+			writeLog();
+			FileOutputStream fos = new FileOutputStream(getLogFile(), true);
+			fos.write(new byte[n]);
+			fos.close();
+			checkTornTail();
+		}
+	}
+
+	public void testTornRecord() throws IOException
+	{
+		writeLog();
+		RandomAccessFile f = new RandomAccessFile(getLogFile(), "rw");
+		f.setLength(f.length() - 3);
+		f.close();
+		Map<Integer, InstanceStates> res = newManager().readLog(getLogFile());
+		assertNotNull(res);
+		assertEquals("CPU", res.get(1).getLastAlertType());
+		assertNull(res.get(2));//the torn record
+	}
+
+	/**
+	 * Load a log with torn tail, change a host and write, the change must survive the next load
+	 */
+	private void checkTornTail()
+	{
+		InstanceStatesManager m = newManager();
+		Map<Integer, InstanceStates> res = m.readLog(getLogFile());
+		assertNotNull(res);
+		assertEquals(2, res.size());
+		for(Map.Entry<Integer, InstanceStates> e: res.entrySet())
+			setAlert(m, e.getKey(), e.getValue().getLastAlertType());
+		setAlert(m, 1, "THREAD");
+		m.stop();
+
+		res = newManager().readLog(getLogFile());
+		assertNotNull(res);
+		assertEquals(2, res.size());
+		assertEquals("THREAD", res.get(1).getLastAlertType());
+		assertEquals("LOADAVG", res.get(2).getLastAlertType());
+	}
+
+	private void writeLog()
+	{
+		getLogFile().delete();
+		InstanceStatesManager m = newManager();
+		setAlert(m, 1, "CPU");
+		m.stop();
+		setAlert(m, 2, "LOADAVG");
+		m.stop();
+	}
+
+	private InstanceStatesManager newManager()
+	{
+		InstanceStatesManager m = new InstanceStatesManager();
+		m.setRootPath(root.getPath());
+		return m;
+	}
+
+	private static void setAlert(InstanceStatesManager m, int dbid, String alertType)
+	{
+		m.addInstanceStates(dbid);
+		m.getStates(dbid).setLastAlertType(alertType);
+	}
+
+	private File getLogFile()
+	{
+		return new File(new File(root, InstanceStatesManager.STORAGE_DIR), InstanceStatesManager.LOG_FILE_NAME);
+	}
+
+	private static void delete(File f)
+	{
+		File[] files = f.listFiles();
+		if(files != null)
+		{
+			for(File c: files)
+				delete(c);
+		}
+		f.delete();
+	}
+}
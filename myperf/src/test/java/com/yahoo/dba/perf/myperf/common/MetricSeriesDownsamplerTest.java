@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2015, Yahoo Inc.
+ *  Copyrights licensed under the Apache License.
+ *  See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for MetricSeriesDownsampler: a long series is reduced to maxPoints rows per host,
+ * and a spike of a counter or a gauge at a single snapshot is still on the chart.
+ */
+public class MetricSeriesDownsamplerTest
+	extends TestCase
+{
+	private static final int ROWS = 20000;
+	private static final int MAX_POINTS = 1000;
+	private static final int INTERVAL = 60;//seconds between snapshots
+	private static final long COUNTER_STEP = 100;
+	private static final long COUNTER_SPIKE = 1000000;
+	private static final double GAUGE_SPIKE = 10000;
+	private static final boolean[] INCREMENTAL = new boolean[]{true, false};
+
+	public MetricSeriesDownsamplerTest(String testName)
+	{
+		super(testName);
+	}
+
+	public static Test suite()
+	{
+		return new TestSuite(MetricSeriesDownsamplerTest.class);
+	}
+
+	public void testSpikesKept()
+	{
+		int[] counterSpike = new int[]{12345, 501};
+		int[] gaugeSpike = new int[]{7777, 19998};
+		MetricSeries series = newSeries(new int[]{1, 2}, counterSpike, gaugeSpike);
+		MetricSeries res = MetricSeriesDownsampler.downsample(series, MAX_POINTS, INCREMENTAL);
+		assertNotSame(series, res);
+
+		int start = 0;
+		for(int h = 0; h < 2; h++)
+		{
+			int end = start;
+			while(end < res.size() && res.getDbid(end) == h + 1)end++;
+			int n = end - start;
+			assertTrue("rows of host " + (h + 1) + ": " + n, n >= MAX_POINTS / 2 && n <= MAX_POINTS);
+			assertEquals(1, res.getSnapId(start));
+			assertEquals(ROWS, res.getSnapId(end - 1));
+
+			//the rate the chart computes from the kept rows
+			double maxRate = 0;
+			double maxGauge = 0;
+			int maxRateSnap = -1;
+			for(int r = start; r < end; r++)
+			{
+				maxGauge = Math.max(maxGauge, res.getDouble(1, r));
+				if(r == start)continue;
+				double secs = (MetricSeries.toMillis(res.getTimestamp(r)) - MetricSeries.toMillis(res.getTimestamp(r - 1))) / 1000.0;
+				double rate = (res.getLong(0, r) - res.getLong(0, r - 1)) / secs;
+				if(rate > maxRate)
+				{
+					maxRate = rate;
+					maxRateSnap = res.getSnapId(r);
+				}
+			}
+			assertEquals(counterSpike[h] + 1, maxRateSnap);
+			assertEquals((double)(COUNTER_STEP + COUNTER_SPIKE) / INTERVAL, maxRate, 1e-9);
+			assertEquals(GAUGE_SPIKE, maxGauge, 0);
+			start = end;
+		}
+		assertEquals(res.size(), start);
+	}
+
+	public void testShortSeriesUnchanged()
+	{
+		MetricSeries series = newSeries(new int[]{1}, new int[]{10}, new int[]{20}, 500);
+		assertSame(series, MetricSeriesDownsampler.downsample(series, MAX_POINTS, INCREMENTAL));
+	}
+
+	public void testOnlyLongHostReduced()
+	{
+		MetricSeries shortSeries = newSeries(new int[]{1}, new int[]{10}, new int[]{20}, 500);
+		MetricSeries longSeries = newSeries(new int[]{2}, new int[]{100}, new int[]{200}, ROWS);
+		shortSeries.append(longSeries);
+		MetricSeries res = MetricSeriesDownsampler.downsample(shortSeries, MAX_POINTS, INCREMENTAL);
+		int n = 0;
+		for(int r = 0; r < res.size(); r++)
+		{
+			if(res.getDbid(r) != 1)break;
+			assertEquals(r + 1, res.getSnapId(r));
+			n++;
+		}
+		assertEquals(500, n);
+		assertTrue(res.size() - n <= MAX_POINTS);
+	}
+
+	private static MetricSeries newSeries(int[] dbids, int[] counterSpike, int[] gaugeSpike)
+	{
+		return newSeries(dbids, counterSpike, gaugeSpike, ROWS);
+	}
+
+	/**
+	 * A counter growing by about COUNTER_STEP a snapshot and a gauge around 50, with one spike each per host
+	 */
+	private static MetricSeries newSeries(int[] dbids, int[] counterSpike, int[] gaugeSpike, int rows)
+	{
+		MetricSeries series = new MetricSeries(new String[]{"COM_SELECT", "THREADS_RUNNING"},
+				new boolean[]{true, false}, true, rows * dbids.length);
+		Random rnd = new Random(dbids[0]);
+		Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		for(int h = 0; h < dbids.length; h++)
+		{
+			c.clear();
+			c.set(2015, Calendar.JANUARY, 1, 0, 0, 0);
+			long counter = 0;
+			for(int i = 0; i < rows; i++)
+			{
+				long ts = c.get(Calendar.YEAR) * 10000000000L + (c.get(Calendar.MONTH) + 1) * 100000000L
+						+ c.get(Calendar.DAY_OF_MONTH) * 1000000L + c.get(Calendar.HOUR_OF_DAY) * 10000L
+						+ c.get(Calendar.MINUTE) * 100L + c.get(Calendar.SECOND);
+				int row = series.addRow(dbids[h], i + 1, ts);
+				if(i > 0)counter += i == counterSpike[h]? COUNTER_STEP + COUNTER_SPIKE : COUNTER_STEP - rnd.nextInt(20);
+				series.setLong(0, row, counter);
+				series.setDouble(1, row, i == gaugeSpike[h]? GAUGE_SPIKE : 40 + rnd.nextInt(20));
+				c.add(Calendar.SECOND, INTERVAL);
+			}
+		}
+		return series;
+	}
+}
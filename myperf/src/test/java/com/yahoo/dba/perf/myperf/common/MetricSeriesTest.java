@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2015, Yahoo Inc.
+ *  Copyrights licensed under the Apache License.
+ *  See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for MetricSeries: TS in yyyyMMddHHmmss to epoch milliseconds.
+ */
+public class MetricSeriesTest
+	extends TestCase
+{
+	public MetricSeriesTest(String testName)
+	{
+		super(testName);
+	}
+
+	public static Test suite()
+	{
+		return new TestSuite(MetricSeriesTest.class);
+	}
+
+	public void testToMillis()
+	{
+		Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		Random rnd = new Random(1);
+		for(int i = 0; i < 1000; i++)
+		{
+			long millis = (long)(rnd.nextDouble() * 4102444800L) * 1000L;//1970 to 2100
+			c.setTimeInMillis(millis);
+			long ts = c.get(Calendar.YEAR) * 10000000000L + (c.get(Calendar.MONTH) + 1) * 100000000L
+					+ c.get(Calendar.DAY_OF_MONTH) * 1000000L + c.get(Calendar.HOUR_OF_DAY) * 10000L
+					+ c.get(Calendar.MINUTE) * 100L + c.get(Calendar.SECOND);
+			assertEquals(String.valueOf(ts), millis, MetricSeries.toMillis(ts));
+		}
+		assertEquals(951782400000L, MetricSeries.toMillis(20000229000000L));//leap day
+	}
+}
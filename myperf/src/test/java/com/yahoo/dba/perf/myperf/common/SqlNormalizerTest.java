@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2015, Yahoo Inc.
+ *  Copyrights licensed under the Apache License.
+ *  See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for SqlNormalizer. The queries in EQUIVALENT must produce the same text as
+ * the regular expression based normalizer it replaced (legacyNormalize below).
+ */
+public class SqlNormalizerTest
+	extends TestCase
+{
+	private static final String[] EQUIVALENT = {
+		"SELECT * FROM products WHERE category_id = 104 AND price BETWEEN 41 AND 75 LIMIT 1515, 20",
+		"SELECT o.order_id, o.total FROM orders o WHERE o.customer_id = 3448813 ORDER BY o.created_at DESC LIMIT 50",
+		"SELECT session_data FROM sessions WHERE session_key = '49fe85b0834c687a3acb6266c20ba2c2'",
+		"UPDATE inventory SET qty = qty - 1 WHERE sku = 'SKU-79593' AND qty >= 1",
+		"UPDATE inventory SET qty = qty + 5, updated_at = NOW() WHERE product_id = 6185344",
+		"SELECT p.product_id, p.name, p.price FROM products p WHERE p.product_id IN (9776668,4077081,260200,6185344)",
+		"select id from users where id in ( 1, 2, 3 ) and status <> 0",
+		"SELECT * FROM orders WHERE total > 100 AND total <= 500 AND status BETWEEN 'A' AND 'C'",
+		"SELECT * FROM orders WHERE total>100 AND total<=500 AND total<1000 AND total>=5",
+		"SELECT COUNT(*) FROM events WHERE ts BETWEEN 1391040000 AND 1391126400",
+		"INSERT INTO t (a, b) VALUES (1, 'x')",
+		"insert into t values(1,2,3)",
+		"SELECT * FROM t WHERE a = 1 LIMIT 10   ",
+		"SELECT * FROM t WHERE a = 1 limit 10,20",
+		"SELECT * FROM t WHERE id IN (1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22",
+		"SELECT * FROM t WHERE id IN ('1','2','3",
+		"SHOW FULL PROCESSLIST",
+		"SELECT a.* FROM a JOIN b ON a.id = b.a_id WHERE b.x = 'y' AND a.limit_value = 3",
+		"SELECT 1",
+		"",
+	};
+
+	public SqlNormalizerTest(String testName)
+	{
+		super(testName);
+	}
+
+	public static Test suite()
+	{
+		return new TestSuite(SqlNormalizerTest.class);
+	}
+
+	public void testSameAsRegularExpression()
+	{
+		for(String sql: EQUIVALENT)
+			assertEquals(sql, legacyNormalize(sql), SqlNormalizer.normalize(sql));
+	}
+
+	public void testLiterals()
+	{
+		assertEquals("SELECT * FROM t WHERE a =? AND b =? AND c =? AND d =?",
+			SqlNormalizer.normalize("SELECT * FROM t WHERE a = 1.5 AND b = 1e-3 AND c = 0x1F AND d = .5"));
+		assertEquals("SELECT * FROM t WHERE a =? AND b =?",
+			SqlNormalizer.normalize("SELECT * FROM t WHERE a = 'it''s' AND b = \"say \\\"hi\\\"\""));
+		assertEquals("SELECT * FROM t WHERE a =? AND b <>?", SqlNormalizer.normalize("SELECT * FROM t WHERE a = '' AND b <> ''"));
+	}
+
+	public void testDate()
+	{
+		//the regular expression version turned it into < '2015-?-?
+		assertEquals("SELECT * FROM t WHERE ts <? GROUP BY d",
+			SqlNormalizer.normalize("SELECT * FROM t WHERE ts < '2015-03-01' GROUP BY d"));
+		assertEquals("SELECT * FROM t WHERE ts BETWEEN ? and ?",
+			SqlNormalizer.normalize("SELECT * FROM t WHERE ts BETWEEN '2015-01-01' AND '2015-02-01'"));
+	}
+
+	public void testQuotedTextAndComments()
+	{
+		assertEquals("SELECT * FROM t WHERE a =? AND `x-1` =?",
+			SqlNormalizer.normalize("SELECT * FROM t WHERE a = 'b = 1 IN (2)' AND `x-1` = 2"));
+		assertEquals("/* id = 5 */ SELECT * FROM t WHERE a =?",
+			SqlNormalizer.normalize("/* id = 5 */ SELECT * FROM t WHERE a = 5"));
+		assertEquals("SELECT * FROM t -- a = 1\nWHERE a =?",
+			SqlNormalizer.normalize("SELECT * FROM t -- a = 1\nWHERE a = 1"));
+	}
+
+	public void testWholeWords()
+	{
+		//the regular expression version matched IN inside min(, join ( and login(
+		assertEquals("SELECT min(x), login(y) FROM a join (select 1) b",
+			SqlNormalizer.normalize("SELECT min(x), login(y) FROM a join (select 1) b"));
+		assertEquals("SELECT * FROM t WHERE a IN (?) AND b NOT IN (?)",
+			SqlNormalizer.normalize("SELECT * FROM t WHERE a IN ('x)', 'y') AND b NOT IN (3)"));
+		assertEquals("SELECT * FROM t WHERE a IN (SELECT b FROM c WHERE d IN (?))",
+			SqlNormalizer.normalize("SELECT * FROM t WHERE a IN (SELECT b FROM c WHERE d IN (1, 2))"));
+	}
+
+	public void testValues()
+	{
+		assertEquals("INSERT INTO t (a, b, c) VALUES (?)",
+			SqlNormalizer.normalize("INSERT INTO t (a, b, c) VALUES (1, 'x)', NOW())"));
+		assertEquals("INSERT INTO t (a, b) VALUES (?) ON DUPLICATE KEY UPDATE b =?",
+			SqlNormalizer.normalize("INSERT INTO t (a, b) VALUES (1, 2), (3, 4),(5,6) ON DUPLICATE KEY UPDATE b = 7"));
+		assertEquals("INSERT INTO t (a, b) VALUES (?)",
+			SqlNormalizer.normalize("INSERT INTO t (a, b) VALUES (1, 2), (3, 4), (5,"));
+	}
+
+	public void testLimit()
+	{
+		assertEquals("SELECT * FROM t LIMIT 10 FOR UPDATE", SqlNormalizer.normalize("SELECT * FROM t LIMIT 10 FOR UPDATE"));
+		assertEquals("SELECT * FROM t LIMIT ?, ?", SqlNormalizer.normalize("SELECT * FROM t LIMIT 10 , 20\n"));
+	}
+
+	public void testCache()
+	{
+		String sql = "SELECT * FROM cache_test WHERE id = 12345";
+		SqlNormalizer.NormalizedSql ns = SqlNormalizer.normalizeCached(sql);
+		assertEquals("SELECT * FROM cache_test WHERE id =?", ns.text);
+		assertSame(ns, SqlNormalizer.normalizeCached(new String(sql)));
+		//same normalized text shares the digest
+		assertSame(ns, SqlNormalizer.normalizeCached("SELECT * FROM cache_test WHERE id = 678"));
+		assertEquals(ProcessListEntryAggregate.generateDigest(ns.text), ns.getDigest());
+		assertNull(SqlNormalizer.normalizeCached(null));
+	}
+
+	public void testLongStatementNotCached()
+	{
+		//a bulk insert is not kept by its raw text, but shares its short normalized form
+		SqlNormalizer.NormalizedSql ns = SqlNormalizer.normalizeCached(bulkInsert(1));
+		assertEquals("INSERT INTO bulk_test (a, b) VALUES (?)", ns.text);
+		assertSame(ns, SqlNormalizer.normalizeCached(bulkInsert(2)));
+
+		//long normalized text is not kept at all
+		StringBuilder sb = new StringBuilder("SELECT c0");
+		for(int i = 1; i < 1000; i++)sb.append(", c").append(i);
+		String sql = sb.append(" FROM wide_test").toString();
+		SqlNormalizer.NormalizedSql wide = SqlNormalizer.normalizeCached(sql);
+		assertEquals(sql, wide.text);
+		assertNotSame(wide, SqlNormalizer.normalizeCached(sql));
+	}
+
+	private static String bulkInsert(int seed)
+	{
+		StringBuilder sb = new StringBuilder("INSERT INTO bulk_test (a, b) VALUES (0, 'x')");
+		for(int i = 1; i < 10000; i++)sb.append(", (").append(i * seed).append(", 'x')");
+		return sb.toString();
+	}
+
+	public void testSummaryDigest()
+	{
+		Map<String, ProcessListEntryAggregate> m = new HashMap<String, ProcessListEntryAggregate>();
+		SqlNormalizer.NormalizedSql ns = SqlNormalizer.normalizeCached("SELECT * FROM digest_test WHERE id = 1");
+		ProcessListEntryAggregate.updateDataMap(m, ns.text, 3, ns);
+		ProcessListEntryAggregate.updateDataMap(m, ns.text, 4);
+		assertEquals(1, m.size());
+		ProcessListEntryAggregate e = m.get(ns.text);
+		assertEquals(7, e.getTotal_time_sec());
+		assertEquals(ProcessListEntryAggregate.generateDigest(ns.text), e.getChecksum());
+	}
+
+	/**
+	 * The regular expression based ProcessListSummary.normalize
+	 */
+	private static String legacyNormalize(String str)
+	{
+		str = str.replaceAll("=\\s*\\d+", "=?");
+		str = str.replaceAll("=\\s*'[^']+'", "=?");
+		str = str.replaceAll("\\+\\s*'?\\d+'?", "+?");
+		str = str.replaceAll("\\-\\s*'?\\d+'?", "-?");
+		str = str.replaceAll(">\\s*\\d+", ">?");
+		str = str.replaceAll(">\\s*'[^']+'", ">?");
+		str = str.replaceAll(">=\\s*\\d+", ">=?");
+		str = str.replaceAll(">=\\s*'[^']+'", ">=?");
+		str = str.replaceAll("<\\s*\\d+", "<?");
+		str = str.replaceAll("<\\s*'[^']+'", "<?");
+		str = str.replaceAll("<=\\s*'?\\d+'?", "<=?");
+		str = str.replaceAll("<=\\s*'[^']+'", "<=?");
+		str = str.replaceAll("(?i)BETWEEN\\s+\\d+\\s+AND\\s+\\d+", "BETWEEN ? and ?");
+		str = str.replaceAll("(?i)BETWEEN\\s+'[^']+'\\s+AND\\s+'[^']+'", "BETWEEN ? and ?");
+		str = str.replaceAll("(?i)in\\s*\\([^\\(^\\)]+\\)", "IN (?)");
+		str = str.replaceAll("(?i)VALUES\\s*\\((.*?)\\)", "VALUES (?)");
+		str = str.replaceAll("(?i)limit\\s+\\d+\\s*$", "LIMIT ?");
+		str = str.replaceAll("(?i)limit\\s+\\d+\\s*,\\s*\\d+\\s*$", "LIMIT ?, ?");
+		Matcher m = Pattern.compile("(?i)\\s*IN\\s*\\('?\\d+'?,").matcher(str);
+		if(m.find())
+		{
+			int start = m.start();
+			int idx = str.indexOf(')', start);
+			if(idx<0 || idx==str.length()-1)
+				return str.substring(0, start)+" IN (......)";
+			else
+				return str.substring(0, start)+" IN (...) "+str.substring(idx+1);
+		}
+		return str;
+	}
+}
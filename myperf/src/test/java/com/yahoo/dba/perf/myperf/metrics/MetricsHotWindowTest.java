@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2015, Yahoo Inc.
+ *  Copyrights licensed under the Apache License.
+ *  See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.yahoo.dba.perf.myperf.common.Metric;
+import com.yahoo.dba.perf.myperf.common.MetricDataType;
+import com.yahoo.dba.perf.myperf.common.MetricSeries;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+import com.yahoo.dba.perf.myperf.common.MetricsRecordEncoder;
+import com.yahoo.dba.perf.myperf.common.UserDefinedMetrics;
+
+/**
+ * Unit test for MetricsHotWindow: records passed to metrics db are retrieved from memory the same as
+ * from the metrics table, only for snapshots the rings still cover.
+ */
+public class MetricsHotWindowTest
+  extends TestCase
+{
+  private static final long BASE = MetricSeries.toMillis(20200101000000L);
+  private static final int SNAPSHOTS = 30;
+  private static final int MINUTES = 10;//one snapshot a minute, rings of 11 records
+  private static final int NAN_SNAP = 26;
+  private static final List<Integer> DBIDS = Arrays.asList(1, 2);
+
+  private DerbyMetricsDb db;
+  private MetricsHotWindow hot;
+  private MetricsGroup mg;
+  private Metric[] metrics;
+
+  public MetricsHotWindowTest(String testName)
+  {
+    super(testName);
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite(MetricsHotWindowTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    if(System.getProperty("derby.system.home") == null)
+      System.setProperty("derby.system.home", "target");
+    db = MetricsRollupTest.newMetricsDb(getName());
+    hot = db.getHotWindow();
+    hot.configure(MINUTES, 60, 1, false);
+
+    UserDefinedMetrics udm = new UserDefinedMetrics("HOT");
+    udm.setUdmType("row");
+    udm.addmetric("CNT", "CNT", true, MetricDataType.LONG);
+    udm.addmetric("G", "G", false, MetricDataType.DOUBLE);
+    mg = udm.getMetricsGroup();
+    mg.setDbType("mysql");
+    mg.calculateLength();
+    assertTrue(db.addNewUDM(udm));
+    metrics = mg.getMetrics().toArray(new Metric[0]);
+
+    MetricsRecordEncoder enc = mg.getEncoder();
+    Map<Integer, MetricsRecordEncoder.KeyResolver> resolvers = new HashMap<Integer, MetricsRecordEncoder.KeyResolver>();
+    for(int dbid: DBIDS)resolvers.put(dbid, enc.newKeyResolver());
+    for(int i = 0; i < SNAPSHOTS; i++)
+    {
+      long millis = BASE + i * 60000L;
+      int snap = db.getNextSnapshotId(MetricsRollup.toTs(millis));
+      assertEquals(i + 1, snap);
+      for(int dbid: DBIDS)
+      {
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("cnt", String.valueOf(i * 100L + dbid));
+        row.put("G", snap == NAN_SNAP ? "NaN" : String.valueOf(i * 1.5 + dbid));
+        db.putData(mg, null, enc.encode(row, resolvers.get(dbid), dbid, snap, millis, 5));
+      }
+    }
+    //wait for the writer thread
+    db.flush();
+    long deadline = System.currentTimeMillis() + 30000L;
+    while(countRows() < SNAPSHOTS * DBIDS.size())
+    {
+      assertTrue("metrics not stored", System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    db.destroy();
+    try
+    {
+      DriverManager.getConnection("jdbc:derby:memory:" + getName() + ";drop=true");
+    }catch(SQLException ex)
+    {
+      //dropped
+    }
+  }
+
+  public void testSameAsMetricsDb()
+  {
+    long startTs = MetricsRollup.toTs(BASE + 22 * 60000L);
+    long endTs = MetricsRollup.toTs(BASE + 40 * 60000L);
+    long hits = hits();
+    MetricSeries single = db.retrieveMetricSeries(mg.getSinkTableName(), metrics, false, 1, startTs, endTs);
+    MetricSeries multi = db.retrieveMetricSeries(mg.getSinkTableName(), metrics, false, Arrays.asList(2, 1), startTs, endTs);
+    assertEquals(hits + 2, hits());
+
+    hot.configure(0, 60, 1, false);
+    MetricSeries dbSingle = db.retrieveMetricSeries(mg.getSinkTableName(), metrics, false, 1, startTs, endTs);
+    MetricSeries dbMulti = db.retrieveMetricSeries(mg.getSinkTableName(), metrics, false, Arrays.asList(2, 1), startTs, endTs);
+    assertEquals(SNAPSHOTS - 22, single.size());
+    assertEquals(dump(dbSingle), dump(single));
+    assertEquals(2 * (SNAPSHOTS - 22), multi.size());
+    assertEquals(dump(dbMulti), dump(multi));
+  }
+
+  public void testNaNAsNull()
+  {
+    MetricSeries series = hot.retrieve(mg.getSinkTableName(), metrics, DBIDS, true, NAN_SNAP, NAN_SNAP);
+    assertNotNull(series);
+    assertEquals(2, series.size());
+    for(int r = 0; r < series.size(); r++)
+    {
+      assertFalse(series.isNull(0, r));
+      assertTrue(series.isNull(1, r));
+    }
+  }
+
+  public void testEviction()
+  {
+    //rings of 11 records keep snapshots 20 to 30
+    int coveredFrom = SNAPSHOTS - MINUTES;
+    MetricSeries series = hot.retrieve(mg.getSinkTableName(), metrics, DBIDS, true, coveredFrom, SNAPSHOTS);
+    assertNotNull(series);
+    assertEquals(2 * (MINUTES + 1), series.size());
+    assertEquals(coveredFrom, series.getSnapId(0));
+    assertNull(hot.retrieve(mg.getSinkTableName(), metrics, DBIDS, true, coveredFrom - 1, SNAPSHOTS));
+
+    //older snapshots come from metrics db
+    long misses = Long.parseLong(hot.getStats().get("hotWindow.misses"));
+    MetricSeries old = db.retrieveMetricSeries(mg.getSinkTableName(), metrics, false, 1,
+        MetricsRollup.toTs(BASE), MetricsRollup.toTs(BASE + SNAPSHOTS * 60000L));
+    assertEquals(SNAPSHOTS, old.size());
+    assertEquals(misses + 1, Long.parseLong(hot.getStats().get("hotWindow.misses")));
+
+    //a removed host is not covered any more
+    hot.remove(2);
+    assertNull(hot.retrieve(mg.getSinkTableName(), metrics, DBIDS, true, coveredFrom, SNAPSHOTS));
+    assertNotNull(hot.retrieve(mg.getSinkTableName(), metrics, Arrays.asList(1), true, coveredFrom, SNAPSHOTS));
+  }
+
+  public void testLayoutChange()
+  {
+    MetricsGroup changed = new UserDefinedMetrics("HOT").getMetricsGroup();
+    changed.setDbType("mysql");
+    for(Metric m: mg.getMetrics())changed.addMetrics(m.copy());
+    changed.addMetrics(new Metric("X", "X", MetricDataType.INT, "", "", false));
+    changed.calculateLength();
+    assertEquals(mg.getSinkTableName(), changed.getSinkTableName());
+
+    int snap = SNAPSHOTS + 1;
+    ByteBuffer buf = ByteBuffer.allocate(changed.getEncoder().getRecordLength());
+    buf.putInt(0, 1);
+    buf.putInt(4, snap);
+    buf.putLong(8, BASE + SNAPSHOTS * 60000L);
+    buf.putInt(16, 5);
+    buf.putLong(20, 12345L);
+    buf.putDouble(28, 0.5);
+    buf.putInt(36, 7);
+    hot.put(changed, buf);
+
+    Metric[] all = changed.getMetrics().toArray(new Metric[0]);
+    MetricSeries series = hot.retrieve(mg.getSinkTableName(), all, Arrays.asList(1), false, snap, snap);
+    assertNotNull(series);
+    assertEquals(1, series.size());
+    assertEquals(12345L, series.getLong(0, 0));
+    assertEquals(0.5, series.getDouble(1, 0), 0);
+    assertEquals(7L, series.getLong(2, 0));
+    //records of the old layout are dropped, the ring covers from the new one
+    assertNull(hot.retrieve(mg.getSinkTableName(), all, Arrays.asList(1), false, snap - 1, snap));
+    //the other host still has the old layout, without X
+    assertNull(hot.retrieve(mg.getSinkTableName(), all, Arrays.asList(2), false, snap - 1, snap));
+    assertNotNull(hot.retrieve(mg.getSinkTableName(), metrics, Arrays.asList(2), false, SNAPSHOTS - MINUTES, snap));
+
+    //same record length, G changed from DOUBLE to LONG
+    MetricsGroup retyped = new UserDefinedMetrics("HOT").getMetricsGroup();
+    retyped.setDbType("mysql");
+    retyped.addMetrics(new Metric("CNT", "CNT", MetricDataType.LONG, "", "", true));
+    retyped.addMetrics(new Metric("G", "G", MetricDataType.LONG, "", "", false));
+    retyped.calculateLength();
+    assertEquals(mg.getLength(), retyped.getLength());
+    buf = ByteBuffer.allocate(retyped.getEncoder().getRecordLength());
+    buf.putInt(0, 2);
+    buf.putInt(4, snap);
+    buf.putLong(8, BASE + SNAPSHOTS * 60000L);
+    buf.putInt(16, 5);
+    buf.putLong(20, 54321L);
+    buf.putLong(28, 42L);
+    hot.put(retyped, buf);
+    series = hot.retrieve(mg.getSinkTableName(), metrics, Arrays.asList(2), false, snap, snap);
+    assertNotNull(series);
+    assertEquals(1, series.size());
+    assertTrue(series.isIntegral(1));
+    assertEquals(42L, series.getLong(1, 0));
+    assertNull(hot.retrieve(mg.getSinkTableName(), metrics, Arrays.asList(2), false, snap - 1, snap));
+  }
+
+  private long hits()
+  {
+    return Long.parseLong(hot.getStats().get("hotWindow.hits"));
+  }
+
+  private int countRows() throws SQLException
+  {
+    Connection conn = db.getPooledConnection();
+    try
+    {
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery("select count(*) from " + mg.getSinkTableName());
+      rs.next();
+      int n = rs.getInt(1);
+      rs.close();
+      stmt.close();
+      return n;
+    }finally
+    {
+      conn.close();
+    }
+  }
+
+  private static String dump(MetricSeries s)
+  {
+    StringBuilder sb = new StringBuilder();
+    for(int r = 0; r < s.size(); r++)
+    {
+      sb.append(s.getDbid(r)).append(',').append(s.getSnapId(r)).append(',').append(s.getTimestamp(r));
+      for(int c = 0; c < s.getMetricCount(); c++)
+      {
+        sb.append(',').append(s.getName(c).toUpperCase()).append('=');
+        if(s.isNull(c, r))sb.append("null");
+        else if(s.isIntegral(c))sb.append(s.getLong(c, r));
+        else sb.append(String.format("%.3f", s.getDouble(c, r)));
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ *  Copyright 2015, Yahoo Inc.
+ *  Copyrights licensed under the Apache License.
+ *  See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.yahoo.dba.perf.myperf.common.Metric;
+import com.yahoo.dba.perf.myperf.common.MetricDataType;
+import com.yahoo.dba.perf.myperf.common.MetricSeries;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+
+/**
+ * Unit test for MetricsRollup against an in memory Derby metrics db: 10M windows from the metrics table,
+ * 1H windows from 10M, window boundaries, and retrieval of a tier with the tail not rolled up yet.
+ */
+public class MetricsRollupTest
+  extends TestCase
+{
+  private static final long BASE = MetricSeries.toMillis(20200101000000L);
+  private static final int HOURS = 3;
+  private static final List<Integer> DBIDS = Arrays.asList(1, 2);
+
+  private DerbyMetricsDb db;
+  private MetricsGroup mg;
+  private List<Long> snapTimes = new ArrayList<Long>();//milliseconds, index is SNAP_ID - 1
+
+  public MetricsRollupTest(String testName)
+  {
+    super(testName);
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite(MetricsRollupTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    if(System.getProperty("derby.system.home") == null)
+      System.setProperty("derby.system.home", "target");
+    db = newMetricsDb(getName());
+    mg = new MetricsGroup();
+    mg.setGroupName("T");
+    mg.setDbType("mysql");
+    mg.addMetrics(new Metric("CNT", "CNT", MetricDataType.LONG, "", "", true));
+    mg.addMetrics(new Metric("G", "G", MetricDataType.DOUBLE, "", "", false));
+    mg.calculateLength();
+
+    //every minute in the first half of an hour, every 150 seconds after, and the last second of the hour
+    for(int h = 0; h < HOURS; h++)
+    {
+      long hour = BASE + h * 3600000L;
+      for(int m = 0; m < 30; m++)snapTimes.add(hour + m * 60000L);
+      for(int k = 0; k < 12; k++)snapTimes.add(hour + 1800000L + k * 150000L);
+      snapTimes.add(hour + 3599000L);
+    }
+    Connection conn = db.getPooledConnection();
+    try
+    {
+      Statement stmt = conn.createStatement();
+      stmt.execute(db.buildDDL(mg));
+      stmt.close();
+      PreparedStatement ins = conn.prepareStatement("insert into MYSQL_T (DBID, SNAP_ID, TS, SQL_TIME, CNT, G) values(?,?,?,?,?,?)");
+      for(int i = 0; i < snapTimes.size(); i++)
+      {
+        long ts = MetricsRollup.toTs(snapTimes.get(i));
+        assertEquals(i + 1, db.getNextSnapshotId(ts));
+        for(int dbid: DBIDS)
+        {
+          ins.setInt(1, dbid);
+          ins.setInt(2, i + 1);
+          ins.setLong(3, ts);
+          ins.setInt(4, 1);
+          ins.setLong(5, counter(dbid, i));
+          ins.setDouble(6, gauge(dbid, i));
+          ins.execute();
+        }
+      }
+      ins.close();
+    }finally
+    {
+      conn.close();
+    }
+    assertTrue(db.getRollup().addTable(mg));
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    db.destroy();
+    try
+    {
+      DriverManager.getConnection("jdbc:derby:memory:" + getName() + ";drop=true");
+    }catch(SQLException ex)
+    {
+      //dropped
+    }
+  }
+
+  public void testToTs()
+  {
+    assertEquals(20200101000000L, MetricsRollup.toTs(BASE));
+    assertEquals(20200229235959L, MetricsRollup.toTs(MetricSeries.toMillis(20200229235959L)));
+    assertEquals(20201231235959L, MetricsRollup.toTs(MetricSeries.toMillis(20210101000000L) - 1000L));
+    for(long t = BASE; t < BASE + 400 * 86400000L; t += 86399000L)
+      assertEquals(t, MetricSeries.toMillis(MetricsRollup.toTs(t)));
+  }
+
+  public void testTenMinutes() throws SQLException
+  {
+    MetricsRollup rollup = db.getRollup();
+    MetricsRollup.Tier tier = rollup.getTier("10M");
+    assertTrue(rollup.rollup(tier, null, "MYSQL_T", mg, DBIDS, BASE, HOURS * 6));
+    checkTier(tier);
+    //rolling up again replaces the rows
+    assertTrue(rollup.rollup(tier, null, "MYSQL_T", mg, DBIDS, BASE, HOURS * 6));
+    checkTier(tier);
+    //no snapshot, nothing stored
+    assertFalse(rollup.rollup(tier, null, "MYSQL_T", mg, DBIDS, BASE + HOURS * 3600000L, 6));
+  }
+
+  public void testOneHour() throws SQLException
+  {
+    MetricsRollup rollup = db.getRollup();
+    assertTrue(rollup.rollup(rollup.getTier("10M"), null, "MYSQL_T", mg, DBIDS, BASE, HOURS * 6));
+    MetricsRollup.Tier tier = rollup.getTier("1H");
+    assertTrue(rollup.rollup(tier, rollup.getTier("10M"), "MYSQL_T", mg, DBIDS, BASE, HOURS));
+    checkTier(tier);
+  }
+
+  public void testRetrieveTail() throws SQLException
+  {
+    MetricsRollup rollup = db.getRollup();
+    assertTrue(rollup.rollup(rollup.getTier("10M"), null, "MYSQL_T", mg, DBIDS, BASE, HOURS * 6));
+    assertTrue(rollup.rollup(rollup.getTier("1H"), rollup.getTier("10M"), "MYSQL_T", mg, DBIDS, BASE, HOURS - 1));
+
+    //resume from the tier tables, as at startup
+    rollup = new MetricsRollup(db);
+    assertTrue(rollup.addTable(mg));
+    Metric[] metrics = mg.getMetrics().toArray(new Metric[0]);
+    long endTs = MetricsRollup.toTs(BASE + HOURS * 3600000L);
+    MetricSeries series = rollup.retrieveMetricSeries(rollup.getTier("1H"), "MYSQL_T", metrics, DBIDS, true, 20200101000000L, endTs);
+    assertNotNull(series);
+    int tail = snapTimes.size() / HOURS;
+    assertEquals(DBIDS.size() * (HOURS - 1 + tail), series.size());
+    int row = 0;
+    for(int dbid: DBIDS)
+    {
+      for(int h = 0; h < HOURS - 1; h++, row++)
+      {
+        assertEquals(dbid, series.getDbid(row));
+        assertEquals(MetricsRollup.toTs(snapTimes.get((h + 1) * tail - 1)), series.getTimestamp(row));
+        assertEquals(counter(dbid, (h + 1) * tail - 1), series.getLong(0, row));
+      }
+      for(int i = (HOURS - 1) * tail; i < snapTimes.size(); i++, row++)
+      {
+        assertEquals(dbid, series.getDbid(row));
+        assertEquals(i + 1, series.getSnapId(row));
+        assertEquals(MetricsRollup.toTs(snapTimes.get(i)), series.getTimestamp(row));
+        assertEquals(counter(dbid, i), series.getLong(0, row));
+        assertEquals(gauge(dbid, i), series.getDouble(1, row), 1e-6);
+      }
+    }
+    checkRates(series);
+
+    //fully rolled up, no tail
+    assertTrue(rollup.rollup(rollup.getTier("1H"), rollup.getTier("10M"), "MYSQL_T", mg, DBIDS, BASE + (HOURS - 1) * 3600000L, 1));
+    rollup = new MetricsRollup(db);
+    assertTrue(rollup.addTable(mg));
+    series = rollup.retrieveMetricSeries(rollup.getTier("1H"), "MYSQL_T", metrics, DBIDS, true, 20200101000000L, endTs);
+    assertEquals(DBIDS.size() * HOURS, series.size());
+    checkRates(series);
+  }
+
+  /**
+   * The counter rate between two rows, as the chart calculates it, is the rate between their snapshots,
+   * also from the last tier row to the first raw row after it
+   */
+  private void checkRates(MetricSeries series)
+  {
+    for(int r = 1; r < series.size(); r++)
+    {
+      if(series.getDbid(r) != series.getDbid(r - 1))continue;
+      int dbid = series.getDbid(r);
+      int a = series.getSnapId(r - 1) - 1, b = series.getSnapId(r) - 1;
+      double expected = (double)(counter(dbid, b) - counter(dbid, a)) / (snapTimes.get(b) - snapTimes.get(a));
+      double rate = (double)(series.getLong(0, r) - series.getLong(0, r - 1))
+          / (MetricSeries.toMillis(series.getTimestamp(r)) - MetricSeries.toMillis(series.getTimestamp(r - 1)));
+      assertEquals("rate at dbid " + dbid + " snapshot " + (b + 1), expected, rate, 1e-9);
+    }
+  }
+
+  /**
+   * Compare the tier table with the aggregation of the raw rows: last value of the counter,
+   * average weighted by samples, minimum and maximum of the gauge, last SNAP_ID of the window and its TS.
+   */
+  private void checkTier(MetricsRollup.Tier tier) throws SQLException
+  {
+    long step = tier.getSeconds() * 1000L;
+    int windows = (int)(HOURS * 3600000L / step);
+    Connection conn = db.getPooledConnection();
+    try
+    {
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery("select DBID, SNAP_ID, TS, SAMPLES, CNT, G, G_MIN, G_MAX from "
+          + tier.tableName("MYSQL_T") + " order by DBID, TS");
+      for(int dbid: DBIDS)
+      {
+        for(int w = 0; w < windows; w++)
+        {
+          long start = BASE + w * step;
+          int samples = 0, lastSnap = -1;
+          double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+          for(int i = 0; i < snapTimes.size(); i++)
+          {
+            long t = snapTimes.get(i);
+            if(t < start || t >= start + step)continue;
+            double g = gauge(dbid, i);
+            samples++;
+            sum += g;
+            min = Math.min(min, g);
+            max = Math.max(max, g);
+            lastSnap = i;
+          }
+          assertTrue(rs.next());
+          assertEquals(dbid, rs.getInt(1));
+          assertEquals(lastSnap + 1, rs.getInt(2));
+          assertEquals(MetricsRollup.toTs(snapTimes.get(lastSnap)), rs.getLong(3));
+          assertEquals(samples, rs.getInt(4));
+          assertEquals(counter(dbid, lastSnap), rs.getLong(5));
+          assertEquals(sum / samples, rs.getDouble(6), 1e-6);
+          assertEquals(min, rs.getDouble(7), 1e-6);
+          assertEquals(max, rs.getDouble(8), 1e-6);
+        }
+      }
+      assertFalse(rs.next());
+      rs.close();
+      stmt.close();
+    }finally
+    {
+      conn.close();
+    }
+    if(step == 600000L)
+    {
+      //0:10:00 starts the second window, 0:59:59 is in the last window of the first hour
+      assertEquals(10, samples(tier, BASE));
+      assertEquals(10, samples(tier, BASE + 600000L));
+      assertEquals(5, samples(tier, BASE + 3000000L));
+    }
+  }
+
+  private int samples(MetricsRollup.Tier tier, long start) throws SQLException
+  {
+    Connection conn = db.getPooledConnection();
+    try
+    {
+      PreparedStatement stmt = conn.prepareStatement("select SAMPLES from " + tier.tableName("MYSQL_T") + " where DBID=1 and TS between ? and ?");
+      stmt.setLong(1, MetricsRollup.toTs(start));
+      stmt.setLong(2, MetricsRollup.toTs(start + tier.getSeconds() * 1000L - 1000L));
+      ResultSet rs = stmt.executeQuery();
+      assertTrue(rs.next());
+      int samples = rs.getInt(1);
+      rs.close();
+      stmt.close();
+      return samples;
+    }finally
+    {
+      conn.close();
+    }
+  }
+
+  private static long counter(int dbid, int snap)
+  {
+    return (snap + 1) * 10L * dbid;
+  }
+
+  private static double gauge(int dbid, int snap)
+  {
+    return (snap * 7) % 13 + dbid * 0.5;
+  }
+
+  /**
+   * A metrics db in its own in memory database
+   */
+  static DerbyMetricsDb newMetricsDb(final String name)
+  {
+    DerbyMetricsDb db = new DerbyMetricsDb()
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public String getConnectionString()
+      {
+        return "jdbc:derby:memory:" + name;
+      }
+    };
+    db.init();
+    return db;
+  }
+}
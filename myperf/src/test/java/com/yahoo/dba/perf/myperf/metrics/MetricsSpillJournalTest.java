@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2015, Yahoo Inc.
+ *  Copyrights licensed under the Apache License.
+ *  See the accompanying LICENSE file for terms.
+ */
+package com.yahoo.dba.perf.myperf.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.yahoo.dba.perf.myperf.common.MetricDataType;
+import com.yahoo.dba.perf.myperf.common.MetricSeries;
+import com.yahoo.dba.perf.myperf.common.MetricsGroup;
+import com.yahoo.dba.perf.myperf.common.UserDefinedMetrics;
+
+/**
+ * Unit test for MetricsSpillJournal: records survive a reopen in order across segments, a record torn by a crash
+ * is ignored, the replay offset is kept, records over the budget are dropped, replay into metrics db skips
+ * rows already stored and rows metrics db does not take, and the rollup waits for records not replayed yet.
+ */
+public class MetricsSpillJournalTest
+  extends TestCase
+{
+  private static final String TABLE = "MYSQL_T";
+  private static final int HEADER_LENGTH = 16;//segment header
+
+  private File root;
+
+  public MetricsSpillJournalTest(String testName)
+  {
+    super(testName);
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite(MetricsSpillJournalTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    root = Files.createTempDirectory("metrics_spill").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    delete(root);
+  }
+
+  public void testAcrossSegments()
+  {
+    MetricsSpillJournal journal = newJournal(64);
+    int n = 20;//about 1MB each, a segment takes 15
+    for(int i = 0; i < n; i++)
+      assertTrue(journal.append(TABLE, i % 2 == 0 ? null : "key" + i, record(i, 1024 * 1024)));
+    assertEquals(2, segmentFiles().length);
+    journal.close();
+
+    journal = newJournal(64);
+    assertTrue(journal.hasPending());
+    int next = 0;
+    while(true)
+    {
+      List<MetricsSpillJournal.SpilledRecord> records = journal.peek(100);
+      if(records.size() == 0)break;
+      assertTrue(records.size() < n);//one segment at a time
+      for(MetricsSpillJournal.SpilledRecord r: records)
+      {
+        assertEquals(TABLE, r.table);
+        assertEquals(next % 2 == 0 ? null : "key" + next, r.key);
+        assertEquals(1024 * 1024, r.data.limit());
+        assertEquals(next, r.data.getInt(0));
+        assertEquals(next, r.data.getInt(r.data.limit() - 4));
+        next++;
+      }
+      journal.commit(records);
+    }
+    assertEquals(n, next);
+    assertFalse(journal.hasPending());
+    assertEquals(0, segmentFiles().length);
+    journal.close();
+  }
+
+  public void testZeroedLength() throws IOException
+  {
+    writeRecords(3);
+    List<Integer> pos = recordPositions(segmentFiles()[0]);
+    assertEquals(3, pos.size());
+    RandomAccessFile f = new RandomAccessFile(segmentFiles()[0], "rw");
+    f.seek(pos.get(2));
+    f.writeInt(0);
+    f.close();
+    checkTornTail();
+  }
+
+  public void testCrcMismatch() throws IOException
+  {
+    writeRecords(3);
+    List<Integer> pos = recordPositions(segmentFiles()[0]);
+    RandomAccessFile f = new RandomAccessFile(segmentFiles()[0], "rw");
+    f.seek(pos.get(2) + 20);
+    int b = f.read();
+    f.seek(pos.get(2) + 20);
+    f.write(b ^ 0xff);
+    f.close();
+    checkTornTail();
+  }
+
+  public void testReadOffset()
+  {
+    writeRecords(5);
+    MetricsSpillJournal journal = newJournal(1);
+    journal.commit(journal.peek(2));
+    journal.close();
+
+    journal = newJournal(1);
+    List<MetricsSpillJournal.SpilledRecord> records = journal.peek(10);
+    assertEquals(3, records.size());
+    for(int i = 0; i < 3; i++)
+      assertEquals(i + 2, records.get(i).data.getInt(0));
+    journal.commit(records);
+    assertFalse(journal.hasPending());
+    journal.close();
+  }
+
+  public void testBudget()
+  {
+    MetricsSpillJournal journal = newJournal(1);
+    int n = 0;
+    while(journal.append(TABLE, null, record(n, 100 * 1024)))n++;
+    assertEquals(10, n);
+    assertEquals("1", journal.getStats().get("spill.dropped"));
+    assertFalse(journal.append(TABLE, null, record(n, 100 * 1024)));
+    assertEquals("2", journal.getStats().get("spill.dropped"));
+
+    //replayed records make room
+    journal.commit(journal.peek(3));
+    for(int i = 0; i < 3; i++)
+      assertTrue(journal.append(TABLE, null, record(n + i, 100 * 1024)));
+    assertFalse(journal.append(TABLE, null, record(n + 3, 100 * 1024)));
+    journal.close();
+  }
+
+  public void testReplay() throws Exception
+  {
+    if(System.getProperty("derby.system.home") == null)
+      System.setProperty("derby.system.home", "target");
+    DerbyMetricsDb db = MetricsRollupTest.newMetricsDb(getName());
+    try
+    {
+      db.getSpillJournal().configure(new File(root, MetricsSpillJournal.STORAGE_DIR), 1);
+      db.getSpillJournal().open();
+      UserDefinedMetrics udm = new UserDefinedMetrics("SPILL");
+      udm.setUdmType("row");
+      udm.addmetric("CNT", "CNT", true, MetricDataType.LONG);
+      udm.addmetric("G", "G", false, MetricDataType.DOUBLE);
+      MetricsGroup mg = udm.getMetricsGroup();
+      mg.setDbType("mysql");
+      mg.calculateLength();
+      assertTrue(db.addNewUDM(udm));
+      String tbl = mg.getSinkTableName();
+
+      //snapshots 1 to 5 are stored
+      for(int snap = 1; snap <= 5; snap++)
+        db.putData(mg, null, metricsRecord(snap, snap));
+      db.flush();
+      waitFor(db, tbl, 5);
+
+      //3 to 5 again, and a gauge DECIMAL(22,7) cannot take at 8
+      for(int snap = 3; snap <= 10; snap++)
+        assertTrue(db.getSpillJournal().append(tbl, null, metricsRecord(snap, snap == 8 ? 1e30 : snap)));
+      long deadline = System.currentTimeMillis() + 30000L;
+      while(db.getSpillJournal().hasPending())
+      {
+        assertTrue("spilled records not replayed", System.currentTimeMillis() < deadline);
+        Thread.sleep(50);
+      }
+      assertEquals(9, countRows(db, tbl, "1=1"));
+      assertEquals(0, countRows(db, tbl, "SNAP_ID=8"));
+      assertEquals(3, db.replayDuplicates.get());
+      assertEquals(1, db.replayRejected.get());
+      assertEquals("8", db.getSpillJournal().getStats().get("spill.replayed"));
+    }finally
+    {
+      db.destroy();
+      try
+      {
+        DriverManager.getConnection("jdbc:derby:memory:" + getName() + ";drop=true");
+      }catch(SQLException ex)
+      {
+        //dropped
+      }
+    }
+  }
+
+  public void testRollupHeldBack()
+  {
+    DerbyMetricsDb db = new DerbyMetricsDb();
+    db.getSpillJournal().configure(new File(root, MetricsSpillJournal.STORAGE_DIR), 1);
+    db.getSpillJournal().open();
+    MetricsRollup rollup = new MetricsRollup(db);
+    rollup.setScanIntervalSeconds(60);
+    long lag = 120000L;//scan interval and a minute
+    long now = System.currentTimeMillis() + 3600000L;
+    assertEquals(0L, db.getSpillJournal().getOldestSpillTime());
+    assertEquals(now - lag, rollup.closeTime(now));
+
+    long before = System.currentTimeMillis();
+    assertTrue(db.getSpillJournal().append(TABLE, null, record(1, 64)));
+    long after = System.currentTimeMillis();
+    assertTrue(db.getSpillJournal().append(TABLE, null, record(2, 64)));
+    long closeTime = rollup.closeTime(now);
+    assertTrue(closeTime >= before - lag && closeTime <= after - lag);
+
+    //held back until the last spilled record is replayed
+    db.getSpillJournal().commit(db.getSpillJournal().peek(1));
+    assertTrue(rollup.closeTime(now) >= closeTime);
+    assertTrue(rollup.closeTime(now) < now - lag);
+    db.getSpillJournal().commit(db.getSpillJournal().peek(1));
+    assertEquals(now - lag, rollup.closeTime(now));
+    db.getSpillJournal().close();
+  }
+
+  /**
+   * The first two records are read after a reopen, the torn one is not, and a new record is still appended and read
+   */
+  private void checkTornTail()
+  {
+    MetricsSpillJournal journal = newJournal(1);
+    assertTrue(journal.append(TABLE, null, record(100, 64)));
+    List<MetricsSpillJournal.SpilledRecord> records = journal.peek(10);
+    assertEquals(2, records.size());
+    assertEquals(0, records.get(0).data.getInt(0));
+    assertEquals(1, records.get(1).data.getInt(0));
+    journal.commit(records);
+    records = journal.peek(10);
+    assertEquals(1, records.size());
+    assertEquals(100, records.get(0).data.getInt(0));
+    journal.commit(records);
+    assertFalse(journal.hasPending());
+    journal.close();
+  }
+
+  private void writeRecords(int n)
+  {
+    MetricsSpillJournal journal = newJournal(1);
+    for(int i = 0; i < n; i++)
+      assertTrue(journal.append(TABLE, "key" + i, record(i, 64)));
+    journal.close();
+  }
+
+  private MetricsSpillJournal newJournal(int maxMB)
+  {
+    MetricsSpillJournal journal = new MetricsSpillJournal();
+    journal.configure(new File(root, MetricsSpillJournal.STORAGE_DIR), maxMB);
+    journal.open();
+    return journal;
+  }
+
+  private File[] segmentFiles()
+  {
+    File[] files = new File(root, MetricsSpillJournal.STORAGE_DIR).listFiles();
+    return files != null ? files : new File[0];
+  }
+
+  /**
+   * Start of each record in a segment file, following the lengths
+   */
+  private static List<Integer> recordPositions(File segment) throws IOException
+  {
+    List<Integer> pos = new ArrayList<Integer>();
+    RandomAccessFile f = new RandomAccessFile(segment, "r");
+    try
+    {
+      int p = HEADER_LENGTH;
+      while(true)
+      {
+        f.seek(p);
+        int len = f.readInt();
+        if(len <= 0)break;
+        pos.add(p);
+        p += 4 + len;
+      }
+    }finally
+    {
+      f.close();
+    }
+    return pos;
+  }
+
+  /**
+   * A record of the given size with its index at both ends
+   */
+  private static ByteBuffer record(int index, int size)
+  {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.putInt(0, index);
+    buf.putInt(size - 4, index);
+    return buf;
+  }
+
+  /**
+   * Encoded record of host 1 with CNT and G
+   */
+  private static ByteBuffer metricsRecord(int snap, double gauge)
+  {
+    ByteBuffer buf = ByteBuffer.allocate(36);
+    buf.putInt(0, 1);
+    buf.putInt(4, snap);
+    buf.putLong(8, MetricSeries.toMillis(20200101000000L) + snap * 60000L);
+    buf.putInt(16, 5);
+    buf.putLong(20, snap * 100L);
+    buf.putDouble(28, gauge);
+    return buf;
+  }
+
+  private static void waitFor(DerbyMetricsDb db, String tbl, int rows) throws Exception
+  {
+    long deadline = System.currentTimeMillis() + 30000L;
+    while(countRows(db, tbl, "1=1") < rows)
+    {
+      assertTrue("metrics not stored", System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+
+  private static int countRows(DerbyMetricsDb db, String tbl, String where) throws SQLException
+  {
+    Connection conn = db.getPooledConnection();
+    try
+    {
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery("select count(*) from " + tbl + " where " + where);
+      rs.next();
+      int n = rs.getInt(1);
+      rs.close();
+      stmt.close();
+      return n;
+    }finally
+    {
+      conn.close();
+    }
+  }
+
+  private static void delete(File f)
+  {
+    File[] files = f.listFiles();
+    if(files != null)
+    {
+      for(File c: files)
+        delete(c);
+    }
+    f.delete();
+  }
+}